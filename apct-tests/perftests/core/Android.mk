@@ -9,12 +9,16 @@ LOCAL_SRC_FILES := $(call all-java-files-under, src)
 LOCAL_STATIC_JAVA_LIBRARIES := \
     android-support-test \
     apct-perftests-utils \
-    legacy-android-test
+    legacy-android-test \
+    services.core
 
 LOCAL_PACKAGE_NAME := CorePerfTests
 
 LOCAL_JNI_SHARED_LIBRARIES := libperftestscore_jni
 
+LOCAL_JACK_FLAGS := --multi-dex native
+LOCAL_DX_FLAGS := --multi-dex
+
 # Use google-fonts/dancing-script for the performance metrics
 LOCAL_ASSET_DIR := $(TOP)/external/google-fonts/dancing-script
 
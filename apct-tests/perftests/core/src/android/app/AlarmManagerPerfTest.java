@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.perftests.core.R;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * Replays an alarm workload against AlarmManagerService to measure how long
+ * set() and cancel() take when many alarms are already pending.
+ *
+ * The workload is read from res/raw/alarm_workload.txt, a synthetic sample
+ * with a mix of inexact, windowed, exact and repeating alarms. To replay a
+ * different workload, push it to the device and pass its path with
+ * "-e alarmWorkload <path>". See the sample for the format.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AlarmManagerPerfTest {
+    private static final String ARG_WORKLOAD = "alarmWorkload";
+    private static final String ACTION = "android.app.perftests.ALARM";
+
+    private static final class Record {
+        final int type;
+        final long delay;
+        final long window;
+        final long interval;
+
+        Record(int type, long delay, long window, long interval) {
+            this.type = type;
+            this.delay = delay;
+            this.window = window;
+            this.interval = interval;
+        }
+    }
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AlarmManager mAlarmManager;
+    private final ArrayList<Record> mWorkload = new ArrayList<>();
+    private final ArrayList<PendingIntent> mOperations = new ArrayList<>();
+    private PendingIntent mExtraOperation;
+
+    @Before
+    public void setUp() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAlarmManager = context.getSystemService(AlarmManager.class);
+        final String path = InstrumentationRegistry.getArguments().getString(ARG_WORKLOAD);
+        try (InputStream in = (path != null) ? new FileInputStream(path)
+                : context.getResources().openRawResource(R.raw.alarm_workload)) {
+            readWorkload(in);
+        }
+        // Create the PendingIntents up front so that the benchmarks only time
+        // the calls into the alarm manager.
+        final Intent intent = new Intent(ACTION).setPackage(context.getPackageName());
+        for (int i = 0; i < mWorkload.size(); i++) {
+            mOperations.add(PendingIntent.getBroadcast(context, i, intent, 0));
+        }
+        mExtraOperation = PendingIntent.getBroadcast(context, mWorkload.size(), intent, 0);
+    }
+
+    @After
+    public void tearDown() {
+        cancelWorkload();
+        mAlarmManager.cancel(mExtraOperation);
+    }
+
+    private void readWorkload(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = line.split("\\s+");
+            mWorkload.add(new Record(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+        }
+    }
+
+    private void set(Record r, PendingIntent operation) {
+        final boolean isRtc = (r.type == AlarmManager.RTC || r.type == AlarmManager.RTC_WAKEUP);
+        final long when = r.delay
+                + (isRtc ? System.currentTimeMillis() : SystemClock.elapsedRealtime());
+        if (r.interval > 0) {
+            mAlarmManager.setRepeating(r.type, when, r.interval, operation);
+        } else if (r.window < 0) {
+            mAlarmManager.set(r.type, when, operation);
+        } else if (r.window == 0) {
+            mAlarmManager.setExact(r.type, when, operation);
+        } else {
+            mAlarmManager.setWindow(r.type, when, r.window, operation);
+        }
+    }
+
+    private void setWorkload() {
+        for (int i = 0; i < mWorkload.size(); i++) {
+            set(mWorkload.get(i), mOperations.get(i));
+        }
+    }
+
+    private void cancelWorkload() {
+        for (int i = 0; i < mOperations.size(); i++) {
+            mAlarmManager.cancel(mOperations.get(i));
+        }
+    }
+
+    /** Times setting every alarm of the workload, starting with none pending. */
+    @Test
+    public void timeReplayWorkload() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            setWorkload();
+            state.pauseTiming();
+            cancelWorkload();
+            state.resumeTiming();
+        }
+    }
+
+    /** Times setting and cancelling one more alarm while the workload is pending. */
+    @Test
+    public void timeSetCancelWithWorkloadPending() {
+        setWorkload();
+        final Record extra = new Record(AlarmManager.ELAPSED_REALTIME, 2 * 60 * 60 * 1000, -1, 0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            set(extra, mExtraOperation);
+            mAlarmManager.cancel(mExtraOperation);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.app.Activity;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares the cost of writing a binder reply through a temporary parcel that
+ * is then copied into the reply (the old {@code Binder.execTransact} behavior)
+ * with writing the reply directly, as done when no plugin needs to perturb it.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BinderReplyPerfTest {
+    private static final int ALLOC_ITERATIONS = 10000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final Binder mBinder = new Binder();
+
+    private void writeReply(Parcel reply) {
+        reply.writeNoException();
+        reply.writeInt(42);
+        reply.writeString("com.example.reply");
+        reply.writeStrongBinder(mBinder);
+        reply.writeLong(0xdeadbeefL);
+    }
+
+    // Both variants obtain and recycle the reply, as Binder.execTransact does, so that
+    // neither one carries objects recorded in the reply over to the next iteration.
+    private void replyViaTempParcel() {
+        Parcel reply = Parcel.obtain();
+        Parcel temp = Parcel.obtain();
+        writeReply(temp);
+        PermissionsPluginManager.fixupParcelForBinder(Process.myPid(), temp, reply);
+        temp.recycle();
+        reply.recycle();
+    }
+
+    private void replyDirect() {
+        Parcel reply = Parcel.obtain();
+        writeReply(reply);
+        final int callingPid = Process.myPid();
+        if (PermissionsPluginManager.needsReplyRewrite(callingPid, reply)) {
+            PermissionsPluginManager.rewriteReplyForBinder(callingPid, reply);
+        }
+        reply.recycle();
+    }
+
+    @Test
+    public void timeReplyViaTempParcel() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            replyViaTempParcel();
+        }
+    }
+
+    @Test
+    public void timeReplyDirect() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            replyDirect();
+        }
+    }
+
+    @Test
+    public void allocReplyViaTempParcel() {
+        reportAllocations("allocReplyViaTempParcel", this::replyViaTempParcel);
+    }
+
+    @Test
+    public void allocReplyDirect() {
+        reportAllocations("allocReplyDirect", this::replyDirect);
+    }
+
+    private static void reportAllocations(String key, Runnable reply) {
+        // Warm up the parcel pools before counting.
+        for (int i = 0; i < ALLOC_ITERATIONS; i++) {
+            reply.run();
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        for (int i = 0; i < ALLOC_ITERATIONS; i++) {
+            reply.run();
+        }
+        Debug.stopAllocCounting();
+
+        Bundle status = new Bundle();
+        status.putLong(key + "_allocCountPerReply",
+                Debug.getThreadAllocCount() / ALLOC_ITERATIONS);
+        status.putLong(key + "_allocBytesPerReply",
+                Debug.getThreadAllocSize() / ALLOC_ITERATIONS);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+}
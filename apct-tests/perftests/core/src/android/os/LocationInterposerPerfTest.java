@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.location.Location;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of perturbing all locations of one transaction with one
+ * plugin call per location versus a single batched call.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class LocationInterposerPerfTest {
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { { 1 }, { 10 }, { 100 } });
+    }
+
+    @Parameterized.Parameter(0)
+    public int mLocationCount;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private IPluginLocationInterposer mInterposer;
+    private List<Location> mLocations;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mInterposer = IPluginLocationInterposer.Stub.asInterface(service);
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        final Context context = InstrumentationRegistry.getContext();
+        final Intent intent = new Intent(context, LocationInterposerService.class);
+        context.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        if (!mConnected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out binding to the interposer");
+        }
+
+        mLocations = new ArrayList<>(mLocationCount);
+        for (int i = 0; i < mLocationCount; i++) {
+            Location location = new Location("gps");
+            location.setLatitude(i);
+            location.setLongitude(i);
+            mLocations.add(location);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getContext().unbindService(mConnection);
+    }
+
+    @Test
+    public void timeModifyLocationPerObject() throws RemoteException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < mLocationCount; i++) {
+                mInterposer.modifyLocation("com.example", mLocations.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void timeModifyLocationsBatched() throws RemoteException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mInterposer.modifyLocations("com.example", mLocations);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.app.Service;
+import android.content.Intent;
+import android.location.Location;
+
+import java.util.List;
+
+/**
+ * A trivial location interposer, running in its own process, used by
+ * {@link LocationInterposerPerfTest}.
+ */
+public class LocationInterposerService extends Service {
+    private final IPluginLocationInterposer.Stub mBinder = new IPluginLocationInterposer.Stub() {
+        @Override
+        public Location modifyLocation(String targetAppPkg, Location originalLocation) {
+            originalLocation.setLatitude(0);
+            return originalLocation;
+        }
+
+        @Override
+        public List<Location> modifyLocations(String targetAppPkg,
+                List<Location> originalLocations) {
+            for (Location location : originalLocations) {
+                location.setLatitude(0);
+            }
+            return originalLocations;
+        }
+    };
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time, allocations and garbage collections caused by recording
+ * the binders written to parcels, both for parcels that are only written and
+ * recycled and for parcels sent to another process.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ParcelRecordingPerfTest {
+    private static final int BINDERS_PER_PARCEL = 4;
+    private static final int ALLOC_ITERATIONS = 100000;
+    private static final int IPC_ALLOC_ITERATIONS = 10000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final Binder mBinder = new Binder();
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private IBinder mRemote;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mRemote = service;
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        // Any service in another process will do; only the interface
+        // descriptor is asked for.
+        final Context context = InstrumentationRegistry.getContext();
+        final Intent intent = new Intent(context, LocationInterposerService.class);
+        context.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        if (!mConnected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out binding to the remote service");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getContext().unbindService(mConnection);
+    }
+
+    private void writeBinders(Parcel parcel) {
+        for (int i = 0; i < BINDERS_PER_PARCEL; i++) {
+            parcel.writeInt(i);
+            parcel.writeStrongBinder(mBinder);
+        }
+    }
+
+    private void writeAndRecycle() {
+        Parcel parcel = Parcel.obtain();
+        writeBinders(parcel);
+        parcel.recycle();
+    }
+
+    private void transact() {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            writeBinders(data);
+            mRemote.transact(IBinder.INTERFACE_TRANSACTION, data, reply, 0);
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    @Test
+    public void timeWriteBindersAndRecycle() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            writeAndRecycle();
+        }
+    }
+
+    @Test
+    public void timeTransactWithBinders() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            transact();
+        }
+    }
+
+    @Test
+    public void allocWriteBindersAndRecycle() {
+        reportChurn("allocWriteBindersAndRecycle", this::writeAndRecycle, ALLOC_ITERATIONS);
+    }
+
+    @Test
+    public void allocTransactWithBinders() {
+        reportChurn("allocTransactWithBinders", this::transact, IPC_ALLOC_ITERATIONS);
+    }
+
+    private static long getGcCount() {
+        return Long.parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+    }
+
+    private static void reportChurn(String key, Runnable work, int iterations) {
+        // Warm up the parcel pools before counting.
+        for (int i = 0; i < iterations; i++) {
+            work.run();
+        }
+
+        Runtime.getRuntime().gc();
+        final long gcCountBefore = getGcCount();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        for (int i = 0; i < iterations; i++) {
+            work.run();
+        }
+        Debug.stopAllocCounting();
+        final long gcCount = getGcCount() - gcCountBefore;
+
+        Bundle status = new Bundle();
+        status.putLong(key + "_allocCountPerIteration",
+                Debug.getThreadAllocCount() / iterations);
+        status.putLong(key + "_allocBytesPerIteration",
+                Debug.getThreadAllocSize() / iterations);
+        status.putLong(key + "_gcCount", gcCount);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+}
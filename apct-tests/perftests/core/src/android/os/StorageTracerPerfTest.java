@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.Os;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures the overhead the storage tracer adds to file I/O. openat() is the
+ * only syscall the tracer interposes on; the stat and read benchmarks show the
+ * cost it adds to the syscalls it doesn't care about.
+ *
+ * To compare the interception modes, apply a storage plugin to
+ * com.android.perftests.core and run this once with
+ * persist.sys.storage_tracer_mode set to "ptrace" and once with it set to
+ * "seccomp", restarting the test process in between. Without a plugin, the
+ * results are the untraced baseline.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StorageTracerPerfTest {
+    private static final int FILE_SIZE = 4096;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private File mExternalFile;
+    private File mInternalFile;
+    private final byte[] mBuffer = new byte[FILE_SIZE];
+
+    @Before
+    public void setUp() throws IOException {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mExternalFile = new File(context.getExternalFilesDir(null), "tracer_perf");
+        mInternalFile = new File(context.getFilesDir(), "tracer_perf");
+        writeFile(mExternalFile);
+        writeFile(mInternalFile);
+    }
+
+    @After
+    public void tearDown() {
+        mExternalFile.delete();
+        mInternalFile.delete();
+    }
+
+    private void writeFile(File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(mBuffer);
+        }
+    }
+
+    private void openRead(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.read(mBuffer);
+        }
+    }
+
+    @Test
+    public void timeOpenExternal() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new FileInputStream(mExternalFile).close();
+        }
+    }
+
+    @Test
+    public void timeOpenInternal() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new FileInputStream(mInternalFile).close();
+        }
+    }
+
+    @Test
+    public void timeOpenReadExternal() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            openRead(mExternalFile);
+        }
+    }
+
+    @Test
+    public void timeReadExternal() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        try (FileInputStream in = new FileInputStream(mExternalFile)) {
+            while (state.keepRunning()) {
+                in.getChannel().position(0);
+                in.read(mBuffer);
+            }
+        }
+    }
+
+    @Test
+    public void timeStatExternal() throws Exception {
+        final String path = mExternalFile.getPath();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Os.stat(path);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.provider;
+
+import android.content.ContentResolver;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures reading settings the way a freshly started process does, with nothing cached,
+ * and once the process has cached them.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsPerfTest {
+    // Settings commonly read while an app starts
+    private static final String[] GLOBAL_SETTINGS = {
+            Settings.Global.AIRPLANE_MODE_ON,
+            Settings.Global.ANIMATOR_DURATION_SCALE,
+            Settings.Global.TRANSITION_ANIMATION_SCALE,
+            Settings.Global.WINDOW_ANIMATION_SCALE,
+            Settings.Global.AUTO_TIME,
+            Settings.Global.AUTO_TIME_ZONE,
+            Settings.Global.DEVELOPMENT_SETTINGS_ENABLED,
+            Settings.Global.DEVICE_PROVISIONED,
+            Settings.Global.MOBILE_DATA,
+            Settings.Global.WIFI_ON,
+    };
+    private static final String[] SECURE_SETTINGS = {
+            Settings.Secure.ACCESSIBILITY_ENABLED,
+            Settings.Secure.ENABLED_ACCESSIBILITY_SERVICES,
+            Settings.Secure.DEFAULT_INPUT_METHOD,
+            Settings.Secure.ENABLED_INPUT_METHODS,
+            Settings.Secure.LOCATION_MODE,
+            Settings.Secure.TOUCH_EXPLORATION_ENABLED,
+            Settings.Secure.USER_SETUP_COMPLETE,
+            Settings.Secure.ACCESSIBILITY_DISPLAY_MAGNIFICATION_ENABLED,
+    };
+    private static final String[] SYSTEM_SETTINGS = {
+            Settings.System.FONT_SCALE,
+            Settings.System.HAPTIC_FEEDBACK_ENABLED,
+            Settings.System.SCREEN_BRIGHTNESS,
+            Settings.System.SCREEN_OFF_TIMEOUT,
+            Settings.System.SOUND_EFFECTS_ENABLED,
+            Settings.System.TIME_12_24,
+            Settings.System.TEXT_AUTO_CAPS,
+            Settings.System.ACCELEROMETER_ROTATION,
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+    }
+
+    private void readAll() {
+        for (String name : GLOBAL_SETTINGS) {
+            Settings.Global.getString(mResolver, name);
+        }
+        for (String name : SECURE_SETTINGS) {
+            Settings.Secure.getString(mResolver, name);
+        }
+        for (String name : SYSTEM_SETTINGS) {
+            Settings.System.getString(mResolver, name);
+        }
+    }
+
+    private static void clearCaches() {
+        Settings.Global.clearProviderForTest();
+        Settings.Secure.clearProviderForTest();
+        Settings.System.clearProviderForTest();
+    }
+
+    /** Times the first reads of a process, starting with no cached values. */
+    @Test
+    public void timeColdStartReads() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            clearCaches();
+            state.resumeTiming();
+            readAll();
+        }
+    }
+
+    /** Times reads once every value has been cached. */
+    @Test
+    public void timeCachedReads() {
+        readAll();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readAll();
+        }
+    }
+}
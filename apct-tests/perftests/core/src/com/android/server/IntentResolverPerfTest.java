@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures resolving intents against a synthetic package set with and without the match
+ * index of {@link IntentResolver}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IntentResolverPerfTest {
+    private static final int NUM_PACKAGES = 2000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final class TestFilter extends IntentFilter {
+        final String packageName;
+
+        TestFilter(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
+    private static final class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return packageName.equals(filter.packageName);
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+    }
+
+    private TestResolver mResolver;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = new TestResolver();
+        for (int i = 0; i < NUM_PACKAGES; i++) {
+            addPackage("com.example.app" + i, i);
+        }
+    }
+
+    /**
+     * Adds filters typical of an app: a launcher entry, a browsable link handler for its
+     * own host, a share target, a package broadcast receiver and a private action.
+     */
+    private void addPackage(String packageName, int index) throws Exception {
+        TestFilter f = new TestFilter(packageName);
+        f.addAction(Intent.ACTION_MAIN);
+        f.addCategory(Intent.CATEGORY_LAUNCHER);
+        mResolver.addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction(Intent.ACTION_VIEW);
+        f.addCategory(Intent.CATEGORY_DEFAULT);
+        f.addCategory(Intent.CATEGORY_BROWSABLE);
+        f.addDataScheme("http");
+        f.addDataScheme("https");
+        f.addDataAuthority("app" + index + ".example.com", null);
+        mResolver.addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction(Intent.ACTION_SEND);
+        f.addCategory(Intent.CATEGORY_DEFAULT);
+        f.addDataType((index % 2 == 0) ? "image/*" : "text/plain");
+        mResolver.addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction((index % 3 == 0) ? Intent.ACTION_PACKAGE_ADDED
+                : Intent.ACTION_PACKAGE_REMOVED);
+        f.addDataScheme("package");
+        mResolver.addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction(packageName + ".ACTION_SYNC");
+        mResolver.addFilter(f);
+    }
+
+    private static Intent browsableViewIntent() {
+        return new Intent(Intent.ACTION_VIEW, Uri.parse("https://app42.example.com/path"))
+                .addCategory(Intent.CATEGORY_BROWSABLE);
+    }
+
+    private static Intent packageAddedIntent() {
+        return new Intent(Intent.ACTION_PACKAGE_ADDED, Uri.parse("package:com.example.new"));
+    }
+
+    private static Intent privateActionIntent() {
+        return new Intent("com.example.app7.ACTION_SYNC");
+    }
+
+    @Test
+    public void timeBrowsableView() {
+        queryIntent(browsableViewIntent(), true);
+    }
+
+    @Test
+    public void timeBrowsableViewWithoutIndex() {
+        queryIntent(browsableViewIntent(), false);
+    }
+
+    @Test
+    public void timePackageAdded() {
+        queryIntent(packageAddedIntent(), true);
+    }
+
+    @Test
+    public void timePackageAddedWithoutIndex() {
+        queryIntent(packageAddedIntent(), false);
+    }
+
+    @Test
+    public void timePrivateAction() {
+        queryIntent(privateActionIntent(), true);
+    }
+
+    @Test
+    public void timePrivateActionWithoutIndex() {
+        queryIntent(privateActionIntent(), false);
+    }
+
+    private void queryIntent(Intent intent, boolean useMatchIndex) {
+        mResolver.setUseMatchIndex(useMatchIndex);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, null, false, 0);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.server.job;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.BatteryManager;
+import android.os.BatteryManagerInternal;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.LocalServices;
+import com.android.server.job.controllers.BatteryController;
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures how long a controller takes to apply a state change with many registered jobs.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class JobControllerPerfTest {
+    private static final int NUM_JOBS = 10000;
+    private static final int SOME_UID = 34234;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final StateChangedListener sListener = new StateChangedListener() {
+        @Override
+        public void onControllerStateChanged() {
+        }
+
+        @Override
+        public void onRunJobNow(JobStatus jobStatus) {
+        }
+
+        @Override
+        public void onDeviceIdleStateChanged(boolean deviceIdle) {
+        }
+    };
+
+    /** A battery that is neither low nor plugged in. */
+    private static final class FakeBatteryManager extends BatteryManagerInternal {
+        @Override
+        public boolean isPowered(int plugTypeSet) {
+            return false;
+        }
+
+        @Override
+        public int getPlugType() {
+            return 0;
+        }
+
+        @Override
+        public int getBatteryLevel() {
+            return 50;
+        }
+
+        @Override
+        public boolean getBatteryLevelLow() {
+            return false;
+        }
+
+        @Override
+        public int getInvalidCharger() {
+            return 0;
+        }
+    }
+
+    private BatteryController mBatteryController;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        LocalServices.removeServiceForTest(BatteryManagerInternal.class);
+        LocalServices.addService(BatteryManagerInternal.class, new FakeBatteryManager());
+        mBatteryController = BatteryController.getForTesting(sListener, context);
+
+        // Half of the jobs wait for charging and half for the battery not being low, so a
+        // charging change only affects half of them.
+        final ComponentName component = new ComponentName(context.getPackageName(),
+                "StubJobService");
+        for (int i = 0; i < NUM_JOBS; i++) {
+            final JobInfo.Builder b = new JobInfo.Builder(i, component)
+                    .setOverrideDeadline(24 * 60 * 60 * 1000L);
+            if (i % 2 == 0) {
+                b.setRequiresCharging(true);
+            } else {
+                b.setRequiresBatteryNotLow(true);
+            }
+            mBatteryController.maybeStartTrackingJobLocked(
+                    JobStatus.createFromJobInfo(b.build(), SOME_UID, null, -1, null), null);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        LocalServices.removeServiceForTest(BatteryManagerInternal.class);
+    }
+
+    @Test
+    public void timeChargingChange() {
+        final Intent charging = new Intent(BatteryManager.ACTION_CHARGING);
+        final Intent discharging = new Intent(BatteryManager.ACTION_DISCHARGING);
+        final BatteryController.ChargingTracker tracker = mBatteryController.getTracker();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        boolean charge = true;
+        while (state.keepRunning()) {
+            tracker.onReceiveInternal(charge ? charging : discharging);
+            charge = !charge;
+        }
+    }
+}
@@ -268,4 +268,13 @@ public abstract class ActivityManagerInternal {
      * @param token The IApplicationToken for the activity
      */
     public abstract void setFocusedActivity(IBinder token);
+
+    /**
+     * Called by {@link com.android.server.pm.PackageManagerService} after the
+     * permissions plugins selected for {@param packageName} have changed, so
+     * that every process drops its cached plugin selection for that package.
+     * A package name of {@link com.android.permissionsplugin.PermissionsPlugin#ALL_PACKAGES}
+     * or null invalidates the selection of all packages.
+     */
+    public abstract void notifyPermissionsPluginsChanged(String packageName);
 }
@@ -74,6 +74,7 @@ import android.os.Message;
 import android.os.MessageQueue;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
+import android.os.PermissionsPluginManager;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
@@ -1292,6 +1293,14 @@ public final class ActivityThread {
             }
         }
 
+        @Override
+        public void dumpPermissionsPlugins(ParcelFileDescriptor pfd, String[] args) {
+            PrintWriter pw = new FastPrintWriter(new FileOutputStream(pfd.getFileDescriptor()));
+            PermissionsPluginManager.dumpProcess(pw, "  ");
+            pw.flush();
+            IoUtils.closeQuietly(pfd);
+        }
+
         @Override
         public void unstableProviderDied(IBinder provider) {
             sendMessage(H.UNSTABLE_PROVIDER_DIED, provider);
@@ -1370,6 +1379,11 @@ public final class ActivityThread {
             }
         }
 
+        @Override
+        public void permissionsPluginsChanged(String packageName) {
+            PermissionsPluginManager.invalidateActivePluginsCache(packageName);
+        }
+
         @Override
         public void scheduleInstallProvider(ProviderInfo provider) {
             sendMessage(H.INSTALL_PROVIDER, provider);
@@ -34,6 +34,7 @@ import android.os.ICancellationSignal;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
+import android.os.PermissionsPluginManager;
 import android.os.Perturbable;
 import android.os.PerturbableObject;
 import android.os.RemoteException;
@@ -115,6 +116,18 @@ abstract public class ContentProviderNative extends Binder implements IContentPr
                                     getProviderName());
                             cursor = null;
 
+                            // The adaptor needs the metadata too, since it
+                            // hands out the rest of the rows window by window.
+                            PerturbableObject.QueryMetadata metadata = null;
+                            if (type != null) {
+                                metadata = new PerturbableObject.QueryMetadata();
+                                metadata.url = url;
+                                metadata.projection = projection;
+                                metadata.queryArgs = queryArgs;
+                                adaptor.setPerturbable(type, metadata,
+                                        PermissionsPluginManager.hasActivePluginsForCaller(type));
+                            }
+
                             BulkCursorDescriptor d = adaptor.getBulkCursorDescriptor();
                             adaptor = null;
 
@@ -122,10 +135,6 @@ abstract public class ContentProviderNative extends Binder implements IContentPr
                             reply.writeInt(1);
 
                             if (type != null) {
-                                PerturbableObject.QueryMetadata metadata = new PerturbableObject.QueryMetadata();
-                                metadata.url = url;
-                                metadata.projection = projection;
-                                metadata.queryArgs = queryArgs;
                                 d.setPerturbable(type, metadata);
                             }
 
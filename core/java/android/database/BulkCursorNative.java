@@ -53,6 +53,14 @@ public abstract class BulkCursorNative extends Binder implements IBulkCursor
         return new BulkCursorProxy(obj);
     }
     
+    /**
+     * Writes a window returned by {@link #getWindow} to the reply parcel.
+     * Subclasses may override this to record the window as perturbable data.
+     */
+    protected void writeWindowToParcel(CursorWindow window, Parcel reply) {
+        window.writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+    }
+
     @Override
     public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
             throws RemoteException {
@@ -67,7 +75,7 @@ public abstract class BulkCursorNative extends Binder implements IBulkCursor
                         reply.writeInt(0);
                     } else {
                         reply.writeInt(1);
-                        window.writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+                        writeWindowToParcel(window, reply);
                     }
                     return true;
                 }
@@ -52,6 +52,27 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
      */
     private CursorWindow mFilledWindow;
 
+    /**
+     * The maximum number of rows per window handed out for perturbable
+     * queries, or 0 to hand out windows as filled by the cursor. Keeping the
+     * windows small lets the plugin perturb, and the client read, the first
+     * rows of a large query without waiting for the whole result.
+     */
+    private static final String PROP_STREAMING_ROWS = "persist.sys.perm_plugin.cursor_rows";
+    private static final int DEFAULT_STREAMING_ROWS = 256;
+
+    /** The kind of perturbable data in this cursor, or null if none. */
+    private Perturbable mPerturbableType;
+    private PerturbableObject.QueryMetadata mMetadata;
+    private int mStreamingRows;
+
+    /**
+     * A window holding a range of the rows of the cursor's window, handed out
+     * instead of the full window when streaming.
+     * This field is only ever non-null while such a window is in use.
+     */
+    private CursorWindow mRangeWindow;
+
     private static final class ContentObserverProxy extends ContentObserver {
         protected IContentObserver mRemote;
 
@@ -104,6 +125,98 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
             mFilledWindow.close();
             mFilledWindow = null;
         }
+        closeRangeWindowLocked();
+    }
+
+    private void closeRangeWindowLocked() {
+        if (mRangeWindow != null) {
+            mRangeWindow.close();
+            mRangeWindow = null;
+        }
+    }
+
+    /**
+     * Marks the windows of this cursor as perturbable data. Must be called
+     * before {@link #getBulkCursorDescriptor}.
+     *
+     * @param stream Whether to hand out the windows in row ranges. Copying
+     * the rows only pays off when a plugin perturbs them, so this should be
+     * set only if the caller has an active plugin for the type.
+     */
+    public void setPerturbable(Perturbable type, PerturbableObject.QueryMetadata metadata,
+            boolean stream) {
+        synchronized (mLock) {
+            mPerturbableType = type;
+            mMetadata = metadata;
+            mStreamingRows = stream
+                    ? SystemProperties.getInt(PROP_STREAMING_ROWS, DEFAULT_STREAMING_ROWS) : 0;
+        }
+    }
+
+    /**
+     * Returns the window to hand out for the given position: either the
+     * window itself, or, when streaming, a window with at most
+     * {@link #mStreamingRows} of its rows starting at that position.
+     */
+    private CursorWindow getWindowForRangeLocked(CursorWindow window, int position) {
+        if (window == null || mPerturbableType == null || mStreamingRows <= 0) {
+            return window;
+        }
+
+        final int windowStart = window.getStartPosition();
+        final int windowEnd = windowStart + window.getNumRows();
+        final int start = Math.max(position, windowStart);
+        final int end = Math.min(windowEnd, start + mStreamingRows);
+        if (start == windowStart && end == windowEnd) {
+            return window;
+        }
+
+        closeRangeWindowLocked();
+
+        final int numColumns = window.getNumColumns();
+        CursorWindow rangeWindow = new CursorWindow(mProviderName);
+        rangeWindow.setStartPosition(start);
+        if (rangeWindow.setNumColumns(numColumns)) {
+            for (int row = start; row < end; row++) {
+                if (!rangeWindow.allocRow()) {
+                    break;
+                }
+                if (!copyRow(window, rangeWindow, row, numColumns)) {
+                    rangeWindow.freeLastRow();
+                    break;
+                }
+            }
+        }
+
+        mRangeWindow = rangeWindow;
+        return rangeWindow;
+    }
+
+    private static boolean copyRow(CursorWindow from, CursorWindow to, int row, int numColumns) {
+        for (int column = 0; column < numColumns; column++) {
+            final boolean success;
+            switch (from.getType(row, column)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    success = to.putNull(row, column);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    success = to.putLong(from.getLong(row, column), row, column);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    success = to.putDouble(from.getDouble(row, column), row, column);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    success = to.putBlob(from.getBlob(row, column), row, column);
+                    break;
+                default:
+                    success = to.putString(from.getString(row, column), row, column);
+                    break;
+            }
+            if (!success) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private void disposeLocked() {
@@ -143,7 +256,7 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
             d.columnNames = mCursor.getColumnNames();
             d.wantsAllOnMoveCalls = mCursor.getWantsAllOnMoveCalls();
             d.count = mCursor.getCount();
-            d.window = mCursor.getWindow();
+            d.window = getWindowForRangeLocked(mCursor.getWindow(), 0);
             if (d.window != null) {
                 // Acquire a reference to the window because its reference count will be
                 // decremented when it is returned as part of the binder call reply parcel.
@@ -178,6 +291,7 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
                 mCursor.fillWindow(position, window);
             }
 
+            window = getWindowForRangeLocked(window, position);
             if (window != null) {
                 // Acquire a reference to the window because its reference count will be
                 // decremented when it is returned as part of the binder call reply parcel.
@@ -187,6 +301,25 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         }
     }
 
+    @Override
+    protected void writeWindowToParcel(CursorWindow window, Parcel reply) {
+        final Perturbable type;
+        final PerturbableObject.QueryMetadata metadata;
+        synchronized (mLock) {
+            type = mPerturbableType;
+            metadata = mMetadata;
+        }
+
+        if (type != null) {
+            reply.startPerturbableObject(type, window,
+                    Parcelable.PARCELABLE_WRITE_RETURN_VALUE, metadata);
+        }
+        window.writeToParcel(reply, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+        if (type != null) {
+            reply.finishPerturbableObject();
+        }
+    }
+
     @Override
     public void onMove(int position) {
         synchronized (mLock) {
@@ -59,6 +59,21 @@ public final class CameraStreamInfo implements Parcelable {
         return mSurface;
     }
 
+    /**
+     * Returns a copy of this stream info that targets another surface. Used to
+     * chain plugins, each one rendering into the surface of the next one.
+     * @return a copy of this stream info with the given target surface.
+     */
+    public CameraStreamInfo withSurface(Surface surface) {
+        CameraStreamInfo streamInfo = new CameraStreamInfo();
+        streamInfo.mStreamId = mStreamId;
+        streamInfo.mWidth = mWidth;
+        streamInfo.mHeight = mHeight;
+        streamInfo.mFormat = mFormat;
+        streamInfo.mSurface = surface;
+        return streamInfo;
+    }
+
     public static final Parcelable.Creator<CameraStreamInfo> CREATOR =
             new Parcelable.Creator<CameraStreamInfo>() {
         @Override
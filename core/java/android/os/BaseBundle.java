@@ -1505,10 +1505,6 @@ public class BaseBundle {
      * @param parcel The parcel to copy this bundle to.
      */
     void writeToParcelInner(Parcel parcel, int flags) {
-        // If the parcel has a read-write helper, we can't just copy the blob, so unparcel it first.
-        if (parcel.hasReadWriteHelper()) {
-            unparcel();
-        }
         // Keep implementation in sync with writeToParcel() in
         // frameworks/native/libs/binder/PersistableBundle.cpp.
         final ArrayMap<String, Object> map;
@@ -1534,6 +1530,18 @@ public class BaseBundle {
             parcel.writeInt(0);
             return;
         }
+        // If the parcel has a read-write helper, write the contents without it, so that the
+        // blob stays self-contained and the reader can keep it parcelled until it is used.
+        if (parcel.hasReadWriteHelper()) {
+            final Parcel p = Parcel.obtain();
+            try {
+                writeToParcelInner(p, flags);
+                parcel.appendFrom(p, 0, p.dataSize());
+            } finally {
+                p.recycle();
+            }
+            return;
+        }
         int lengthPos = parcel.dataPosition();
         parcel.writeInt(-1); // dummy, will hold length
         parcel.writeInt(BUNDLE_MAGIC);
@@ -1577,15 +1585,6 @@ public class BaseBundle {
                     + Integer.toHexString(magic));
         }
 
-        if (parcel.hasReadWriteHelper()) {
-            // If the parcel has a read-write helper, then we can't lazily-unparcel it, so just
-            // unparcel right away.
-            synchronized (this) {
-                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false);
-            }
-            return;
-        }
-
         // Advance within this Parcel
         int offset = parcel.dataPosition();
         parcel.setDataPosition(MathUtils.addOrThrow(offset, length));
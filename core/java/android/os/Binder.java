@@ -687,11 +687,12 @@ public class Binder implements IBinder {
         Parcel reply = Parcel.obtain(replyObj);
 
         /**
-         * Unfortunately, we have to write the transaction reply to a temporary
-         * parcel before copying it to the reply parcel, just in case a parcel
-         * contains *both* binder and perturbable objects.
+         * The transaction reply is written straight into the reply parcel.
+         * Only if it turns out to carry perturbable objects destined to a
+         * caller with an active plugin do we rewrite it, see
+         * {@link PermissionsPluginManager#rewriteReplyForBinder}.
          */
-        Parcel temp = Parcel.obtain();
+        boolean replyWritten = true;
 
         // theoretically, we should call transact, which will call onTransact,
         // but all that does is rewind it, and we just got these from an IPC,
@@ -704,7 +705,7 @@ public class Binder implements IBinder {
             if (tracingEnabled) {
                 Trace.traceBegin(Trace.TRACE_TAG_ALWAYS, getClass().getName() + ":" + code);
             }
-            res = onTransact(code, data, temp, flags);
+            res = onTransact(code, data, reply, flags);
         } catch (RemoteException|RuntimeException e) {
             if (LOG_RUNTIME_EXCEPTION) {
                 Log.w(TAG, "Caught a RuntimeException from the binder stub implementation.", e);
@@ -718,8 +719,7 @@ public class Binder implements IBinder {
             } else {
                 reply.setDataPosition(0);
                 reply.writeException(e);
-                temp.recycle();
-                temp = null;
+                replyWritten = false;
             }
             res = true;
         } finally {
@@ -728,12 +728,13 @@ public class Binder implements IBinder {
             }
         }
 
-        if (temp != null) {
-            // Fixup the reply parcel by copying into it data from the temporary
-            // parcel. During this process, perturb all data.
-            PermissionsPluginManager.fixupParcelForBinder(getCallingPid(), temp, reply);
-            temp.recycle();
-            temp = null;
+        // Replies to one-way transactions are never delivered, so there is no
+        // point in perturbing them.
+        if (replyWritten && (flags & FLAG_ONEWAY) == 0) {
+            final int callingPid = getCallingPid();
+            if (PermissionsPluginManager.needsReplyRewrite(callingPid, reply)) {
+                PermissionsPluginManager.rewriteReplyForBinder(callingPid, reply);
+            }
         }
 
         checkParcel(this, code, reply, "Unreasonably large binder reply buffer");
@@ -763,12 +764,17 @@ final class BinderProxy implements IBinder {
      */
     private int mTargetPid = 0;
 
+    /**
+     * The package running in mTargetPid, or null until it is looked up.
+     */
+    private volatile String mTargetPackage;
+
     public IInterface queryLocalInterface(String descriptor) {
         return null;
     }
 
     public boolean transact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
-        Parcel perturbedParcel = PermissionsPluginManager.perturbDataForBinderProxy(mTargetPid, data);
+        Parcel perturbedParcel = PermissionsPluginManager.perturbDataForBinderProxy(this, data);
         Parcel parcelToSend = (perturbedParcel == null) ? data : perturbedParcel;
 
         Binder.checkParcel(this, code, parcelToSend, "Unreasonably large binder buffer");
@@ -886,6 +892,9 @@ final class BinderProxy implements IBinder {
      * {@hide}
      */
     public void setTargetPid(int pid) {
+        if (mTargetPid != pid) {
+            mTargetPackage = null;
+        }
         mTargetPid = pid;
     }
 
@@ -895,6 +904,14 @@ final class BinderProxy implements IBinder {
     public int getTargetPid() {
         return mTargetPid;
     }
+
+    String getTargetPackage() {
+        return mTargetPackage;
+    }
+
+    void setTargetPackage(String packageName) {
+        mTargetPackage = packageName;
+    }
     
     final private WeakReference mSelf;
     private long mObject;
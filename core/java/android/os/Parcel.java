@@ -48,6 +48,7 @@ import java.lang.reflect.Modifier;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -210,12 +211,27 @@ public final class Parcel {
 
     private RuntimeException mStack;
 
-    private ArrayDeque<ParcelObject> mRecordedObjects = new ArrayDeque<>();
+    /**
+     * The objects recorded while writing this parcel, in write order, so that
+     * the parcel can be rewritten with perturbed data. Record i is made of
+     * mRecordedInts[3i..3i+2], i.e. its type and its start and end positions,
+     * and of mRecordedRefs[i], i.e. the binder or the PerturbableObject.
+     * ParcelObjects are only created for the binders if the parcel must be
+     * rewritten. The arrays are kept when the parcel is recycled, so that
+     * recording doesn't allocate once a pooled parcel has warmed up.
+     */
+    private int[] mRecordedInts;
+    private Object[] mRecordedRefs;
+    private int mRecordedCount;
     private ArrayDeque<PerturbableObject> mPerturbablesInProgress = null;
     private boolean mHasPerturbables = false;
     private boolean mStopRecording = false;
 
     private static final int POOL_SIZE = 6;
+
+    /** Initial and maximum pooled capacity of the recorded objects arrays. */
+    private static final int INITIAL_RECORDED_OBJECTS = 8;
+    private static final int MAX_POOLED_RECORDED_OBJECTS = 256;
     private static final Parcel[] sOwnedPool = new Parcel[POOL_SIZE];
     private static final Parcel[] sHolderPool = new Parcel[POOL_SIZE];
 
@@ -406,7 +422,7 @@ public final class Parcel {
             mPerturbablesInProgress.clear();
         }
 
-        mRecordedObjects.clear();
+        clearRecordedObjects();
         mHasPerturbables = false;
         mStopRecording = false;
 
@@ -625,7 +641,8 @@ public final class Parcel {
 
         if (mPerturbablesInProgress.isEmpty()) {
             // Root perturbable object
-            mRecordedObjects.add(perturbableObject);
+            recordObject(ParcelObject.PERTURBABLE_OBJECT, perturbableObject,
+                perturbableObject.mStartPos, perturbableObject.mEndPos);
             mHasPerturbables = true;
         } else {
             // Nested perturbable object
@@ -644,9 +661,102 @@ public final class Parcel {
         return mHasPerturbables;
     }
 
-    /** @hide */
+    private void recordObject(int type, Object ref, int startPos, int endPos) {
+        if (mRecordedRefs == null) {
+            mRecordedInts = new int[3 * INITIAL_RECORDED_OBJECTS];
+            mRecordedRefs = new Object[INITIAL_RECORDED_OBJECTS];
+        } else if (mRecordedCount == mRecordedRefs.length) {
+            mRecordedInts = Arrays.copyOf(mRecordedInts, 2 * mRecordedInts.length);
+            mRecordedRefs = Arrays.copyOf(mRecordedRefs, 2 * mRecordedRefs.length);
+        }
+
+        final int i = 3 * mRecordedCount;
+        mRecordedInts[i] = type;
+        mRecordedInts[i + 1] = startPos;
+        mRecordedInts[i + 2] = endPos;
+        mRecordedRefs[mRecordedCount++] = ref;
+    }
+
+    private void clearRecordedObjects() {
+        if (mRecordedRefs == null) {
+            return;
+        }
+
+        if (mRecordedRefs.length > MAX_POOLED_RECORDED_OBJECTS) {
+            // Don't let a pooled parcel hold on to a large array
+            mRecordedInts = null;
+            mRecordedRefs = null;
+        } else {
+            Arrays.fill(mRecordedRefs, 0, mRecordedCount, null);
+        }
+        mRecordedCount = 0;
+    }
+
+    /**
+     * Returns the objects recorded while writing this parcel, in write order.
+     * The records of the binders are created by this call, so it should only
+     * be made when the parcel must be rewritten. Each call returns a new
+     * deque, which the caller may consume.
+     *
+     * @hide
+     */
     public final ArrayDeque<ParcelObject> getRecordedObjects() {
-        return mRecordedObjects;
+        ArrayDeque<ParcelObject> recordedObjects = new ArrayDeque<>(Math.max(mRecordedCount, 1));
+        for (int i = 0; i < mRecordedCount; i++) {
+            if (mRecordedInts[3 * i] == ParcelObject.PERTURBABLE_OBJECT) {
+                recordedObjects.add((PerturbableObject) mRecordedRefs[i]);
+            } else {
+                ParcelObject parcelObject = new ParcelObject(mRecordedRefs[i],
+                    mRecordedInts[3 * i + 1], mRecordedInts[3 * i]);
+                parcelObject.setEndPos(mRecordedInts[3 * i + 2]);
+                recordedObjects.add(parcelObject);
+            }
+        }
+        return recordedObjects;
+    }
+
+    /**
+     * Returns the perturbable objects recorded while writing this parcel, in
+     * write order, without creating records of the binders.
+     *
+     * @hide
+     */
+    public final List<PerturbableObject> getRecordedPerturbables() {
+        if (!mHasPerturbables) {
+            return Collections.emptyList();
+        }
+
+        ArrayList<PerturbableObject> perturbables = new ArrayList<>();
+        for (int i = 0; i < mRecordedCount; i++) {
+            if (mRecordedInts[3 * i] == ParcelObject.PERTURBABLE_OBJECT) {
+                perturbables.add((PerturbableObject) mRecordedRefs[i]);
+            }
+        }
+        return perturbables;
+    }
+
+    /**
+     * Moves the objects recorded by {@code from} into this parcel, leaving
+     * {@code from} with no recorded objects. The caller is responsible for
+     * making sure that the recorded positions are valid in this parcel, e.g.
+     * by appending the entire contents of {@code from} to an empty parcel.
+     *
+     * @hide
+     */
+    public final void adoptRecordedObjects(Parcel from) {
+        clearRecordedObjects();
+
+        final int[] recordedInts = mRecordedInts;
+        final Object[] recordedRefs = mRecordedRefs;
+        mRecordedInts = from.mRecordedInts;
+        mRecordedRefs = from.mRecordedRefs;
+        mRecordedCount = from.mRecordedCount;
+        mHasPerturbables = from.mHasPerturbables;
+
+        from.mRecordedInts = recordedInts;
+        from.mRecordedRefs = recordedRefs;
+        from.mRecordedCount = 0;
+        from.mHasPerturbables = false;
     }
 
     /**
@@ -794,11 +904,7 @@ public final class Parcel {
      */
     public final void writeStrongBinder(IBinder val) {
 
-        ParcelObject parcelObject = null;
-        if (!mStopRecording) {
-            parcelObject = new ParcelObject(val, dataPosition(), ParcelObject.BINDER_OBJECT);
-            mRecordedObjects.add(parcelObject);
-        }
+        final int startPos = mStopRecording ? 0 : dataPosition();
 
         nativeWriteStrongBinder(mNativePtr, val);
 
@@ -817,7 +923,7 @@ public final class Parcel {
         }
 
         if (!mStopRecording) {
-            parcelObject.setEndPos(dataPosition());
+            recordObject(ParcelObject.BINDER_OBJECT, val, startPos, dataPosition());
         }
     }
 
@@ -10,18 +10,27 @@ import android.database.CursorWindow;
 import android.hardware.CameraStreamInfo;
 import android.location.Location;
 import android.net.Uri;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.Surface;
 
+import com.android.internal.os.BackgroundThread;
+import com.android.internal.os.TransferPipe;
 import com.android.permissionsplugin.PermissionsPlugin;
 import com.android.permissionsplugin.PermissionsPluginOptions;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * {@hide}
@@ -34,11 +43,51 @@ public class PermissionsPluginManager {
     private static final ThreadLocal<PermissionsPluginManager> sThreadLocal =
         new ThreadLocal<>();
 
-    private static final HashMap<String, PluginProxy> sPluginProxies =
-        new HashMap<>();
+    private static final ConcurrentHashMap<String, PluginProxy> sPluginProxies =
+        new ConcurrentHashMap<>();
 
-    private static final HashMap<Integer, String> pidsToPackage
-        = new HashMap<>();
+    /**
+     * What to do with perturbable data while the plugin that should perturb it
+     * is still being connected to. The policy is read from
+     * {@link #PROP_CONNECT_POLICY} and defaults to {@link #CONNECT_POLICY_BLOCK}.
+     */
+    private static final String PROP_CONNECT_POLICY = "persist.sys.perm_plugin.connect_policy";
+    private static final String PROP_CONNECT_TIMEOUT = "persist.sys.perm_plugin.connect_timeout";
+
+    /**
+     * How long, in milliseconds, the plugins that are active for an app may
+     * take in total to perturb the data of one transaction. Once it is over,
+     * the remaining plugins of the pipeline are skipped.
+     */
+    private static final String PROP_PIPELINE_DEADLINE = "persist.sys.perm_plugin.pipeline_deadline";
+    private static final long DEFAULT_PIPELINE_DEADLINE_MS = 250;
+
+    /**
+     * Wait for the plugin up to the connect timeout, then replace the data
+     * with blank data, so that nothing unperturbed reaches the app.
+     */
+    private static final String CONNECT_POLICY_BLOCK = "block";
+    /** Pass the original data through without waiting. Only set explicitly. */
+    private static final String CONNECT_POLICY_PASS = "pass";
+    /** Replace the data with blank data without waiting. */
+    private static final String CONNECT_POLICY_DROP = "drop";
+
+    private static final long DEFAULT_CONNECT_TIMEOUT_MS = 500;
+
+    /**
+     * Maps pids to the package of the app running in them. In system_server,
+     * ActivityManagerService keeps it current through {@link #noteProcessStarted}
+     * and {@link #noteProcessDied}. Elsewhere, entries are filled on demand and
+     * only trusted when the uid owning the pid is known, so that a pid reused by
+     * another app is caught.
+     */
+    private static final PidPackageCache sPidCache = new PidPackageCache();
+
+    /** Whether this process is told about every process start and death. */
+    private static volatile boolean sPidCacheMaintained;
+
+    /** Perturbation latency and error metrics of this process. */
+    private static final PluginMetrics sMetrics = new PluginMetrics();
 
     /**
      * If an app has has a storage interposing plugin, it gets it own separate
@@ -48,6 +97,20 @@ public class PermissionsPluginManager {
      */
     private static String sStorageTracerPackage = null;
     private static IPluginStorageInterposer sStorageInterposer = null;
+    private static StorageDecisionCallback sStorageDecisionCallback = null;
+
+    /**
+     * The storage tracers that asked system_server for their interposer, keyed
+     * by the binder they can be dumped through, to their app's package.
+     */
+    private static final ArrayMap<IBinder, String> sStorageTracers = new ArrayMap<>();
+
+    /**
+     * Decisions of the storage interposer that the storage tracer reuses for
+     * repeated accesses. The plugin manages it through
+     * {@link StorageDecisionCallback}.
+     */
+    private static final StorageDecisionCache sStorageDecisions = new StorageDecisionCache();
     
     private static final HashMap<Perturbable, String> perturbableToInterposer
         = new HashMap<>();
@@ -65,26 +128,86 @@ public class PermissionsPluginManager {
      * It is maintained to avoid performing IPC call to
      * PackageManagerService's getActivePermissionsPluginsForApp API.
      *
-     * The key is targetPackage+targetAPI.
-     * The value is a list of active permissions plugins selected by user.
+     * The outer key is the target package and the inner key is the target API.
+     * The value is a list of active permissions plugins selected by user. Empty
+     * selections are cached as well.
      *
-     * Note: The cache should be updated everytime user modifies
-     * the plugin selection for a target app/API. Otherwise,
-     * the changes will not be effective until the next reboot.
-     * 
+     * Lookups do not take any lock since this cache is read by every thread
+     * that marshals perturbable data. PackageManagerService pushes an
+     * invalidation to every process, through
+     * {@link #invalidateActivePluginsCache}, whenever the user modifies the
+     * plugin selection or a plugin is installed or removed.
      */
-    private static final HashMap<String, List<PermissionsPlugin>> sAppToPermissionsPlugins 
-        = new HashMap<>();
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, List<PermissionsPlugin>>>
+        sAppToPermissionsPlugins = new ConcurrentHashMap<>();
 
-    private static synchronized PluginProxy connectToPluginService(
-            String pluginPackage, List<String> interposers) {
+    /**
+     * Bumped on every invalidation, so that a lookup racing with an
+     * invalidation does not put a stale plugin list back into the cache.
+     */
+    private static final AtomicInteger sActivePluginsGeneration = new AtomicInteger();
 
+    private static PluginProxy getPluginProxy(String pluginPackage, List<String> interposers) {
         PluginProxy pluginProxy = sPluginProxies.get(pluginPackage);
         if (pluginProxy == null) {
-            pluginProxy = new PluginProxy(pluginPackage, interposers);
-            sPluginProxies.put(pluginPackage, pluginProxy);
+            PluginProxy newProxy = new PluginProxy(pluginPackage, interposers);
+            pluginProxy = sPluginProxies.putIfAbsent(pluginPackage, newProxy);
+            if (pluginProxy == null) {
+                pluginProxy = newProxy;
+            }
+        }
+        return pluginProxy;
+    }
+
+    private static String getConnectPolicy() {
+        return SystemProperties.get(PROP_CONNECT_POLICY, CONNECT_POLICY_BLOCK);
+    }
+
+    /**
+     * Returns true if data that a plugin which is not connected should have
+     * perturbed must be replaced with blank data. Every policy but
+     * {@link #CONNECT_POLICY_PASS} fails closed.
+     */
+    private static boolean isFailClosed() {
+        return !CONNECT_POLICY_PASS.equals(getConnectPolicy());
+    }
+
+    private static long getPipelineDeadlineNanos() {
+        return SystemClock.elapsedRealtimeNanos() + 1000000L
+            * SystemProperties.getLong(PROP_PIPELINE_DEADLINE, DEFAULT_PIPELINE_DEADLINE_MS);
+    }
+
+    /**
+     * Returns true if the stage at the given index of a pipeline must be
+     * skipped because the pipeline ran out of time. The first stage always
+     * runs, so that the data is never sent out without being perturbed by the
+     * plugin with the highest priority.
+     */
+    private static boolean isPastDeadline(String targetPkg, Perturbable type,
+            List<PermissionsPlugin> pluginList, int stage, long deadlineNanos) {
+        if (stage == 0 || SystemClock.elapsedRealtimeNanos() < deadlineNanos) {
+            return false;
         }
 
+        for (int i = stage; i < pluginList.size(); i++) {
+            sMetrics.noteSkipped(pluginList.get(i).packageName, type);
+        }
+        Log.d(PermissionsPluginOptions.TAG, "Plugins of " + targetPkg + " ran out of time for "
+              + type + "; skipping " + (pluginList.size() - stage) + " of them");
+        return true;
+    }
+
+    /**
+     * Returns a proxy to the plugin service, starting to connect to it if
+     * needed. If the proxy is not connected yet, the calling thread waits for
+     * it only under the {@link #CONNECT_POLICY_BLOCK} policy, and never for
+     * longer than the connect timeout. The main thread never waits, since the
+     * connection is delivered on it.
+     */
+    private static PluginProxy connectToPluginService(
+            String pluginPackage, List<String> interposers) {
+
+        PluginProxy pluginProxy = getPluginProxy(pluginPackage, interposers);
         if (pluginProxy.isConnected()) {
             return pluginProxy;
         }
@@ -100,20 +223,16 @@ public class PermissionsPluginManager {
             return pluginProxy;
         }
 
-        synchronized(pluginProxy) {
-            while (pluginProxy.isTryingToConnect() &&
-                   !pluginProxy.isConnected()) {
-                try {
-                    pluginProxy.wait();
-                } catch (InterruptedException ex) {
-                    break;
-                }
-            }
+        if (CONNECT_POLICY_BLOCK.equals(getConnectPolicy())
+                && Looper.myLooper() != Looper.getMainLooper()) {
+            long timeout = SystemProperties.getLong(PROP_CONNECT_TIMEOUT,
+                DEFAULT_CONNECT_TIMEOUT_MS);
+            pluginProxy.awaitConnected(timeout);
         }
 
         if (!pluginProxy.isConnected()) {
-            Log.d(PermissionsPluginOptions.TAG, "Attempt to connect to plugin service "
-                  + pluginPackage + " ultimately failed!");
+            Log.d(PermissionsPluginOptions.TAG, "Plugin service " + pluginPackage
+                  + " is not connected yet");
         } else {
             if (PermissionsPluginOptions.DEBUG) {
                 Log.d(PermissionsPluginOptions.TAG, "Connected to: " + pluginPackage);
@@ -123,9 +242,81 @@ public class PermissionsPluginManager {
         return pluginProxy;
     }
 
+    /**
+     * Replaces the data of a perturbable object with blank data of the same
+     * shape. Used under the {@link #CONNECT_POLICY_BLOCK} and
+     * {@link #CONNECT_POLICY_DROP} policies when the plugin is not ready.
+     */
+    private static void dropObject(PerturbableObject perturbableObject) {
+        Parcelable parcelable = perturbableObject.mParcelable;
+
+        switch (perturbableObject.mPerturbableType) {
+        case LOCATION:
+            Location location = (Location) parcelable;
+            Location blank = new Location(location.getProvider());
+            blank.setTime(location.getTime());
+            blank.setElapsedRealtimeNanos(location.getElapsedRealtimeNanos());
+            perturbableObject.setPerturbedObject(blank);
+            break;
+
+        case CONTACTS:
+        case CALENDAR:
+            // Keep the rows and columns so that the client's view of the
+            // cursor stays consistent, but null out every field.
+            CursorWindow window = (CursorWindow) parcelable;
+            CursorWindow blankWindow = new CursorWindow(window.getName());
+            blankWindow.setStartPosition(window.getStartPosition());
+            int numColumns = window.getNumColumns();
+            if (blankWindow.setNumColumns(numColumns)) {
+                for (int row = 0; row < window.getNumRows(); row++) {
+                    if (!blankWindow.allocRow()) {
+                        break;
+                    }
+                    for (int column = 0; column < numColumns; column++) {
+                        blankWindow.putNull(window.getStartPosition() + row, column);
+                    }
+                }
+            }
+            perturbableObject.setPerturbedObject(blankWindow);
+            break;
+
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Starts connecting, in the background, to the plugins that are active
+     * for an app, so that the first transaction to the app does not have to
+     * wait for them. Called when the app's process is started.
+     *
+     * This only warms the connections of system_server, which perturbs the
+     * data it sends itself, e.g. locations. Other processes, like the contacts
+     * provider, don't know which apps they will serve and still connect on
+     * their first transaction to the app. Plugins that the user activates
+     * after the app has started are connected on first use as well.
+     *
+     * {@hide}
+     */
+    public static void prewarmPluginConnections(final String packageName) {
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                for (String targetAPI : perturbableToInterposer.values()) {
+                    List<PermissionsPlugin> pluginList =
+                        getActivePermissionsPluginsForApp(packageName, targetAPI);
+                    for (PermissionsPlugin plugin : pluginList) {
+                        getPluginProxy(plugin.packageName, plugin.supportedAPIs).connect();
+                    }
+                }
+            }
+        });
+    }
+
     private static void copySourceToTargetParcel(Parcel sourceParcel,
             Parcel targetParcel, ArrayDeque<ParcelObject> objectsToWrite) {
 
+        final int startSize = targetParcel.dataSize();
         targetParcel.stopRecording();
         int originalPos = 0;
 
@@ -145,7 +336,14 @@ public class PermissionsPluginManager {
             case ParcelObject.PERTURBABLE_OBJECT:
                 PerturbableObject pertObj = (PerturbableObject) parcelObject;
                 Parcelable parcelable = pertObj.getLatestParcelable();
-                parcelable.writeToParcel(targetParcel, pertObj.mWriteFlags);
+                int writeFlags = pertObj.mWriteFlags;
+                if (pertObj.mPerturbed == null) {
+                    // The original object already released its return value
+                    // reference when it was first written to the source parcel,
+                    // e.g. a cursor window; don't release it twice.
+                    writeFlags &= ~Parcelable.PARCELABLE_WRITE_RETURN_VALUE;
+                }
+                parcelable.writeToParcel(targetParcel, writeFlags);
                 break;
 
             default:
@@ -163,11 +361,46 @@ public class PermissionsPluginManager {
             int length = sourceParcel.dataSize() - originalPos;
             targetParcel.appendFrom(sourceParcel, originalPos, length);
         }
+
+        sMetrics.noteRewrite(targetParcel.dataSize() - startSize);
     }
 
     private void perturbObject(String targetPkg, PluginProxy pluginProxy,
             PerturbableObject perturbableObject) {
-        Parcelable parcelable = perturbableObject.mParcelable;
+        final Perturbable type = perturbableObject.mPerturbableType;
+        final String pluginPkg = pluginProxy.getPackage();
+
+        final boolean tracingEnabled = Trace.isTagEnabled(Trace.TRACE_TAG_ALWAYS);
+        if (tracingEnabled) {
+            Trace.traceBegin(Trace.TRACE_TAG_ALWAYS, "perturb:" + pluginPkg + ":" + type);
+        }
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+        boolean handled = false;
+        try {
+            handled = callInterposer(targetPkg, pluginProxy, perturbableObject);
+        } finally {
+            if (tracingEnabled) {
+                Trace.traceEnd(Trace.TRACE_TAG_ALWAYS);
+            }
+        }
+
+        sMetrics.notePerturbation(pluginPkg, type,
+            (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+        if (!handled) {
+            sMetrics.noteFallback(pluginPkg, type);
+        }
+    }
+
+    /**
+     * Hands a perturbable object to the matching interposer of the plugin.
+     *
+     * @return false if the plugin could not handle the object, in which case
+     * the original object is sent.
+     */
+    private boolean callInterposer(String targetPkg, PluginProxy pluginProxy,
+            PerturbableObject perturbableObject) {
+        // The output of the previous plugin of the pipeline, if any
+        Parcelable parcelable = perturbableObject.getLatestParcelable();
 
         switch (perturbableObject.mPerturbableType) {
         case LOCATION:
@@ -179,6 +412,7 @@ public class PermissionsPluginManager {
                 try {
                     location = locInterposer.modifyLocation(targetPkg, location);
                     perturbableObject.setPerturbedObject(location);
+                    return true;
                 } catch (Exception ex) {
                     Log.d(PermissionsPluginOptions.TAG, "Encountered an exception while modifying location for "
                           + targetPkg + " with plugin " + pluginProxy.getPackage()
@@ -212,6 +446,7 @@ public class PermissionsPluginManager {
                     if (perturbedWindow != null) {
                         perturbableObject.setPerturbedObject(perturbedWindow);
                     }
+                    return true;
                 } catch (Exception ex) {
                     Log.d(PermissionsPluginOptions.TAG, "Encountered an exception while modifying contact for "
                           + targetPkg + " with plugin " + pluginProxy.getPackage()
@@ -245,6 +480,7 @@ public class PermissionsPluginManager {
                     if (calendarPerturbedWindow != null) {
                         perturbableObject.setPerturbedObject(calendarPerturbedWindow);
                     }
+                    return true;
                 } catch (Exception ex) {
                     Log.d(PermissionsPluginOptions.TAG, "Encountered an exception while modifying calendar for "
                           + targetPkg + " with plugin " + pluginProxy.getPackage()
@@ -261,6 +497,135 @@ public class PermissionsPluginManager {
                   + ". Writing original ...");
             break;
         }
+
+        return false;
+    }
+
+    /**
+     * Perturbs all locations of a parcel with a single call to the location
+     * interposer. Falls back to one call per location if there is only one
+     * location, or if the plugin does not support batched modification.
+     */
+    private void perturbLocations(String targetPkg, PluginProxy pluginProxy,
+            List<PerturbableObject> perturbableObjects) {
+
+        IPluginLocationInterposer locInterposer = pluginProxy.getLocationInterposer();
+        if (locInterposer != null && perturbableObjects.size() > 1
+                && pluginProxy.supportsBatchedLocations()) {
+
+            List<Location> locations = new ArrayList<>(perturbableObjects.size());
+            for (PerturbableObject perturbableObject : perturbableObjects) {
+                locations.add((Location) perturbableObject.getLatestParcelable());
+            }
+
+            final String pluginPkg = pluginProxy.getPackage();
+            final boolean tracingEnabled = Trace.isTagEnabled(Trace.TRACE_TAG_ALWAYS);
+            if (tracingEnabled) {
+                Trace.traceBegin(Trace.TRACE_TAG_ALWAYS, "perturb:" + pluginPkg + ":LOCATION["
+                    + locations.size() + "]");
+            }
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            try {
+                List<Location> modified = locInterposer.modifyLocations(targetPkg, locations);
+                sMetrics.notePerturbation(pluginPkg, Perturbable.LOCATION,
+                    (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+
+                // Plugins built against an older interface do not know the
+                // transaction and leave the reply empty, which reads as an
+                // empty list.
+                if (modified == null || modified.isEmpty()) {
+                    pluginProxy.setBatchedLocationsUnsupported();
+                    if (PermissionsPluginOptions.DEBUG) {
+                        Log.d(PermissionsPluginOptions.TAG, "Plugin " + pluginProxy.getPackage()
+                              + " does not support batched locations. Falling back ...");
+                    }
+                } else if (modified.size() != locations.size()) {
+                    Log.d(PermissionsPluginOptions.TAG, "Plugin " + pluginProxy.getPackage()
+                          + " returned " + modified.size() + " locations instead of "
+                          + locations.size() + ". Falling back ...");
+                } else {
+                    for (int i = 0; i < modified.size(); i++) {
+                        Location location = modified.get(i);
+                        if (location != null) {
+                            perturbableObjects.get(i).setPerturbedObject(location);
+                        }
+                    }
+                    return;
+                }
+            } catch (Exception ex) {
+                Log.d(PermissionsPluginOptions.TAG, "Encountered an exception while modifying locations for "
+                      + targetPkg + " with plugin " + pluginProxy.getPackage()
+                      + ". exception: " + ex
+                      + ", message: " + ex.getMessage());
+            } finally {
+                if (tracingEnabled) {
+                    Trace.traceEnd(Trace.TRACE_TAG_ALWAYS);
+                }
+            }
+        }
+
+        for (PerturbableObject perturbableObject : perturbableObjects) {
+            perturbObject(targetPkg, pluginProxy, perturbableObject);
+        }
+    }
+
+    /**
+     * Runs the plugins that are active for an app over perturbable objects of
+     * one type. The plugins are expected in decreasing order of priority, and
+     * each one perturbs the output of the previous one. A plugin that short
+     * circuits ends the pipeline, and so does the deadline, which is shared by
+     * all the objects of a transaction.
+     *
+     * @return false if no plugin got to look at the objects, in which case the
+     * original data is sent.
+     */
+    private boolean runPipeline(String targetPkg, Perturbable type,
+            List<PermissionsPlugin> pluginList, List<PerturbableObject> perturbableObjects,
+            long deadlineNanos) {
+
+        boolean handled = false;
+
+        for (int i = 0; i < pluginList.size(); i++) {
+            if (isPastDeadline(targetPkg, type, pluginList, i, deadlineNanos)) {
+                break;
+            }
+
+            PermissionsPlugin plugin = pluginList.get(i);
+            PluginProxy pluginProxy =
+                connectToPluginService(plugin.packageName, plugin.supportedAPIs);
+
+            // Check if the plugin proxy is connected to plugin service. The
+            // data is only dropped if no earlier stage perturbed it already.
+            if (pluginProxy == null || !pluginProxy.isConnected()) {
+                if (!handled && isFailClosed()) {
+                    for (PerturbableObject perturbableObject : perturbableObjects) {
+                        dropObject(perturbableObject);
+                    }
+                    return true;
+                }
+                continue;
+            }
+
+            if (PermissionsPluginOptions.DEBUG) {
+                Log.d(PermissionsPluginOptions.TAG, "Proceeding to perturb data for " + targetPkg
+                      + " with " + plugin.packageName);
+            }
+
+            if (type == Perturbable.LOCATION) {
+                perturbLocations(targetPkg, pluginProxy, perturbableObjects);
+            } else {
+                for (PerturbableObject perturbableObject : perturbableObjects) {
+                    perturbObject(targetPkg, pluginProxy, perturbableObject);
+                }
+            }
+            handled = true;
+
+            if (plugin.shortCircuit) {
+                break;
+            }
+        }
+
+        return handled;
     }
 
     private Parcel perturbAllDataImpl(String targetPkg, Parcel sourceParcel, Parcel targetParcel) {
@@ -276,6 +641,13 @@ public class PermissionsPluginManager {
 
         int originalParcelPos = 0;
 
+        // All the plugins of this transaction share one deadline
+        final long deadlineNanos = getPipelineDeadlineNanos();
+
+        // Locations are sent to the plugins in one batch once all of them are known
+        List<PerturbableObject> locationObjects = null;
+        List<PermissionsPlugin> locationPlugins = null;
+
         for (ParcelObject recordedObject : recordedObjects) {
             switch (recordedObject.mObjectType) {
             case ParcelObject.BINDER_OBJECT:
@@ -299,25 +671,17 @@ public class PermissionsPluginManager {
                     break;
                 }
 
-                // TODO: For now, we only support one active plugin per app.
-                // In particular, we consider the first available active plugin.
-                // In future, we should allow multiple plugins.
-                PermissionsPlugin plugin = pluginList.get(0);
-
-                PluginProxy pluginProxy =
-                    connectToPluginService(plugin.packageName, plugin.supportedAPIs);
-
-                // Check if the plugin proxy is connected to plugin service
-                if (pluginProxy == null || !pluginProxy.isConnected()) {
-                    break;
-                }
-
-                if (PermissionsPluginOptions.DEBUG) {
-                    Log.d(PermissionsPluginOptions.TAG, "Proceeding to perturb data for " + targetPkg);
+                if (perturbableObject.mPerturbableType == Perturbable.LOCATION) {
+                    if (locationObjects == null) {
+                        locationObjects = new ArrayList<>();
+                    }
+                    locationObjects.add(perturbableObject);
+                    locationPlugins = pluginList;
+                    objectsToWrite.add(perturbableObject);
+                } else if (runPipeline(targetPkg, perturbableObject.mPerturbableType, pluginList,
+                        Collections.singletonList(perturbableObject), deadlineNanos)) {
+                    objectsToWrite.add(perturbableObject);
                 }
-            
-                perturbObject(targetPkg, pluginProxy, perturbableObject);
-                objectsToWrite.add(perturbableObject);
                 break;
 
             default:
@@ -328,6 +692,11 @@ public class PermissionsPluginManager {
             }
         }
 
+        if (locationObjects != null) {
+            runPipeline(targetPkg, Perturbable.LOCATION, locationPlugins, locationObjects,
+                deadlineNanos);
+        }
+
         if (targetParcel == null) {
             targetParcel = Parcel.obtain();
         }
@@ -346,54 +715,175 @@ public class PermissionsPluginManager {
         return instance;
     }
 
+    /**
+     * Returns the package running in the given pid, or the empty string if it
+     * is not known.
+     */
     public static String getPackageForPid(int pid) {
+        return getPackageForPid(pid, -1);
+    }
+
+    /**
+     * Returns the package running in the given pid, or the empty string if it
+     * is not known.
+     *
+     * @param uid The uid known to own the pid, e.g. the calling uid of a
+     * binder transaction, or a negative value if it is not known.
+     */
+    public static String getPackageForPid(int pid, int uid) {
         if (pid <= 0) {
             return "";
         }
 
-        String targetPkg = "";
-
-        synchronized(pidsToPackage) {
-            targetPkg = pidsToPackage.get(pid);
+        if (uid >= 0 || sPidCacheMaintained) {
+            PidPackageCache.Entry entry = sPidCache.get(pid, uid);
+            if (entry != null) {
+                return entry.packageName;
+            }
         }
 
-        if (targetPkg == null || targetPkg.isEmpty()) {
-            targetPkg = "";
+        String targetPkg = "";
 
-            try {
-                IActivityManager activityManager = ActivityManager.getService();
-                String[] packages = null;
-                if (activityManager != null) {
-                    packages = activityManager.getPackagesForPid(pid);
-                } else {
-                    Log.d(PermissionsPluginOptions.TAG, "Can't get activity manager while looking for package for pid: " + pid);
-                }
+        try {
+            IActivityManager activityManager = ActivityManager.getService();
+            String[] packages = null;
+            if (activityManager != null) {
+                packages = activityManager.getPackagesForPid(pid);
+            } else {
+                Log.d(PermissionsPluginOptions.TAG, "Can't get activity manager while looking for package for pid: " + pid);
+            }
 
-                if (packages != null) {
-                    if (packages.length > 1) {
-                        if(PermissionsPluginOptions.DEBUG){
-                            Log.d(PermissionsPluginOptions.TAG, "Warning: There are multiple packages for pid: " + pid
-                              + ", packages: " + Arrays.toString(packages)
-                              + "; using the first one ...");
-                        }
+            if (packages != null) {
+                if (packages.length > 1) {
+                    if(PermissionsPluginOptions.DEBUG){
+                        Log.d(PermissionsPluginOptions.TAG, "Warning: There are multiple packages for pid: " + pid
+                          + ", packages: " + Arrays.toString(packages)
+                          + "; using the first one ...");
                     }
-                    targetPkg = packages[0];
                 }
-            } catch (RemoteException ignored) {}
-
-            synchronized(pidsToPackage) {
-                pidsToPackage.put(pid, targetPkg);
+                targetPkg = packages[0];
             }
+        } catch (RemoteException ignored) {}
+
+        // Failed lookups aren't cached, so that they are retried next time.
+        if (targetPkg.isEmpty()) {
+            return targetPkg;
+        }
+
+        if (uid < 0) {
+            uid = android.os.Process.getUidForPid(pid);
         }
+        sPidCache.put(pid, uid, targetPkg);
 
         return targetPkg;
     }
 
+    /**
+     * Called by ActivityManagerService when it starts a process.
+     *
+     * {@hide}
+     */
+    public static void noteProcessStarted(int pid, int uid, String packageName) {
+        sPidCacheMaintained = true;
+        sPidCache.put(pid, uid, packageName);
+    }
+
+    /**
+     * Called by ActivityManagerService when a process it started has died.
+     *
+     * {@hide}
+     */
+    public static void noteProcessDied(int pid) {
+        sPidCache.remove(pid);
+    }
+
+    /**
+     * {@hide}
+     */
+    public static void dump(PrintWriter pw) {
+        pw.println("PERMISSIONS PLUGINS (dumpsys activity plugins)");
+        pw.println("  Pid to package cache:");
+        sPidCache.dump(pw, "    ");
+        pw.print("  Connect policy: "); pw.print(getConnectPolicy());
+        pw.print(", timeout: ");
+        pw.print(SystemProperties.getLong(PROP_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT_MS));
+        pw.println("ms");
+        dumpProcess(pw, "  ");
+    }
+
+    /**
+     * Prints the plugin connections and metrics of this process. Metrics are
+     * kept by the process that perturbs, so system_server gets them from the
+     * apps through {@link IApplicationThread#dumpPermissionsPlugins}, and from
+     * the storage tracers through {@link #dumpStorageTracers}.
+     *
+     * {@hide}
+     */
+    public static void dumpProcess(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.println("Plugin connections:");
+        for (PluginProxy pluginProxy : sPluginProxies.values()) {
+            pluginProxy.dump(pw, prefix + "  ");
+        }
+        pw.print(prefix); pw.println("Perturbation metrics:");
+        sMetrics.dump(pw, prefix + "  ");
+        if (sStorageTracerPackage != null) {
+            pw.print(prefix); pw.println("Storage decision cache:");
+            sStorageDecisions.dump(pw, prefix + "  ");
+        }
+    }
+
+    /**
+     * Prints the state of the storage tracers that are still alive. Called in
+     * system_server.
+     *
+     * {@hide}
+     */
+    public static void dumpStorageTracers(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final ArrayMap<IBinder, String> tracers;
+        synchronized (sStorageTracers) {
+            tracers = new ArrayMap<>(sStorageTracers);
+        }
+        for (int i = 0; i < tracers.size(); i++) {
+            pw.println();
+            pw.println("** Storage tracer of " + tracers.valueAt(i) + " **");
+            pw.flush();
+            try {
+                TransferPipe.dumpAsync(tracers.keyAt(i), fd, args);
+            } catch (IOException | RemoteException e) {
+                pw.println("Failure while dumping the storage tracer of " + tracers.valueAt(i));
+                pw.flush();
+            }
+        }
+    }
+
+    private static void registerStorageTracer(final String packageName, final IBinder tracer) {
+        if (tracer == null) {
+            return;
+        }
+        synchronized (sStorageTracers) {
+            if (sStorageTracers.containsKey(tracer)) {
+                return;
+            }
+            try {
+                tracer.linkToDeath(() -> {
+                    synchronized (sStorageTracers) {
+                        sStorageTracers.remove(tracer);
+                    }
+                }, 0);
+            } catch (RemoteException e) {
+                // Already dead.
+                return;
+            }
+            sStorageTracers.put(tracer, packageName);
+        }
+    }
+
     /**
      * {@hide}
      */
-    public static Parcel perturbDataForBinderProxy(int targetPid, Parcel sourceParcel) {
-        
+    static Parcel perturbDataForBinderProxy(BinderProxy proxy, Parcel sourceParcel) {
+        final int targetPid = proxy.getTargetPid();
+
         // No need to perturb the data if the source and target processes are same
         if (android.os.Process.myPid() == targetPid) {
             return null;
@@ -403,9 +893,16 @@ public class PermissionsPluginManager {
             return null;
         }
 
-        String targetPkg = getPackageForPid(targetPid);
-        if (targetPkg.isEmpty()) {
-            return null;
+        // The process behind a proxy doesn't change, so its package is looked
+        // up once per proxy rather than trusted from a cache that can't tell
+        // whether the pid was reused.
+        String targetPkg = proxy.getTargetPackage();
+        if (targetPkg == null) {
+            targetPkg = getPackageForPid(targetPid);
+            if (targetPkg.isEmpty()) {
+                return null;
+            }
+            proxy.setTargetPackage(targetPkg);
         }
 
         return getInstance().perturbAllDataImpl(targetPkg, sourceParcel, null);
@@ -429,7 +926,7 @@ public class PermissionsPluginManager {
             return;
         }
 
-        String targetPkg = getPackageForPid(callingPid);
+        String targetPkg = getPackageForPid(callingPid, Binder.getCallingUid());
         if (targetPkg.isEmpty()) {
             copySourceToTargetParcel(sourceParcel, targetParcel,
                 sourceParcel.getRecordedObjects());
@@ -446,6 +943,114 @@ public class PermissionsPluginManager {
         }
     }
 
+    /**
+     * Returns true if the app making the incoming transaction has an active
+     * plugin for the given type of perturbable data.
+     *
+     * {@hide}
+     */
+    public static boolean hasActivePluginsForCaller(Perturbable type) {
+        final int callingPid = Binder.getCallingPid();
+        if (android.os.Process.myPid() == callingPid) {
+            return false;
+        }
+
+        String targetPkg = getPackageForPid(callingPid, Binder.getCallingUid());
+        if (targetPkg.isEmpty()) {
+            return false;
+        }
+
+        List<PermissionsPlugin> pluginList =
+            getActivePermissionsPluginsForApp(targetPkg, perturbableToInterposer.get(type));
+        return pluginList != null && !pluginList.isEmpty();
+    }
+
+    /**
+     * Decides whether the reply of an incoming transaction, which was written
+     * directly into the reply parcel, must be rewritten before being sent to
+     * the calling process. This is only the case if the reply carries
+     * perturbable objects and the caller has an active plugin for at least
+     * one of them.
+     *
+     * {@hide}
+     */
+    public static boolean needsReplyRewrite(int callingPid, Parcel reply) {
+
+        if (!reply.hasPerturbables()) {
+            return false;
+        }
+
+        // No need to perturb the data if the source and target processes are same
+        if (android.os.Process.myPid() == callingPid) {
+            return false;
+        }
+
+        String targetPkg = getPackageForPid(callingPid, Binder.getCallingUid());
+        if (targetPkg.isEmpty()) {
+            return false;
+        }
+
+        for (PerturbableObject perturbableObject : reply.getRecordedPerturbables()) {
+            String targetAPI = perturbableToInterposer.get(perturbableObject.mPerturbableType);
+            List<PermissionsPlugin> pluginList =
+                getActivePermissionsPluginsForApp(targetPkg, targetAPI);
+            if (pluginList != null && !pluginList.isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Rewrites a reply parcel in place, perturbing all of its perturbable
+     * objects on the way. The original contents are first moved to a
+     * temporary parcel, which then serves as the source of the rewrite.
+     *
+     * {@hide}
+     */
+    public static void rewriteReplyForBinder(int callingPid, Parcel reply) {
+        Parcel source = Parcel.obtain();
+        try {
+            source.stopRecording();
+            source.appendFrom(reply, 0, reply.dataSize());
+            source.adoptRecordedObjects(reply);
+
+            reply.setDataSize(0);
+            reply.setDataPosition(0);
+
+            fixupParcelForBinder(callingPid, source, reply);
+        } finally {
+            source.recycle();
+        }
+    }
+
+    /**
+     * A plugin and the stream info it was given, in a pipeline of plugins that
+     * interpose on a camera stream.
+     */
+    private static final class CameraStage {
+        final PluginProxy mPluginProxy;
+        final CameraStreamInfo mStreamInfo;
+
+        CameraStage(PluginProxy pluginProxy, CameraStreamInfo streamInfo) {
+            mPluginProxy = pluginProxy;
+            mStreamInfo = streamInfo;
+        }
+    }
+
+    /**
+     * The plugins interposing on each camera stream, keyed by target package
+     * and stream id, so that each one can be told about the disconnection of
+     * the surface it was given.
+     */
+    private static final ConcurrentHashMap<String, List<CameraStage>> sCameraPipelines =
+        new ConcurrentHashMap<>();
+
+    private static String cameraStreamKey(String targetPkg, CameraStreamInfo cameraStreamInfo) {
+        return targetPkg + ":" + cameraStreamInfo.getStreamId();
+    }
+
     private Surface reportCameraStreamImpl(String targetPkg,
             CameraStreamInfo cameraStreamInfo) {
 
@@ -462,83 +1067,160 @@ public class PermissionsPluginManager {
             return null;
         }
 
-        // TODO: For now, we only support one active plugin per app.  In
-        // particular, we consider the first available active plugin.  In
-        // future, we should take into account multiple plugins applied to the
-        // same app.
-        PermissionsPlugin plugin = pluginList.get(0);
+        /**
+         * Each plugin renders into the surface of the plugin before it in the
+         * pipeline, and the camera renders into the surface of the last one.
+         * Frames thus go through the plugins in decreasing order of priority.
+         */
+        final long deadlineNanos = getPipelineDeadlineNanos();
+        CameraStreamInfo streamInfo = cameraStreamInfo;
+        List<CameraStage> stages = new ArrayList<>();
+
+        for (int i = 0; i < pluginList.size(); i++) {
+            if (isPastDeadline(targetPkg, Perturbable.CAMERA, pluginList, i, deadlineNanos)) {
+                break;
+            }
 
-        PluginProxy pluginProxy =
-            connectToPluginService(plugin.packageName, plugin.supportedAPIs);
+            PermissionsPlugin plugin = pluginList.get(i);
+            PluginProxy pluginProxy =
+                connectToPluginService(plugin.packageName, plugin.supportedAPIs);
 
-        if (pluginProxy == null || !pluginProxy.isConnected()) {
-            return null;
-        }
+            if (pluginProxy == null || !pluginProxy.isConnected()) {
+                continue;
+            }
 
-        Surface result = null;
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
+            try {
+                PluginCameraInterposerProxy cameraInterposer =
+                    pluginProxy.getCameraInterposer();
+                if (cameraInterposer != null) {
+                    Surface surface = cameraInterposer.reportCameraStream(targetPkg,
+                        streamInfo);
+                    stages.add(new CameraStage(pluginProxy, streamInfo));
+                    if (surface != null) {
+                        streamInfo = streamInfo.withSurface(surface);
+                    }
+                } else {
+                    Log.d(PermissionsPluginOptions.TAG, "Plugin " + plugin
+                        + " does not have a camera interposer even though it's activated for "
+                        + targetPkg);
+                }
+            } catch (Exception ex) {
+                Log.d(PermissionsPluginOptions.TAG,
+                    "Unexpected exception while reporting camera stream to proxy: " + ex);
+            }
+            sMetrics.notePerturbation(plugin.packageName, Perturbable.CAMERA,
+                (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
 
-        try {
-            PluginCameraInterposerProxy cameraInterposer =
-                pluginProxy.getCameraInterposer();
-            if (cameraInterposer != null) {
-                result = cameraInterposer.reportCameraStream(targetPkg,
-                    cameraStreamInfo);
-            } else {
-                Log.d(PermissionsPluginOptions.TAG, "Plugin " + plugin
-                    + " does not have a camera interposer even though it's activated for "
-                    + targetPkg);
+            if (plugin.shortCircuit) {
+                break;
             }
-        } catch (Exception ex) {
-            Log.d(PermissionsPluginOptions.TAG,
-                "Unexpected exception while reporting camera stream to proxy: " + ex);
         }
 
-        return result;
+        if (!stages.isEmpty()) {
+            sCameraPipelines.put(cameraStreamKey(targetPkg, cameraStreamInfo), stages);
+        }
+
+        return streamInfo != cameraStreamInfo ? streamInfo.getSurface() : null;
     }
 
     private void reportSurfaceDisconnectionImpl(String targetPkg,
             CameraStreamInfo cameraStreamInfo) {
 
-        // Check if any active plugin is available for the target package.
-        // If so, proceed with the rest of the code. Otherwise, return null.
-        String targetAPI = perturbableToInterposer.get(Perturbable.CAMERA);
-        List<PermissionsPlugin> pluginList = getActivePermissionsPluginsForApp(targetPkg,targetAPI);
-        if (PermissionsPluginOptions.DEBUG) {
-            Log.d(PermissionsPluginOptions.TAG, "Received " + pluginList.size() +
-                  " active plugins for app: " + targetPkg);
+        List<CameraStage> stages =
+            sCameraPipelines.remove(cameraStreamKey(targetPkg, cameraStreamInfo));
+        if (stages == null) {
+            return;
         }
 
-        if (pluginList == null || pluginList.isEmpty()) {
-            return;
+        for (CameraStage stage : stages) {
+            try {
+                PluginCameraInterposerProxy cameraInterposer =
+                    stage.mPluginProxy.getCameraInterposer();
+                if (cameraInterposer != null) {
+                    cameraInterposer.reportSurfaceDisconnection(targetPkg,
+                        stage.mStreamInfo);
+                } else {
+                    Log.d(PermissionsPluginOptions.TAG, "Plugin "
+                        + stage.mPluginProxy.getPackage()
+                        + " lost its camera interposer before the surface of "
+                        + targetPkg + " was disconnected");
+                }
+            } catch (Exception ex) {
+                Log.d(PermissionsPluginOptions.TAG,
+                    "Unexpected exception while reporting surface disconnection to proxy: " + ex);
+            }
         }
+    }
 
-        // TODO: For now, we only support one active plugin per app.  In
-        // particular, we consider the first available active plugin.  In
-        // future, we should take into account multiple plugins applied to the
-        // same app.
-        PermissionsPlugin plugin = pluginList.get(0);
+    /**
+     * Chains the storage interposers of several plugins for the storage
+     * tracer. It lives in system_server, which adds a binder hop to every
+     * access, so it is only used when more than one plugin interposes on the
+     * storage of an app.
+     */
+    private static final class StoragePipeline extends IPluginStorageInterposer.Stub {
+        private final String[] mPackages;
+        private final IPluginStorageInterposer[] mInterposers;
+        private final boolean[] mShortCircuits;
+
+        StoragePipeline(List<String> packages, List<IPluginStorageInterposer> interposers,
+                List<Boolean> shortCircuits) {
+            final int size = interposers.size();
+            mPackages = packages.toArray(new String[size]);
+            mInterposers = interposers.toArray(new IPluginStorageInterposer[size]);
+            mShortCircuits = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                mShortCircuits[i] = shortCircuits.get(i);
+            }
+        }
 
-        PluginProxy pluginProxy =
-            connectToPluginService(plugin.packageName, plugin.supportedAPIs);
+        @Override
+        public String beforeFileOpen(String targetAppPkg, String filepath) {
+            final long deadlineNanos = getPipelineDeadlineNanos();
+            String path = filepath;
 
-        if (pluginProxy == null || !pluginProxy.isConnected()) {
-            return;
-        }
+            for (int i = 0; i < mInterposers.length; i++) {
+                if (i > 0 && SystemClock.elapsedRealtimeNanos() >= deadlineNanos) {
+                    for (int j = i; j < mInterposers.length; j++) {
+                        sMetrics.noteSkipped(mPackages[j], Perturbable.STORAGE);
+                    }
+                    break;
+                }
 
-        try {
-            PluginCameraInterposerProxy cameraInterposer =
-                pluginProxy.getCameraInterposer();
-            if (cameraInterposer != null) {
-                cameraInterposer.reportSurfaceDisconnection(targetPkg,
-                    cameraStreamInfo);
-            } else {
-                Log.d(PermissionsPluginOptions.TAG, "Plugin " + targetPkg
-                    + " does not have a camera interposer even though it's activated for "
-                    + targetPkg);
+                final long startNanos = SystemClock.elapsedRealtimeNanos();
+                String result = null;
+                try {
+                    result = mInterposers[i].beforeFileOpen(targetAppPkg, path);
+                } catch (RemoteException ex) {
+                    Log.d(PermissionsPluginOptions.TAG, "Storage interposer of " + mPackages[i]
+                        + " died while interposing on " + targetAppPkg);
+                    sMetrics.noteFallback(mPackages[i], Perturbable.STORAGE);
+                }
+                sMetrics.notePerturbation(mPackages[i], Perturbable.STORAGE,
+                    (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+
+                if (result != null) {
+                    if (result.isEmpty()) {
+                        // Denied; there is nothing left for the others to do.
+                        return result;
+                    }
+                    path = result;
+                }
+
+                if (mShortCircuits[i]) {
+                    break;
+                }
             }
-        } catch (Exception ex) {
-            Log.d(PermissionsPluginOptions.TAG,
-                "Unexpected exception while reporting surface disconnection to proxy: " + ex);
+
+            return path.equals(filepath) ? null : path;
+        }
+
+        @Override
+        public void setDecisionCallback(IStorageDecisionCallback callback) {
+            // A decision that one plugin lets the tracer cache would keep the
+            // next plugins from being asked, so the pipeline does not allow
+            // caching.
         }
     }
 
@@ -556,35 +1238,41 @@ public class PermissionsPluginManager {
             return null;
         }
 
-        // TODO: For now, we only support one active plugin per app.  In
-        // particular, we consider the first available active plugin.  In
-        // future, we should take into account multiple plugins applied to the
-        // same app.
-        PermissionsPlugin plugin = pluginList.get(0);
+        List<String> packages = new ArrayList<>();
+        List<IPluginStorageInterposer> interposers = new ArrayList<>();
+        List<Boolean> shortCircuits = new ArrayList<>();
 
-        PluginProxy pluginProxy =
-            connectToPluginService(plugin.packageName, plugin.supportedAPIs);
+        for (PermissionsPlugin plugin : pluginList) {
+            PluginProxy pluginProxy =
+                connectToPluginService(plugin.packageName, plugin.supportedAPIs);
 
-        if (pluginProxy == null || !pluginProxy.isConnected()) {
-            return null;
-        }
+            if (pluginProxy == null || !pluginProxy.isConnected()) {
+                continue;
+            }
 
-        try {
-            IPluginStorageInterposer storageInterposer =
-                pluginProxy.getStorageInterposer();
+            IPluginStorageInterposer storageInterposer = pluginProxy.getStorageInterposer();
             if (storageInterposer != null) {
-                return storageInterposer.asBinder();
+                packages.add(plugin.packageName);
+                interposers.add(storageInterposer);
+                shortCircuits.add(plugin.shortCircuit);
+                if (plugin.shortCircuit) {
+                    break;
+                }
             } else {
                 Log.d(PermissionsPluginOptions.TAG, "Plugin " + plugin.packageName
                     + " does not have a storage interposer even though it's activated for "
                     + targetPkg);
             }
-        } catch (Exception ex) {
-            Log.d(PermissionsPluginOptions.TAG,
-                "Unexpected exception while reporting external storage access to proxy: " + ex);
         }
 
-        return null;
+        if (interposers.isEmpty()) {
+            return null;
+        } else if (interposers.size() == 1) {
+            // Let the tracer talk to the plugin directly
+            return interposers.get(0).asBinder();
+        }
+
+        return new StoragePipeline(packages, interposers, shortCircuits);
     }
 
     private void setInterposerForStorageTracer(String packageName) {
@@ -598,18 +1286,109 @@ public class PermissionsPluginManager {
             }
         }
 
+        // Whatever the previous interposer decided may no longer hold.
+        sStorageDecisions.clear();
+
+        if (sStorageDecisionCallback == null) {
+            sStorageDecisionCallback = new StorageDecisionCallback();
+        }
+
         IActivityManager activityManager = ActivityManager.getService();
         try {
-            IBinder binder = activityManager.getStorageInterposer(packageName);
+            IBinder binder = activityManager.getStorageInterposer(packageName,
+                sStorageDecisionCallback);
             sStorageInterposer = IPluginStorageInterposer.Stub.asInterface(binder);
         } catch (Exception ex) {
             Log.d(PermissionsPluginOptions.TAG,
                 "Unexpected excefption while obtaining storage interposer for tracer: " + ex);
         }
+
+        if (sStorageInterposer != null) {
+            try {
+                sStorageInterposer.setDecisionCallback(sStorageDecisionCallback);
+            } catch (Exception ex) {
+                Log.d(PermissionsPluginOptions.TAG,
+                    "Could not register the decision cache with the storage interposer: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Receives the plugin's updates to the decision cache of the storage
+     * tracer. Updates meant for another app are ignored. It is also what
+     * system_server dumps the tracer through, as the tracer isn't an app.
+     */
+    private static final class StorageDecisionCallback extends IStorageDecisionCallback.Stub {
+        private boolean isForTracer(String targetAppPkg) {
+            return Objects.equals(targetAppPkg, sStorageTracerPackage);
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            if (Binder.getCallingUid() != Process.SYSTEM_UID) {
+                return;
+            }
+            dumpProcess(pw, "  ");
+        }
+
+        @Override
+        public void setDecisionTtl(String targetAppPkg, long ttlMillis) {
+            if (isForTracer(targetAppPkg)) {
+                sStorageDecisions.setTtl(ttlMillis);
+            }
+        }
+
+        @Override
+        public void addPrefixRule(String targetAppPkg, String pathPrefix,
+                String replacementPrefix, long ttlMillis) {
+            if (isForTracer(targetAppPkg)) {
+                sStorageDecisions.addPrefixRule(pathPrefix, replacementPrefix, ttlMillis);
+            }
+        }
+
+        @Override
+        public void removePrefixRule(String targetAppPkg, String pathPrefix) {
+            if (isForTracer(targetAppPkg)) {
+                sStorageDecisions.removePrefixRule(pathPrefix);
+            }
+        }
+
+        @Override
+        public void invalidate(String targetAppPkg, String pathPrefix) {
+            if (isForTracer(targetAppPkg)) {
+                sStorageDecisions.invalidate(pathPrefix);
+            }
+        }
+    }
+
+    /**
+     * Called in the storage tracer process, before it starts tracing, with
+     * the roots of the app's external storage the tracer interposes on.
+     *
+     * {@hide}
+     */
+    public static void setStorageTracerRoots(String[] roots) {
+        sStorageDecisions.setExternalStorageRoots(roots);
     }
 
     private String reportExternalStorageAccessImpl(String packageName,
             String path, int mode) {
+        StorageDecisionCache.Decision decision = sStorageDecisions.lookup(path, mode);
+
+        if (decision != null) {
+            return decision.result;
+        }
+
+        String result = askStorageInterposer(packageName, path);
+        if (result != null && result.equals(path)) {
+            // Same meaning as null, and saves a write into the app's memory.
+            result = null;
+        }
+        sStorageDecisions.put(path, mode, result);
+        return result;
+    }
+
+    private String askStorageInterposer(String packageName, String path) {
 
         /**
          * This method is meant to be called by the storage tracer process. As
@@ -673,7 +1452,8 @@ public class PermissionsPluginManager {
         local.reportSurfaceDisconnectionImpl(packageName, cameraStreamInfo);
     }
 
-    public static IBinder getStorageInterposer(String packageName) {
+    public static IBinder getStorageInterposer(String packageName, IBinder tracer) {
+        registerStorageTracer(packageName, tracer);
         PermissionsPluginManager local = getInstance();
         return local.getStorageInterposerImpl(packageName);
     }
@@ -684,19 +1464,45 @@ public class PermissionsPluginManager {
         return local.reportExternalStorageAccessImpl(packageName, path, mode);
     }
 
-    // Retrieve list of active permissions plugin for a given package    
-    private static synchronized List<PermissionsPlugin> getActivePermissionsPluginsForApp(String appPackage, String targetAPI){
+    /**
+     * Drops the cached plugin selection of the given package, or of all
+     * packages if the package name is null or
+     * {@link PermissionsPlugin#ALL_PACKAGES}.
+     *
+     * {@hide}
+     */
+    public static void invalidateActivePluginsCache(String packageName) {
+        sActivePluginsGeneration.incrementAndGet();
+
+        if (packageName == null || PermissionsPlugin.ALL_PACKAGES.equals(packageName)) {
+            sAppToPermissionsPlugins.clear();
+        } else {
+            sAppToPermissionsPlugins.remove(packageName);
+        }
+
+        if (PermissionsPluginOptions.DEBUG) {
+            Log.d(PermissionsPluginOptions.TAG, "Invalidated active plugins cache for " + packageName);
+        }
+    }
+
+    // Retrieve list of active permissions plugin for a given package
+    private static List<PermissionsPlugin> getActivePermissionsPluginsForApp(String appPackage, String targetAPI){
 
         // Check if the plugin is available in the cache
-        String key = appPackage+targetAPI;
-        if (sAppToPermissionsPlugins.containsKey(key)) {
-            List<PermissionsPlugin> activePlugins = sAppToPermissionsPlugins.get(key);
-            if (PermissionsPluginOptions.DEBUG) {
-                Log.d(PermissionsPluginOptions.TAG, "Found " + activePlugins.size() + " active plugins in the cache for target package-api " + key);
+        ConcurrentHashMap<String, List<PermissionsPlugin>> apiToPlugins =
+            sAppToPermissionsPlugins.get(appPackage);
+        if (apiToPlugins != null) {
+            List<PermissionsPlugin> activePlugins = apiToPlugins.get(targetAPI);
+            if (activePlugins != null) {
+                if (PermissionsPluginOptions.DEBUG) {
+                    Log.d(PermissionsPluginOptions.TAG, "Found " + activePlugins.size() + " active plugins in the cache for target package " + appPackage + ", api " + targetAPI);
+                }
+                return activePlugins;
             }
-            return activePlugins;
         }
 
+        final int generation = sActivePluginsGeneration.get();
+
         try {
             ParceledListSlice<PermissionsPlugin> parceledList =
                     ActivityThread.getPackageManager().getActivePermissionsPluginsForApp(appPackage, targetAPI);
@@ -706,14 +1512,27 @@ public class PermissionsPluginManager {
 
             List<PermissionsPlugin> activePlugins = parceledList.getList();
 
-            // Cache retrived plugin list
-            if (activePlugins.size() > 0) {
-                sAppToPermissionsPlugins.put(key,activePlugins);
-                if (PermissionsPluginOptions.DEBUG) {
-                    Log.d(PermissionsPluginOptions.TAG, "Cached " + activePlugins.size() + " active plugins for target package-api " + key);
-                }            
+            // Cache retrived plugin list, unless the selection changed meanwhile
+            if (generation == sActivePluginsGeneration.get()) {
+                apiToPlugins = sAppToPermissionsPlugins.get(appPackage);
+                if (apiToPlugins == null) {
+                    ConcurrentHashMap<String, List<PermissionsPlugin>> newMap =
+                        new ConcurrentHashMap<>();
+                    apiToPlugins = sAppToPermissionsPlugins.putIfAbsent(appPackage, newMap);
+                    if (apiToPlugins == null) {
+                        apiToPlugins = newMap;
+                    }
+                }
+                apiToPlugins.put(targetAPI, activePlugins);
+
+                // An invalidation may have slipped in right before the put above
+                if (generation != sActivePluginsGeneration.get()) {
+                    apiToPlugins.remove(targetAPI, activePlugins);
+                } else if (PermissionsPluginOptions.DEBUG) {
+                    Log.d(PermissionsPluginOptions.TAG, "Cached " + activePlugins.size() + " active plugins for target package " + appPackage + ", api " + targetAPI);
+                }
             }
-            
+
             return activePlugins;
         } catch (RemoteException e) {
             Log.d(PermissionsPluginOptions.TAG, "Could not retrieve permissions plugin for app " + appPackage + ". RemoteException: " + e);
@@ -1,5 +1,6 @@
 package android.os;
 
+import android.database.CursorWindow;
 import android.net.Uri;
 
 import java.util.HashMap;
@@ -48,7 +49,16 @@ public class PerturbableObject extends ParcelObject {
         mNestedPerturbableCounts = new HashMap<>();
     }
 
+    /**
+     * Sets the latest perturbed version of the object. A perturbed cursor
+     * window of an earlier stage of the pipeline that is replaced is closed,
+     * since it won't be written anywhere.
+     */
     public void setPerturbedObject(Parcelable perturbed) {
+        if (mPerturbed instanceof CursorWindow && mPerturbed != perturbed
+                && mPerturbed != mParcelable) {
+            ((CursorWindow) mPerturbed).close();
+        }
         mPerturbed = perturbed;
     }
 
@@ -0,0 +1,137 @@
+package android.os;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free table that maps pids to the package and uid of the
+ * process that owns them. It is used to attribute binder
+ * transactions to the app whose data must be perturbed.
+ *
+ * The table is direct-mapped: each pid can only live in one slot, so adding a
+ * pid simply replaces whatever other pid was occupying its slot. Entries are
+ * immutable and published with a single reference store, which makes lookups
+ * safe without any locking.
+ *
+ * {@hide}
+ */
+public final class PidPackageCache {
+
+    /** Must be a power of two. */
+    private static final int DEFAULT_CAPACITY = 512;
+
+    private final AtomicReferenceArray<Entry> mEntries;
+    private final int mMask;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mStaleEvictions = new AtomicLong();
+    private final AtomicLong mDeaths = new AtomicLong();
+
+    /**
+     * An immutable record of a process.
+     */
+    public static final class Entry {
+        public final int pid;
+        public final int uid;
+        public final String packageName;
+
+        Entry(int pid, int uid, String packageName) {
+            this.pid = pid;
+            this.uid = uid;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public String toString() {
+            return "[Entry] pid: " + pid
+                + ", uid: " + uid
+                + ", packageName: " + packageName;
+        }
+    }
+
+    public PidPackageCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PidPackageCache(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mEntries = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Looks up the process record of a pid.
+     *
+     * @param pid The pid to look up.
+     * @param uid The uid that is known to currently own the pid, or a negative
+     * value if it is not known. If the cached record has a different uid, the
+     * pid has been reused and the record is evicted.
+     *
+     * @return The cached record, or null if there is none.
+     */
+    public Entry get(int pid, int uid) {
+        final int slot = pid & mMask;
+        final Entry entry = mEntries.get(slot);
+        if (entry == null || entry.pid != pid) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        if (uid >= 0 && entry.uid >= 0 && entry.uid != uid) {
+            mEntries.compareAndSet(slot, entry, null);
+            mStaleEvictions.incrementAndGet();
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        mHits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Records the process that owns a pid, replacing any previous record of
+     * the same slot.
+     */
+    public void put(int pid, int uid, String packageName) {
+        mEntries.set(pid & mMask, new Entry(pid, uid, packageName));
+    }
+
+    /**
+     * Drops the record of a pid whose process has died.
+     */
+    public void remove(int pid) {
+        final int slot = pid & mMask;
+        final Entry entry = mEntries.get(slot);
+        if (entry != null && entry.pid == pid) {
+            if (mEntries.compareAndSet(slot, entry, null)) {
+                mDeaths.incrementAndGet();
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        int used = 0;
+        for (int i = 0; i < mEntries.length(); i++) {
+            if (mEntries.get(i) != null) {
+                used++;
+            }
+        }
+
+        final long hits = mHits.get();
+        final long misses = mMisses.get();
+        final long lookups = hits + misses;
+
+        pw.print(prefix); pw.print("entries="); pw.print(used);
+        pw.print("/"); pw.println(mEntries.length());
+        pw.print(prefix); pw.print("hits="); pw.print(hits);
+        pw.print(" misses="); pw.print(misses);
+        pw.print(" hitRatio=");
+        pw.println(lookups == 0 ? "n/a" : String.format("%.1f%%", 100.0 * hits / lookups));
+        pw.print(prefix); pw.print("staleEvictions="); pw.print(mStaleEvictions.get());
+        pw.print(" deaths="); pw.println(mDeaths.get());
+    }
+}
@@ -8,6 +8,7 @@ import android.view.Surface;
 
 import com.android.permissionsplugin.PermissionsPluginOptions;
 
+import java.io.PrintWriter;
 import java.util.Objects;
 
 /**
@@ -61,7 +62,9 @@ public abstract class PluginCameraInterposer extends Binder
         }
 
         ipSurface = new InterposableSurface(packageName, this, streamId, width,
-            height, format, streamInfo.getSurface());
+            height, format, streamInfo.getSurface(),
+            Math.max(0, getFrameRingSize(packageName, streamId)),
+            shouldPassThroughWhenBehind(packageName, streamId));
 
         if (!ipSurface.isInitialized()) {
             if (PermissionsPluginOptions.DEBUG) {
@@ -122,6 +125,63 @@ public abstract class PluginCameraInterposer extends Binder
         mStreams.remove(record);
     }
 
+    /**
+     * Returns the number of frames of the shared memory ring used to hand the
+     * frames of a stream to this plugin, or 0 to receive each frame through
+     * {@link #onFrameAvailable} on the thread that delivers it from the camera.
+     * Plugins that need more than a few milliseconds per frame should use a
+     * ring so that the camera is never stalled waiting for them.
+     */
+    public int getFrameRingSize(String packageName, int streamId) {
+        return 0;
+    }
+
+    /**
+     * Returns whether frames that arrive while every slot of the ring is still
+     * in use should be delivered to the app unmodified. By default they are
+     * dropped, so the app never sees a frame the plugin did not process.
+     */
+    public boolean shouldPassThroughWhenBehind(String packageName, int streamId) {
+        return false;
+    }
+
+    /**
+     * Called once per stream when its frame ring is allocated, before any
+     * frame is delivered through {@link #onFramesAvailable}. Frame {@code i}
+     * of a batch lives at {@code offsets[i]} of {@code ring}, which holds
+     * {@code slotCount} slots of {@code slotSize} bytes. The ring is closed by
+     * the framework once the stream disconnects.
+     */
+    public void onFrameRingCreated(String packageName, int streamId, SharedMemory ring,
+            int slotCount, int slotSize) {
+    }
+
+    /**
+     * Called on the stream's consumer thread with every frame of the ring that
+     * is ready, oldest first. The frames are delivered to the app once this
+     * returns. The default implementation calls {@link #onFrameAvailable} for
+     * each frame.
+     */
+    public void onFramesAvailable(String packageName, int streamId, int width, int height,
+            int format, int[] strides, long[] framePtrs, int[] offsets, int count) {
+        for (int i = 0; i < count; i++) {
+            onFrameAvailable(packageName, streamId, width, height, strides[i], format,
+                framePtrs[i]);
+        }
+    }
+
+    /**
+     * Prints the frame ring counters of the streams interposed by this plugin.
+     */
+    public final synchronized void dumpFrameStats(PrintWriter pw, String prefix) {
+        if (mStreams == null) {
+            return;
+        }
+        for (int i = 0; i < mStreams.size(); i++) {
+            mStreams.valueAt(i).dump(pw, prefix);
+        }
+    }
+
     private static final class StreamRecord {
         private final int mStreamId;
         private final String mPackageName;
@@ -0,0 +1,127 @@
+package android.os;
+
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
+import java.io.PrintWriter;
+
+/**
+ * Collects latency and error metrics of the perturbations made by plugins in
+ * this process. Printed by {@link PermissionsPluginManager#dump}.
+ *
+ * {@hide}
+ */
+public final class PluginMetrics {
+
+    /** Buckets of 2^i microseconds; the last one holds everything >= ~0.5s. */
+    private static final int NUM_BUCKETS = 20;
+
+    private final Object mLock = new Object();
+
+    /** Metrics keyed by plugin package, then by perturbable type. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ArrayMap<Perturbable, Stats>> mStats = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private long mBytesRewritten = 0;
+
+    @GuardedBy("mLock")
+    private long mParcelsRewritten = 0;
+
+    private static final class Stats {
+        final ExponentiallyBucketedHistogram mLatencyMicros =
+            new ExponentiallyBucketedHistogram(NUM_BUCKETS);
+        long mCount;
+        long mTotalMicros;
+        long mMaxMicros;
+        long mFallbacks;
+        long mSkipped;
+    }
+
+    @GuardedBy("mLock")
+    private Stats getStatsLocked(String pluginPackage, Perturbable type) {
+        ArrayMap<Perturbable, Stats> byType = mStats.get(pluginPackage);
+        if (byType == null) {
+            byType = new ArrayMap<>();
+            mStats.put(pluginPackage, byType);
+        }
+        Stats stats = byType.get(type);
+        if (stats == null) {
+            stats = new Stats();
+            byType.put(type, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Records the time a plugin took to perturb one or more objects of a type.
+     */
+    public void notePerturbation(String pluginPackage, Perturbable type, long micros) {
+        synchronized (mLock) {
+            Stats stats = getStatsLocked(pluginPackage, type);
+            stats.mLatencyMicros.add((int) Math.min(micros, Integer.MAX_VALUE));
+            stats.mCount++;
+            stats.mTotalMicros += micros;
+            if (micros > stats.mMaxMicros) {
+                stats.mMaxMicros = micros;
+            }
+        }
+    }
+
+    /**
+     * Records that the original object was sent because the plugin failed to
+     * perturb it.
+     */
+    public void noteFallback(String pluginPackage, Perturbable type) {
+        synchronized (mLock) {
+            getStatsLocked(pluginPackage, type).mFallbacks++;
+        }
+    }
+
+    /**
+     * Records that a plugin was skipped because the pipeline of plugins ran
+     * out of time.
+     */
+    public void noteSkipped(String pluginPackage, Perturbable type) {
+        synchronized (mLock) {
+            getStatsLocked(pluginPackage, type).mSkipped++;
+        }
+    }
+
+    /**
+     * Records the size of a parcel that had to be rewritten.
+     */
+    public void noteRewrite(int bytes) {
+        synchronized (mLock) {
+            mBytesRewritten += bytes;
+            mParcelsRewritten++;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("parcelsRewritten="); pw.print(mParcelsRewritten);
+            pw.print(" bytesRewritten="); pw.println(mBytesRewritten);
+
+            for (int i = 0; i < mStats.size(); i++) {
+                pw.print(prefix); pw.print(mStats.keyAt(i)); pw.println(":");
+                ArrayMap<Perturbable, Stats> byType = mStats.valueAt(i);
+                for (int j = 0; j < byType.size(); j++) {
+                    Stats stats = byType.valueAt(j);
+                    pw.print(prefix); pw.print("  "); pw.print(byType.keyAt(j));
+                    pw.print(": count="); pw.print(stats.mCount);
+                    pw.print(" fallbacks="); pw.print(stats.mFallbacks);
+                    pw.print(" skipped="); pw.print(stats.mSkipped);
+                    if (stats.mCount > 0) {
+                        pw.print(" avg="); pw.print(stats.mTotalMicros / stats.mCount);
+                        pw.print("us max="); pw.print(stats.mMaxMicros); pw.print("us");
+                    }
+                    pw.println();
+                    stats.mLatencyMicros.dump(pw, prefix + "    latency(us) ");
+                }
+            }
+        }
+    }
+}
@@ -14,6 +14,7 @@ import android.os.IPluginCalendarInterposer;
 
 import com.android.permissionsplugin.PermissionsPluginOptions;
 
+import java.io.PrintWriter;
 import java.util.List;
 
 /**
@@ -43,7 +44,23 @@ public class PluginProxy {
     private IPluginStorageInterposer mStorageInterposer = null;
 
     private boolean mConnecting = false;
-    private boolean mConnected = false;
+    private volatile boolean mConnected = false;
+
+    /** Uptime at which the ongoing connection attempt started. */
+    private long mConnectStartTime = 0;
+
+    /** Connect latency statistics, guarded by this. */
+    private int mConnectCount = 0;
+    private int mConnectFailureCount = 0;
+    private long mLastConnectLatency = -1;
+    private long mMaxConnectLatency = -1;
+    private long mTotalConnectLatency = 0;
+
+    /**
+     * Cleared once the location interposer turns out to predate
+     * {@link IPluginLocationInterposer#modifyLocations}.
+     */
+    private volatile boolean mSupportsBatchedLocations = true;
 
     /**
      * Creates a new instance of the plugin service. Use the {@link #connect}
@@ -67,6 +84,7 @@ public class PluginProxy {
                         retrieveInterposers();
                         mConnecting = false;
                         mConnected = true;
+                        noteConnectLatency();
                         PluginProxy.this.notifyAll();
                     }
                 }
@@ -92,8 +110,15 @@ public class PluginProxy {
                 }
 
                 private void reset() {
+                    if (mConnecting) {
+                        mConnectFailureCount++;
+                    }
                     mService = null;
                     mLocationInterposer = null;
+                    mContactsInterposer = null;
+                    mCalendarInterposer = null;
+                    mCameraInterposer = null;
+                    mStorageInterposer = null;
                     mConnecting = false;
                     mConnected = false;
                 }
@@ -146,11 +171,19 @@ public class PluginProxy {
     }
 
     /**
-     * Connect to the plugin service.
+     * Start connecting to the plugin service, unless the proxy is already
+     * connected or connecting. This method does not wait for the connection
+     * to be established; use {@link #awaitConnected} for that.
      *
+     * @return true if the proxy is connected or a connection attempt is
+     * ongoing, false if the plugin service could not be bound.
      * {@hide}
      */
-    public boolean connect() {
+    public synchronized boolean connect() {
+        if (mConnected || mConnecting) {
+            return true;
+        }
+
         Context c = ActivityThread.currentApplication();
         if (c == null) {
             Log.d(PermissionsPluginOptions.TAG, "Context is null. Can't connect to: " + mPackage);
@@ -160,17 +193,70 @@ public class PluginProxy {
         Intent intent = new Intent();
         intent.setComponent(mComponent);
 
+        mConnectStartTime = SystemClock.uptimeMillis();
+        mConnecting = true;
+
         boolean ret = c.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
-        if (ret) {
-            mConnecting = true;
-        } else {
+        if (!ret) {
+            mConnecting = false;
+            mConnectFailureCount++;
             Log.d(PermissionsPluginOptions.TAG, "Unable to bind to plugin service: " + mPackage);
-            return false;
         }
 
         return ret;
     }
 
+    /**
+     * Wait until the proxy is connected to the plugin service, the ongoing
+     * connection attempt fails, or the timeout elapses.
+     *
+     * @param timeoutMillis The maximum time to wait.
+     * @return true if the proxy is connected.
+     * {@hide}
+     */
+    public synchronized boolean awaitConnected(long timeoutMillis) {
+        final long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (mConnecting && !mConnected) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+        return mConnected;
+    }
+
+    private void noteConnectLatency() {
+        long latency = SystemClock.uptimeMillis() - mConnectStartTime;
+        mConnectCount++;
+        mLastConnectLatency = latency;
+        mTotalConnectLatency += latency;
+        if (latency > mMaxConnectLatency) {
+            mMaxConnectLatency = latency;
+        }
+    }
+
+    /**
+     * {@hide}
+     */
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print(mPackage);
+        pw.print(": connected="); pw.print(mConnected);
+        pw.print(" connecting="); pw.println(mConnecting);
+        pw.print(prefix); pw.print("  connects="); pw.print(mConnectCount);
+        pw.print(" failures="); pw.print(mConnectFailureCount);
+        if (mConnectCount > 0) {
+            pw.print(" latency last="); pw.print(mLastConnectLatency);
+            pw.print("ms avg="); pw.print(mTotalConnectLatency / mConnectCount);
+            pw.print("ms max="); pw.print(mMaxConnectLatency); pw.print("ms");
+        }
+        pw.println();
+    }
+
     /**
      * @return true if a connection has been made to the plugin service.
      * {@hide}
@@ -183,7 +269,7 @@ public class PluginProxy {
      * @return true if a connection attempt to the plugin service is ongoing.
      * {@hide}
      */
-    public boolean isTryingToConnect() {
+    public synchronized boolean isTryingToConnect() {
         return mConnecting;
     }
 
@@ -191,6 +277,24 @@ public class PluginProxy {
         return mLocationInterposer;
     }
 
+    /**
+     * @return false if the location interposer of the plugin is known not to
+     * implement batched location modification.
+     * {@hide}
+     */
+    public boolean supportsBatchedLocations() {
+        return mSupportsBatchedLocations;
+    }
+
+    /**
+     * Remember that the location interposer of the plugin does not implement
+     * batched location modification.
+     * {@hide}
+     */
+    public void setBatchedLocationsUnsupported() {
+        mSupportsBatchedLocations = false;
+    }
+
     public IPluginContactsInterposer getContactsInterposer() {
         return mContactsInterposer;
     }
@@ -4,6 +4,9 @@ import android.util.Log;
 
 import com.android.permissionsplugin.PermissionsPluginOptions;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * The main abstract class that every plugin service must extend.
  *
@@ -127,6 +130,24 @@ public abstract class PluginService extends Binder implements IPluginService
 
         return super.onTransact(code, data, reply, flags);
     }
+
+    /**
+     * Prints the frame ring counters of the camera streams this plugin
+     * interposes on. Plugins that override this should call through.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        IPluginCameraInterposer camera;
+        try {
+            camera = getCameraInterposer();
+        } catch (RemoteException e) {
+            return;
+        }
+        if (camera instanceof PluginCameraInterposer) {
+            pw.println("Camera streams:");
+            ((PluginCameraInterposer) camera).dumpFrameStats(pw, "  ");
+        }
+    }
 }
 
 final class PluginServiceProxy implements IPluginService
@@ -0,0 +1,352 @@
+package android.os;
+
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the decisions of a storage interposer so that the storage tracer can
+ * answer repeated file accesses without calling into the plugin.
+ *
+ * Two kinds of decisions are cached:
+ *
+ *  - Exact decisions, keyed by path and open mode. These are only cached if
+ *    the plugin opted in by setting a TTL with {@link #setTtl}.
+ *  - Prefix rules installed by the plugin, such as "allow all under DCIM/".
+ *    Rules take precedence over exact decisions, and the longest matching
+ *    prefix wins. Relative prefixes are resolved against every path the
+ *    external storage is reachable through, as given by the storage tracer
+ *    with {@link #setExternalStorageRoots}.
+ *
+ * A prefix matches a path if it is the path itself or a parent directory of
+ * it, so "/sdcard/DCIM" matches "/sdcard/DCIM/a.jpg" but not "/sdcard/DCIMx".
+ * Paths are matched as given, so relative paths and paths with "." or ".."
+ * segments or repeated slashes are never answered from the cache: the plugin
+ * is asked about them, and its decision is not cached.
+ *
+ * A decision has the same meaning as the return value of
+ * {@link IPluginStorageInterposer#beforeFileOpen}: null allows the access, the
+ * empty string denies it, and any other value is the path to open instead.
+ *
+ * {@hide}
+ */
+public final class StorageDecisionCache {
+
+    private static final int MAX_ENTRIES = 512;
+
+    /**
+     * An immutable cached decision.
+     */
+    public static final class Decision {
+        /** The decision of the plugin, as returned by beforeFileOpen. */
+        public final String result;
+        final long expiresAt;
+
+        Decision(String result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class PrefixRule {
+        final String prefix;
+        final String replacementPrefix;
+        final long expiresAt;
+
+        PrefixRule(String prefix, String replacementPrefix, long expiresAt) {
+            this.prefix = prefix;
+            this.replacementPrefix = replacementPrefix;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    /** The roots of the app's external storage, each ending with a slash. */
+    @GuardedBy("mLock")
+    private String[] mRoots = new String[0];
+
+    @GuardedBy("mLock")
+    private long mTtlMillis = 0;
+
+    @GuardedBy("mLock")
+    private final LinkedHashMap<String, Decision> mDecisions =
+        new LinkedHashMap<String, Decision>(16, 0.75f, /* accessOrder */ true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /** Prefix rules keyed by their absolute prefix. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, PrefixRule> mRules = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private long mHits = 0;
+
+    @GuardedBy("mLock")
+    private long mRuleHits = 0;
+
+    @GuardedBy("mLock")
+    private long mMisses = 0;
+
+    @GuardedBy("mLock")
+    private long mExpirations = 0;
+
+    @GuardedBy("mLock")
+    private long mInvalidations = 0;
+
+    @GuardedBy("mLock")
+    private long mUncacheable = 0;
+
+    private static String keyOf(String path, int mode) {
+        return mode + ":" + path;
+    }
+
+    /**
+     * Returns true if the path is the prefix itself or under it.
+     */
+    private static boolean isUnder(String path, String prefix) {
+        if (!path.startsWith(prefix)) {
+            return false;
+        }
+        return path.length() == prefix.length()
+                || prefix.endsWith("/")
+                || path.charAt(prefix.length()) == '/';
+    }
+
+    /**
+     * Returns true if the path is absolute and has no "." or ".." segments nor
+     * empty ones, so that it can be matched against prefixes as a string.
+     */
+    private static boolean isCanonical(String path) {
+        if (!path.startsWith("/")) {
+            return false;
+        }
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            final int length = end - start;
+            if (length == 0
+                    || (length == 1 && path.charAt(start) == '.')
+                    || (length == 2 && path.startsWith("..", start))) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    private static long expiryOf(long ttlMillis) {
+        return ttlMillis > 0 ? SystemClock.elapsedRealtime() + ttlMillis : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the cached decision for an access, or null if the plugin must be
+     * asked.
+     */
+    public Decision lookup(String path, int mode) {
+        final long now = SystemClock.elapsedRealtime();
+        final boolean canonical = isCanonical(path);
+        synchronized (mLock) {
+            if (!canonical) {
+                mUncacheable++;
+                return null;
+            }
+            PrefixRule rule = findRuleLocked(path, now);
+            if (rule != null) {
+                mRuleHits++;
+                String result = rule.replacementPrefix;
+                if (result != null && !result.isEmpty()) {
+                    result = result + path.substring(rule.prefix.length());
+                }
+                return new Decision(result, rule.expiresAt);
+            }
+
+            final String key = keyOf(path, mode);
+            Decision decision = mDecisions.get(key);
+            if (decision != null && decision.expiresAt <= now) {
+                mDecisions.remove(key);
+                mExpirations++;
+                decision = null;
+            }
+
+            if (decision == null) {
+                mMisses++;
+            } else {
+                mHits++;
+            }
+            return decision;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private PrefixRule findRuleLocked(String path, long now) {
+        PrefixRule best = null;
+        for (int i = mRules.size() - 1; i >= 0; i--) {
+            PrefixRule rule = mRules.valueAt(i);
+            if (rule.expiresAt <= now) {
+                mRules.removeAt(i);
+                mExpirations++;
+                continue;
+            }
+            if (isUnder(path, rule.prefix)
+                    && (best == null || rule.prefix.length() > best.prefix.length())) {
+                best = rule;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Caches the decision the plugin made for an access, if the plugin opted
+     * into caching.
+     */
+    public void put(String path, int mode, String result) {
+        if (!isCanonical(path)) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mTtlMillis <= 0) {
+                return;
+            }
+            mDecisions.put(keyOf(path, mode), new Decision(result, expiryOf(mTtlMillis)));
+        }
+    }
+
+    /**
+     * Sets how long exact decisions are cached. 0 disables caching them, and
+     * drops the ones cached so far.
+     */
+    public void setTtl(long ttlMillis) {
+        synchronized (mLock) {
+            mTtlMillis = Math.max(0, ttlMillis);
+            if (mTtlMillis == 0) {
+                mDecisions.clear();
+            }
+        }
+    }
+
+    /**
+     * Installs a rule that decides every access under a prefix.
+     *
+     * @param prefix An absolute path prefix, or one relative to the root of
+     * the external storage.
+     * @param replacementPrefix null to allow the accesses, the empty string to
+     * deny them, or the prefix to replace {@code prefix} with.
+     * @param ttlMillis How long the rule holds, or 0 for as long as the plugin
+     * does not remove it.
+     */
+    public void addPrefixRule(String prefix, String replacementPrefix, long ttlMillis) {
+        if (prefix == null || prefix.isEmpty()) {
+            return;
+        }
+        final long expiresAt = expiryOf(ttlMillis);
+        synchronized (mLock) {
+            for (String absolute : resolvePrefixLocked(prefix)) {
+                mRules.put(absolute, new PrefixRule(absolute, replacementPrefix, expiresAt));
+            }
+        }
+    }
+
+    public void removePrefixRule(String prefix) {
+        if (prefix == null || prefix.isEmpty()) {
+            return;
+        }
+        synchronized (mLock) {
+            for (String absolute : resolvePrefixLocked(prefix)) {
+                mRules.remove(absolute);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached exact decisions under a prefix, or all of them if the
+     * prefix is null. Prefix rules are kept.
+     */
+    public void invalidate(String prefix) {
+        synchronized (mLock) {
+            mInvalidations++;
+            if (prefix == null) {
+                mDecisions.clear();
+                return;
+            }
+            final ArrayList<String> prefixes = resolvePrefixLocked(prefix);
+            mDecisions.keySet().removeIf(key -> {
+                final String path = key.substring(key.indexOf(':') + 1);
+                for (String absolute : prefixes) {
+                    if (isUnder(path, absolute)) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+        }
+    }
+
+    /**
+     * Drops all decisions and rules, e.g. when the plugin has been restarted.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mDecisions.clear();
+            mRules.clear();
+            mTtlMillis = 0;
+        }
+    }
+
+    /**
+     * Sets the roots of the app's external storage that relative prefixes are
+     * resolved against. Rules installed so far are kept as they were resolved.
+     */
+    public void setExternalStorageRoots(String[] roots) {
+        final String[] normalized = new String[roots != null ? roots.length : 0];
+        for (int i = 0; i < normalized.length; i++) {
+            normalized[i] = roots[i].endsWith("/") ? roots[i] : roots[i] + "/";
+        }
+        synchronized (mLock) {
+            mRoots = normalized;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private ArrayList<String> resolvePrefixLocked(String prefix) {
+        final ArrayList<String> prefixes = new ArrayList<>();
+        if (prefix.startsWith("/")) {
+            prefixes.add(prefix);
+        } else {
+            for (String root : mRoots) {
+                prefixes.add(root + prefix);
+            }
+        }
+        return prefixes;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            final long lookups = mHits + mRuleHits + mMisses + mUncacheable;
+            pw.print(prefix); pw.print("ttl="); pw.print(mTtlMillis);
+            pw.print("ms entries="); pw.print(mDecisions.size());
+            pw.print("/"); pw.print(MAX_ENTRIES);
+            pw.print(" rules="); pw.println(mRules.size());
+            pw.print(prefix); pw.print("hits="); pw.print(mHits);
+            pw.print(" ruleHits="); pw.print(mRuleHits);
+            pw.print(" misses="); pw.print(mMisses);
+            pw.print(" uncacheable="); pw.print(mUncacheable);
+            pw.print(" hitRatio=");
+            pw.println(lookups == 0 ? "n/a"
+                    : String.format("%.1f%%", 100.0 * (mHits + mRuleHits) / lookups));
+            pw.print(prefix); pw.print("expirations="); pw.print(mExpirations);
+            pw.print(" invalidations="); pw.println(mInvalidations);
+        }
+    }
+}
@@ -63,8 +63,10 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.speech.tts.TextToSpeech;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.AndroidException;
 import android.util.ArrayMap;
@@ -1494,6 +1496,33 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow wants a
+     * read-only snapshot of the whole table. If this key is mapped to a <code>null</code>
+     * string extra in the request bundle and the caller is allowed to read the table
+     * without per-caller filtering, the response bundle will contain the same key mapped
+     * to a {@link android.os.SharedMemory} holding a {@link SettingsSnapshot}. The caller
+     * can read values from the snapshot for as long as the generation tracked through
+     * {@link #CALL_METHOD_TRACK_GENERATION_KEY} matches the snapshot's generation.
+     */
+    public static final String CALL_METHOD_TRACK_SNAPSHOT_KEY = "_track_snapshot";
+
+    // Secure settings whose value depends on the caller, so they are left out of the
+    // snapshots shared with clients. Clients read them through call() instead.
+    private static final ArraySet<String> SNAPSHOT_EXCLUDED_SECURE_SETTINGS = new ArraySet<>();
+    static {
+        SNAPSHOT_EXCLUDED_SECURE_SETTINGS.add(Secure.ANDROID_ID);
+        SNAPSHOT_EXCLUDED_SECURE_SETTINGS.add("bluetooth_address");
+    }
+
+    /**
+     * @hide - Whether the secure setting is left out of the snapshots requested with
+     * {@link #CALL_METHOD_TRACK_SNAPSHOT_KEY}.
+     */
+    public static boolean isSnapshotExcludedSecureSetting(String name) {
+        return SNAPSHOT_EXCLUDED_SECURE_SETTINGS.contains(name);
+    }
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1739,6 +1768,10 @@ public final class Settings {
             mCurrentGeneration = generation;
         }
 
+        public int getCurrentGeneration() {
+            return mCurrentGeneration;
+        }
+
         public boolean isGenerationChanged() {
             final int currentGeneration = readCurrentGeneration();
             if (currentGeneration >= 0) {
@@ -1824,15 +1857,28 @@ public final class Settings {
         private final String mCallGetCommand;
         private final String mCallSetCommand;
 
+        // Whether this is the secure table, where some settings are never in the snapshot
+        private final boolean mIsSecure;
+
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Snapshot of the whole table, valid while its generation is the tracked generation
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
+        // Generation at which we last failed to get a snapshot, so we only ask again once
+        // the table changes
+        @GuardedBy("this")
+        private int mSnapshotUnavailableGeneration = -1;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
             mProviderHolder = providerHolder;
+            mIsSecure = Secure.CONTENT_URI.equals(uri);
         }
 
         public boolean putStringForUser(ContentResolver cr, String name, String value,
@@ -1871,6 +1917,20 @@ public final class Settings {
                         } else if (mValues.containsKey(name)) {
                             return mValues.get(name);
                         }
+                        if (mSnapshot != null && mSnapshot.getGeneration()
+                                == mGenerationTracker.getCurrentGeneration()) {
+                            final int index = mSnapshot.indexOf(name);
+                            if (index >= 0) {
+                                final String value = mSnapshot.valueAt(index);
+                                mValues.put(name, value);
+                                return value;
+                            }
+                            // The snapshot has the whole table, so the setting isn't set.
+                            if (!mIsSecure || !isSnapshotExcludedSecureSetting(name)) {
+                                mValues.put(name, null);
+                                return null;
+                            }
+                        }
                     }
                 }
             } else {
@@ -1892,6 +1952,7 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsSnapshot = false;
                     synchronized (NameValueCache.this) {
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
@@ -1905,6 +1966,13 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && needsSnapshotLocked()) {
+                            needsSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_TRACK_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b;
                     // If we're in system server and in a binder transaction we need to clear the
@@ -1961,6 +2029,10 @@ public final class Settings {
                                         });
                                     }
                                 }
+                                if (needsSnapshot) {
+                                    updateSnapshotLocked(b.getParcelable(
+                                            CALL_METHOD_TRACK_SNAPSHOT_KEY));
+                                }
                                 mValues.put(name, value);
                             }
                         } else {
@@ -2017,6 +2089,47 @@ public final class Settings {
             }
         }
 
+        @GuardedBy("this")
+        private boolean needsSnapshotLocked() {
+            if (mGenerationTracker == null) {
+                return true;
+            }
+            final int generation = mGenerationTracker.getCurrentGeneration();
+            return generation != mSnapshotUnavailableGeneration
+                    && (mSnapshot == null || mSnapshot.getGeneration() != generation);
+        }
+
+        @GuardedBy("this")
+        private void updateSnapshotLocked(SharedMemory memory) {
+            if (memory == null) {
+                // This caller gets filtered values, or the provider could not take the snapshot
+                noteSnapshotUnavailableLocked();
+                return;
+            }
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
+            }
+            try {
+                mSnapshot = SettingsSnapshot.map(memory);
+                if (DEBUG) {
+                    Log.i(TAG, "Received snapshot for type:" + mUri.getPath()
+                            + " with " + mSnapshot.size() + " settings at generation:"
+                            + mSnapshot.getGeneration());
+                }
+            } catch (ErrnoException | IllegalArgumentException | IllegalStateException e) {
+                Log.e(TAG, "Error mapping settings snapshot", e);
+                memory.close();
+                noteSnapshotUnavailableLocked();
+            }
+        }
+
+        @GuardedBy("this")
+        private void noteSnapshotUnavailableLocked() {
+            mSnapshotUnavailableGeneration = (mGenerationTracker != null)
+                    ? mGenerationTracker.getCurrentGeneration() : -1;
+        }
+
         public void clearGenerationTrackerForTest() {
             synchronized (NameValueCache.this) {
                 if (mGenerationTracker != null) {
@@ -2024,6 +2137,11 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                if (mSnapshot != null) {
+                    mSnapshot.close();
+                    mSnapshot = null;
+                }
+                mSnapshotUnavailableGeneration = -1;
             }
         }
     }
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of one settings table for one user, stored in a sealed
+ * {@link SharedMemory} region. SettingsProvider publishes a snapshot per table and user
+ * along with the table generation it was taken at, and {@link Settings} looks values up
+ * in it without a binder call for as long as the generation does not change.
+ *
+ * <p>The region starts with a header of four ints: a magic number, the format version, the
+ * generation and the entry count. It is followed by one int offset per entry pointing to
+ * the entry's name, and the name is directly followed by the value. Each string is stored
+ * as its UTF-8 length, or -1 for null, and its UTF-8 bytes. Entries are sorted by name so
+ * that lookups can binary search the region without decoding it up front.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @hide
+ */
+public final class SettingsSnapshot implements Closeable {
+    private static final int MAGIC = 0x534e4150; // "SNAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    private final SharedMemory mMemory;
+    private ByteBuffer mBuffer;
+    private final int mGeneration;
+    private final int mCount;
+
+    private SettingsSnapshot(SharedMemory memory, ByteBuffer buffer) {
+        mMemory = memory;
+        mBuffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(Integer.BYTES) != VERSION) {
+            throw new IllegalArgumentException("Not a settings snapshot");
+        }
+        mGeneration = buffer.getInt(2 * Integer.BYTES);
+        mCount = buffer.getInt(3 * Integer.BYTES);
+        if (mCount < 0 || HEADER_SIZE + (long) mCount * Integer.BYTES > buffer.limit()) {
+            throw new IllegalArgumentException("Bad settings snapshot entry count " + mCount);
+        }
+    }
+
+    /**
+     * Writes the given settings into a new sealed region that can only be mapped read-only.
+     */
+    public static @NonNull SharedMemory create(@Nullable String debugName, int generation,
+            @NonNull ArrayMap<String, String> values) throws ErrnoException {
+        final int count = values.size();
+        final String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = values.keyAt(i);
+        }
+        Arrays.sort(names);
+
+        final byte[][] encoded = new byte[2 * count][];
+        int size = HEADER_SIZE + count * Integer.BYTES;
+        for (int i = 0; i < count; i++) {
+            encoded[2 * i] = names[i].getBytes(StandardCharsets.UTF_8);
+            final String value = values.get(names[i]);
+            encoded[2 * i + 1] = (value != null) ? value.getBytes(StandardCharsets.UTF_8) : null;
+            size += 2 * Integer.BYTES + encoded[2 * i].length;
+            if (encoded[2 * i + 1] != null) {
+                size += encoded[2 * i + 1].length;
+            }
+        }
+
+        final SharedMemory memory = SharedMemory.create(debugName, size);
+        final ByteBuffer buffer = memory.mapReadWrite();
+        try {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(generation);
+            buffer.putInt(count);
+            int offset = HEADER_SIZE + count * Integer.BYTES;
+            for (int i = 0; i < count; i++) {
+                buffer.putInt(offset);
+                offset += 2 * Integer.BYTES + encoded[2 * i].length;
+                if (encoded[2 * i + 1] != null) {
+                    offset += encoded[2 * i + 1].length;
+                }
+            }
+            for (byte[] bytes : encoded) {
+                if (bytes != null) {
+                    buffer.putInt(bytes.length);
+                    buffer.put(bytes);
+                } else {
+                    buffer.putInt(-1);
+                }
+            }
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+        memory.setProtect(OsConstants.PROT_READ);
+        return memory;
+    }
+
+    /**
+     * Returns a new {@link SharedMemory} for the same region with its own descriptor, to be
+     * handed to a single caller. The caller owns the copy and may close it, even when it is
+     * in the same process as the owner of {@code memory}.
+     */
+    public static @NonNull SharedMemory dup(@NonNull SharedMemory memory) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            memory.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            // Reading the descriptor back dups it.
+            return SharedMemory.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Maps a region written by {@link #create}. Takes ownership of {@code memory}.
+     *
+     * @throws IllegalArgumentException if the region does not hold a snapshot.
+     */
+    public static @NonNull SettingsSnapshot map(@NonNull SharedMemory memory)
+            throws ErrnoException {
+        final ByteBuffer buffer = memory.mapReadOnly();
+        try {
+            return new SettingsSnapshot(memory, buffer);
+        } catch (IllegalArgumentException e) {
+            SharedMemory.unmap(buffer);
+            memory.close();
+            throw e;
+        }
+    }
+
+    /** Returns the generation of the table this snapshot was taken at. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns the number of settings in this snapshot. */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the index of the setting with the given name, or a negative number if the
+     * snapshot does not contain it.
+     */
+    public int indexOf(@NonNull String name) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = readString(entryOffset(mid)).compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~low;
+    }
+
+    /** Returns the name of the setting at the given index. */
+    public @NonNull String nameAt(int index) {
+        return readString(entryOffset(index));
+    }
+
+    /** Returns the value of the setting at the given index. */
+    public @Nullable String valueAt(int index) {
+        final int offset = entryOffset(index);
+        return readString(offset + Integer.BYTES + Math.max(0, mBuffer.getInt(offset)));
+    }
+
+    private int entryOffset(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mBuffer.getInt(HEADER_SIZE + index * Integer.BYTES);
+    }
+
+    private String readString(int offset) {
+        final int length = mBuffer.getInt(offset);
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset + Integer.BYTES);
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Unmaps the snapshot and closes its region. */
+    @Override
+    public void close() {
+        if (mBuffer != null) {
+            SharedMemory.unmap(mBuffer);
+            mBuffer = null;
+            mMemory.close();
+        }
+    }
+}
@@ -1,20 +1,38 @@
 package android.view;
 
 import android.os.IPluginCameraInterposer;
+import android.os.PluginCameraInterposer;
+import android.os.Process;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
 import com.android.permissionsplugin.PermissionsPluginOptions;
 
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 
 /**
  * This is a special surface object that allows us to modify camera frames
  * rendered to a new surface target before they are are delivered to the app.
  *
+ * <p>By default every frame is handed to the plugin synchronously on the
+ * thread that receives it from the camera. In frame ring mode the frames are
+ * instead copied into a {@link SharedMemory} ring that is given to the plugin
+ * once; a dedicated consumer thread then hands the plugin every frame that is
+ * ready in one batch, so a slow plugin never stalls the camera. Frames that
+ * arrive while the ring is full are dropped, or delivered unmodified if the
+ * plugin asked for it.
+ *
  * @hide
  */
 public class InterposableSurface implements AutoCloseable {
 
+    /** Buckets of 2^i microseconds; the last one holds everything >= ~0.5s. */
+    private static final int NUM_LATENCY_BUCKETS = 20;
+
     /**
      * Indicates if this interposable surface is valid for use.
      */
@@ -43,6 +61,43 @@ public class InterposableSurface implements AutoCloseable {
      */
     private long mNativeContext;
 
+    /**
+     * The interposer that consumes frames from the ring, or null when frames
+     * are delivered synchronously.
+     */
+    private final PluginCameraInterposer mRingInterposer;
+    private final int mRingSlots;
+
+    private SharedMemory mRing;
+    private Thread mRingConsumer;
+
+    /**
+     * Users of the native context and the ring: this surface until it is
+     * closed, plus the consumer thread while it runs. The last one to let go
+     * frees them, so a plugin callback still running after close() never
+     * sees the ring unmapped.
+     */
+    @GuardedBy("this")
+    private int mNativeRefs = 1;
+    @GuardedBy("this")
+    private boolean mClosed;
+
+    private final Object mStatsLock = new Object();
+
+    @GuardedBy("mStatsLock")
+    private final ExponentiallyBucketedHistogram mLatencyMicros =
+        new ExponentiallyBucketedHistogram(NUM_LATENCY_BUCKETS);
+    @GuardedBy("mStatsLock")
+    private long mDeliveredFrames;
+    @GuardedBy("mStatsLock")
+    private long mBatches;
+    @GuardedBy("mStatsLock")
+    private int mMaxBatch;
+    @GuardedBy("mStatsLock")
+    private long mTotalLatencyMicros;
+    @GuardedBy("mStatsLock")
+    private long mMaxLatencyMicros;
+
     /**
      * Creates a new instance of the interposable surface. See also {@link
      * #isInitialized}.
@@ -61,6 +116,23 @@ public class InterposableSurface implements AutoCloseable {
     public InterposableSurface(String packageName, IPluginCameraInterposer interposer,
             int streamId, int width, int height, int format,
             Surface destinationSurface) {
+        this(packageName, interposer, streamId, width, height, format,
+            destinationSurface, 0, false);
+    }
+
+    /**
+     * Creates a new instance of the interposable surface that hands frames to
+     * the plugin through a shared memory ring of {@code ringSlots} frames. A
+     * {@code ringSlots} of zero delivers frames synchronously, as {@link
+     * #InterposableSurface(String, IPluginCameraInterposer, int, int, int,
+     * int, Surface)} does.
+     *
+     * @param passThroughWhenBehind Whether frames that arrive while the ring
+     * is full should be delivered to the app unmodified rather than dropped.
+     */
+    public InterposableSurface(String packageName, IPluginCameraInterposer interposer,
+            int streamId, int width, int height, int format,
+            Surface destinationSurface, int ringSlots, boolean passThroughWhenBehind) {
         mPackageName = packageName;
         mInterposer = interposer;
         mStreamId = streamId;
@@ -69,9 +141,20 @@ public class InterposableSurface implements AutoCloseable {
         mFormat = format;
         mDestinationSurface = destinationSurface;
 
+        if (ringSlots > 0 && interposer instanceof PluginCameraInterposer) {
+            mRingInterposer = (PluginCameraInterposer) interposer;
+            mRingSlots = ringSlots;
+        } else {
+            mRingInterposer = null;
+            mRingSlots = 0;
+        }
+
         mInitialized = nativeInit(new WeakReference<InterposableSurface>(this), mStreamId, mDestinationSurface);
         if (mInitialized) {
             mSourceSurface = nativeGetSourceSurface();
+            if (mRingSlots > 0) {
+                nativeEnableFrameRing(mRingSlots, passThroughWhenBehind);
+            }
         } else {
             mSourceSurface = null;
         }
@@ -104,8 +187,85 @@ public class InterposableSurface implements AutoCloseable {
      */
     @Override
     public void close() {
+        boolean stopRing;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            // Also keeps onFrameRingNeeded from setting up a ring from now on.
+            mInitialized = false;
+            stopRing = mRingConsumer != null;
+            mRingConsumer = null;
+        }
+        if (stopRing) {
+            // Wakes the consumer up; it drops its reference once the plugin
+            // callback it may be running returns.
+            nativeStopFrameRing();
+        }
+        releaseNativeRef();
+    }
+
+    private void releaseNativeRef() {
+        synchronized (this) {
+            if (--mNativeRefs > 0) {
+                return;
+            }
+        }
+
+        if (mRingSlots > 0 && PermissionsPluginOptions.DEBUG) {
+            Log.d(PermissionsPluginOptions.TAG, getFrameStats());
+        }
+
         nativeClose();
-        mInitialized = false;
+
+        synchronized (this) {
+            if (mRing != null) {
+                mRing.close();
+                mRing = null;
+            }
+        }
+    }
+
+    /**
+     * Prints the frame ring counters of this surface, if it uses one.
+     */
+    public void dump(PrintWriter pw, String prefix) {
+        if (mRingSlots == 0) {
+            return;
+        }
+        synchronized (this) {
+            // nativeClose() holds the same lock, so the counters stay mapped.
+            if (mNativeRefs == 0) {
+                return;
+            }
+            pw.print(prefix); pw.println(getFrameStats());
+        }
+        synchronized (mStatsLock) {
+            mLatencyMicros.dump(pw, prefix + "  latency(us) ");
+        }
+    }
+
+    private String getFrameStats() {
+        long[] counters = new long[3];
+        nativeGetFrameRingCounters(counters);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(mPackageName).append(" stream ").append(mStreamId)
+            .append(": slots=").append(mRingSlots)
+            .append(" frames=").append(counters[0])
+            .append(" dropped=").append(counters[1])
+            .append(" passedThrough=").append(counters[2]);
+        synchronized (mStatsLock) {
+            sb.append(" delivered=").append(mDeliveredFrames)
+                .append(" batches=").append(mBatches)
+                .append(" maxBatch=").append(mMaxBatch);
+            if (mDeliveredFrames > 0) {
+                sb.append(" avgLatency=").append(mTotalLatencyMicros / mDeliveredFrames)
+                    .append("us maxLatency=").append(mMaxLatencyMicros).append("us");
+            }
+        }
+        return sb.toString();
     }
 
     private void onFrameAvailable(int stride, long nativePtr) {
@@ -113,7 +273,108 @@ public class InterposableSurface implements AutoCloseable {
             stride, mFormat, nativePtr);
     }
 
+    /**
+     * Called from native code with the size of the first frame, to allocate
+     * the frame ring and start consuming it. Returns false to keep delivering
+     * frames synchronously.
+     */
+    private synchronized boolean onFrameRingNeeded(int frameSize) {
+        if (!mInitialized || mRing != null) {
+            return false;
+        }
+
+        SharedMemory ring;
+        try {
+            ring = SharedMemory.create("interposable-surface-" + mStreamId,
+                mRingSlots * frameSize);
+        } catch (ErrnoException e) {
+            Log.e(PermissionsPluginOptions.TAG, "Could not allocate a frame ring for stream "
+                  + mStreamId, e);
+            return false;
+        }
+
+        if (!nativeAttachFrameRing(ring.getFd(), frameSize)) {
+            ring.close();
+            return false;
+        }
+        mRing = ring;
+
+        mRingInterposer.onFrameRingCreated(mPackageName, mStreamId, ring, mRingSlots,
+            frameSize);
+
+        mNativeRefs++;
+        mRingConsumer = new Thread(this::consumeFrameRing,
+            "InterposableSurface-" + mStreamId);
+        mRingConsumer.start();
+        return true;
+    }
+
+    private void consumeFrameRing() {
+        try {
+            consumeFrameRingLoop();
+        } finally {
+            releaseNativeRef();
+        }
+    }
+
+    private void consumeFrameRingLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+
+        long[] framePtrs = new long[mRingSlots];
+        int[] offsets = new int[mRingSlots];
+        int[] strides = new int[mRingSlots];
+        long[] latencies = new long[mRingSlots];
+
+        while (true) {
+            int count = nativeWaitForFrames(framePtrs, offsets, strides);
+            if (count < 0) {
+                return;
+            }
+
+            try {
+                mRingInterposer.onFramesAvailable(mPackageName, mStreamId, mWidth, mHeight,
+                    mFormat, strides, framePtrs, offsets, count);
+            } catch (RuntimeException e) {
+                Log.e(PermissionsPluginOptions.TAG, "Plugin failed to process frames of stream "
+                      + mStreamId, e);
+            }
+
+            int delivered = nativeCompleteFrames(count, latencies);
+            noteBatch(latencies, delivered);
+        }
+    }
+
+    private void noteBatch(long[] latencies, int count) {
+        synchronized (mStatsLock) {
+            mBatches++;
+            if (count > mMaxBatch) {
+                mMaxBatch = count;
+            }
+            for (int i = 0; i < count; i++) {
+                if (latencies[i] < 0) {
+                    continue;
+                }
+                long micros = latencies[i] / 1000;
+                mLatencyMicros.add((int) Math.min(micros, Integer.MAX_VALUE));
+                mDeliveredFrames++;
+                mTotalLatencyMicros += micros;
+                if (micros > mMaxLatencyMicros) {
+                    mMaxLatencyMicros = micros;
+                }
+            }
+        }
+    }
+
     private synchronized native boolean nativeInit(WeakReference<InterposableSurface> weakThiz, int streamId, Surface mTargetSurface);
     private synchronized native Surface nativeGetSourceSurface();
     private synchronized native void nativeClose();
+
+    // The frame ring calls below are not synchronized: the consumer thread
+    // blocks in nativeWaitForFrames until frames arrive or the ring is stopped.
+    private native void nativeEnableFrameRing(int slotCount, boolean passThroughWhenBehind);
+    private native boolean nativeAttachFrameRing(int fd, int slotSize);
+    private native void nativeStopFrameRing();
+    private native int nativeWaitForFrames(long[] framePtrs, int[] offsets, int[] strides);
+    private native int nativeCompleteFrames(int count, long[] latencies);
+    private native void nativeGetFrameRingCounters(long[] counters);
 }
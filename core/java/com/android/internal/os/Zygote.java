@@ -129,6 +129,7 @@ public final class Zygote {
             if (pid < -1) {
                 // This will not return.
                 mPackageName = niceName;
+                PermissionsPluginManager.setStorageTracerRoots(nativeGetStorageTracerRoots());
                 nativeRunStorageTracer();
             }
         }
@@ -138,6 +139,12 @@ public final class Zygote {
 
     native private static void nativeRunStorageTracer();
 
+    /**
+     * Returns the roots of the app's external storage, as resolved by the
+     * storage tracer for the app's user.
+     */
+    native private static String[] nativeGetStorageTracerRoots();
+
     native private static int nativeForkAndSpecialize(int uid, int gid, int[] gids,int debugFlags,
           int[][] rlimits, int mountExternal, String seInfo, String niceName, int[] fdsToClose,
           int[] fdsToIgnore, String instructionSet, String appDataDir, boolean enableStorageTracer);
@@ -35,11 +35,22 @@ public class PermissionsPlugin implements Parcelable{
     // The permissions plugin object, parser and db are agnostic to the meaning of '*'.
     public ArrayMap<String, ArrayList<String>> targetPackageToAPIs;
 
+    // Declared priority of this plugin. When several plugins are active for
+    // the same app and API, they run in decreasing order of priority, each
+    // one getting the output of the previous one.
+    public int priority;
+
+    // If set, the plugins with a lower priority are skipped once this
+    // plugin has handled the data.
+    public boolean shortCircuit;
+
     public PermissionsPlugin(String packageName){
         this.packageName = packageName;
 
         // Set default values
         id = -1;
+        priority = 0;
+        shortCircuit = false;
 
         // Initialize data
         supportedPackages = new ArrayList<>();
@@ -77,6 +88,9 @@ public class PermissionsPlugin implements Parcelable{
             ArrayList<String> value = dest.createStringArrayList();
             targetPackageToAPIs.put(key,value);    
         }
+
+        priority = dest.readInt();
+        shortCircuit = dest.readInt() != 0;
     }
 
     @Override
@@ -94,6 +108,9 @@ public class PermissionsPlugin implements Parcelable{
             dest.writeString(key);
             dest.writeStringList(targetPackageToAPIs.get(key));
         }
+
+        dest.writeInt(priority);
+        dest.writeInt(shortCircuit ? 1 : 0);
     }
 
 
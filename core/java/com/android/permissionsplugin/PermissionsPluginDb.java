@@ -27,7 +27,7 @@ public class PermissionsPluginDb{
     private static final String DATABASE_NAME = "permissions_plugin.db";
 
     // When changing the database schema increment the version
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
 
     /* Inner class that defines the permissions plugin table contents */
     private static class PluginEntry implements BaseColumns {
@@ -37,6 +37,13 @@ public class PermissionsPluginDb{
         // Column name for the plugin package stored as string
         public static final String COLUMN_NAME_PACKAGE_NAME = "package_name";
 
+        // Column name for the declared priority of the plugin stored as integer
+        public static final String COLUMN_NAME_PRIORITY = "priority";
+
+        // Column name for the short circuit flag of the plugin stored as integer
+        // 1 - short circuits, 0 - does not
+        public static final String COLUMN_NAME_SHORT_CIRCUIT = "short_circuit";
+
     }
 
     /* Inner class that defines the target package table contents */
@@ -79,7 +86,9 @@ public class PermissionsPluginDb{
             final String SQL_CREATE_PLUGIN_TABLE =
                 "CREATE TABLE " + PluginEntry.TABLE_NAME + " (" +
                 PluginEntry._ID + " INTEGER PRIMARY KEY," +
-                PluginEntry.COLUMN_NAME_PACKAGE_NAME + " TEXT NOT NULL UNIQUE)";
+                PluginEntry.COLUMN_NAME_PACKAGE_NAME + " TEXT NOT NULL UNIQUE," +
+                PluginEntry.COLUMN_NAME_PRIORITY + " INTEGER NOT NULL DEFAULT 0," +
+                PluginEntry.COLUMN_NAME_SHORT_CIRCUIT + " INTEGER NOT NULL DEFAULT 0)";
             db.execSQL(SQL_CREATE_PLUGIN_TABLE);
 
             // SQL query to create plugin table
@@ -101,6 +110,16 @@ public class PermissionsPluginDb{
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
+            // Version 2 only added columns; keep the user's selections.
+            // Existing plugins keep the default priority until reinstalled.
+            if (oldVersion == 1 && newVersion == 2) {
+                db.execSQL("ALTER TABLE " + PluginEntry.TABLE_NAME + " ADD COLUMN " +
+                    PluginEntry.COLUMN_NAME_PRIORITY + " INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE " + PluginEntry.TABLE_NAME + " ADD COLUMN " +
+                    PluginEntry.COLUMN_NAME_SHORT_CIRCUIT + " INTEGER NOT NULL DEFAULT 0");
+                return;
+            }
+
             // SQL query to drop target package table
             final String SQL_DELETE_TARGET_PACKAGE_TABLE = "DROP TABLE IF EXISTS " + TargetPackageEntry.TABLE_NAME;
 
@@ -143,12 +162,18 @@ public class PermissionsPluginDb{
                 // Get the index of the columns we are interested in
                 int idIndex = cursor.getColumnIndex(PluginEntry._ID);
                 int packageNameIndex = cursor.getColumnIndex(PluginEntry.COLUMN_NAME_PACKAGE_NAME);
+                int priorityIndex = cursor.getColumnIndex(PluginEntry.COLUMN_NAME_PRIORITY);
+                int shortCircuitIndex = cursor.getColumnIndex(PluginEntry.COLUMN_NAME_SHORT_CIRCUIT);
 
                 while(cursor.moveToNext()){
                     String packageName = cursor.getString(packageNameIndex);
                     PermissionsPlugin plugin = new PermissionsPlugin(packageName);
                     
                     plugin.id = cursor.getInt(idIndex);
+
+                    plugin.priority = cursor.getInt(priorityIndex);
+
+                    plugin.shortCircuit = cursor.getInt(shortCircuitIndex) != 0;
                     
                     plugin.supportedPackages = retrieveSupportedPackages(plugin.id);
                 
@@ -188,6 +213,8 @@ public class PermissionsPluginDb{
             ContentValues values = new ContentValues();
 
             values.put(PluginEntry.COLUMN_NAME_PACKAGE_NAME, plugin.packageName);
+            values.put(PluginEntry.COLUMN_NAME_PRIORITY, plugin.priority);
+            values.put(PluginEntry.COLUMN_NAME_SHORT_CIRCUIT, plugin.shortCircuit ? 1 : 0);
             
             // Insert the new row, returning the primary key value of the new row
             long newRowId = db.insert(PluginEntry.TABLE_NAME, null, values);
@@ -263,7 +290,8 @@ public class PermissionsPluginDb{
      * Return 1 if successful and 0 otherwise.
      * It uses plugin.id (row id of the plugin) to 
      * identify the plugin record in the db and update it. 
-     * Note: Only target package/APIs can be updated.    
+     * Note: Only the priority, short circuit flag and target package/APIs
+     * can be updated.
      */
     public int updatePlugin(PermissionsPlugin plugin){
 
@@ -278,6 +306,13 @@ public class PermissionsPluginDb{
 
             int updatedRows = 0;
 
+            // Update the declared ordering of this plugin
+            ContentValues values = new ContentValues();
+            values.put(PluginEntry.COLUMN_NAME_PRIORITY, plugin.priority);
+            values.put(PluginEntry.COLUMN_NAME_SHORT_CIRCUIT, plugin.shortCircuit ? 1 : 0);
+            db.update(PluginEntry.TABLE_NAME, values, PluginEntry._ID + " = ? ",
+                    new String[]{String.valueOf(plugin.id)});
+
             // Update target package info of this plugin
             for (String pkg : plugin.supportedPackages) {
                 for (String api : plugin.supportedAPIs) {
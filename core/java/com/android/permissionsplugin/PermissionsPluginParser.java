@@ -25,12 +25,18 @@ public class PermissionsPluginParser {
     private static final String JSON_KEY_SUPPORTED_PKGS = "supportsPkg";
     private static final String JSON_KEY_INTERPOSED_APIS = "interposesOn";
     private static final String JSON_KEY_ACTIVATE_ON_INSTALL = "activateOnInstall";
+    private static final String JSON_KEY_PRIORITY = "priority";
+    private static final String JSON_KEY_SHORT_CIRCUIT = "shortCircuit";
 
     public PermissionsPluginParser(){
     }
 
     /**
      * Parse plugin given by the packagename
+     *
+     * The result is not cached: at boot, plugins are loaded from the plugin
+     * db rather than parsed, and a plugin is only parsed when it is installed
+     * or replaced, which gives it a new code path.
      * @param pkg Package to be parsed
      * @return returns a PermissionsPlugin object with parsed information or null in case of error
      */
@@ -79,6 +85,11 @@ public class PermissionsPluginParser {
                 plugin.supportedAPIs.add(supportedAPIs.getString(i));
             }
 
+            // Parse the position of the plugin in the pipeline of plugins
+            // that are active for the same app and API.
+            plugin.priority = root.optInt(JSON_KEY_PRIORITY, 0);
+            plugin.shortCircuit = root.optBoolean(JSON_KEY_SHORT_CIRCUIT, false);
+
             // Add each supported package as the target package
             // and activate the plugin for all package/APIs if activateOnInstall flag is set.
             boolean activateOnInstall = root.optBoolean(JSON_KEY_ACTIVATE_ON_INSTALL,false);
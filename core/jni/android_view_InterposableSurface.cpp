@@ -1,6 +1,13 @@
 #define LOG_TAG "Dalf"
 
+#include <errno.h>
 #include <stdio.h>
+#include <string.h>
+#include <sys/eventfd.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
+#include <vector>
 
 #include <android_runtime/AndroidRuntime.h>
 #include <gui/BufferItemConsumer.h>
@@ -11,7 +18,10 @@
 #include "core_jni_helpers.h"
 
 #include <cutils/atomic.h>
+#include <utils/Condition.h>
 #include <utils/Log.h>
+#include <utils/Mutex.h>
+#include <utils/Timers.h>
 #include <utils/misc.h>
 
 #include <android_runtime/android_view_Surface.h>
@@ -37,6 +47,7 @@ const char* const kInterposableSurfaceClassPathName = "android/view/Interposable
 static struct {
     jfieldID    mNativeContext;
     jmethodID   onFrameAvailable;
+    jmethodID   onFrameRingNeeded;
 } javaClassInfo;
 
 // ----------------------------------------------------------------------------
@@ -55,6 +66,17 @@ public:
 
     void          disconnect();
 
+    // Frame ring mode. When enabled, the listener thread only copies incoming
+    // frames into a shared memory ring and rings a doorbell; the plugin
+    // consumes them in batches on its own thread and hands them back through
+    // completeFrames(), which delivers them to the destination surface.
+    void          enableFrameRing(int slotCount, bool passThroughWhenBehind);
+    bool          attachFrameRing(int fd, size_t slotSize);
+    void          stopFrameRing();
+    int           waitForFrames(int maxFrames, jlong* framePtrs, jint* offsets, jint* strides);
+    int           completeFrames(int count, jlong* latencies);
+    void          getFrameRingCounters(jlong* counters);
+
 private:
 
     // Part of ConsumerBase::onFrameAvailable
@@ -67,13 +89,41 @@ private:
 
     void freeDestBuffers();
 
-    bool getDestBuffer(sp<GraphicBuffer>& sourceBuffer, BufferItem *dest);
+    bool getDestBuffer(uint32_t width, uint32_t height, PixelFormat format, uint64_t usage,
+            BufferItem *dest);
     bool copyFrame(sp<GraphicBuffer>& sourceBuffer, uint8_t *destData);
     void sendToPlugin(sp<GraphicBuffer>& destBuffer, uint8_t *destData);
     void sendToDestination(BufferItem* item);
 
+    void processFrameSync(BufferItem& srcItem, bool notifyPlugin);
+    bool processFrameInRing(BufferItem& srcItem);
+    bool requestFrameRing(sp<GraphicBuffer>& sourceBuffer);
+    void releaseFrameRing();
+
+    static size_t frameSize(const sp<GraphicBuffer>& buffer);
+
     enum { NUM_BUFFER_SLOTS = BufferQueueDefs::NUM_BUFFER_SLOTS };
 
+    enum RingSlotState {
+        RING_SLOT_FREE,
+        RING_SLOT_FILLING,
+        RING_SLOT_READY,
+        RING_SLOT_IN_PLUGIN,
+    };
+
+    struct RingSlot {
+        RingSlotState   state = RING_SLOT_FREE;
+        // Queueing metadata of the source frame, reused for the destination.
+        BufferItem      item;
+        uint32_t        width = 0;
+        uint32_t        height = 0;
+        PixelFormat     format = 0;
+        uint64_t        usage = 0;
+        uint32_t        stride = 0;
+        size_t          bytes = 0;
+        nsecs_t         acquiredAt = 0;
+    };
+
     const int                   mStreamId;
     const sp<Surface>           mDestinationSurface;
 
@@ -89,6 +139,25 @@ private:
 
     sp<BufferItemConsumer>      mBufferItemConsumer;
     sp<GraphicBuffer>           mSlots[NUM_BUFFER_SLOTS];
+
+    // Frame ring state, all guarded by mRingLock. The ring memory itself is
+    // owned by the Java side; we only keep a mapping of it.
+    Mutex                       mRingLock;
+    Condition                   mRingIdle;
+    int                         mRingSlotCount = 0;
+    bool                        mPassThroughWhenBehind = false;
+    bool                        mRingRequested = false;
+    bool                        mRingClosing = false;
+    int                         mDoorbellFd = -1;
+    uint8_t*                    mRingBase = nullptr;
+    size_t                      mRingSlotSize = 0;
+    RingSlot*                   mRingSlots = nullptr;
+    int                         mRingHead = 0;
+    int                         mRingTail = 0;
+    int                         mRingFilling = 0;
+    int64_t                     mRingFrames = 0;
+    int64_t                     mRingDrops = 0;
+    int64_t                     mRingPassThroughs = 0;
 };
 
 InterposableSurface::InterposableSurface(jobject interposableSurfaceObj, int streamId,
@@ -103,6 +172,8 @@ InterposableSurface::InterposableSurface(jobject interposableSurfaceObj, int str
 }
 
 void InterposableSurface::disconnect() {
+    stopFrameRing();
+
     if (mInitialized) {
         mDestinationSurface->disconnect(NATIVE_WINDOW_API_CAMERA);
         mBufferItemConsumer->setFrameAvailableListener(0);
@@ -110,6 +181,8 @@ void InterposableSurface::disconnect() {
         mInitialized = false;
     }
 
+    releaseFrameRing();
+
     JNIEnv* env = AndroidRuntime::getJNIEnv();
     env->DeleteGlobalRef(mInterposableSurfaceObj);
 }
@@ -148,14 +221,14 @@ void InterposableSurface::freeDestBuffers()
     }
 }
 
-bool InterposableSurface::getDestBuffer(sp<GraphicBuffer>& sourceBuffer, BufferItem *destItem)
+bool InterposableSurface::getDestBuffer(uint32_t width, uint32_t height, PixelFormat format,
+        uint64_t usage, BufferItem *destItem)
 {
     int slot = 0;
     uint64_t bufferAge = 0;
     sp<Fence> fence;
-    status_t res = mDestinationProducer->dequeueBuffer(&slot, &fence, sourceBuffer->getWidth(),
-         sourceBuffer->getHeight(), sourceBuffer->getPixelFormat(), sourceBuffer->getUsage(),
-         &bufferAge, nullptr);
+    status_t res = mDestinationProducer->dequeueBuffer(&slot, &fence, width, height, format,
+         usage, &bufferAge, nullptr);
 
     if (res < 0) {
         LOG_ERROR_DALF("%s: InterposableSurface could not get dequeue destination buffer."
@@ -186,6 +259,18 @@ bool InterposableSurface::getDestBuffer(sp<GraphicBuffer>& sourceBuffer, BufferI
     return true;
 }
 
+size_t InterposableSurface::frameSize(const sp<GraphicBuffer>& buffer)
+{
+    size_t stride = buffer->getStride();
+    size_t height = buffer->getHeight();
+    size_t alignedHeight = ALIGN(height/2, 32) * 2;
+
+    if (buffer->getPixelFormat() == HAL_PIXEL_FORMAT_IMPLEMENTATION_DEFINED) {
+        return stride * alignedHeight * 3 / 2;
+    }
+    return stride * height;
+}
+
 bool InterposableSurface::copyFrame(sp<GraphicBuffer>& sourceBuffer, uint8_t *destData)
 {
     uint8_t* srcData = NULL;
@@ -196,15 +281,7 @@ bool InterposableSurface::copyFrame(sp<GraphicBuffer>& sourceBuffer, uint8_t *de
         return false;
     }
 
-    int stride = sourceBuffer->getStride();
-    int height = sourceBuffer->getHeight();
-    int alignedHeight = ALIGN(height/2, 32) * 2;
-
-    if (sourceBuffer->getPixelFormat() == HAL_PIXEL_FORMAT_IMPLEMENTATION_DEFINED) {
-        memcpy(destData, srcData, stride * alignedHeight * 1.5);
-    } else {
-        memcpy(destData, srcData, stride * height);
-    }
+    memcpy(destData, srcData, frameSize(sourceBuffer));
 
     sourceBuffer->unlock();
     return true;
@@ -237,6 +314,137 @@ void InterposableSurface::sendToDestination(BufferItem *item)
     }
 }
 
+void InterposableSurface::processFrameSync(BufferItem& srcItem, bool notifyPlugin)
+{
+    sp<GraphicBuffer>& sourceBuffer = srcItem.mGraphicBuffer;
+    BufferItem destItem = srcItem;
+
+    if (getDestBuffer(sourceBuffer->getWidth(), sourceBuffer->getHeight(),
+            sourceBuffer->getPixelFormat(), sourceBuffer->getUsage(), &destItem)) {
+        sp<GraphicBuffer> destBuffer = destItem.mGraphicBuffer;
+        uint8_t* destData = NULL;
+
+        status_t res = destBuffer->lock(
+            GraphicBuffer::USAGE_SW_READ_OFTEN | GraphicBuffer::USAGE_SW_WRITE_OFTEN,
+            (void**)&destData);
+
+        if (res == OK) {
+            if (copyFrame(sourceBuffer, destData)) {
+                if (notifyPlugin) {
+                    sendToPlugin(destBuffer, destData);
+                }
+                destBuffer->unlock();
+
+                sendToDestination(&destItem);
+            } else {
+                destBuffer->unlock();
+                mDestinationProducer->cancelBuffer(destItem.mSlot, destItem.mFence);
+            }
+        } else {
+            mDestinationProducer->cancelBuffer(destItem.mSlot, destItem.mFence);
+        }
+    }
+}
+
+bool InterposableSurface::requestFrameRing(sp<GraphicBuffer>& sourceBuffer)
+{
+    // The Java side allocates the ring so that it can hand the same memory to
+    // the plugin; it calls back into attachFrameRing() before returning.
+    JNIEnv* env = AndroidRuntime::getJNIEnv();
+    ScopedLocalRef<jobject> interposableSurfaceObj(env, jniGetReferent(env, mInterposableSurfaceObj));
+    if (interposableSurfaceObj.get() == NULL) {
+        return false;
+    }
+    jboolean attached = env->CallBooleanMethod(interposableSurfaceObj.get(),
+        javaClassInfo.onFrameRingNeeded, static_cast<jint>(frameSize(sourceBuffer)));
+    if (env->ExceptionCheck()) {
+        LOGE_EX(env);
+        env->ExceptionClear();
+        return false;
+    }
+    return attached == JNI_TRUE;
+}
+
+bool InterposableSurface::processFrameInRing(BufferItem& srcItem)
+{
+    sp<GraphicBuffer>& sourceBuffer = srcItem.mGraphicBuffer;
+    size_t bytes = frameSize(sourceBuffer);
+
+    Mutex::Autolock _l(mRingLock);
+    if (mRingClosing) {
+        return false;
+    }
+
+    if (!mRingRequested) {
+        mRingRequested = true;
+        mRingLock.unlock();
+        bool attached = requestFrameRing(sourceBuffer);
+        mRingLock.lock();
+        if (!attached || mRingClosing) {
+            LOG_ERROR_DALF("Could not set up a frame ring for stream %d,"
+                           " falling back to synchronous frames", mStreamId);
+            mRingSlotCount = 0;
+            return false;
+        }
+    }
+
+    if (mRingBase == nullptr || bytes > mRingSlotSize) {
+        return false;
+    }
+
+    mRingFrames++;
+    RingSlot& slot = mRingSlots[mRingHead];
+    if (slot.state != RING_SLOT_FREE) {
+        // The plugin has fallen behind and every slot is still in use. Never
+        // block the camera: either drop the frame or let it through as is.
+        if (mPassThroughWhenBehind) {
+            mRingPassThroughs++;
+            mRingLock.unlock();
+            processFrameSync(srcItem, false);
+            mRingLock.lock();
+        } else {
+            mRingDrops++;
+        }
+        return true;
+    }
+
+    int index = mRingHead;
+    mRingHead = (mRingHead + 1) % mRingSlotCount;
+    slot.state = RING_SLOT_FILLING;
+    slot.item = srcItem;
+    slot.item.mGraphicBuffer = nullptr;
+    slot.width = sourceBuffer->getWidth();
+    slot.height = sourceBuffer->getHeight();
+    slot.format = sourceBuffer->getPixelFormat();
+    slot.usage = sourceBuffer->getUsage();
+    slot.stride = sourceBuffer->getStride();
+    slot.bytes = bytes;
+    slot.acquiredAt = systemTime(SYSTEM_TIME_MONOTONIC);
+    mRingFilling++;
+
+    uint8_t* slotData = mRingBase + index * mRingSlotSize;
+    mRingLock.unlock();
+    bool copied = copyFrame(sourceBuffer, slotData);
+    mRingLock.lock();
+
+    mRingFilling--;
+    if (copied) {
+        slot.state = RING_SLOT_READY;
+        uint64_t one = 1;
+        if (write(mDoorbellFd, &one, sizeof(one)) != sizeof(one)) {
+            LOG_ERROR_DALF("Could not ring frame doorbell for stream %d: %s",
+                           mStreamId, strerror(errno));
+        }
+    } else {
+        // Keep the ring in order: the consumer will skip this slot when it
+        // completes it, without queueing anything to the destination.
+        slot.state = RING_SLOT_READY;
+        slot.bytes = 0;
+    }
+    mRingIdle.broadcast();
+    return true;
+}
+
 void InterposableSurface::onFrameAvailable(const BufferItem& item)
 {
     if (!mInitialized) {
@@ -252,33 +460,170 @@ void InterposableSurface::onFrameAvailable(const BufferItem& item)
         return;
     }
 
-    sp<GraphicBuffer>& sourceBuffer = srcItem.mGraphicBuffer;
-    BufferItem destItem = srcItem;
+    if (mRingSlotCount == 0 || !processFrameInRing(srcItem)) {
+        processFrameSync(srcItem, true);
+    }
 
-    if (getDestBuffer(sourceBuffer, &destItem)) {
-        sp<GraphicBuffer> destBuffer = destItem.mGraphicBuffer;
-        uint8_t* destData = NULL;
+    mBufferItemConsumer->releaseBuffer(srcItem);
+}
 
-        res = destBuffer->lock(
-            GraphicBuffer::USAGE_SW_READ_OFTEN | GraphicBuffer::USAGE_SW_WRITE_OFTEN,
-            (void**)&destData);
+void InterposableSurface::enableFrameRing(int slotCount, bool passThroughWhenBehind)
+{
+    Mutex::Autolock _l(mRingLock);
+    if (slotCount <= 0 || mRingSlotCount != 0) {
+        return;
+    }
 
-        if (res == OK) {
-            if (copyFrame(sourceBuffer, destData)) {
-                sendToPlugin(destBuffer, destData);
-                destBuffer->unlock();
+    mDoorbellFd = eventfd(0, EFD_CLOEXEC);
+    if (mDoorbellFd < 0) {
+        LOG_ERROR_DALF("Could not create frame doorbell for stream %d: %s",
+                       mStreamId, strerror(errno));
+        return;
+    }
 
+    mRingSlots = new RingSlot[slotCount];
+    mRingSlotCount = slotCount;
+    mPassThroughWhenBehind = passThroughWhenBehind;
+}
+
+bool InterposableSurface::attachFrameRing(int fd, size_t slotSize)
+{
+    Mutex::Autolock _l(mRingLock);
+    if (mRingSlotCount == 0 || mRingBase != nullptr || mRingClosing) {
+        return false;
+    }
+
+    void* base = mmap(nullptr, slotSize * mRingSlotCount, PROT_READ | PROT_WRITE,
+        MAP_SHARED, fd, 0);
+    if (base == MAP_FAILED) {
+        LOG_ERROR_DALF("Could not map frame ring for stream %d: %s",
+                       mStreamId, strerror(errno));
+        return false;
+    }
+
+    mRingBase = static_cast<uint8_t*>(base);
+    mRingSlotSize = slotSize;
+    return true;
+}
+
+void InterposableSurface::stopFrameRing()
+{
+    Mutex::Autolock _l(mRingLock);
+    if (mRingSlotCount == 0 || mRingClosing) {
+        return;
+    }
+
+    mRingClosing = true;
+    uint64_t one = 1;
+    if (write(mDoorbellFd, &one, sizeof(one)) != sizeof(one)) {
+        LOG_ERROR_DALF("Could not wake frame consumer for stream %d: %s",
+                       mStreamId, strerror(errno));
+    }
+}
+
+void InterposableSurface::releaseFrameRing()
+{
+    Mutex::Autolock _l(mRingLock);
+    while (mRingFilling > 0) {
+        mRingIdle.wait(mRingLock);
+    }
+
+    if (mRingBase != nullptr) {
+        munmap(mRingBase, mRingSlotSize * mRingSlotCount);
+        mRingBase = nullptr;
+    }
+    if (mDoorbellFd >= 0) {
+        close(mDoorbellFd);
+        mDoorbellFd = -1;
+    }
+    delete[] mRingSlots;
+    mRingSlots = nullptr;
+    mRingSlotCount = 0;
+}
+
+int InterposableSurface::waitForFrames(int maxFrames, jlong* framePtrs, jint* offsets,
+        jint* strides)
+{
+    while (true) {
+        uint64_t rings = 0;
+        if (read(mDoorbellFd, &rings, sizeof(rings)) < 0 && errno != EINTR) {
+            LOG_ERROR_DALF("Could not wait on frame doorbell for stream %d: %s",
+                           mStreamId, strerror(errno));
+            return -1;
+        }
+
+        Mutex::Autolock _l(mRingLock);
+        if (mRingClosing) {
+            return -1;
+        }
+
+        // Hand out every frame that is ready in one go, in ring order.
+        int count = 0;
+        int index = mRingTail;
+        while (count < maxFrames && mRingSlots[index].state == RING_SLOT_READY) {
+            RingSlot& slot = mRingSlots[index];
+            slot.state = RING_SLOT_IN_PLUGIN;
+            framePtrs[count] = reinterpret_cast<jlong>(mRingBase + index * mRingSlotSize);
+            offsets[count] = static_cast<jint>(index * mRingSlotSize);
+            strides[count] = static_cast<jint>(slot.stride);
+            count++;
+            index = (index + 1) % mRingSlotCount;
+        }
+
+        if (count > 0) {
+            return count;
+        }
+    }
+}
+
+int InterposableSurface::completeFrames(int count, jlong* latencies)
+{
+    int delivered = 0;
+    for (int i = 0; i < count; i++) {
+        mRingLock.lock();
+        if (mRingClosing || mRingSlots[mRingTail].state != RING_SLOT_IN_PLUGIN) {
+            mRingLock.unlock();
+            break;
+        }
+        int index = mRingTail;
+        RingSlot& slot = mRingSlots[index];
+        uint8_t* slotData = mRingBase + index * mRingSlotSize;
+        mRingLock.unlock();
+
+        bool queued = false;
+        BufferItem destItem = slot.item;
+        if (slot.bytes > 0 && getDestBuffer(slot.width, slot.height, slot.format, slot.usage,
+                &destItem)) {
+            uint8_t* destData = NULL;
+            status_t res = destItem.mGraphicBuffer->lock(GraphicBuffer::USAGE_SW_WRITE_OFTEN,
+                (void**)&destData);
+            if (res == OK) {
+                memcpy(destData, slotData, slot.bytes);
+                destItem.mGraphicBuffer->unlock();
                 sendToDestination(&destItem);
+                queued = true;
             } else {
-                destBuffer->unlock();
                 mDestinationProducer->cancelBuffer(destItem.mSlot, destItem.mFence);
             }
-        } else {
-            mDestinationProducer->cancelBuffer(destItem.mSlot, destItem.mFence);
         }
+
+        latencies[i] = queued ? systemTime(SYSTEM_TIME_MONOTONIC) - slot.acquiredAt : -1;
+
+        mRingLock.lock();
+        slot.state = RING_SLOT_FREE;
+        mRingTail = (mRingTail + 1) % mRingSlotCount;
+        mRingLock.unlock();
+        delivered++;
     }
+    return delivered;
+}
 
-    mBufferItemConsumer->releaseBuffer(srcItem);
+void InterposableSurface::getFrameRingCounters(jlong* counters)
+{
+    Mutex::Autolock _l(mRingLock);
+    counters[0] = mRingFrames;
+    counters[1] = mRingDrops;
+    counters[2] = mRingPassThroughs;
 }
 
 void InterposableSurface::onBufferReleased()
@@ -292,6 +637,7 @@ extern "C" {
 
 #define ANDROID_VIEW_INTERPOSABLESURFACE_CTX_JNI_ID "mNativeContext"
 #define ANDROID_VIEW_INTERPOSABLESURFACE_ONFRAMEAVAILABLE "onFrameAvailable"
+#define ANDROID_VIEW_INTERPOSABLESURFACE_ONFRAMERINGNEEDED "onFrameRingNeeded"
 
 static void InterposableSurface_classInit(JNIEnv* env, jclass clazz)
 {
@@ -312,6 +658,15 @@ static void InterposableSurface_classInit(JNIEnv* env, jclass clazz)
                        ANDROID_VIEW_INTERPOSABLESURFACE_ONFRAMEAVAILABLE);
         return;
     }
+
+    javaClassInfo.onFrameRingNeeded = env->GetMethodID(clazz,
+            ANDROID_VIEW_INTERPOSABLESURFACE_ONFRAMERINGNEEDED, "(I)Z");
+
+    if (javaClassInfo.onFrameRingNeeded == NULL) {
+        LOG_ERROR_DALF("can't find android/view/InterposableSurface.%s",
+                       ANDROID_VIEW_INTERPOSABLESURFACE_ONFRAMERINGNEEDED);
+        return;
+    }
 }
 
 static InterposableSurface* InterposableSurface_getContext(JNIEnv* env, jobject thiz)
@@ -376,6 +731,86 @@ static void InterposableSurface_close(JNIEnv* env, jobject thiz)
     InterposableSurface_setContext(env, thiz, 0);
 }
 
+static void InterposableSurface_enableFrameRing(JNIEnv* env, jobject thiz, jint slotCount,
+        jboolean passThroughWhenBehind)
+{
+    InterposableSurface *ctx = InterposableSurface_getContext(env, thiz);
+    if (ctx == NULL) {
+        return;
+    }
+    ctx->enableFrameRing(slotCount, passThroughWhenBehind == JNI_TRUE);
+}
+
+static jboolean InterposableSurface_attachFrameRing(JNIEnv* env, jobject thiz, jint fd,
+        jint slotSize)
+{
+    InterposableSurface *ctx = InterposableSurface_getContext(env, thiz);
+    if (ctx == NULL) {
+        return JNI_FALSE;
+    }
+    return ctx->attachFrameRing(fd, slotSize) ? JNI_TRUE : JNI_FALSE;
+}
+
+static void InterposableSurface_stopFrameRing(JNIEnv* env, jobject thiz)
+{
+    InterposableSurface *ctx = InterposableSurface_getContext(env, thiz);
+    if (ctx == NULL) {
+        return;
+    }
+    ctx->stopFrameRing();
+}
+
+static jint InterposableSurface_waitForFrames(JNIEnv* env, jobject thiz, jlongArray framePtrs,
+        jintArray offsets, jintArray strides)
+{
+    InterposableSurface *ctx = InterposableSurface_getContext(env, thiz);
+    if (ctx == NULL) {
+        return -1;
+    }
+
+    jsize maxFrames = env->GetArrayLength(framePtrs);
+    std::vector<jlong> cFramePtrs(maxFrames);
+    std::vector<jint> cOffsets(maxFrames);
+    std::vector<jint> cStrides(maxFrames);
+    int count = ctx->waitForFrames(maxFrames, cFramePtrs.data(), cOffsets.data(),
+        cStrides.data());
+    if (count > 0) {
+        env->SetLongArrayRegion(framePtrs, 0, count, cFramePtrs.data());
+        env->SetIntArrayRegion(offsets, 0, count, cOffsets.data());
+        env->SetIntArrayRegion(strides, 0, count, cStrides.data());
+    }
+    return count;
+}
+
+static jint InterposableSurface_completeFrames(JNIEnv* env, jobject thiz, jint count,
+        jlongArray latencies)
+{
+    InterposableSurface *ctx = InterposableSurface_getContext(env, thiz);
+    if (ctx == NULL || count <= 0) {
+        return 0;
+    }
+
+    std::vector<jlong> cLatencies(count);
+    int delivered = ctx->completeFrames(count, cLatencies.data());
+    if (delivered > 0) {
+        env->SetLongArrayRegion(latencies, 0, delivered, cLatencies.data());
+    }
+    return delivered;
+}
+
+static void InterposableSurface_getFrameRingCounters(JNIEnv* env, jobject thiz,
+        jlongArray counters)
+{
+    InterposableSurface *ctx = InterposableSurface_getContext(env, thiz);
+    if (ctx == NULL) {
+        return;
+    }
+
+    jlong cCounters[3];
+    ctx->getFrameRingCounters(cCounters);
+    env->SetLongArrayRegion(counters, 0, 3, cCounters);
+}
+
 } // extern "C"
 
 static const JNINativeMethod gMethods[] = {
@@ -385,6 +820,18 @@ static const JNINativeMethod gMethods[] = {
              (void*)InterposableSurface_getSourceSurface},
     {"nativeClose", "()V",
              (void*)InterposableSurface_close},
+    {"nativeEnableFrameRing", "(IZ)V",
+             (void*)InterposableSurface_enableFrameRing},
+    {"nativeAttachFrameRing", "(II)Z",
+             (void*)InterposableSurface_attachFrameRing},
+    {"nativeStopFrameRing", "()V",
+             (void*)InterposableSurface_stopFrameRing},
+    {"nativeWaitForFrames", "([J[I[I)I",
+             (void*)InterposableSurface_waitForFrames},
+    {"nativeCompleteFrames", "(I[J)I",
+             (void*)InterposableSurface_completeFrames},
+    {"nativeGetFrameRingCounters", "([J)V",
+             (void*)InterposableSurface_getFrameRingCounters},
 };
 
 int register_android_view_InterposableSurface(JNIEnv *env)
@@ -47,6 +47,7 @@
 #include "android-base/logging.h"
 #include <android-base/file.h>
 #include <android-base/stringprintf.h>
+#include <binder/ProcessState.h>
 #include <cutils/fs.h>
 #include <cutils/multiuser.h>
 #include <cutils/sched_policy.h>
@@ -689,6 +690,7 @@ static pid_t ForkAndSpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArra
     }
 
     if (enableStorageTracer && tracerSetup) {
+        tracer_postfork_app_install_filter();
         sem_post(appSem);
         sem_wait(tracerSem);
         tracer_postfork_app_cleanup();
@@ -727,7 +729,8 @@ static pid_t ForkAndSpecializeCommon(JNIEnv* env, uid_t uid, gid_t gid, jintArra
             RuntimeAbort(env, __LINE__, "Error calling post fork hooks.");
         }
 
-        int ret = tracer_postfork_setup(app_child_pid, gZygoteClass, gCallExternalStoragePlugin);
+        int ret = tracer_postfork_setup(app_child_pid, uid, gZygoteClass,
+                                        gCallExternalStoragePlugin);
         if (ret < 0) {
           // Had a very bad error setting up the tracer. Just kill it.
           exit(0);
@@ -886,10 +889,31 @@ static void com_android_internal_os_Zygote_nativeUnmountStorageOnInit(JNIEnv* en
 }
 
 static void com_android_internal_os_Zygote_nativeRunStorageTracer(JNIEnv* env, jclass) {
+    // The storage interposer calls back into the tracer to manage its
+    // decision cache, while the tracer's main thread is busy in the loop.
+    android::ProcessState::self()->startThreadPool();
     tracer_run_loop();
     exit(0);
 }
 
+static jobjectArray com_android_internal_os_Zygote_nativeGetStorageTracerRoots(JNIEnv* env,
+                                                                               jclass) {
+  jclass stringClass = env->FindClass("java/lang/String");
+  jobjectArray roots = env->NewObjectArray(EXTERNAL_STORAGE_ROOT_COUNT, stringClass, NULL);
+  if (roots == NULL) {
+    return NULL;
+  }
+  for (int i = 0; i < EXTERNAL_STORAGE_ROOT_COUNT; i++) {
+    jstring root = env->NewStringUTF(tracer_get_storage_root(i));
+    if (root == NULL) {
+      return NULL;
+    }
+    env->SetObjectArrayElement(roots, i, root);
+    env->DeleteLocalRef(root);
+  }
+  return roots;
+}
+
 static const JNINativeMethod gMethods[] = {
     { "nativeForkAndSpecialize",
       "(II[II[[IILjava/lang/String;Ljava/lang/String;[I[ILjava/lang/String;Ljava/lang/String;Z)I",
@@ -903,7 +927,9 @@ static const JNINativeMethod gMethods[] = {
     { "nativePreApplicationInit", "()V",
       (void *) com_android_internal_os_Zygote_nativePreApplicationInit },
     { "nativeRunStorageTracer", "()V",
-      (void *) com_android_internal_os_Zygote_nativeRunStorageTracer }
+      (void *) com_android_internal_os_Zygote_nativeRunStorageTracer },
+    { "nativeGetStorageTracerRoots", "()[Ljava/lang/String;",
+      (void *) com_android_internal_os_Zygote_nativeGetStorageTracerRoots }
 };
 
 int register_com_android_internal_os_Zygote(JNIEnv* env) {
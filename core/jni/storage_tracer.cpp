@@ -12,6 +12,30 @@
  * At the moment, the storage tracer works only in aarch64 mode. This is simply
  * a matter of implementation.
  *
+ * The tracer has two interception modes, selected by the
+ * persist.sys.storage_tracer_mode property:
+ *
+ *  - "seccomp" (the default): before letting the tracer attach, the app
+ *    installs a seccomp filter that returns SECCOMP_RET_TRACE for openat() and
+ *    SECCOMP_RET_ALLOW for everything else. The tracer resumes the app with
+ *    PTRACE_CONT and is only woken up by PTRACE_EVENT_SECCOMP stops, i.e. once
+ *    per openat() instead of twice per syscall. The path itself can't be
+ *    matched in BPF since it lives in user memory, so the external storage
+ *    check still happens in the tracer. The filter is installed by the main
+ *    thread of the child, after the post-fork hooks and before the app's code
+ *    runs, without SECCOMP_FILTER_FLAG_TSYNC. Seccomp filters are inherited on
+ *    clone(), so the main thread and every thread created afterwards, i.e. the
+ *    Java daemons and all of the app's threads, are filtered. Those are also
+ *    the threads the tracer follows, since it attaches to the main thread with
+ *    PTRACE_O_TRACECLONE. Threads the runtime may already have started in the
+ *    post-fork hooks are neither filtered nor traced; TSYNC would filter them
+ *    without a tracer, failing their openat() calls. If the tracer dies,
+ *    openat() fails with ENOSYS in the app, so the app can't bypass the
+ *    plugin.
+ *
+ *  - "ptrace": the tracer stops the app on every syscall entry and exit with
+ *    PTRACE_SYSCALL. This is used when the filter can't be installed.
+ *
  * The code here has been inspired by several ptrace examples on the
  * internet. ReadStringFromPid() and WriteStringToPid(), and the technique of
  * using space in the unused portion of the thread's stack, were inspired by
@@ -24,14 +48,21 @@
 #include <elf.h>
 #include <errno.h>
 #include <limits.h>
+#include <stddef.h>
 #include <string.h>
 #include <unistd.h>
 #include <unordered_map>
 
 #include <android_runtime/AndroidRuntime.h>
+#include <cutils/multiuser.h>
+#include <cutils/properties.h>
 
 #include <asm/ptrace.h>
+#include <linux/audit.h>
+#include <linux/filter.h>
+#include <linux/seccomp.h>
 #include <sys/mman.h>
+#include <sys/prctl.h>
 #include <sys/ptrace.h>
 #include <sys/syscall.h>
 #include <sys/wait.h>
@@ -44,12 +75,34 @@
 #endif
 #define LOG_ERROR_DALF(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
+#define TRACER_MODE_PROPERTY "persist.sys.storage_tracer_mode"
+
+enum tracer_mode {
+    TRACER_MODE_PTRACE,
+    TRACER_MODE_SECCOMP,
+};
+
+/**
+ * The state shared between the app and the tracer while they set up.
+ */
+struct tracer_shared_state {
+    sem_t appSem;
+    sem_t tracerSem;
+    /** Set by the app once its seccomp filter is in place. */
+    int appFilterInstalled;
+};
+
 static void* gSharedMemory = NULL;
+static struct tracer_shared_state *gSharedState = NULL;
+static enum tracer_mode gTracerMode = TRACER_MODE_PTRACE;
 static sem_t *gAppSem = NULL;
 static sem_t *gTracerSem = NULL;
 static pid_t gAppPid = -1;
 static char* gPathBuf = NULL;
 
+#define EXTERNAL_STORAGE_ROOT_MAX 64
+static char gStorageRoots[EXTERNAL_STORAGE_ROOT_COUNT][EXTERNAL_STORAGE_ROOT_MAX];
+
 static jclass gZygoteClass;
 static jmethodID gCallExternalStoragePlugin;
 
@@ -81,8 +134,10 @@ extern "C" {
 
         LOG_DEBUG_DALF("%s: Setting up semaphores", __func__);
 
-        gAppSem = (sem_t*) gSharedMemory;
-        gTracerSem = (gAppSem + 1);
+        gSharedState = (struct tracer_shared_state*) gSharedMemory;
+        gSharedState->appFilterInstalled = 0;
+        gAppSem = &gSharedState->appSem;
+        gTracerSem = &gSharedState->tracerSem;
 
         int ret = 0;
 
@@ -98,8 +153,57 @@ extern "C" {
             return -1;
         }
 
-        LOG_DEBUG_DALF("%s: All done", __func__);
+        char mode[PROPERTY_VALUE_MAX];
+        property_get(TRACER_MODE_PROPERTY, mode, "seccomp");
+#if defined(__aarch64__)
+        gTracerMode = (strcmp(mode, "ptrace") == 0) ? TRACER_MODE_PTRACE : TRACER_MODE_SECCOMP;
+#else
+        gTracerMode = TRACER_MODE_PTRACE;
+#endif
+
+        LOG_DEBUG_DALF("%s: All done; mode is %s", __func__,
+                       gTracerMode == TRACER_MODE_SECCOMP ? "seccomp" : "ptrace");
+        return 0;
+    }
+
+    int tracer_postfork_app_install_filter() {
+        if (gTracerMode != TRACER_MODE_SECCOMP || gSharedState == NULL) {
+            return 0;
+        }
+
+#if defined(__aarch64__)
+        struct sock_filter filter[] = {
+            BPF_STMT(BPF_LD | BPF_W | BPF_ABS, offsetof(struct seccomp_data, arch)),
+            BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, AUDIT_ARCH_AARCH64, 1, 0),
+            BPF_STMT(BPF_RET | BPF_K, SECCOMP_RET_ALLOW),
+            BPF_STMT(BPF_LD | BPF_W | BPF_ABS, offsetof(struct seccomp_data, nr)),
+            BPF_JUMP(BPF_JMP | BPF_JEQ | BPF_K, __NR_openat, 0, 1),
+            BPF_STMT(BPF_RET | BPF_K, SECCOMP_RET_TRACE),
+            BPF_STMT(BPF_RET | BPF_K, SECCOMP_RET_ALLOW),
+        };
+        struct sock_fprog prog = {
+            .len = (unsigned short) (sizeof(filter) / sizeof(filter[0])),
+            .filter = filter,
+        };
+
+        if (prctl(PR_SET_NO_NEW_PRIVS, 1, 0, 0, 0) < 0) {
+            LOG_ERROR_DALF("%s: could not set no_new_privs: %s.", __func__, strerror(errno));
+            return -1;
+        }
+
+        // No SECCOMP_FILTER_FLAG_TSYNC: this thread gets the filter, and the
+        // threads it creates from now on inherit it. Those are the threads the
+        // tracer follows.
+        if (syscall(__NR_seccomp, SECCOMP_SET_MODE_FILTER, 0, &prog) < 0) {
+            LOG_ERROR_DALF("%s: could not install seccomp filter: %s.", __func__, strerror(errno));
+            return -1;
+        }
+
+        gSharedState->appFilterInstalled = 1;
+        return 0;
+#else
         return 0;
+#endif
     }
 
     sem_t *tracer_get_app_sem() {
@@ -128,13 +232,36 @@ extern "C" {
         }
     }
 
-    int tracer_postfork_setup(pid_t appPid, jclass zygoteClass, jmethodID callExternalStoragePlugin) {
+    const char *tracer_get_storage_root(int i) {
+        if (i < 0 || i >= EXTERNAL_STORAGE_ROOT_COUNT) {
+            return NULL;
+        }
+        return gStorageRoots[i];
+    }
+
+    bool is_on_external_storage(const char *path) {
+        for (int i = 0; i < EXTERNAL_STORAGE_ROOT_COUNT; i++) {
+            if (gStorageRoots[i][0] != '\0' && starts_with(path, gStorageRoots[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int tracer_postfork_setup(pid_t appPid, uid_t appUid, jclass zygoteClass,
+                              jmethodID callExternalStoragePlugin) {
         LOG_DEBUG_DALF("%s: setting up for %d!", __func__, appPid);
 
         if (gSharedMemory == NULL) {
             return -1;
         }
 
+        const char *rootFormats[] = EXTERNAL_STORAGE_ROOT_FORMATS;
+        const int userId = (int) multiuser_get_user_id(appUid);
+        for (int i = 0; i < EXTERNAL_STORAGE_ROOT_COUNT; i++) {
+            snprintf(gStorageRoots[i], EXTERNAL_STORAGE_ROOT_MAX, rootFormats[i], userId);
+        }
+
         int setup_success = 0;
 
         gAppPid = appPid;
@@ -145,6 +272,16 @@ extern "C" {
 
         int status = 0;
         int ret = 0;
+        long options = PTRACE_O_TRACEEXIT | PTRACE_O_TRACECLONE | PTRACE_O_TRACESYSGOOD;
+
+        if (gTracerMode == TRACER_MODE_SECCOMP && !gSharedState->appFilterInstalled) {
+            LOG_ERROR_DALF("App %d has no seccomp filter; storage tracer falls back to ptrace mode.",
+                           gAppPid);
+            gTracerMode = TRACER_MODE_PTRACE;
+        }
+        if (gTracerMode == TRACER_MODE_SECCOMP) {
+            options |= PTRACE_O_TRACESECCOMP;
+        }
 
         ret = ptrace(PTRACE_ATTACH, gAppPid, 0, 0);
         if (ret < 0) {
@@ -163,8 +300,7 @@ extern "C" {
             goto bail;
         }
 
-        ret = ptrace(PTRACE_SETOPTIONS, gAppPid, 0,
-                     PTRACE_O_TRACEEXIT | PTRACE_O_TRACECLONE | PTRACE_O_TRACESYSGOOD);
+        ret = ptrace(PTRACE_SETOPTIONS, gAppPid, 0, options);
         if (ret < 0) {
             LOG_ERROR_DALF("Storage tracer is unable to set options for %d; failed with %s.",
                            gAppPid, strerror(errno));
@@ -191,6 +327,22 @@ bail:
         return setup_success;
     }
 
+#if defined(__aarch64__)
+    /**
+     * Fails the openat() a thread of the app is stopped on after interposing
+     * on it went wrong, so that the file is neither opened unperturbed nor
+     * left without a tracer. The app keeps being traced.
+     */
+    static void fail_interposed_open(int pid) {
+        LOG_ERROR_DALF("Storage tracer had an unexpected error interposing on open() for %d;"
+                       " failing it with EACCES", pid);
+        if (aarch64_tracer_fail_syscall(pid, EACCES) < 0) {
+            LOG_ERROR_DALF("Storage tracer could not fail open() for %d; failed with %s.",
+                           pid, strerror(errno));
+        }
+    }
+#endif
+
     void tracer_run_loop() {
         LOG_DEBUG_DALF("Storage tracer starting loop for process %d!", gAppPid);
 
@@ -203,7 +355,12 @@ bail:
         int ret = 0;
         int numThreads = 1;
 
-        ret = ptrace(PTRACE_SYSCALL, gAppPid, 0, 0);
+        // In seccomp mode, the app only stops on the openat() calls flagged by
+        // its filter, so it doesn't need to stop on every syscall.
+        const int resume =
+            (gTracerMode == TRACER_MODE_SECCOMP) ? PTRACE_CONT : PTRACE_SYSCALL;
+
+        ret = ptrace(resume, gAppPid, 0, 0);
 
         while (numThreads > 0) {
             ret = waitpid(-1, &status, __WALL);
@@ -215,8 +372,19 @@ bail:
 
             if (WIFSTOPPED(status)) {
                 int statusType = (status >> 8);
+                int injectSignal = 0;
 
-                if (WSTOPSIG(status) & 0x80) {
+                if (statusType == (SIGTRAP | PTRACE_EVENT_SECCOMP << 8)) {
+#if defined(__aarch64__)
+                    // A seccomp stop is always a syscall entry.
+                    ret = aarch64_tracer_interpose_on_open(pausedPid);
+                    if (ret < 0) {
+                        fail_interposed_open(pausedPid);
+                    }
+#else
+                    LOG_ERROR_DALF("syscall interposition not supported on this architecture for %d", pausedPid);
+#endif
+                } else if (WSTOPSIG(status) & 0x80) {
 
                     if (syscall_tracker.find(pausedPid) == syscall_tracker.end()) {
                         syscall_tracker[pausedPid] = false;
@@ -234,8 +402,7 @@ bail:
                     }
 
                     if (ret < 0) {
-                        LOG_ERROR_DALF("Storage tracer had an unexpected error interposing on open() for %d", pausedPid);
-                        break;
+                        fail_interposed_open(pausedPid);
                     }
 #else
                     LOG_ERROR_DALF("syscall interposition not supported on unknown architecture for %d", pausedPid);
@@ -254,9 +421,15 @@ bail:
                     numThreads++;
                 } else if (statusType == (SIGTRAP | PTRACE_EVENT_EXIT << 8)) {
                     numThreads--;
+                } else if (gTracerMode == TRACER_MODE_SECCOMP &&
+                           statusType == WSTOPSIG(status) &&
+                           WSTOPSIG(status) != SIGSTOP && WSTOPSIG(status) != SIGTRAP) {
+                    // A signal-delivery-stop. The app runs freely in this
+                    // mode, so its signals must reach it.
+                    injectSignal = WSTOPSIG(status);
                 }
 
-                ret = ptrace(PTRACE_SYSCALL, pausedPid, 0, 0);
+                ret = ptrace(resume, pausedPid, 0, injectSignal);
 
             } else if (WIFEXITED(status)) {
                 LOG_DEBUG_DALF("Storage tracer received WIFEXITED from %d", pausedPid);
@@ -6,11 +6,19 @@
 #include <sys/types.h>
 #include <nativehelper/JNIHelp.h>
 
-#define EXTERNAL_STORAGE_PATH_SDCARD "/mnt/sdcard/"
-#define EXTERNAL_STORAGE_PATH_STORAGE "/storage/self/primary/"
-#define EXTERNAL_STORAGE_PATH_MEDIA "/data/media/0/"
-#define EXTERNAL_STORAGE_PATH_EMULATED "/storage/emulated/0/"
-#define EXTERNAL_STORAGE_PATH_MNT "/mnt/user/0/primary/"
+/**
+ * The paths the external storage of an app is reachable through. "%d" stands
+ * for the user id of the app. The storage decision cache of the tracer gets
+ * the resolved roots through tracer_get_storage_root().
+ */
+#define EXTERNAL_STORAGE_ROOT_COUNT 5
+#define EXTERNAL_STORAGE_ROOT_FORMATS { \
+    "/mnt/sdcard/", \
+    "/storage/self/primary/", \
+    "/data/media/%d/", \
+    "/storage/emulated/%d/", \
+    "/mnt/user/%d/primary/", \
+}
 
 extern "C" {
 
@@ -33,6 +41,15 @@ extern "C" {
    */
   sem_t *tracer_get_tracer_sem();
 
+  /**
+   * The app process should call this right before posting on its semaphore.
+   * If the tracer runs in seccomp mode, this installs the seccomp filter that
+   * hands the app's openat() calls over to the tracer. Returns 0 if the filter
+   * was installed or isn't needed, and -1 otherwise; in the latter case the
+   * tracer falls back to tracing every syscall.
+   */
+  int tracer_postfork_app_install_filter();
+
   /**
    * The main zygote process should call this after forking the app and the
    * tracer, to clean up all the global state created by the tracer before the
@@ -50,7 +67,20 @@ extern "C" {
    * This should be called in the tracer process after it has forked
    * successfully, to finish setting up the tracer.
    */
-  int tracer_postfork_setup(pid_t appPid, jclass zygoteClass, jmethodID callExternalStoragePlugin);
+  int tracer_postfork_setup(pid_t appPid, uid_t appUid, jclass zygoteClass,
+                            jmethodID callExternalStoragePlugin);
+
+  /**
+   * Returns the i-th root of the app's external storage, as resolved for the
+   * app's user by tracer_postfork_setup(), or NULL if there is no such root.
+   */
+  const char *tracer_get_storage_root(int i);
+
+  /**
+   * Returns true if the path is under one of the roots of the app's external
+   * storage.
+   */
+  bool is_on_external_storage(const char *path);
 
   /**
    * Runs the main tracer loop to interpose on each syscall.
@@ -73,15 +103,6 @@ extern "C" {
 
     return true;
   }
-
-  __attribute__((unused))
-  inline bool is_on_external_storage(const char *path) {
-    return (starts_with(path, EXTERNAL_STORAGE_PATH_SDCARD) ||
-            starts_with(path, EXTERNAL_STORAGE_PATH_STORAGE) ||
-            starts_with(path, EXTERNAL_STORAGE_PATH_MEDIA) ||
-            starts_with(path, EXTERNAL_STORAGE_PATH_EMULATED) ||
-            starts_with(path, EXTERNAL_STORAGE_PATH_MNT));
-  }
 } // extern "C"
 
 #endif // FRAMEWORKS_BASE_CORE_JNI_STORAGE_TRACER_H_
@@ -5,6 +5,10 @@
 
 #define RED_ZONE 128
 
+#ifndef NT_ARM_SYSTEM_CALL
+#define NT_ARM_SYSTEM_CALL 0x404
+#endif
+
 extern "C" {
 
   static int ReadStringFromPid(int pid, char* src, char *dest) {
@@ -120,31 +124,56 @@ extern "C" {
       if (newPathLen > PATH_MAX) {
         LOG_ERROR_DALF("[aarch64] Path (%s) from plugin exceeds maximum length;"
                        " Storage tracer cannot use it for %d", pathFromPlugin, pid);
-        return -1;
-      }
-
-      uint64_t sp = regs.sp;
-      uint64_t newStringLocation = sp - newPathLen - RED_ZONE;
-      ret = WriteStringToPid(pid, pathFromPlugin, (char*) newStringLocation);
-      if (ret < 0) {
-        LOG_ERROR_DALF("[aarch64] Could not copy new path %s to %d; failed with %s",
-                       pathFromPlugin, pid, strerror(errno));
-        return -1;
-      }
-
-      regs.regs[AARCH64_REG_X1] = newStringLocation;
-      ret = ptrace(PTRACE_SETREGSET, pid, NT_PRSTATUS, &io);
-      if (ret < 0) {
-        LOG_ERROR_DALF("[aarch64] Could not update arguments to openat() for %d", pid);
-        return -1;
+        ret = -1;
+      } else {
+        uint64_t sp = regs.sp;
+        uint64_t newStringLocation = sp - newPathLen - RED_ZONE;
+        ret = WriteStringToPid(pid, pathFromPlugin, (char*) newStringLocation);
+        if (ret < 0) {
+          LOG_ERROR_DALF("[aarch64] Could not copy new path %s to %d; failed with %s",
+                         pathFromPlugin, pid, strerror(errno));
+        } else {
+          regs.regs[AARCH64_REG_X1] = newStringLocation;
+          ret = ptrace(PTRACE_SETREGSET, pid, NT_PRSTATUS, &io);
+          if (ret < 0) {
+            LOG_ERROR_DALF("[aarch64] Could not update arguments to openat() for %d", pid);
+          }
+        }
       }
 
+      // The tracer runs for the life of the app, so don't leak local references.
       env->ReleaseStringUTFChars(javaPathFromPlugin, pathFromPlugin);
       env->DeleteLocalRef(javaPathFromPlugin);
       env->DeleteLocalRef(javaPath);
+      return ret < 0 ? -1 : 0;
     }
 
     return 0;
   }
 
+  /**
+   * Makes the syscall a thread is stopped on entering fail with the given
+   * error instead of running: the syscall number is set to -1, which the
+   * kernel skips, and x0 carries the return value.
+   */
+  int aarch64_tracer_fail_syscall(int pid, int error) {
+    user_pt_regs regs;
+    struct iovec io;
+    io.iov_base = &regs;
+    io.iov_len = sizeof(regs);
+    if (ptrace(PTRACE_GETREGSET, pid, NT_PRSTATUS, &io) < 0) {
+      return -1;
+    }
+
+    regs.regs[AARCH64_REG_X0] = (uint64_t) -error;
+    if (ptrace(PTRACE_SETREGSET, pid, NT_PRSTATUS, &io) < 0) {
+      return -1;
+    }
+
+    int syscall_number = -1;
+    io.iov_base = &syscall_number;
+    io.iov_len = sizeof(syscall_number);
+    return ptrace(PTRACE_SETREGSET, pid, NT_ARM_SYSTEM_CALL, &io) < 0 ? -1 : 0;
+  }
+
 } // extern "C"
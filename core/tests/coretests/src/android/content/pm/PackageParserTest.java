@@ -17,6 +17,7 @@
 package android.content.pm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -367,6 +368,23 @@ public class PackageParserTest {
                 PackageParser.fromCacheEntryStatic(PackageParser.toCacheEntryStatic(p)));
     }
 
+    @Test
+    public void testPackageWithComponents_cachedMetadataIsLazy() throws Exception {
+        Package p = parsePackage(
+                "install_complete_package_info.apk", R.raw.install_complete_package_info,
+                pkg -> PackageParser.fromCacheEntryStatic(PackageParser.toCacheEntryStatic(pkg)));
+
+        // Meta-data stays parcelled until it is first read.
+        assertTrue(p.mAppMetaData.isParcelled());
+        assertTrue(p.activities.get(0).metaData.isParcelled());
+        assertTrue(p.services.get(0).metaData.isParcelled());
+        assertMetadata(p.activities.get(0).metaData,
+                "key1", "value1",
+                "key2", "this_is_activity");
+        assertFalse(p.activities.get(0).metaData.isParcelled());
+        assertTrue(p.services.get(0).metaData.isParcelled());
+    }
+
     private void checkPackageWithComponents(
             Function<Package, Package> converter) throws Exception {
         Package p = parsePackage(
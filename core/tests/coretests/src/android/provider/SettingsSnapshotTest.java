@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Parcel;
+import android.os.SharedMemory;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unit tests for {@link SettingsSnapshot}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SettingsSnapshotTest {
+
+    @Test
+    public void testLookup() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("wifi_on", "1");
+        values.put("airplane_mode_on", "0");
+        values.put("null_value", null);
+        values.put("empty_value", "");
+        values.put("unicode", "été 日本");
+
+        try (SettingsSnapshot snapshot = SettingsSnapshot.map(
+                SettingsSnapshot.create("test", 42, values))) {
+            assertEquals(42, snapshot.getGeneration());
+            assertEquals(values.size(), snapshot.size());
+            for (int i = 0; i < values.size(); i++) {
+                final int index = snapshot.indexOf(values.keyAt(i));
+                assertTrue(values.keyAt(i), index >= 0);
+                assertEquals(values.keyAt(i), snapshot.nameAt(index));
+                assertEquals(values.valueAt(i), snapshot.valueAt(index));
+            }
+            assertTrue(snapshot.indexOf("missing") < 0);
+            assertTrue(snapshot.indexOf("") < 0);
+            assertTrue(snapshot.indexOf("zzz") < 0);
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        try (SettingsSnapshot snapshot = SettingsSnapshot.map(
+                SettingsSnapshot.create("test", 1, new ArrayMap<>()))) {
+            assertEquals(0, snapshot.size());
+            assertTrue(snapshot.indexOf("wifi_on") < 0);
+        }
+    }
+
+    @Test
+    public void testSealedAndParcelable() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("wifi_on", "1");
+        final SharedMemory memory = SettingsSnapshot.create("test", 7, values);
+
+        // The region can't be written to once created.
+        try {
+            memory.mapReadWrite();
+            fail("Snapshot region is writable");
+        } catch (Exception expected) {
+        }
+
+        final Parcel p = Parcel.obtain();
+        try {
+            memory.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            try (SettingsSnapshot snapshot = SettingsSnapshot.map(
+                    SharedMemory.CREATOR.createFromParcel(p))) {
+                assertEquals(7, snapshot.getGeneration());
+                assertEquals("1", snapshot.valueAt(snapshot.indexOf("wifi_on")));
+            }
+        } finally {
+            p.recycle();
+            memory.close();
+        }
+    }
+
+    @Test
+    public void testDupOutlivesOriginal() throws Exception {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("wifi_on", "1");
+        final SharedMemory memory = SettingsSnapshot.create("test", 3, values);
+        final SharedMemory first = SettingsSnapshot.dup(memory);
+        final SharedMemory second = SettingsSnapshot.dup(memory);
+
+        // Closing one copy leaves the others usable.
+        SettingsSnapshot.map(first).close();
+        memory.close();
+        try (SettingsSnapshot snapshot = SettingsSnapshot.map(second)) {
+            assertEquals(3, snapshot.getGeneration());
+            assertEquals("1", snapshot.valueAt(snapshot.indexOf("wifi_on")));
+        }
+    }
+
+    @Test
+    public void testRejectsOtherRegions() throws Exception {
+        final SharedMemory memory = SharedMemory.create("test", 64);
+        final ByteBuffer buffer = memory.mapReadWrite();
+        buffer.putInt(0x12345678);
+        SharedMemory.unmap(buffer);
+        try {
+            SettingsSnapshot.map(memory);
+            fail("Mapped a region that isn't a snapshot");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package android.os;
 
+import java.io.PrintWriter;
 
 /**
  * A representation of the abstract class that a camera interposer in the plugin
@@ -31,4 +32,40 @@ public abstract class PluginCameraInterposer extends Binder
     public final IBinder asBinder() {
         return null;
     }
+
+    /**
+     * Returns the number of frames of the shared memory ring used to hand the
+     * frames of a stream to this plugin, or 0 to receive each frame through
+     * {@link #onFrameAvailable} on the thread that delivers it from the camera.
+     */
+    public int getFrameRingSize(String packageName, int streamId) {
+        return 0;
+    }
+
+    /**
+     * Returns whether frames that arrive while every slot of the ring is still
+     * in use should be delivered to the app unmodified instead of dropped.
+     */
+    public boolean shouldPassThroughWhenBehind(String packageName, int streamId) {
+        return false;
+    }
+
+    /**
+     * Called once per stream when its frame ring is allocated, before any
+     * frame is delivered through {@link #onFramesAvailable}.
+     */
+    public void onFrameRingCreated(String packageName, int streamId, SharedMemory ring,
+            int slotCount, int slotSize) {
+    }
+
+    /**
+     * Called on the stream's consumer thread with every frame of the ring that
+     * is ready, oldest first.
+     */
+    public void onFramesAvailable(String packageName, int streamId, int width, int height,
+            int format, int[] strides, long[] framePtrs, int[] offsets, int count) {
+    }
+
+    public final void dumpFrameStats(PrintWriter pw, String prefix) {
+    }
 }
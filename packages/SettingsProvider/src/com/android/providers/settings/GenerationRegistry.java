@@ -91,6 +91,26 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * Returns the current generation for the given key, or -1 if it can't be tracked.
+     */
+    public int getGeneration(int key) {
+        synchronized (mLock) {
+            MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return -1;
+            }
+            try {
+                final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
+                return (index >= 0) ? backingStore.get(index) : -1;
+            } catch (IOException e) {
+                Slog.e(LOG_TAG, "Error getting generation id", e);
+                destroyBackingStore();
+                return -1;
+            }
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
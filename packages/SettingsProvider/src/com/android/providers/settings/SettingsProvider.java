@@ -55,11 +55,14 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SELinux;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.UserManagerInternal;
 import android.provider.Settings;
 import android.provider.Settings.Global;
+import android.provider.SettingsSnapshot;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -338,17 +341,23 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(setting, isTrackingGeneration(args),
+                        isRequestingSnapshot(args, SETTINGS_TYPE_GLOBAL, requestingUserId),
+                        SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
                 Setting setting = getSecureSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(setting, isTrackingGeneration(args),
+                        isRequestingSnapshot(args, SETTINGS_TYPE_SECURE, requestingUserId),
+                        SETTINGS_TYPE_SECURE, requestingUserId);
             }
 
             case Settings.CALL_METHOD_GET_SYSTEM: {
                 Setting setting = getSystemSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(setting, isTrackingGeneration(args),
+                        isRequestingSnapshot(args, SETTINGS_TYPE_SYSTEM, requestingUserId),
+                        SETTINGS_TYPE_SYSTEM, requestingUserId);
             }
 
             case Settings.CALL_METHOD_PUT_GLOBAL: {
@@ -686,6 +695,7 @@ public class SettingsProvider extends ContentProvider {
             if (globalSettings != null) {
                 dumpSettingsLocked(globalSettings, pw);
                 pw.println();
+                globalSettings.dumpPersistenceStats(pw);
                 globalSettings.dumpHistoricalOperations(pw);
             }
         }
@@ -696,6 +706,7 @@ public class SettingsProvider extends ContentProvider {
         if (secureSettings != null) {
             dumpSettingsLocked(secureSettings, pw);
             pw.println();
+            secureSettings.dumpPersistenceStats(pw);
             secureSettings.dumpHistoricalOperations(pw);
         }
 
@@ -705,6 +716,7 @@ public class SettingsProvider extends ContentProvider {
         if (systemSettings != null) {
             dumpSettingsLocked(systemSettings, pw);
             pw.println();
+            systemSettings.dumpPersistenceStats(pw);
             systemSettings.dumpHistoricalOperations(pw);
         }
     }
@@ -1892,8 +1904,8 @@ public class SettingsProvider extends ContentProvider {
     }
 
     private Bundle packageValueForCallResult(Setting setting,
-            boolean trackingGeneration) {
-        if (!trackingGeneration) {
+            boolean trackingGeneration, boolean sendingSnapshot, int type, int userId) {
+        if (!trackingGeneration && !sendingSnapshot) {
             if (setting == null || setting.isNull()) {
                 return NULL_SETTING_BUNDLE;
             }
@@ -1903,7 +1915,14 @@ public class SettingsProvider extends ContentProvider {
         result.putString(Settings.NameValueTable.VALUE,
                 !setting.isNull() ? setting.getValue() : null);
 
-        mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        if (trackingGeneration) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        }
+        if (sendingSnapshot) {
+            synchronized (mLock) {
+                mSettingsRegistry.addSnapshotDataLocked(result, type, userId);
+            }
+        }
         return result;
     }
 
@@ -1917,6 +1936,32 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    /**
+     * Returns whether the caller asked for a snapshot of the table and reads it without any
+     * per-caller filtering, so that it can be given the same snapshot as everyone else.
+     */
+    private boolean isRequestingSnapshot(Bundle args, int type, int requestingUserId) {
+        if (args == null || !args.containsKey(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY)) {
+            return false;
+        }
+        // Instant apps may only read some of the settings.
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return false;
+        }
+        if (type == SETTINGS_TYPE_GLOBAL) {
+            return true;
+        }
+        // Profiles read some of their settings from the parent, so their own tables don't
+        // hold what they see.
+        if (requestingUserId != UserHandle.getCallingUserId()) {
+            return false;
+        }
+        synchronized (mLock) {
+            return getGroupParentLocked(requestingUserId) == requestingUserId;
+        }
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2138,6 +2183,9 @@ public class SettingsProvider extends ContentProvider {
 
         private GenerationRegistry mGenerationRegistry;
 
+        // Snapshots shared with clients, dropped whenever their table changes.
+        private final SparseArray<SharedMemory> mSnapshots = new SparseArray<>();
+
         private final Handler mHandler;
 
         private final BackupManager mBackupManager;
@@ -2392,6 +2440,8 @@ public class SettingsProvider extends ContentProvider {
 
             // Nuke generation tracking data
             mGenerationRegistry.onUserRemoved(userId);
+            removeSnapshotLocked(systemKey);
+            removeSnapshotLocked(secureKey);
         }
 
         public boolean insertSettingLocked(int type, int userId, String name, String value,
@@ -2459,6 +2509,55 @@ public class SettingsProvider extends ContentProvider {
             return success;
         }
 
+        public void addSnapshotDataLocked(Bundle bundle, int type, int userId) {
+            final int key = makeKey(type, userId);
+            SharedMemory snapshot = mSnapshots.get(key);
+            if (snapshot == null) {
+                snapshot = createSnapshotLocked(key);
+                if (snapshot == null) {
+                    return;
+                }
+                mSnapshots.put(key, snapshot);
+            }
+            // Each caller gets its own copy: in-process callers are handed the object
+            // itself, and they close it when they are done with it.
+            bundle.putParcelable(Settings.CALL_METHOD_TRACK_SNAPSHOT_KEY,
+                    SettingsSnapshot.dup(snapshot));
+        }
+
+        private void removeSnapshotLocked(int key) {
+            final SharedMemory snapshot = mSnapshots.get(key);
+            if (snapshot != null) {
+                mSnapshots.remove(key);
+                snapshot.close();
+            }
+        }
+
+        private SharedMemory createSnapshotLocked(int key) {
+            final SettingsState settingsState = peekSettingsStateLocked(key);
+            final int generation = mGenerationRegistry.getGeneration(key);
+            if (settingsState == null || generation < 0) {
+                return null;
+            }
+            final boolean isSecure = isSecureSettingsKey(key);
+            final List<String> names = settingsState.getSettingNamesLocked();
+            final ArrayMap<String, String> values = new ArrayMap<>(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                final String name = names.get(i);
+                if (isSecure && Settings.isSnapshotExcludedSecureSetting(name)) {
+                    continue;
+                }
+                values.put(name, settingsState.getSettingLocked(name).getValue());
+            }
+            try {
+                return SettingsSnapshot.create("settings-snapshot-" + getTypeFromKey(key)
+                        + "-" + getUserIdFromKey(key), generation, values);
+            } catch (ErrnoException e) {
+                Slog.e(LOG_TAG, "Error creating snapshot for " + keyToString(key), e);
+                return null;
+            }
+        }
+
         public Setting getSettingLocked(int type, int userId, String name) {
             final int key = makeKey(type, userId);
 
@@ -2763,6 +2862,7 @@ public class SettingsProvider extends ContentProvider {
             Uri uri = getNotificationUriFor(key, name);
 
             mGenerationRegistry.incrementGeneration(key);
+            removeSnapshotLocked(key);
 
             mHandler.obtainMessage(MyHandler.MSG_NOTIFY_URI_CHANGED,
                     userId, 0, uri).sendToTarget();
@@ -2790,6 +2890,7 @@ public class SettingsProvider extends ContentProvider {
                                 profileId, 0, uri).sendToTarget();
                         final int key = makeKey(type, profileId);
                         mGenerationRegistry.incrementGeneration(key);
+                        removeSnapshotLocked(key);
 
                         mHandler.obtainMessage(MyHandler.MSG_NOTIFY_DATA_CHANGED).sendToTarget();
                     }
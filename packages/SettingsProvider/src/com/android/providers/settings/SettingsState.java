@@ -27,6 +27,7 @@ import android.content.pm.PackageManagerInternal;
 import android.content.pm.Signature;
 import android.os.Binder;
 import android.os.Build;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -37,6 +38,7 @@ import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -55,6 +57,12 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -65,11 +73,20 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * This class contains the state for one type of settings. It is responsible
- * for saving the state asynchronously to an XML file after a mutation and
- * loading the from an XML file on construction.
+ * for saving the state asynchronously after a mutation and loading it on
+ * construction.
+ * <p>
+ * The state is kept in a binary snapshot plus a log of the settings changed
+ * since the snapshot was written. Mutations are appended to the log; once it
+ * outgrows the snapshot, the snapshot is rewritten and the log started over.
+ * Each snapshot is also written as XML, which older builds can read and which
+ * carries the generation of the binary snapshot. If the generations don't
+ * match, e.g. because an older build rewrote the XML, the XML is read instead.
+ * </p>
  * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
@@ -103,6 +120,7 @@ final class SettingsState {
     private static final String ATTR_TAG_BASE64 = "tagBase64";
 
     private static final String ATTR_VERSION = "version";
+    private static final String ATTR_GENERATION = "generation";
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
@@ -135,6 +153,34 @@ final class SettingsState {
 
     private static final String NULL_VALUE = "null";
 
+    private static final String XML_SUFFIX = ".xml";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String LOG_SUFFIX = ".log";
+
+    private static final int SNAPSHOT_MAGIC = 0x53535342; // "SSSB"
+    private static final int LOG_MAGIC = 0x5353534c; // "SSSL"
+    private static final int PERSIST_FORMAT_VERSION = 1;
+
+    private static final int LOG_OP_PUT = 1;
+    private static final int LOG_OP_DELETE = 2;
+
+    /** Size of the length and CRC32 preceding each log record. */
+    private static final int LOG_RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+
+    /** The log is never compacted before it reaches this size. */
+    private static final long MIN_LOG_BYTES_TO_COMPACT = 32 * 1024;
+
+    private static final String READ_FORMAT_NONE = "none";
+    private static final String READ_FORMAT_XML = "xml";
+    private static final String READ_FORMAT_BINARY = "binary";
+
+    private static final int STRING_NULL = 0;
+    private static final int STRING_UTF = 1;
+    private static final int STRING_UTF16 = 2;
+
+    /** Longest string that always fits {@link DataOutputStream#writeUTF}. */
+    private static final int MAX_UTF_STRING_LENGTH = 65535 / 3;
+
     private static final Object sLock = new Object();
 
     @GuardedBy("sLock")
@@ -164,6 +210,10 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final File mStatePersistFile;
 
+    private final File mSnapshotFile;
+
+    private final File mLogFile;
+
     private final Setting mNullSetting = new Setting(null, null, false, null, null) {
         @Override
         public boolean isNull() {
@@ -195,6 +245,55 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    /** Names of the settings changed since the last write. */
+    @GuardedBy("mLock")
+    private final ArraySet<String> mPendingChanges = new ArraySet<>();
+
+    /** Whether the next write has to be a full snapshot. */
+    @GuardedBy("mLock")
+    private boolean mNeedCompaction;
+
+    @GuardedBy("mLock")
+    private String mReadFormat;
+
+    @GuardedBy("mLock")
+    private long mReadTimeMillis;
+
+    @GuardedBy("mLock")
+    private int mLogRecordsReplayed;
+
+    /** Writes taken under mLock, in order, waiting for the writer. */
+    @GuardedBy("mPendingWrites")
+    private final ArrayList<PendingWrite> mPendingWrites = new ArrayList<>();
+
+    /**
+     * Generation of the snapshot on disk. The log records the generation it was
+     * started against, and is only replayed on top of that snapshot. This and the
+     * sizes below are only touched by the reader in the constructor and by the
+     * writer afterwards; the sizes are also read to decide when to compact.
+     */
+    @GuardedBy("mWriteLock")
+    private long mGeneration;
+
+    private volatile long mSnapshotBytes;
+
+    private volatile long mLogBytes;
+
+    /** Set by the writer when a write failed, so the next one is a full snapshot. */
+    private volatile boolean mWriteFailed;
+
+    @GuardedBy("mWriteLock")
+    private long mBytesWritten;
+
+    @GuardedBy("mWriteLock")
+    private long mMutationsWritten;
+
+    @GuardedBy("mWriteLock")
+    private int mLogAppends;
+
+    @GuardedBy("mWriteLock")
+    private int mCompactions;
+
     public SettingsState(Context context, Object lock, File file, int key,
             int maxBytesPerAppPackage, Looper looper) {
         // It is important that we use the same lock as the settings provider
@@ -203,6 +302,8 @@ final class SettingsState {
         mContext = context;
         mLock = lock;
         mStatePersistFile = file;
+        mSnapshotFile = getSiblingFile(file, SNAPSHOT_SUFFIX);
+        mLogFile = getSiblingFile(file, LOG_SUFFIX);
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -237,6 +338,8 @@ final class SettingsState {
         }
         mVersion = version;
 
+        // The version is only stored in the snapshot.
+        mNeedCompaction = true;
         scheduleWriteIfNeededLocked();
     }
 
@@ -255,6 +358,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mPendingChanges.add(name);
                 removedSomething = true;
             }
         }
@@ -309,6 +413,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
+            mPendingChanges.add(name);
             scheduleWriteIfNeededLocked();
         }
     }
@@ -340,6 +445,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
+        mPendingChanges.add(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -364,6 +470,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
+        mPendingChanges.add(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -393,6 +500,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
+        mPendingChanges.add(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -492,6 +600,44 @@ final class SettingsState {
         }
     }
 
+    public void dumpPersistenceStats(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Persistence");
+            pw.print("  read ");
+            pw.print(mReadFormat);
+            pw.print(" in ");
+            pw.print(mReadTimeMillis);
+            pw.print("ms, ");
+            pw.print(mLogRecordsReplayed);
+            pw.println(" log records replayed");
+        }
+        synchronized (mWriteLock) {
+            pw.print("  generation ");
+            pw.print(mGeneration);
+            pw.print(", snapshot ");
+            pw.print(mSnapshotBytes);
+            pw.print(" bytes, log ");
+            pw.print(mLogBytes);
+            pw.println(" bytes");
+            pw.print("  ");
+            pw.print(mLogAppends);
+            pw.print(" log appends, ");
+            pw.print(mCompactions);
+            pw.print(" compactions, ");
+            pw.print(mBytesWritten);
+            pw.print(" bytes written for ");
+            pw.print(mMutationsWritten);
+            pw.print(" mutations");
+            if (mMutationsWritten > 0) {
+                pw.print(" (");
+                pw.print(mBytesWritten / mMutationsWritten);
+                pw.print(" bytes/mutation)");
+            }
+            pw.println();
+        }
+        pw.println();
+    }
+
     private void updateMemoryUsagePerPackageLocked(String packageName, String oldValue,
             String newValue, String oldDefaultValue, String newDefaultValue) {
         if (mMaxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_UNLIMITED) {
@@ -570,62 +716,62 @@ final class SettingsState {
 
     private void doWriteState() {
         boolean wroteState = false;
-        final int version;
-        final ArrayMap<String, Setting> settings;
+        boolean changesSkipped = false;
 
         synchronized (mLock) {
-            version = mVersion;
-            settings = new ArrayMap<>(mSettings);
+            final boolean compact = mNeedCompaction || mWriteFailed
+                    || mLogBytes >= Math.max(mSnapshotBytes, MIN_LOG_BYTES_TO_COMPACT);
+            final ArrayMap<String, Setting> settings;
+            if (compact) {
+                settings = new ArrayMap<>(mSettings);
+                mNeedCompaction = false;
+            } else {
+                // Copy the changed settings, a null value meaning the setting was deleted.
+                final int changeCount = mPendingChanges.size();
+                settings = new ArrayMap<>(changeCount);
+                for (int i = 0; i < changeCount; i++) {
+                    final String name = mPendingChanges.valueAt(i);
+                    final Setting setting = mSettings.get(name);
+                    settings.put(name, (setting != null) ? new Setting(setting) : null);
+                }
+            }
+            final PendingWrite write = new PendingWrite(mVersion, compact, settings,
+                    mPendingChanges.size());
+            mPendingChanges.clear();
             mDirty = false;
             mWriteScheduled = false;
+
+            // Queue the write so concurrent writers write out the changes in order.
+            synchronized (mPendingWrites) {
+                mPendingWrites.add(write);
+            }
         }
 
         synchronized (mWriteLock) {
-            if (DEBUG_PERSISTENCE) {
-                Slog.i(LOG_TAG, "[PERSIST START]");
+            final ArrayList<PendingWrite> writes;
+            synchronized (mPendingWrites) {
+                writes = new ArrayList<>(mPendingWrites);
+                mPendingWrites.clear();
             }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile);
-            FileOutputStream out = null;
-            try {
-                out = destination.startWrite();
-
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem());
-
-                    if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
-                    }
+            for (int i = 0; i < writes.size(); i++) {
+                final PendingWrite write = writes.get(i);
+                if (write.compact) {
+                    wroteState |= writeSnapshotLocked(write);
+                } else if (appendToLogLocked(write)) {
+                    wroteState = true;
+                } else if (mWriteFailed) {
+                    changesSkipped = true;
                 }
+            }
+        }
 
-                serializer.endTag(null, TAG_SETTINGS);
-                serializer.endDocument();
-                destination.finishWrite(out);
-
-                wroteState = true;
-
-                if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSIST END]");
-                }
-            } catch (Throwable t) {
-                Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
-                destination.failWrite(out);
-            } finally {
-                IoUtils.closeQuietly(out);
+        if (changesSkipped) {
+            // The changes that didn't make it into the log only get to disk with the next
+            // snapshot. mLock can't be taken under mWriteLock, so schedule it from here.
+            synchronized (mLock) {
+                mNeedCompaction = true;
+                scheduleWriteIfNeededLocked();
             }
         }
 
@@ -636,6 +782,236 @@ final class SettingsState {
         }
     }
 
+    /**
+     * Writes a full snapshot with the next generation, first as XML, then in the binary
+     * format, and starts the log over. Should the binary snapshot not get written, its
+     * generation won't match the XML's and the XML is read instead. The caller must hold
+     * mWriteLock.
+     */
+    private boolean writeSnapshotLocked(PendingWrite write) {
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[PERSIST START]");
+        }
+
+        final long generation = mGeneration + 1;
+        final AtomicFile xmlFile = new AtomicFile(mStatePersistFile);
+        final AtomicFile snapshotFile = new AtomicFile(mSnapshotFile);
+        AtomicFile destination = xmlFile;
+        FileOutputStream out = null;
+        try {
+            out = xmlFile.startWrite();
+            writeXmlSnapshot(out, write.version, generation, write.settings);
+            xmlFile.finishWrite(out);
+            out = null;
+
+            destination = snapshotFile;
+            out = snapshotFile.startWrite();
+            writeBinarySnapshot(out, write.version, generation, write.settings);
+            snapshotFile.finishWrite(out);
+            out = null;
+
+            // The log belongs to the previous generation.
+            mGeneration = generation;
+            mSnapshotBytes = snapshotFile.getBaseFile().length();
+            mLogFile.delete();
+            mLogBytes = 0;
+            mWriteFailed = false;
+
+            mCompactions++;
+            mMutationsWritten += write.mutations;
+            mBytesWritten += xmlFile.getBaseFile().length() + mSnapshotBytes;
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST END]");
+            }
+            return true;
+        } catch (Throwable t) {
+            Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+            destination.failWrite(out);
+            mWriteFailed = true;
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    private void writeXmlSnapshot(FileOutputStream out, int version, long generation,
+            ArrayMap<String, Setting> settings) throws IOException {
+        XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                true);
+        serializer.startDocument(null, true);
+        serializer.startTag(null, TAG_SETTINGS);
+        serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
+        serializer.attribute(null, ATTR_GENERATION, String.valueOf(generation));
+
+        final int settingCount = settings.size();
+        for (int i = 0; i < settingCount; i++) {
+            Setting setting = settings.valueAt(i);
+
+            writeSingleSetting(version, serializer, setting.getId(), setting.getName(),
+                    setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
+                    setting.getTag(), setting.isDefaultFromSystem());
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                        + setting.getValue());
+            }
+        }
+
+        serializer.endTag(null, TAG_SETTINGS);
+        serializer.endDocument();
+    }
+
+    /**
+     * Writes the snapshot magic, format version, generation, settings version and
+     * setting count, followed by the settings.
+     */
+    private static void writeBinarySnapshot(FileOutputStream out, int version, long generation,
+            ArrayMap<String, Setting> settings) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(PERSIST_FORMAT_VERSION);
+        data.writeLong(generation);
+        data.writeInt(version);
+        final int settingCount = settings.size();
+        data.writeInt(settingCount);
+        for (int i = 0; i < settingCount; i++) {
+            writeSetting(data, settings.valueAt(i));
+        }
+        data.flush();
+    }
+
+    /**
+     * Appends the changed settings to the log. Each record is its length, the CRC32 of
+     * its payload and the payload: the op, followed by the setting for puts or by its
+     * name for deletes. A new log starts with its magic, format version and the
+     * generation of the snapshot it applies to. The caller must hold mWriteLock.
+     */
+    private boolean appendToLogLocked(PendingWrite write) {
+        if (write.settings.isEmpty() || mWriteFailed) {
+            // After a failed write the log may end in a partial record, so leave the
+            // changes to the snapshot that doWriteState() schedules.
+            return false;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            final boolean newLog = (mLogBytes == 0);
+            if (newLog) {
+                out.writeInt(LOG_MAGIC);
+                out.writeInt(PERSIST_FORMAT_VERSION);
+                out.writeLong(mGeneration);
+            }
+
+            final ByteArrayOutputStream record = new ByteArrayOutputStream();
+            final DataOutputStream recordOut = new DataOutputStream(record);
+            final CRC32 crc = new CRC32();
+            final int changeCount = write.settings.size();
+            for (int i = 0; i < changeCount; i++) {
+                record.reset();
+                final Setting setting = write.settings.valueAt(i);
+                if (setting != null) {
+                    recordOut.writeByte(LOG_OP_PUT);
+                    writeSetting(recordOut, setting);
+                } else {
+                    recordOut.writeByte(LOG_OP_DELETE);
+                    writeString(recordOut, write.settings.keyAt(i));
+                }
+                recordOut.flush();
+                final byte[] payload = record.toByteArray();
+                crc.reset();
+                crc.update(payload);
+                out.writeInt(payload.length);
+                out.writeLong(crc.getValue());
+                out.write(payload);
+            }
+            out.flush();
+
+            final byte[] data = bytes.toByteArray();
+            try (FileOutputStream fos = new FileOutputStream(mLogFile, !newLog)) {
+                fos.write(data);
+                FileUtils.sync(fos);
+            }
+            mLogBytes += data.length;
+
+            mLogAppends++;
+            mMutationsWritten += write.mutations;
+            mBytesWritten += data.length;
+            return true;
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed to append to settings log " + mLogFile
+                    + ", writing a snapshot next time", e);
+            mWriteFailed = true;
+            return false;
+        }
+    }
+
+    private static void writeSetting(DataOutputStream out, Setting setting) throws IOException {
+        writeString(out, setting.getId());
+        writeString(out, setting.getName());
+        writeString(out, setting.getValue());
+        writeString(out, setting.getDefaultValue());
+        writeString(out, setting.getPackageName());
+        writeString(out, setting.getTag());
+        out.writeBoolean(setting.isDefaultFromSystem());
+    }
+
+    private Setting readSetting(DataInputStream in) throws IOException {
+        final String id = readString(in);
+        final String name = readString(in);
+        final String value = readString(in);
+        final String defaultValue = readString(in);
+        final String packageName = readString(in);
+        final String tag = readString(in);
+        final boolean fromSystem = in.readBoolean();
+        if (id == null || name == null) {
+            throw new IOException("Setting without id or name");
+        }
+        return new Setting(name, value, defaultValue, packageName, tag, fromSystem, id);
+    }
+
+    /**
+     * Writes a string as modified UTF-8 if short enough, or as UTF-16 otherwise. Unlike
+     * the XML, both keep broken surrogate pairs and control characters as they are.
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeByte(STRING_NULL);
+        } else if (s.length() <= MAX_UTF_STRING_LENGTH) {
+            out.writeByte(STRING_UTF);
+            out.writeUTF(s);
+        } else {
+            out.writeByte(STRING_UTF16);
+            out.writeInt(s.length());
+            out.writeChars(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int encoding = in.readByte();
+        switch (encoding) {
+            case STRING_NULL:
+                return null;
+            case STRING_UTF:
+                return in.readUTF();
+            case STRING_UTF16: {
+                final int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Bad string length " + length);
+                }
+                final char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = in.readChar();
+                }
+                return new String(chars);
+            }
+            default:
+                throw new IOException("Unknown string encoding " + encoding);
+        }
+    }
+
     static void writeSingleSetting(int version, XmlSerializer serializer, String id,
             String name, String value, String defaultValue, String packageName,
             String tag, boolean defaultSysSet) throws IOException {
@@ -704,18 +1080,61 @@ final class SettingsState {
     }
 
     private void readStateSyncLocked() {
+        final long startTime = SystemClock.uptimeMillis();
+        try {
+            readStateFilesLocked();
+        } finally {
+            mReadTimeMillis = SystemClock.uptimeMillis() - startTime;
+        }
+        if (!READ_FORMAT_BINARY.equals(mReadFormat)) {
+            // Whatever binary snapshot and log there are don't belong to the XML.
+            mSnapshotFile.delete();
+            mLogFile.delete();
+        }
+        if (mNeedCompaction && !READ_FORMAT_NONE.equals(mReadFormat)) {
+            // Convert an XML file to the binary format right away, so the next boot reads
+            // that. A log with a torn tail is folded into a new snapshot, so that
+            // no change is appended after the tail and lost at the next read.
+            scheduleWriteIfNeededLocked();
+        }
+    }
+
+    private void readStateFilesLocked() {
         FileInputStream in;
         try {
             in = new AtomicFile(mStatePersistFile).openRead();
         } catch (FileNotFoundException fnfe) {
             Slog.i(LOG_TAG, "No settings state " + mStatePersistFile);
             addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
+            mReadFormat = READ_FORMAT_NONE;
+            mNeedCompaction = true;
             return;
         }
         try {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(in, StandardCharsets.UTF_8.name());
-            parseStateLocked(parser);
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG
+                    && type != XmlPullParser.END_DOCUMENT) {
+                // Skip to the root tag.
+            }
+            if (type != XmlPullParser.START_TAG || !TAG_SETTINGS.equals(parser.getName())) {
+                mReadFormat = READ_FORMAT_NONE;
+                mNeedCompaction = true;
+                return;
+            }
+            // The XML only carries the generation of the binary snapshot written along with
+            // it. Files written before there was a binary snapshot, or by an older build
+            // after one, don't, and are read and converted instead.
+            final long generation = parseGeneration(
+                    parser.getAttributeValue(null, ATTR_GENERATION));
+            if (generation > 0 && readBinaryStateLocked(generation)) {
+                mReadFormat = READ_FORMAT_BINARY;
+                return;
+            }
+            parseSettingsLocked(parser);
+            mReadFormat = READ_FORMAT_XML;
+            mNeedCompaction = true;
         } catch (XmlPullParserException | IOException e) {
             String message = "Failed parsing settings file: " + mStatePersistFile;
             Slog.wtf(LOG_TAG, message);
@@ -725,33 +1144,170 @@ final class SettingsState {
         }
     }
 
+    private static long parseGeneration(String generation) {
+        if (generation == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(generation);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
-     * Uses AtomicFile to check if the file or its backup exists.
-     * @param file The file to check for existence
-     * @return whether the original or backup exist
+     * Reads the binary snapshot with the given generation and replays the log on top of
+     * it. Returns false, leaving no settings behind, if there is no such snapshot.
      */
-    public static boolean stateFileExists(File file) {
-        AtomicFile stateFile = new AtomicFile(file);
-        return stateFile.exists();
+    private boolean readBinaryStateLocked(long generation) {
+        final AtomicFile snapshotFile = new AtomicFile(mSnapshotFile);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(snapshotFile.openRead()))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != PERSIST_FORMAT_VERSION
+                    || in.readLong() != generation) {
+                Slog.w(LOG_TAG, "Settings snapshot " + mSnapshotFile + " is out of date");
+                return false;
+            }
+            final int version = in.readInt();
+            final int settingCount = in.readInt();
+            for (int i = 0; i < settingCount; i++) {
+                final Setting setting = readSetting(in);
+                mSettings.put(setting.getName(), setting);
+
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[RESTORED] " + setting.getName() + "="
+                            + setting.getValue());
+                }
+            }
+            mVersion = version;
+        } catch (FileNotFoundException e) {
+            Slog.w(LOG_TAG, "No settings snapshot " + mSnapshotFile);
+            return false;
+        } catch (IOException | NumberFormatException e) {
+            Slog.w(LOG_TAG, "Failed reading settings snapshot " + mSnapshotFile, e);
+            mSettings.clear();
+            return false;
+        }
+
+        synchronized (mWriteLock) {
+            mGeneration = generation;
+        }
+        mSnapshotBytes = snapshotFile.getBaseFile().length();
+        replayLogLocked(generation);
+        return true;
     }
 
-    private void parseStateLocked(XmlPullParser parser)
-            throws IOException, XmlPullParserException {
-        final int outerDepth = parser.getDepth();
-        int type;
-        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
-                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                continue;
+    /**
+     * Applies the log records up to the first torn or corrupt one. If the log can't be
+     * appended to afterwards, the next write is a full snapshot.
+     */
+    private void replayLogLocked(long generation) {
+        final byte[] log;
+        try {
+            log = readFile(mLogFile);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed reading settings log " + mLogFile, e);
+            mNeedCompaction = true;
+            return;
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(log));
+        long validBytes = 0;
+        try {
+            if (in.readInt() != LOG_MAGIC || in.readInt() != PERSIST_FORMAT_VERSION
+                    || in.readLong() != generation) {
+                // Left over from before the last snapshot.
+                mNeedCompaction = true;
+                return;
+            }
+            validBytes = Integer.BYTES * 2 + Long.BYTES;
+
+            final CRC32 crc = new CRC32();
+            while (validBytes < log.length) {
+                final int length = in.readInt();
+                final long checksum = in.readLong();
+                if (length < 0 || length > log.length - validBytes - LOG_RECORD_HEADER_BYTES) {
+                    throw new IOException("Torn log record");
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    throw new IOException("Corrupt log record");
+                }
+                applyLogRecordLocked(new DataInputStream(new ByteArrayInputStream(payload)));
+                validBytes += LOG_RECORD_HEADER_BYTES + length;
+                mLogRecordsReplayed++;
             }
+        } catch (IOException | NumberFormatException e) {
+            Slog.w(LOG_TAG, "Stopped replaying settings log " + mLogFile + " after "
+                    + mLogRecordsReplayed + " records", e);
+            mNeedCompaction = true;
+        }
+        mLogBytes = validBytes;
+    }
 
-            String tagName = parser.getName();
-            if (tagName.equals(TAG_SETTINGS)) {
-                parseSettingsLocked(parser);
+    private void applyLogRecordLocked(DataInputStream in) throws IOException {
+        final int op = in.readByte();
+        switch (op) {
+            case LOG_OP_PUT: {
+                final Setting setting = readSetting(in);
+                mSettings.put(setting.getName(), setting);
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[REPLAYED] " + setting.getName() + "="
+                            + setting.getValue());
+                }
+            }
+            break;
+            case LOG_OP_DELETE: {
+                final String name = readString(in);
+                mSettings.remove(name);
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[REPLAYED] delete " + name);
+                }
             }
+            break;
+            default:
+                throw new IOException("Unknown log op " + op);
         }
     }
 
+    private static byte[] readFile(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Returns the file next to the XML file with the given suffix instead of ".xml".
+     */
+    private static File getSiblingFile(File file, String suffix) {
+        String name = file.getName();
+        if (name.endsWith(XML_SUFFIX)) {
+            name = name.substring(0, name.length() - XML_SUFFIX.length());
+        }
+        return new File(file.getParentFile(), name + suffix);
+    }
+
+    /**
+     * Uses AtomicFile to check if the file or its backup exists.
+     * @param file The file to check for existence
+     * @return whether the original or backup exist
+     */
+    public static boolean stateFileExists(File file) {
+        AtomicFile stateFile = new AtomicFile(file);
+        return stateFile.exists();
+    }
+
     private void parseSettingsLocked(XmlPullParser parser)
             throws IOException, XmlPullParserException {
 
@@ -812,6 +1368,24 @@ final class SettingsState {
         }
     }
 
+    /** A write taken under mLock: either a full snapshot or the changed settings. */
+    private static final class PendingWrite {
+        final int version;
+        final boolean compact;
+        /** All settings for a snapshot, else the changed ones, null if deleted. */
+        final ArrayMap<String, Setting> settings;
+        /** Number of settings changed since the previous write. */
+        final int mutations;
+
+        PendingWrite(int version, boolean compact, ArrayMap<String, Setting> settings,
+                int mutations) {
+            this.version = version;
+            this.compact = compact;
+            this.settings = settings;
+            this.mutations = mutations;
+        }
+    }
+
     private class HistoricalOperation {
         final long mTimestamp;
         final String mOperation;
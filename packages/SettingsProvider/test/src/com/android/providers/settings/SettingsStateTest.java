@@ -182,4 +182,77 @@ public class SettingsStateTest extends AndroidTestCase {
             assertEquals("p2", s.getPackageName());
         }
     }
+
+    /**
+     * Make sure changes appended to the log after a snapshot are read back.
+     */
+    public void testReadWriteLog() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        deleteStateFiles(file);
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p1");
+            ssWriter.persistSyncLocked();
+
+            ssWriter.insertSettingLocked("k1", CRAZY_STRING, null, false, "p1");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k3", null, null, false, "p2");
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(new File(getContext().getCacheDir(), "setting.log").exists());
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(SettingsState.SETTINGS_VERSION_NEW_ENCODING,
+                    ssReader.getVersionLocked());
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertFalse(ssReader.getSettingLocked("k3").isNull());
+            assertEquals(null, ssReader.getSettingLocked("k3").getValue());
+        }
+    }
+
+    /**
+     * An XML file rewritten by an older build, without a generation, wins over the binary
+     * snapshot.
+     */
+    public void testDowngrade() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        deleteStateFiles(file);
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+
+        final PrintStream os = new PrintStream(new FileOutputStream(file));
+        os.print(
+                "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>" +
+                "<settings version=\"121\">" +
+                "  <setting id=\"5\" name=\"k1\" value=\"old\" package=\"p1\" />" +
+                "</settings>");
+        os.close();
+
+        final SettingsState ss = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("old", ss.getSettingLocked("k1").getValue());
+        }
+    }
+
+    private void deleteStateFiles(File file) {
+        file.delete();
+        new File(file.getParentFile(), "setting.bin").delete();
+        new File(file.getParentFile(), "setting.log").delete();
+    }
 }
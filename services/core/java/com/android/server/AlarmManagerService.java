@@ -158,6 +158,15 @@ class AlarmManagerService extends SystemService {
     long mAllowWhileIdleMinTime;
     int mNumTimeChanged;
 
+    // Rebatching statistics, to see how much work is done under mLock
+    int mNumRebatches;
+    int mNumFullRebatches;
+    long mTotalRebatchedAlarms;
+    int mLastRebatchedAlarms;
+    int mMaxRebatchedAlarms;
+    long mTotalRebatchTimeUs;
+    long mMaxRebatchTimeUs;
+
     // Bookkeeping about the identity of the "System UI" package, determined at runtime.
 
     /**
@@ -595,6 +604,35 @@ class AlarmManagerService extends SystemService {
             return false;
         }
 
+        boolean hasRtc() {
+            final int N = alarms.size();
+            for (int i = 0; i < N; i++) {
+                Alarm a = alarms.get(i);
+                if (a.type == RTC || a.type == RTC_WAKEUP) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Returns true if the batch holds the idle until alarm, or alarms that would be
+        // held back while idling.
+        boolean hasIdleDependentAlarms(Alarm idleUntil) {
+            if (idleUntil == null) {
+                return false;
+            }
+            final int N = alarms.size();
+            for (int i = 0; i < N; i++) {
+                Alarm a = alarms.get(i);
+                if (a == idleUntil || (a.flags&(AlarmManager.FLAG_ALLOW_WHILE_IDLE
+                        | AlarmManager.FLAG_ALLOW_WHILE_IDLE_UNRESTRICTED
+                        | AlarmManager.FLAG_WAKE_FROM_IDLE)) == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         boolean hasWakeups() {
             final int N = alarms.size();
             for (int i = 0; i < N; i++) {
@@ -623,17 +661,188 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    static class BatchTimeOrder implements Comparator<Batch> {
-        public int compare(Batch b1, Batch b2) {
-            long when1 = b1.start;
-            long when2 = b2.start;
-            if (when1 > when2) {
-                return 1;
+    /**
+     * The pending alarm batches, ordered by start time.  Batches are kept in a treap whose
+     * nodes also track their subtree size, so positional access works as it did on a plain
+     * list, and the latest end of any non-standalone batch in their subtree, so finding the
+     * first batch an alarm can join is O(log n) instead of a scan of every batch.
+     *
+     * The store depends on each batch's bounds: a batch must be taken out before it is
+     * modified, or right after and before the store is used again, and put back or rebatched
+     * afterwards.
+     */
+    static final class BatchStore {
+        private static final class Node {
+            final Batch batch;
+            final int priority;
+            Node left;
+            Node right;
+            int size;
+            // Latest end of any non-standalone batch in this subtree
+            long maxEnd;
+
+            Node(Batch batch, int priority) {
+                this.batch = batch;
+                this.priority = priority;
             }
-            if (when1 < when2) {
+        }
+
+        private final Random mRandom = new Random();
+        private Node mRoot;
+
+        int size() {
+            return size(mRoot);
+        }
+
+        Batch get(int index) {
+            Node node = mRoot;
+            while (node != null) {
+                final int leftSize = size(node.left);
+                if (index < leftSize) {
+                    node = node.left;
+                } else if (index > leftSize) {
+                    index -= leftSize + 1;
+                    node = node.right;
+                } else {
+                    return node.batch;
+                }
+            }
+            throw new IndexOutOfBoundsException();
+        }
+
+        /**
+         * Inserts the batch after any batches with the same start time, and returns the
+         * position it was inserted at.
+         */
+        int add(Batch batch) {
+            int index = 0;
+            Node node = mRoot;
+            while (node != null) {
+                if (batch.start < node.batch.start) {
+                    node = node.left;
+                } else {
+                    index += size(node.left) + 1;
+                    node = node.right;
+                }
+            }
+            final Node[] parts = split(mRoot, index);
+            final Node added = new Node(batch, mRandom.nextInt());
+            update(added);
+            mRoot = merge(merge(parts[0], added), parts[1]);
+            return index;
+        }
+
+        Batch remove(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException();
+            }
+            final Node[] head = split(mRoot, index);
+            final Node[] tail = split(head[1], 1);
+            mRoot = merge(head[0], tail[1]);
+            return tail[0].batch;
+        }
+
+        void clear() {
+            mRoot = null;
+        }
+
+        /** Appends the batches to the list in start time order. */
+        void addAllTo(ArrayList<Batch> out) {
+            addAllTo(mRoot, out);
+        }
+
+        /**
+         * Returns the position of the first batch, in start time order, that isn't standalone
+         * and overlaps [whenElapsed, maxWhen], or -1 if there is none.
+         */
+        int findCoalesceTarget(long whenElapsed, long maxWhen) {
+            return findCoalesceTarget(mRoot, whenElapsed, maxWhen, 0);
+        }
+
+        private int findCoalesceTarget(Node node, long whenElapsed, long maxWhen, int offset) {
+            if (node == null || node.maxEnd < whenElapsed) {
                 return -1;
             }
-            return 0;
+            final int found = findCoalesceTarget(node.left, whenElapsed, maxWhen, offset);
+            if (found >= 0) {
+                return found;
+            }
+            final Batch b = node.batch;
+            if (b.start > maxWhen) {
+                // So does everything to the right
+                return -1;
+            }
+            final int index = offset + size(node.left);
+            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
+                return index;
+            }
+            return findCoalesceTarget(node.right, whenElapsed, maxWhen, index + 1);
+        }
+
+        private static void addAllTo(Node node, ArrayList<Batch> out) {
+            while (node != null) {
+                addAllTo(node.left, out);
+                out.add(node.batch);
+                node = node.right;
+            }
+        }
+
+        private static int size(Node node) {
+            return node != null ? node.size : 0;
+        }
+
+        private static void update(Node node) {
+            node.size = 1 + size(node.left) + size(node.right);
+            long maxEnd = ((node.batch.flags&AlarmManager.FLAG_STANDALONE) == 0)
+                    ? node.batch.end : Long.MIN_VALUE;
+            if (node.left != null && node.left.maxEnd > maxEnd) {
+                maxEnd = node.left.maxEnd;
+            }
+            if (node.right != null && node.right.maxEnd > maxEnd) {
+                maxEnd = node.right.maxEnd;
+            }
+            node.maxEnd = maxEnd;
+        }
+
+        // Splits the tree into its first |count| nodes and the rest.
+        private static Node[] split(Node node, int count) {
+            final Node[] parts = new Node[2];
+            if (node == null) {
+                return parts;
+            }
+            final int leftSize = size(node.left);
+            if (count <= leftSize) {
+                final Node[] sub = split(node.left, count);
+                node.left = sub[1];
+                update(node);
+                parts[0] = sub[0];
+                parts[1] = node;
+            } else {
+                final Node[] sub = split(node.right, count - leftSize - 1);
+                node.right = sub[0];
+                update(node);
+                parts[0] = node;
+                parts[1] = sub[1];
+            }
+            return parts;
+        }
+
+        private static Node merge(Node left, Node right) {
+            if (left == null) {
+                return right;
+            }
+            if (right == null) {
+                return left;
+            }
+            if (left.priority > right.priority) {
+                left.right = merge(left.right, right);
+                update(left);
+                return left;
+            } else {
+                right.left = merge(left, right.left);
+                update(right);
+                return right;
+            }
         }
     }
 
@@ -702,8 +911,7 @@ class AlarmManagerService extends SystemService {
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
-    static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    final BatchStore mAlarmBatches = new BatchStore();
 
     // set to null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -740,47 +948,70 @@ class AlarmManagerService extends SystemService {
         return triggerAtTime + (long)(.75 * futurity);
     }
 
-    // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        list.add(index, newBatch);
-        return (index == 0);
-    }
-
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
-            }
-        }
-        return -1;
+        return mAlarmBatches.findCoalesceTarget(whenElapsed, maxWhen);
     }
 
-    // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
-    void rebatchAllAlarms() {
+    // The RTC clock has moved arbitrarily, so we need to recalculate the batching of
+    // every batch holding an RTC alarm.  Batches of only ELAPSED alarms are unaffected.
+    void rebatchRtcAlarms() {
         synchronized (mLock) {
-            rebatchAllAlarmsLocked(true);
+            ArrayList<Batch> changed = new ArrayList<>();
+            for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
+                Batch b = mAlarmBatches.get(i);
+                if (b.hasRtc()) {
+                    mAlarmBatches.remove(i);
+                    changed.add(b);
+                }
+            }
+            rebatchLocked(changed, true);
         }
     }
 
     void rebatchAllAlarmsLocked(boolean doValidate) {
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
+        ArrayList<Batch> oldSet = new ArrayList<>(mAlarmBatches.size());
+        mAlarmBatches.addAllTo(oldSet);
         mAlarmBatches.clear();
+        mNumFullRebatches++;
+        rebatchLocked(oldSet, doValidate);
+    }
+
+    /**
+     * Called when the idle state or the next wake from idle changes.  Only the alarms that
+     * can't run while idle, which are now held back, and the idle until alarm, whose time
+     * depends on the next wake from idle, have to move; their batches are rebatched and
+     * everything else stays where it is.
+     */
+    void rebatchIdleAlarmsLocked() {
+        ArrayList<Batch> changed = new ArrayList<>();
+        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
+            Batch b = mAlarmBatches.get(i);
+            if (b.hasIdleDependentAlarms(mPendingIdleUntil)) {
+                mAlarmBatches.remove(i);
+                changed.add(b);
+            }
+        }
+        rebatchLocked(changed, false);
+    }
+
+    /**
+     * Re-adds the alarms of batches that have been taken out of mAlarmBatches, letting them
+     * coalesce again with what is still scheduled.
+     */
+    void rebatchLocked(ArrayList<Batch> batches, boolean doValidate) {
+        final long startNanos = System.nanoTime();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
-        final int oldBatches = oldSet.size();
+        int numAlarms = 0;
+        final int oldBatches = batches.size();
         for (int batchNum = 0; batchNum < oldBatches; batchNum++) {
-            Batch batch = oldSet.get(batchNum);
+            Batch batch = batches.get(batchNum);
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
                 reAddAlarmLocked(batch.get(i), nowElapsed, doValidate);
             }
+            numAlarms += N;
         }
         if (oldPendingIdleUntil != null && oldPendingIdleUntil != mPendingIdleUntil) {
             Slog.wtf(TAG, "Rebatching: idle until changed from " + oldPendingIdleUntil
@@ -792,6 +1023,18 @@ class AlarmManagerService extends SystemService {
         }
         rescheduleKernelAlarmsLocked();
         updateNextAlarmClockLocked();
+
+        final long timeUs = (System.nanoTime() - startNanos) / 1000;
+        mNumRebatches++;
+        mTotalRebatchedAlarms += numAlarms;
+        mLastRebatchedAlarms = numAlarms;
+        if (numAlarms > mMaxRebatchedAlarms) {
+            mMaxRebatchedAlarms = numAlarms;
+        }
+        mTotalRebatchTimeUs += timeUs;
+        if (timeUs > mMaxRebatchTimeUs) {
+            mMaxRebatchTimeUs = timeUs;
+        }
     }
 
     void reAddAlarmLocked(Alarm a, long nowElapsed, boolean doValidate) {
@@ -1254,15 +1497,13 @@ class AlarmManagerService extends SystemService {
                 ? -1 : attemptCoalesceLocked(a.whenElapsed, a.maxWhenElapsed);
         if (whichBatch < 0) {
             Batch batch = new Batch(a);
-            addBatchLocked(mAlarmBatches, batch);
+            mAlarmBatches.add(batch);
         } else {
-            Batch batch = mAlarmBatches.get(whichBatch);
-            if (batch.add(a)) {
-                // The start time of this batch advanced, so batch ordering may
-                // have just been broken.  Move it to where it now belongs.
-                mAlarmBatches.remove(whichBatch);
-                addBatchLocked(mAlarmBatches, batch);
-            }
+            // Adding the alarm may narrow the batch's bounds, which the store is
+            // keyed on, so take the batch out while it changes.
+            Batch batch = mAlarmBatches.remove(whichBatch);
+            batch.add(a);
+            mAlarmBatches.add(batch);
         }
 
         if (a.alarmClock != null) {
@@ -1316,7 +1557,7 @@ class AlarmManagerService extends SystemService {
             }
 
             if (needRebatch) {
-                rebatchAllAlarmsLocked(false);
+                rebatchIdleAlarmsLocked();
             }
 
             rescheduleKernelAlarmsLocked();
@@ -1500,6 +1741,13 @@ class AlarmManagerService extends SystemService {
             pw.print(" set at "); TimeUtils.formatDuration(mLastWakeupSet, nowELAPSED, pw);
             pw.println();
             pw.print("  Num time change events: "); pw.println(mNumTimeChanged);
+            pw.print("  Rebatches: "); pw.print(mNumRebatches);
+            pw.print(" (full: "); pw.print(mNumFullRebatches); pw.println(")");
+            pw.print("  Alarms rebatched: total="); pw.print(mTotalRebatchedAlarms);
+            pw.print(" last="); pw.print(mLastRebatchedAlarms);
+            pw.print(" max="); pw.println(mMaxRebatchedAlarms);
+            pw.print("  Rebatch time: total="); pw.print(mTotalRebatchTimeUs);
+            pw.print("us max="); pw.print(mMaxRebatchTimeUs); pw.println("us");
             pw.println("  mDeviceIdleUserWhitelist=" + Arrays.toString(mDeviceIdleUserWhitelist));
 
             pw.println();
@@ -1528,7 +1776,8 @@ class AlarmManagerService extends SystemService {
                 pw.println();
                 pw.print("  Pending alarm batches: ");
                 pw.println(mAlarmBatches.size());
-                for (Batch b : mAlarmBatches) {
+                for (int i = 0; i < mAlarmBatches.size(); i++) {
+                    Batch b = mAlarmBatches.get(i);
                     pw.print(b); pw.println(':');
                     dumpAlarmList(pw, b.alarms, "    ", nowELAPSED, nowRTC, sdf);
                 }
@@ -1964,13 +2213,35 @@ class AlarmManagerService extends SystemService {
         }
     }
 
+    // Takes the batch holding the alarm, if it is scheduled, out of mAlarmBatches and adds
+    // it to the list.
+    private void takeBatchOfAlarmLocked(Alarm alarm, ArrayList<Batch> out) {
+        if (alarm == null) {
+            return;
+        }
+        for (int i = 0; i < mAlarmBatches.size(); i++) {
+            Batch b = mAlarmBatches.get(i);
+            if (b.alarms.contains(alarm)) {
+                mAlarmBatches.remove(i);
+                out.add(b);
+                return;
+            }
+        }
+    }
+
     private void removeLocked(PendingIntent operation, IAlarmListener directReceiver) {
         boolean didRemove = false;
+        ArrayList<Batch> changed = new ArrayList<>();
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(operation, directReceiver);
-            if (b.size() == 0) {
+            if (b.remove(operation, directReceiver)) {
+                // The batch's bounds may have widened, so let its remaining alarms
+                // coalesce again.
+                didRemove = true;
                 mAlarmBatches.remove(i);
+                if (b.size() > 0) {
+                    changed.add(b);
+                }
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -1991,8 +2262,10 @@ class AlarmManagerService extends SystemService {
             }
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                // The idle until alarm may have been pulled in for it.
+                takeBatchOfAlarmLocked(mPendingIdleUntil, changed);
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchLocked(changed, true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2002,11 +2275,17 @@ class AlarmManagerService extends SystemService {
 
     void removeLocked(String packageName) {
         boolean didRemove = false;
+        ArrayList<Batch> changed = new ArrayList<>();
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(packageName);
-            if (b.size() == 0) {
+            if (b.remove(packageName)) {
+                // The batch's bounds may have widened, so let its remaining alarms
+                // coalesce again.
+                didRemove = true;
                 mAlarmBatches.remove(i);
+                if (b.size() > 0) {
+                    changed.add(b);
+                }
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2021,7 +2300,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchLocked(changed, true);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2029,11 +2308,17 @@ class AlarmManagerService extends SystemService {
 
     void removeForStoppedLocked(int uid) {
         boolean didRemove = false;
+        ArrayList<Batch> changed = new ArrayList<>();
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.removeForStopped(uid);
-            if (b.size() == 0) {
+            if (b.removeForStopped(uid)) {
+                // The batch's bounds may have widened, so let its remaining alarms
+                // coalesce again.
+                didRemove = true;
                 mAlarmBatches.remove(i);
+                if (b.size() > 0) {
+                    changed.add(b);
+                }
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2048,7 +2333,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchLocked(changed, true);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2056,11 +2341,17 @@ class AlarmManagerService extends SystemService {
 
     void removeUserLocked(int userHandle) {
         boolean didRemove = false;
+        ArrayList<Batch> changed = new ArrayList<>();
         for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
             Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(userHandle);
-            if (b.size() == 0) {
+            if (b.remove(userHandle)) {
+                // The batch's bounds may have widened, so let its remaining alarms
+                // coalesce again.
+                didRemove = true;
                 mAlarmBatches.remove(i);
+                if (b.size() > 0) {
+                    changed.add(b);
+                }
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2080,7 +2371,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(user) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchLocked(changed, true);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2247,13 +2538,14 @@ class AlarmManagerService extends SystemService {
                             alarm.statsTag);
                 }
                 if (mPendingIdleUntil == alarm) {
+                    // Nothing still scheduled depends on the idle until alarm; the
+                    // alarms it held back come back in through the restore.
                     mPendingIdleUntil = null;
-                    rebatchAllAlarmsLocked(false);
                     restorePendingWhileIdleAlarmsLocked();
                 }
                 if (mNextWakeFromIdle == alarm) {
                     mNextWakeFromIdle = null;
-                    rebatchAllAlarmsLocked(false);
+                    rebatchIdleAlarmsLocked();
                 }
 
                 // Recurring alarms may have passed several alarm intervals while the
@@ -2439,7 +2731,7 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
+    void recordWakeupAlarms(BatchStore batches, long nowELAPSED, long nowRTC) {
         final int numBatches = batches.size();
         for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
             Batch b = batches.get(nextBatch);
@@ -2567,7 +2859,7 @@ class AlarmManagerService extends SystemService {
                         }
                         removeImpl(mTimeTickSender);
                         removeImpl(mDateChangeSender);
-                        rebatchAllAlarms();
+                        rebatchRtcAlarms();
                         mClockReceiver.scheduleTimeTickEvent();
                         mClockReceiver.scheduleDateChangedEvent();
                         synchronized (mLock) {
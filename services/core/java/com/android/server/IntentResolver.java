@@ -29,6 +29,7 @@ import android.net.Uri;
 import android.util.FastImmutableArraySet;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.IntArray;
 import android.util.Log;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
@@ -38,9 +39,18 @@ import android.util.Printer;
 
 import android.content.Intent;
 import android.content.IntentFilter;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 /**
+ * Each registered filter is given a slot, in the order filters are added, and all of the
+ * lookup maps hold sorted lists of slots. Besides the maps choosing the candidates for an
+ * intent by its data, a match index lists the filters by action, by category and, for
+ * filters only accepting particular hosts, by host. A query intersects the candidates
+ * with those lists in one pass, so that {@link IntentFilter#match} only runs on filters
+ * that have the intent's action, all of its categories and, if it has data, accept its
+ * host.
+ *
  * {@hide}
  */
 public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
@@ -49,6 +59,14 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /** Slots aren't renumbered until at least this many have been freed. */
+    private static final int MIN_FREE_SLOTS_TO_RENUMBER = 64;
+
+    /**
+     * Adds a filter. Adding a filter that is already added does nothing, as every filter
+     * has a single slot. Previously it was registered again and matched queries twice;
+     * either way a single {@link #removeFilter} removes it.
+     */
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -56,18 +74,23 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Building Lookup Maps:");
         }
 
-        mFilters.add(f);
-        int numS = register_intent_filter(f, f.schemesIterator(),
+        if (!mFilters.add(f)) {
+            Slog.w(TAG, "Filter already added: " + f);
+            return;
+        }
+        final int slot = allocateSlot(f);
+        int numS = register_intent_filter(slot, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
-        int numT = register_mime_types(f, "      Type: ");
+        int numT = register_mime_types(slot, f, "      Type: ");
         if (numS == 0 && numT == 0) {
-            register_intent_filter(f, f.actionsIterator(),
+            register_intent_filter(slot, f.actionsIterator(),
                     mActionToFilter, "      Action: ");
         }
         if (numT != 0) {
-            register_intent_filter(f, f.actionsIterator(),
+            register_intent_filter(slot, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        addToMatchIndex(slot, f);
     }
 
     private boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -144,14 +167,11 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return true;
     }
 
-    private ArrayList<F> collectFilters(F[] array, IntentFilter matching) {
+    private ArrayList<F> collectFilters(IntArray slots, IntentFilter matching) {
         ArrayList<F> res = null;
-        if (array != null) {
-            for (int i=0; i<array.length; i++) {
-                F cur = array[i];
-                if (cur == null) {
-                    break;
-                }
+        if (slots != null) {
+            for (int i=0; i<slots.size(); i++) {
+                F cur = mSlotFilters[slots.get(i)];
                 if (filterEquals(cur, matching)) {
                     if (res == null) {
                         res = new ArrayList<>();
@@ -200,21 +220,27 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
-        int numS = unregister_intent_filter(f, f.schemesIterator(),
+        final Integer slot = mFilterToSlot.get(f);
+        if (slot == null) {
+            return;
+        }
+        int numS = unregister_intent_filter(slot, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
-        int numT = unregister_mime_types(f, "      Type: ");
+        int numT = unregister_mime_types(slot, f, "      Type: ");
         if (numS == 0 && numT == 0) {
-            unregister_intent_filter(f, f.actionsIterator(),
+            unregister_intent_filter(slot, f.actionsIterator(),
                     mActionToFilter, "      Action: ");
         }
         if (numT != 0) {
-            unregister_intent_filter(f, f.actionsIterator(),
+            unregister_intent_filter(slot, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        removeFromMatchIndex(slot, f);
+        freeSlot(slot, f);
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
-            String prefix, ArrayMap<String, F[]> map, String packageName,
+            String prefix, ArrayMap<String, IntArray> map, String packageName,
             boolean printFilter, boolean collapseDuplicates) {
         final String eprefix = prefix + "  ";
         final String fprefix = prefix + "    ";
@@ -222,13 +248,14 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         boolean printedSomething = false;
         Printer printer = null;
         for (int mapi=0; mapi<map.size(); mapi++) {
-            F[] a = map.valueAt(mapi);
-            final int N = a.length;
+            IntArray a = map.valueAt(mapi);
+            final int N = a.size();
             boolean printedHeader = false;
             F filter;
             if (collapseDuplicates && !printFilter) {
                 found.clear();
-                for (int i=0; i<N && (filter=a[i]) != null; i++) {
+                for (int i=0; i<N; i++) {
+                    filter = mSlotFilters[a.get(i)];
                     if (packageName != null && !isPackageForFilter(packageName, filter)) {
                         continue;
                     }
@@ -253,7 +280,8 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                     dumpFilterLabel(out, fprefix, found.keyAt(i), found.valueAt(i).value);
                 }
             } else {
-                for (int i=0; i<N && (filter=a[i]) != null; i++) {
+                for (int i=0; i<N; i++) {
+                    filter = mSlotFilters[a.get(i)];
                     if (packageName != null && !isPackageForFilter(packageName, filter)) {
                         continue;
                     }
@@ -382,10 +410,10 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
-        F[] firstTypeCut = null;
-        F[] secondTypeCut = null;
-        F[] thirdTypeCut = null;
-        F[] schemeCut = null;
+        IntArray firstTypeCut = null;
+        IntArray secondTypeCut = null;
+        IntArray thirdTypeCut = null;
+        IntArray schemeCut = null;
 
         // If the intent includes a MIME type, then we want to collect all of
         // the filters that match that MIME type.
@@ -399,28 +427,28 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                         // Not a wild card, so we can just look for all filters that
                         // completely match or wildcards whose base type matches.
                         firstTypeCut = mTypeToFilter.get(resolvedType);
-                        if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
+                        if (debug) Slog.v(TAG, "First type cut: " + cutToString(firstTypeCut));
                         secondTypeCut = mWildTypeToFilter.get(baseType);
                         if (debug) Slog.v(TAG, "Second type cut: "
-                                + Arrays.toString(secondTypeCut));
+                                + cutToString(secondTypeCut));
                     } else {
                         // We can match anything with our base type.
                         firstTypeCut = mBaseTypeToFilter.get(baseType);
-                        if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
+                        if (debug) Slog.v(TAG, "First type cut: " + cutToString(firstTypeCut));
                         secondTypeCut = mWildTypeToFilter.get(baseType);
                         if (debug) Slog.v(TAG, "Second type cut: "
-                                + Arrays.toString(secondTypeCut));
+                                + cutToString(secondTypeCut));
                     }
                     // Any */* types always apply, but we only need to do this
                     // if the intent type was not already */*.
                     thirdTypeCut = mWildTypeToFilter.get("*");
-                    if (debug) Slog.v(TAG, "Third type cut: " + Arrays.toString(thirdTypeCut));
+                    if (debug) Slog.v(TAG, "Third type cut: " + cutToString(thirdTypeCut));
                 } else if (intent.getAction() != null) {
                     // The intent specified any type ({@literal *}/*).  This
                     // can be a whole heck of a lot of things, so as a first
                     // cut let's use the action instead.
                     firstTypeCut = mTypedActionToFilter.get(intent.getAction());
-                    if (debug) Slog.v(TAG, "Typed Action list: " + Arrays.toString(firstTypeCut));
+                    if (debug) Slog.v(TAG, "Typed Action list: " + cutToString(firstTypeCut));
                 }
             }
         }
@@ -430,7 +458,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // on the authority and path by directly matching each resulting filter).
         if (scheme != null) {
             schemeCut = mSchemeToFilter.get(scheme);
-            if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
+            if (debug) Slog.v(TAG, "Scheme list: " + cutToString(schemeCut));
         }
 
         // If the intent does not specify any data -- either a MIME type or
@@ -438,25 +466,31 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // data.
         if (resolvedType == null && scheme == null && intent.getAction() != null) {
             firstTypeCut = mActionToFilter.get(intent.getAction());
-            if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
+            if (debug) Slog.v(TAG, "Action list: " + cutToString(firstTypeCut));
         }
 
-        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
-        }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+        // When debugging, every candidate goes through the full match so that the reason
+        // it didn't match gets logged.
+        final MatchQuery query = (mUseMatchIndex && !debug)
+                ? new MatchQuery(intent, scheme) : null;
+        if (query == null || !query.matchesNothing()) {
+            FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+            if (firstTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, selectFilters(firstTypeCut, query), finalList, userId);
+            }
+            if (secondTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, selectFilters(secondTypeCut, query), finalList, userId);
+            }
+            if (thirdTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, selectFilters(thirdTypeCut, query), finalList, userId);
+            }
+            if (schemeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, selectFilters(schemeCut, query), finalList, userId);
+            }
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -541,30 +575,30 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         out.print(prefix); out.print(label); out.print(": "); out.println(count);
     }
 
-    private final void addFilter(ArrayMap<String, F[]> map, String name, F filter) {
-        F[] array = map.get(name);
-        if (array == null) {
-            array = newArray(2);
-            map.put(name,  array);
-            array[0] = filter;
-        } else {
-            final int N = array.length;
-            int i = N;
-            while (i > 0 && array[i-1] == null) {
-                i--;
-            }
-            if (i < N) {
-                array[i] = filter;
-            } else {
-                F[] newa = newArray((N*3)/2);
-                System.arraycopy(array, 0, newa, 0, N);
-                newa[N] = filter;
-                map.put(name, newa);
+    private static void addSlot(ArrayMap<String, IntArray> map, String name, int slot) {
+        IntArray slots = map.get(name);
+        if (slots == null) {
+            slots = new IntArray(2);
+            map.put(name, slots);
+        }
+        // Slots are handed out in increasing order, so this keeps the list sorted.
+        slots.add(slot);
+    }
+
+    private static void removeSlot(ArrayMap<String, IntArray> map, String name, int slot) {
+        final IntArray slots = map.get(name);
+        if (slots != null) {
+            final int index = slots.binarySearch(slot);
+            if (index >= 0) {
+                slots.remove(index);
+                if (slots.size() == 0) {
+                    map.remove(name);
+                }
             }
         }
     }
 
-    private final int register_mime_types(F filter, String prefix) {
+    private final int register_mime_types(int slot, F filter, String prefix) {
         final Iterator<String> i = filter.typesIterator();
         if (i == null) {
             return 0;
@@ -583,19 +617,19 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 name = name + "/*";
             }
 
-            addFilter(mTypeToFilter, name, filter);
+            addSlot(mTypeToFilter, name, slot);
 
             if (slashpos > 0) {
-                addFilter(mBaseTypeToFilter, baseName, filter);
+                addSlot(mBaseTypeToFilter, baseName, slot);
             } else {
-                addFilter(mWildTypeToFilter, baseName, filter);
+                addSlot(mWildTypeToFilter, baseName, slot);
             }
         }
 
         return num;
     }
 
-    private final int unregister_mime_types(F filter, String prefix) {
+    private final int unregister_mime_types(int slot, F filter, String prefix) {
         final Iterator<String> i = filter.typesIterator();
         if (i == null) {
             return 0;
@@ -614,19 +648,19 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 name = name + "/*";
             }
 
-            remove_all_objects(mTypeToFilter, name, filter);
+            removeSlot(mTypeToFilter, name, slot);
 
             if (slashpos > 0) {
-                remove_all_objects(mBaseTypeToFilter, baseName, filter);
+                removeSlot(mBaseTypeToFilter, baseName, slot);
             } else {
-                remove_all_objects(mWildTypeToFilter, baseName, filter);
+                removeSlot(mWildTypeToFilter, baseName, slot);
             }
         }
         return num;
     }
 
-    private final int register_intent_filter(F filter, Iterator<String> i,
-            ArrayMap<String, F[]> dest, String prefix) {
+    private final int register_intent_filter(int slot, Iterator<String> i,
+            ArrayMap<String, IntArray> dest, String prefix) {
         if (i == null) {
             return 0;
         }
@@ -636,13 +670,13 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             String name = i.next();
             num++;
             if (localLOGV) Slog.v(TAG, prefix + name);
-            addFilter(dest, name, filter);
+            addSlot(dest, name, slot);
         }
         return num;
     }
 
-    private final int unregister_intent_filter(F filter, Iterator<String> i,
-            ArrayMap<String, F[]> dest, String prefix) {
+    private final int unregister_intent_filter(int slot, Iterator<String> i,
+            ArrayMap<String, IntArray> dest, String prefix) {
         if (i == null) {
             return 0;
         }
@@ -652,37 +686,286 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             String name = i.next();
             num++;
             if (localLOGV) Slog.v(TAG, prefix + name);
-            remove_all_objects(dest, name, filter);
+            removeSlot(dest, name, slot);
         }
         return num;
     }
 
-    private final void remove_all_objects(ArrayMap<String, F[]> map, String name,
-            Object object) {
-        F[] array = map.get(name);
-        if (array != null) {
-            int LAST = array.length-1;
-            while (LAST >= 0 && array[LAST] == null) {
-                LAST--;
+    private int allocateSlot(F filter) {
+        if (mSlotFilters == null) {
+            mSlotFilters = newArray(16);
+        } else if (mNextSlot == mSlotFilters.length) {
+            final F[] newSlots = newArray((mNextSlot * 3) / 2);
+            System.arraycopy(mSlotFilters, 0, newSlots, 0, mNextSlot);
+            mSlotFilters = newSlots;
+        }
+        final int slot = mNextSlot++;
+        mSlotFilters[slot] = filter;
+        mFilterToSlot.put(filter, slot);
+        return slot;
+    }
+
+    private void freeSlot(int slot, F filter) {
+        mSlotFilters[slot] = null;
+        mFilterToSlot.remove(filter);
+        if (mNextSlot - mFilterToSlot.size()
+                >= Math.max(mFilterToSlot.size(), MIN_FREE_SLOTS_TO_RENUMBER)) {
+            renumberSlots();
+        }
+    }
+
+    /**
+     * Packs the slots of the remaining filters, keeping their order, so that the slot
+     * lists stay sorted.
+     */
+    private void renumberSlots() {
+        final int[] newSlots = new int[mNextSlot];
+        int next = 0;
+        for (int slot = 0; slot < mNextSlot; slot++) {
+            final F filter = mSlotFilters[slot];
+            if (filter != null) {
+                newSlots[slot] = next;
+                mSlotFilters[next] = filter;
+                mFilterToSlot.put(filter, next);
+                next++;
             }
-            for (int idx=LAST; idx>=0; idx--) {
-                if (array[idx] == object) {
-                    final int remain = LAST - idx;
-                    if (remain > 0) {
-                        System.arraycopy(array, idx+1, array, idx, remain);
-                    }
-                    array[LAST] = null;
-                    LAST--;
+        }
+        Arrays.fill(mSlotFilters, next, mNextSlot, null);
+        mNextSlot = next;
+
+        renumberSlots(mTypeToFilter, newSlots);
+        renumberSlots(mBaseTypeToFilter, newSlots);
+        renumberSlots(mWildTypeToFilter, newSlots);
+        renumberSlots(mSchemeToFilter, newSlots);
+        renumberSlots(mActionToFilter, newSlots);
+        renumberSlots(mTypedActionToFilter, newSlots);
+        renumberSlots(mActionIndex, newSlots);
+        renumberSlots(mCategoryIndex, newSlots);
+        renumberSlots(mHostIndex, newSlots);
+        renumberSlots(mHostRestrictedFilters, newSlots);
+    }
+
+    private static void renumberSlots(ArrayMap<String, IntArray> map, int[] newSlots) {
+        for (int i = map.size() - 1; i >= 0; i--) {
+            renumberSlots(map.valueAt(i), newSlots);
+        }
+    }
+
+    private static void renumberSlots(IntArray slots, int[] newSlots) {
+        for (int i = slots.size() - 1; i >= 0; i--) {
+            slots.set(i, newSlots[slots.get(i)]);
+        }
+    }
+
+    private void addToMatchIndex(int slot, F filter) {
+        for (int i = filter.countActions() - 1; i >= 0; i--) {
+            addSlot(mActionIndex, filter.getAction(i), slot);
+        }
+        for (int i = filter.countCategories() - 1; i >= 0; i--) {
+            addSlot(mCategoryIndex, filter.getCategory(i), slot);
+        }
+        if (isHostRestricted(filter)) {
+            mHostRestrictedFilters.add(slot);
+            final ArraySet<String> hosts = getFoldedHosts(filter);
+            for (int i = hosts.size() - 1; i >= 0; i--) {
+                addSlot(mHostIndex, hosts.valueAt(i), slot);
+            }
+        }
+    }
+
+    private void removeFromMatchIndex(int slot, F filter) {
+        for (int i = filter.countActions() - 1; i >= 0; i--) {
+            removeSlot(mActionIndex, filter.getAction(i), slot);
+        }
+        for (int i = filter.countCategories() - 1; i >= 0; i--) {
+            removeSlot(mCategoryIndex, filter.getCategory(i), slot);
+        }
+        final int index = mHostRestrictedFilters.binarySearch(slot);
+        if (index >= 0) {
+            mHostRestrictedFilters.remove(index);
+            final ArraySet<String> hosts = getFoldedHosts(filter);
+            for (int i = hosts.size() - 1; i >= 0; i--) {
+                removeSlot(mHostIndex, hosts.valueAt(i), slot);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the filter only matches data with one of its hosts: it has schemes
+     * and authorities, none of them with a wildcard host, and no scheme specific parts,
+     * which would let data match without an authority.
+     */
+    private static boolean isHostRestricted(IntentFilter filter) {
+        final int authorityCount = filter.countDataAuthorities();
+        if (filter.countDataSchemes() == 0 || authorityCount == 0
+                || filter.countDataSchemeSpecificParts() != 0) {
+            return false;
+        }
+        for (int i = 0; i < authorityCount; i++) {
+            final String host = filter.getDataAuthority(i).getHost();
+            if (host.length() > 0 && host.charAt(0) == '*') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ArraySet<String> getFoldedHosts(IntentFilter filter) {
+        final int authorityCount = filter.countDataAuthorities();
+        final ArraySet<String> hosts = new ArraySet<>(authorityCount);
+        for (int i = 0; i < authorityCount; i++) {
+            hosts.add(foldHostCase(filter.getDataAuthority(i).getHost()));
+        }
+        return hosts;
+    }
+
+    /**
+     * Folds the case of a host so that two hosts fold to the same string exactly when
+     * {@link String#compareToIgnoreCase} considers them equal, as authorities do.
+     */
+    private static String foldHostCase(String host) {
+        final char[] chars = host.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The lists of the match index an intent's candidates are intersected with.
+     */
+    private final class MatchQuery {
+        /** The lists of the intent's action and categories, null if one is missing. */
+        final IntArray[] required;
+        /** Whether the intent has data, whose host host-restricted filters must accept. */
+        final boolean checkHost;
+        /** The host-restricted filters accepting the intent's host. */
+        final IntArray hostFilters;
+
+        MatchQuery(Intent intent, String scheme) {
+            required = getRequiredLists(intent.getAction(), intent.getCategories());
+            checkHost = scheme != null;
+            if (checkHost) {
+                final Uri data = intent.getData();
+                final String host = (data != null) ? data.getHost() : null;
+                hostFilters = (host != null) ? mHostIndex.get(foldHostCase(host)) : null;
+            } else {
+                hostFilters = null;
+            }
+        }
+
+        boolean matchesNothing() {
+            return required == null;
+        }
+    }
+
+    private IntArray[] getRequiredLists(String action, Set<String> categories) {
+        final int count = (action != null ? 1 : 0) + (categories != null ? categories.size() : 0);
+        final IntArray[] required = new IntArray[count];
+        int i = 0;
+        if (action != null) {
+            required[i] = mActionIndex.get(action);
+            if (required[i++] == null) {
+                return null;
+            }
+        }
+        if (categories != null) {
+            for (String category : categories) {
+                required[i] = mCategoryIndex.get(category);
+                if (required[i++] == null) {
+                    return null;
                 }
             }
-            if (LAST < 0) {
-                map.remove(name);
-            } else if (LAST < (array.length/2)) {
-                F[] newa = newArray(LAST+2);
-                System.arraycopy(array, 0, newa, 0, LAST+1);
-                map.put(name, newa);
+        }
+        return required;
+    }
+
+    /**
+     * Returns the filters of a cut that may match the query, in the order of the cut, as
+     * an array ending at the first null.
+     */
+    private F[] selectFilters(IntArray cut, MatchQuery query) {
+        final int N = cut.size();
+        final F[] filters = newArray(N);
+        if (query == null) {
+            for (int i = 0; i < N; i++) {
+                filters[i] = mSlotFilters[cut.get(i)];
+            }
+            return filters;
+        }
+
+        // The cut and the lists are all sorted, so each list is only walked forward once.
+        final IntArray[] required = query.required;
+        final int[] positions = new int[required.length + 2];
+        final int restrictedPosition = required.length;
+        final int hostPosition = required.length + 1;
+        int count = 0;
+        for (int i = 0; i < N; i++) {
+            final int slot = cut.get(i);
+            boolean match = true;
+            for (int j = 0; j < required.length && match; j++) {
+                match = seekSlot(required[j], positions, j, slot);
+            }
+            if (match && query.checkHost
+                    && seekSlot(mHostRestrictedFilters, positions, restrictedPosition, slot)) {
+                match = query.hostFilters != null
+                        && seekSlot(query.hostFilters, positions, hostPosition, slot);
+            }
+            if (match) {
+                filters[count++] = mSlotFilters[slot];
             }
         }
+        return filters;
+    }
+
+    /**
+     * Returns whether the sorted list has the slot. The search starts at
+     * {@code positions[index]}, galloping forward, and leaves it at the first slot not
+     * less than the given one, for the next, larger slot.
+     */
+    private static boolean seekSlot(IntArray slots, int[] positions, int index, int slot) {
+        final int size = slots.size();
+        int low = positions[index];
+        int high = low;
+        int step = 1;
+        while (high < size && slots.get(high) < slot) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, size);
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (slots.get(mid) < slot) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        positions[index] = low;
+        return low < size && slots.get(low) == slot;
+    }
+
+    private String cutToString(IntArray cut) {
+        if (cut == null) {
+            return "null";
+        }
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < cut.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mSlotFilters[cut.get(i)]);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Turns the match index off, for comparing against resolving without it.
+     */
+    @VisibleForTesting
+    void setUseMatchIndex(boolean useMatchIndex) {
+        mUseMatchIndex = useMatchIndex;
     }
 
     private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
@@ -811,18 +1094,30 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      */
     private final ArraySet<F> mFilters = new ArraySet<F>();
 
+    /**
+     * The registered filters by slot, null for slots that have been freed. Slots are
+     * handed out in increasing order and packed again once half of them are free.
+     */
+    private F[] mSlotFilters;
+
+    private int mNextSlot;
+
+    private final ArrayMap<F, Integer> mFilterToSlot = new ArrayMap<>();
+
+    private boolean mUseMatchIndex = true;
+
     /**
      * All of the MIME types that have been registered, such as "image/jpeg",
      * "image/*", or "{@literal *}/*".
      */
-    private final ArrayMap<String, F[]> mTypeToFilter = new ArrayMap<String, F[]>();
+    private final ArrayMap<String, IntArray> mTypeToFilter = new ArrayMap<>();
 
     /**
      * The base names of all of all fully qualified MIME types that have been
      * registered, such as "image" or "*".  Wild card MIME types such as
      * "image/*" will not be here.
      */
-    private final ArrayMap<String, F[]> mBaseTypeToFilter = new ArrayMap<String, F[]>();
+    private final ArrayMap<String, IntArray> mBaseTypeToFilter = new ArrayMap<>();
 
     /**
      * The base names of all of the MIME types with a sub-type wildcard that
@@ -831,21 +1126,41 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * included here.  This also includes the "*" for the "{@literal *}/*"
      * MIME type.
      */
-    private final ArrayMap<String, F[]> mWildTypeToFilter = new ArrayMap<String, F[]>();
+    private final ArrayMap<String, IntArray> mWildTypeToFilter = new ArrayMap<>();
 
     /**
      * All of the URI schemes (such as http) that have been registered.
      */
-    private final ArrayMap<String, F[]> mSchemeToFilter = new ArrayMap<String, F[]>();
+    private final ArrayMap<String, IntArray> mSchemeToFilter = new ArrayMap<>();
 
     /**
      * All of the actions that have been registered, but only those that did
      * not specify data.
      */
-    private final ArrayMap<String, F[]> mActionToFilter = new ArrayMap<String, F[]>();
+    private final ArrayMap<String, IntArray> mActionToFilter = new ArrayMap<>();
 
     /**
      * All of the actions that have been registered and specified a MIME type.
      */
-    private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+    private final ArrayMap<String, IntArray> mTypedActionToFilter = new ArrayMap<>();
+
+    /**
+     * The match index: all registered filters by each of their actions.
+     */
+    private final ArrayMap<String, IntArray> mActionIndex = new ArrayMap<>();
+
+    /**
+     * The match index: all registered filters by each of their categories.
+     */
+    private final ArrayMap<String, IntArray> mCategoryIndex = new ArrayMap<>();
+
+    /**
+     * The match index: the filters that only accept data with particular hosts.
+     */
+    private final IntArray mHostRestrictedFilters = new IntArray();
+
+    /**
+     * The match index: the host-restricted filters by each of their hosts, case folded.
+     */
+    private final ArrayMap<String, IntArray> mHostIndex = new ArrayMap<>();
 }
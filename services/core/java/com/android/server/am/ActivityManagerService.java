@@ -526,6 +526,10 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int BROADCAST_FG_TIMEOUT = 10*1000;
     static final int BROADCAST_BG_TIMEOUT = 60*1000;
 
+    // Number of shards each broadcast queue dispatches the manifest receivers of
+    // non-ordered broadcasts on, by receiving process.
+    static final int NUM_BROADCAST_SHARDS = ActivityManager.isLowRamDeviceStatic() ? 0 : 4;
+
     // How long we wait until we timeout on key dispatching.
     static final int KEY_DISPATCHING_TIMEOUT = 5*1000;
 
@@ -639,9 +643,9 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
-    // Convenient for easy iteration over the queues. Foreground is first
-    // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    // Convenient for easy iteration over the queues and their shards. Foreground is
+    // first so that dispatch of foreground broadcasts gets precedence.
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2 * (1 + NUM_BROADCAST_SHARDS)];
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -1692,6 +1696,7 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int DISPATCH_OOM_ADJ_OBSERVER_MSG = 70;
     static final int START_USER_SWITCH_FG_MSG = 712;
     static final int NOTIFY_VR_KEYGUARD_MSG = 74;
+    static final int PERMISSIONS_PLUGINS_CHANGED_MSG = 75;
 
     static final int FIRST_ACTIVITY_STACK_MSG = 100;
     static final int FIRST_BROADCAST_QUEUE_MSG = 200;
@@ -2003,6 +2008,22 @@ public class ActivityManagerService extends IActivityManager.Stub
                     }
                 }
             } break;
+            case PERMISSIONS_PLUGINS_CHANGED_MSG: {
+                final String packageName = (String) msg.obj;
+                synchronized (ActivityManagerService.this) {
+                    for (int i = mLruProcesses.size() - 1 ; i >= 0 ; i--) {
+                        ProcessRecord r = mLruProcesses.get(i);
+                        if (r.thread != null) {
+                            try {
+                                r.thread.permissionsPluginsChanged(packageName);
+                            } catch (RemoteException ex) {
+                                Slog.w(TAG, "Failed to invalidate permissions plugins for: "
+                                        + r.info.processName);
+                            }
+                        }
+                    }
+                }
+            } break;
             case UPDATE_HTTP_PROXY_MSG: {
                 ProxyInfo proxy = (ProxyInfo)msg.obj;
                 String host = "";
@@ -2732,11 +2753,15 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
 
         mFgBroadcastQueue = new BroadcastQueue(this, mHandler,
-                "foreground", BROADCAST_FG_TIMEOUT, false);
+                "foreground", BROADCAST_FG_TIMEOUT, false, NUM_BROADCAST_SHARDS);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
-                "background", BROADCAST_BG_TIMEOUT, true);
+                "background", BROADCAST_BG_TIMEOUT, true, NUM_BROADCAST_SHARDS);
         mBroadcastQueues[0] = mFgBroadcastQueue;
-        mBroadcastQueues[1] = mBgBroadcastQueue;
+        System.arraycopy(mFgBroadcastQueue.mShards, 0, mBroadcastQueues, 1,
+                NUM_BROADCAST_SHARDS);
+        mBroadcastQueues[1 + NUM_BROADCAST_SHARDS] = mBgBroadcastQueue;
+        System.arraycopy(mBgBroadcastQueue.mShards, 0, mBroadcastQueues,
+                2 + NUM_BROADCAST_SHARDS, NUM_BROADCAST_SHARDS);
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -3782,6 +3807,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             checkTime(startTime, "startProcess: removing from pids map");
             synchronized (mPidsSelfLocked) {
                 mPidsSelfLocked.remove(app.pid);
+                PermissionsPluginManager.noteProcessDied(app.pid);
                 mHandler.removeMessages(PROC_START_TIMEOUT_MSG, app);
             }
             checkTime(startTime, "startProcess: done removing from pids map");
@@ -4009,6 +4035,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
             synchronized (mPidsSelfLocked) {
                 this.mPidsSelfLocked.put(startResult.pid, app);
+                PermissionsPluginManager.noteProcessStarted(startResult.pid, app.uid,
+                        app.info.packageName);
                 if (isActivityProcess) {
                     Message msg = mHandler.obtainMessage(PROC_START_TIMEOUT_MSG);
                     msg.obj = app;
@@ -4017,6 +4045,10 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             }
             checkTime(startTime, "startProcess: done updating pids map");
+
+            // Have our plugin connections ready before the first transaction
+            // that needs perturbation reaches the new process.
+            PermissionsPluginManager.prewarmPluginConnections(app.info.packageName);
         } catch (RuntimeException e) {
             Slog.e(TAG, "Failure starting process " + app.processName, e);
 
@@ -6829,6 +6861,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             int pid = app.pid;
             synchronized (mPidsSelfLocked) {
                 mPidsSelfLocked.remove(pid);
+                PermissionsPluginManager.noteProcessDied(pid);
                 mHandler.removeMessages(PROC_START_TIMEOUT_MSG, app);
             }
             mBatteryStatsService.noteProcessFinish(app.processName, app.info.uid);
@@ -6869,6 +6902,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             ProcessRecord knownApp = mPidsSelfLocked.get(pid);
             if (knownApp != null && knownApp.thread == null) {
                 mPidsSelfLocked.remove(pid);
+                PermissionsPluginManager.noteProcessDied(pid);
                 gone = true;
             }
         }
@@ -15255,6 +15289,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             } else if ("locks".equals(cmd)) {
                 LockGuard.dump(fd, pw, args);
+            } else if ("plugins".equals(cmd)) {
+                dumpPermissionsPlugins(fd, pw, args);
             } else {
                 // Dumping a single activity?
                 if (!dumpActivity(fd, pw, cmd, args, opti, dumpAll, dumpVisibleStacksOnly,
@@ -16905,6 +16941,43 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    final void dumpPermissionsPlugins(FileDescriptor fd, PrintWriter pw, String[] args) {
+        PermissionsPluginManager.dump(pw);
+
+        // Perturbation happens in the apps and the providers they call, each of
+        // which keeps its own metrics.
+        final ArrayList<ProcessRecord> procs;
+        synchronized (this) {
+            procs = new ArrayList<>(mLruProcesses);
+        }
+        for (int i = procs.size() - 1 ; i >= 0 ; i--) {
+            ProcessRecord r = procs.get(i);
+            if (r.thread == null || r.pid == MY_PID) {
+                continue;
+            }
+            pw.println();
+            pw.println("** Permissions plugins of pid " + r.pid + " [" + r.processName + "] **");
+            pw.flush();
+            try {
+                TransferPipe tp = new TransferPipe();
+                try {
+                    r.thread.dumpPermissionsPlugins(tp.getWriteFd(), args);
+                    tp.go(fd);
+                } finally {
+                    tp.kill();
+                }
+            } catch (IOException e) {
+                pw.println("Failure while dumping the app: " + r);
+                pw.flush();
+            } catch (RemoteException e) {
+                pw.println("Got a RemoteException while dumping the app " + r);
+                pw.flush();
+            }
+        }
+
+        PermissionsPluginManager.dumpStorageTracers(fd, pw, args);
+    }
+
     final static class MemItem {
         final boolean isProc;
         final String label;
@@ -18194,6 +18267,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             boolean removed;
             synchronized (mPidsSelfLocked) {
                 mPidsSelfLocked.remove(app.pid);
+                PermissionsPluginManager.noteProcessDied(app.pid);
                 mHandler.removeMessages(PROC_START_TIMEOUT_MSG, app);
             }
             mBatteryStatsService.noteProcessFinish(app.processName, app.info.uid);
@@ -18698,8 +18772,12 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -20731,7 +20809,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             ArraySet<BroadcastQueue> receivingQueues) {
         if (!app.curReceivers.isEmpty()) {
             for (BroadcastRecord r : app.curReceivers) {
-                receivingQueues.add(r.queue);
+                receivingQueues.add(r.queue.mPrimary);
             }
             return true;
         }
@@ -20741,7 +20819,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             final BroadcastRecord r = queue.mPendingBroadcast;
             if (r != null && r.curApp == app) {
                 // found it; report which queue it's in
-                receivingQueues.add(queue);
+                receivingQueues.add(queue.mPrimary);
             }
         }
 
@@ -24257,6 +24335,14 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             }
         }
+
+        @Override
+        public void notifyPermissionsPluginsChanged(String packageName) {
+            // system_server marshals perturbable data too, so drop our own
+            // cached selection right away before telling the app processes.
+            PermissionsPluginManager.invalidateActivePluginsCache(packageName);
+            mHandler.obtainMessage(PERMISSIONS_PLUGINS_CHANGED_MSG, packageName).sendToTarget();
+        }
     }
 
     /**
@@ -24681,14 +24767,13 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         String[] ret = null;
 
-        synchronized (this) {
-            // Iterate across all processes
-            for (int i = mLruProcesses.size() - 1; i >= 0; i--) {
-                ProcessRecord app = mLruProcesses.get(i);
-                if (app.pid == pid) {
-                    ret = app.getPackageList();
-                    break;
-                }
+        // mPidsSelfLocked has its own lock, so this does not queue behind
+        // everything else that holds the activity manager lock.
+        synchronized (mPidsSelfLocked) {
+            ProcessRecord app = mPidsSelfLocked.get(pid);
+            if (app != null) {
+                // pkgList itself changes under the activity manager lock.
+                ret = app.getPackageListSnapshot();
             }
         }
 
@@ -24705,8 +24790,8 @@ public class ActivityManagerService extends IActivityManager.Stub
      * {@hide}
      */
     @Override
-    public IBinder getStorageInterposer(String packageName) {
-        return PermissionsPluginManager.getStorageInterposer(packageName);
+    public IBinder getStorageInterposer(String packageName, IBinder tracer) {
+        return PermissionsPluginManager.getStorageInterposer(packageName, tracer);
     }
 
 }
@@ -50,8 +50,12 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.EventLog;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.TimeUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.ExponentiallyBucketedHistogram;
+
 import static com.android.server.am.ActivityManagerDebugConfig.*;
 
 /**
@@ -69,6 +73,10 @@ public final class BroadcastQueue {
     static final int MAX_BROADCAST_SUMMARY_HISTORY
             = ActivityManager.isLowRamDeviceStatic() ? 25 : 300;
 
+    // Buckets of the queue depth and dispatch latency histograms, the last one counting
+    // everything from 2^15.
+    static final int HISTOGRAM_BUCKETS = 17;
+
     final ActivityManagerService mService;
 
     /**
@@ -87,6 +95,50 @@ public final class BroadcastQueue {
      */
     final boolean mDelayBehindServices;
 
+    /**
+     * The queue broadcasts are enqueued on: this queue, or the one this is a shard of.
+     */
+    final BroadcastQueue mPrimary;
+
+    /**
+     * Queues that the manifest receivers of non-ordered broadcasts are dispatched on,
+     * picked by receiving process, so that a slow receiver only holds up the broadcasts
+     * to processes on the same shard.  Ordered broadcasts stay on the primary queue.
+     * Empty for shards, and when sharding is off.
+     */
+    final BroadcastQueue[] mShards;
+
+    /**
+     * Sequence number of the next ordered broadcast enqueued on the primary queue.  All
+     * parts of a broadcast split across the shards share its sequence number, so queues
+     * can tell which of their broadcasts to a process were sent first.
+     */
+    long mNextSequence = 1;
+
+    /**
+     * Set while the broadcast at the top of mOrderedBroadcasts is held back, because an
+     * older broadcast on another queue of the same primary still has to be delivered to
+     * the process of its next receiver.
+     */
+    boolean mWaitingForOrder;
+
+    /**
+     * When the broadcast at the top of mOrderedBroadcasts started to wait for order.
+     */
+    long mOrderWaitStartTime;
+
+    /**
+     * Number of broadcasts queued on the primary queue and its shards whenever one is
+     * enqueued.  Only kept by the primary queue.
+     */
+    final ExponentiallyBucketedHistogram mQueueDepthHistogram;
+
+    /**
+     * Milliseconds from enqueueing a broadcast to dispatching it on the primary queue or
+     * one of its shards.  Only kept by the primary queue.
+     */
+    final ExponentiallyBucketedHistogram mDispatchLatencyHistogram;
+
     /**
      * Lists of all active broadcasts that are to be executed immediately
      * (without waiting for another broadcast to finish).  Currently this only
@@ -195,12 +247,34 @@ public final class BroadcastQueue {
     }
 
     BroadcastQueue(ActivityManagerService service, Handler handler,
-            String name, long timeoutPeriod, boolean allowDelayBehindServices) {
+            String name, long timeoutPeriod, boolean allowDelayBehindServices, int numShards) {
         mService = service;
         mHandler = new BroadcastHandler(handler.getLooper());
         mQueueName = name;
         mTimeoutPeriod = timeoutPeriod;
         mDelayBehindServices = allowDelayBehindServices;
+        mPrimary = this;
+        mShards = new BroadcastQueue[numShards];
+        for (int i = 0; i < numShards; i++) {
+            mShards[i] = new BroadcastQueue(this, i);
+        }
+        mQueueDepthHistogram = new ExponentiallyBucketedHistogram(HISTOGRAM_BUCKETS);
+        mDispatchLatencyHistogram = new ExponentiallyBucketedHistogram(HISTOGRAM_BUCKETS);
+    }
+
+    /**
+     * Creates a shard of a primary queue.
+     */
+    private BroadcastQueue(BroadcastQueue primary, int index) {
+        mService = primary.mService;
+        mHandler = new BroadcastHandler(primary.mHandler.getLooper());
+        mQueueName = primary.mQueueName + "#" + index;
+        mTimeoutPeriod = primary.mTimeoutPeriod;
+        mDelayBehindServices = primary.mDelayBehindServices;
+        mPrimary = primary;
+        mShards = new BroadcastQueue[0];
+        mQueueDepthHistogram = null;
+        mDispatchLatencyHistogram = null;
     }
 
     @Override
@@ -213,15 +287,126 @@ public final class BroadcastQueue {
     }
 
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
+        mQueueDepthHistogram.add(getQueueDepthLocked());
         mParallelBroadcasts.add(r);
         enqueueBroadcastHelper(r);
     }
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
+        mQueueDepthHistogram.add(getQueueDepthLocked());
+        r.sequence = mNextSequence++;
+        if (isShardableLocked(r)) {
+            enqueueShardedBroadcastLocked(r);
+            return;
+        }
         mOrderedBroadcasts.add(r);
         enqueueBroadcastHelper(r);
     }
 
+    /**
+     * Returns the number of broadcasts queued on this primary queue and its shards.
+     */
+    private int getQueueDepthLocked() {
+        int depth = mParallelBroadcasts.size() + mOrderedBroadcasts.size();
+        for (BroadcastQueue shard : mShards) {
+            depth += shard.mParallelBroadcasts.size() + shard.mOrderedBroadcasts.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Whether the broadcast can be split across the shards: it goes to manifest receivers
+     * only, and none of them, nor the sender, relies on it being delivered in order.
+     */
+    private boolean isShardableLocked(BroadcastRecord r) {
+        if (mShards.length == 0 || r.ordered || r.resultTo != null
+                || r.receivers == null || r.receivers.isEmpty()) {
+            return false;
+        }
+        for (int i = r.receivers.size() - 1; i >= 0; i--) {
+            if (!(r.receivers.get(i) instanceof ResolveInfo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    int shardIndexLocked(ActivityInfo info) {
+        final int hash = 31 * info.processName.hashCode() + info.applicationInfo.uid;
+        return (hash & Integer.MAX_VALUE) % mShards.length;
+    }
+
+    /**
+     * Splits the broadcast by the shard of its receivers' processes, and enqueues each
+     * part on its shard.  A part replaces a pending part of the same intent on its shard
+     * if the broadcast asks for it.
+     */
+    private void enqueueShardedBroadcastLocked(BroadcastRecord r) {
+        final boolean replacePending =
+                (r.intent.getFlags() & Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0;
+        final SparseArray<ArrayList<ResolveInfo>> receiversByShard = new SparseArray<>();
+        for (int i = 0; i < r.receivers.size(); i++) {
+            final ResolveInfo info = (ResolveInfo) r.receivers.get(i);
+            final int index = shardIndexLocked(info.activityInfo);
+            ArrayList<ResolveInfo> receivers = receiversByShard.get(index);
+            if (receivers == null) {
+                receivers = new ArrayList<>();
+                receiversByShard.put(index, receivers);
+            }
+            receivers.add(info);
+        }
+
+        r.enqueueClockTime = System.currentTimeMillis();
+        for (int i = 0; i < receiversByShard.size(); i++) {
+            final BroadcastQueue shard = mShards[receiversByShard.keyAt(i)];
+            final BroadcastRecord part =
+                    new BroadcastRecord(r, shard, receiversByShard.valueAt(i));
+            r.splitPending++;
+            if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing part of " + r
+                    + " on [" + shard.mQueueName + "]: " + part);
+            final BroadcastRecord old =
+                    replacePending ? shard.replaceOrderedBroadcastLocked(part) : null;
+            if (old == null) {
+                shard.mOrderedBroadcasts.add(part);
+                shard.enqueueBroadcastHelper(part);
+            } else if (old.splitFrom != null) {
+                // The replaced part will never finish, so account for it now.
+                final BroadcastRecord stat = finishSplitPartLocked(old);
+                if (stat != null && stat.dispatchTime != 0) {
+                    addBroadcastStatLocked(stat);
+                }
+            }
+            shard.scheduleBroadcastsLocked();
+        }
+    }
+
+    /**
+     * Adds what a part of a split broadcast did to the broadcast it was split from, once
+     * the part has finished.  Returns that broadcast if this was its last part, or null.
+     */
+    @VisibleForTesting
+    BroadcastRecord finishSplitPartLocked(BroadcastRecord part) {
+        final BroadcastRecord r = part.splitFrom;
+        r.manifestCount += part.manifestCount;
+        r.manifestSkipCount += part.manifestSkipCount;
+        if (r.dispatchTime == 0 || (part.dispatchTime != 0 && part.dispatchTime < r.dispatchTime)) {
+            r.dispatchTime = part.dispatchTime;
+            r.dispatchClockTime = part.dispatchClockTime;
+        }
+        r.finishTime = Math.max(r.finishTime, part.finishTime);
+        return --r.splitPending == 0 ? r : null;
+    }
+
+    private void addBroadcastStatLocked(BroadcastRecord r) {
+        if (r.intent.getComponent() == null && r.intent.getPackage() == null
+                && (r.intent.getFlags()&Intent.FLAG_RECEIVER_REGISTERED_ONLY) == 0) {
+            // This was an implicit broadcast... let's record it for posterity.
+            mService.addBroadcastStatLocked(r.intent.getAction(), r.callerPackage,
+                    r.manifestCount, r.manifestSkipCount, r.finishTime-r.dispatchTime);
+        }
+    }
+
     /**
      * Don't call this method directly; call enqueueParallelBroadcastLocked or
      * enqueueOrderedBroadcastLocked.
@@ -249,6 +434,10 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
+        if (isShardableLocked(r)) {
+            // Replaced part by part on the shards when enqueued.
+            return null;
+        }
         return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
     }
 
@@ -263,6 +452,9 @@ public final class BroadcastQueue {
                             + typeForLogging + " [" + mQueueName + "]: " + intent);
                 }
                 queue.set(i, r);
+                r.enqueueClockTime = System.currentTimeMillis();
+                // Take over its place in the order of broadcasts to the receivers.
+                r.sequence = old.sequence;
                 return old;
             }
         }
@@ -399,9 +591,101 @@ public final class BroadcastQueue {
                 return r;
             }
         }
+        for (BroadcastQueue shard : mShards) {
+            final BroadcastRecord r = shard.getMatchingOrderedReceiver(receiver);
+            if (r != null) {
+                return r;
+            }
+        }
         return null;
     }
 
+    /**
+     * Whether a broadcast older than {@code sequence} is still to be delivered to, or is
+     * being delivered to, a manifest receiver in the given process.
+     */
+    @VisibleForTesting
+    boolean hasOlderBroadcastForProcessLocked(long sequence, String processName, int uid) {
+        for (int i = 0; i < mOrderedBroadcasts.size(); i++) {
+            final BroadcastRecord r = mOrderedBroadcasts.get(i);
+            if (r.sequence >= sequence) {
+                break;
+            }
+            if (r.receivers == null) {
+                continue;
+            }
+            final int first = r.state != BroadcastRecord.IDLE
+                    ? Math.max(r.nextReceiver - 1, 0) : r.nextReceiver;
+            for (int j = first; j < r.receivers.size(); j++) {
+                final Object o = r.receivers.get(j);
+                if (!(o instanceof ResolveInfo)) {
+                    continue;
+                }
+                final ActivityInfo info = ((ResolveInfo) o).activityInfo;
+                if (info.applicationInfo.uid == uid && info.processName.equals(processName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Manifest receivers in a process get ordered broadcasts from the primary queue and
+     * the others from a shard.  To have them see the broadcasts in the order they were
+     * sent, the next receiver of the broadcast waits for the older ones to the same process
+     * on the other queue.  The oldest broadcast never waits, so this always makes progress.
+     *
+     * @return true if the broadcast has to wait, in which case mWaitingForOrder is set and
+     * the queue is scheduled again when the other queues deliver.
+     */
+    @VisibleForTesting
+    boolean waitForOrderLocked(BroadcastRecord r) {
+        final Object next = r.receivers.get(r.nextReceiver);
+        if (next instanceof ResolveInfo) {
+            final ActivityInfo info = ((ResolveInfo) next).activityInfo;
+            BroadcastQueue other = null;
+            if (mPrimary != this) {
+                other = mPrimary;
+            } else if (mShards.length > 0) {
+                other = mShards[shardIndexLocked(info)];
+            }
+            if (other != null && other.hasOlderBroadcastForProcessLocked(r.sequence,
+                    info.processName, info.applicationInfo.uid)) {
+                if (!mWaitingForOrder) {
+                    if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Waiting for ["
+                            + other.mQueueName + "] to deliver to " + info.processName
+                            + " before " + r);
+                    mWaitingForOrder = true;
+                    mOrderWaitStartTime = SystemClock.uptimeMillis();
+                    // Nothing is being delivered on this queue while it waits.
+                    cancelBroadcastTimeoutLocked();
+                }
+                return true;
+            }
+        }
+        if (mWaitingForOrder) {
+            mWaitingForOrder = false;
+            r.orderWaitTime += SystemClock.uptimeMillis() - mOrderWaitStartTime;
+        }
+        return false;
+    }
+
+    /**
+     * Schedules the other queues of the primary that are waiting for order, now that this
+     * one has finished delivering something.
+     */
+    private void scheduleOrderWaitersLocked() {
+        if (mPrimary != this && mPrimary.mWaitingForOrder) {
+            mPrimary.scheduleBroadcastsLocked();
+        }
+        for (BroadcastQueue shard : mPrimary.mShards) {
+            if (shard != this && shard.mWaitingForOrder) {
+                shard.scheduleBroadcastsLocked();
+            }
+        }
+    }
+
     public boolean finishReceiverLocked(BroadcastRecord r, int resultCode,
             String resultData, Bundle resultExtras, boolean resultAbort, boolean waitForServices) {
         final int state = r.state;
@@ -459,6 +743,7 @@ public final class BroadcastQueue {
         }
 
         r.curComponent = null;
+        scheduleOrderWaitersLocked();
 
         // We will process the next receiver right now if this is finishing
         // an app receiver (which is always asynchronous) or after we have
@@ -837,6 +1122,8 @@ public final class BroadcastQueue {
                 r = mParallelBroadcasts.remove(0);
                 r.dispatchTime = SystemClock.uptimeMillis();
                 r.dispatchClockTime = System.currentTimeMillis();
+                mPrimary.mDispatchLatencyHistogram.add(
+                        (int) (r.dispatchClockTime - r.enqueueClockTime));
 
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                     Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -918,8 +1205,12 @@ public final class BroadcastQueue {
                 int numReceivers = (r.receivers != null) ? r.receivers.size() : 0;
                 if (mService.mProcessesReady && r.dispatchTime > 0) {
                     long now = SystemClock.uptimeMillis();
+                    // Time spent waiting for order doesn't count against the receivers.
+                    long waitTime = r.orderWaitTime
+                            + (mWaitingForOrder ? now - mOrderWaitStartTime : 0);
                     if ((numReceivers > 0) &&
-                            (now > r.dispatchTime + (2*mTimeoutPeriod*numReceivers))) {
+                            (now > r.dispatchTime + waitTime
+                                    + (2*mTimeoutPeriod*numReceivers))) {
                         Slog.w(TAG, "Hung broadcast ["
                                 + mQueueName + "] discarded after timeout failure:"
                                 + " now=" + now
@@ -928,6 +1219,7 @@ public final class BroadcastQueue {
                                 + " intent=" + r.intent
                                 + " numReceivers=" + numReceivers
                                 + " nextReceiver=" + r.nextReceiver
+                                + " orderWaitTime=" + waitTime
                                 + " state=" + r.state);
                         broadcastTimeoutLocked(false); // forcibly finish this broadcast
                         forceReceive = true;
@@ -975,19 +1267,25 @@ public final class BroadcastQueue {
 
                     // ... and on to the next...
                     addBroadcastToHistoryLocked(r);
-                    if (r.intent.getComponent() == null && r.intent.getPackage() == null
-                            && (r.intent.getFlags()&Intent.FLAG_RECEIVER_REGISTERED_ONLY) == 0) {
-                        // This was an implicit broadcast... let's record it for posterity.
-                        mService.addBroadcastStatLocked(r.intent.getAction(), r.callerPackage,
-                                r.manifestCount, r.manifestSkipCount, r.finishTime-r.dispatchTime);
+                    // A split broadcast is recorded once all of its parts have finished.
+                    final BroadcastRecord stat = r.splitFrom != null
+                            ? finishSplitPartLocked(r) : r;
+                    if (stat != null) {
+                        addBroadcastStatLocked(stat);
                     }
                     mOrderedBroadcasts.remove(0);
+                    mWaitingForOrder = false;
+                    scheduleOrderWaitersLocked();
                     r = null;
                     looped = true;
                     continue;
                 }
             } while (r == null);
 
+            if (waitForOrderLocked(r)) {
+                return;
+            }
+
             // Get the next receiver...
             int recIdx = r.nextReceiver++;
 
@@ -997,6 +1295,8 @@ public final class BroadcastQueue {
             if (recIdx == 0) {
                 r.dispatchTime = r.receiverTime;
                 r.dispatchClockTime = System.currentTimeMillis();
+                mPrimary.mDispatchLatencyHistogram.add(
+                        (int) (r.dispatchClockTime - r.enqueueClockTime));
                 if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                     Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                         createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1640,6 +1940,16 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null && mPrimary == this) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Dispatch stats [" + mQueueName + "]: " + mShards.length + " shards");
+            mQueueDepthHistogram.dump(pw, "    Queue depth: ");
+            mDispatchLatencyHistogram.dump(pw, "    Dispatch latency (ms): ");
+        }
+
         int i;
         boolean printed = false;
 
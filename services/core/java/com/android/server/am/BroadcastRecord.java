@@ -76,6 +76,10 @@ final class BroadcastRecord extends Binder {
     int manifestCount;      // number of manifest receivers dispatched.
     int manifestSkipCount;  // number of manifest receivers skipped.
     BroadcastQueue queue;   // the outbound queue handling this broadcast
+    long sequence;          // order of enqueueing among the ordered broadcasts of the queue.
+    long orderWaitTime;     // time spent waiting behind older broadcasts to the same process.
+    BroadcastRecord splitFrom; // the broadcast this was split from to dispatch on a shard.
+    int splitPending;       // number of parts split from this one that haven't finished.
 
     static final int IDLE = 0;
     static final int APP_RECEIVE = 1;
@@ -144,6 +148,12 @@ final class BroadcastRecord extends Binder {
         if (anrCount != 0) {
             pw.print(prefix); pw.print("anrCount="); pw.println(anrCount);
         }
+        if (splitFrom != null || splitPending != 0 || orderWaitTime != 0) {
+            pw.print(prefix); pw.print("sequence="); pw.print(sequence);
+                    pw.print(" orderWaitTime="); TimeUtils.formatDuration(orderWaitTime, pw);
+                    pw.print(" splitFrom="); pw.print(splitFrom);
+                    pw.print(" splitPending="); pw.println(splitPending);
+        }
         if (resultTo != null || resultCode != -1 || resultData != null) {
             pw.print(prefix); pw.print("resultTo="); pw.print(resultTo);
                     pw.print(" resultCode="); pw.print(resultCode);
@@ -248,6 +258,42 @@ final class BroadcastRecord extends Binder {
         state = IDLE;
     }
 
+    /**
+     * Creates the part of a broadcast that is dispatched to some of its manifest receivers
+     * on a shard of the queue.  The part has its own copy of the intent, as the component
+     * of the intent is set to the receiver while it is delivered.
+     */
+    BroadcastRecord(BroadcastRecord from, BroadcastQueue _queue, List _receivers) {
+        intent = new Intent(from.intent);
+        targetComp = from.targetComp;
+
+        callerApp = from.callerApp;
+        callerPackage = from.callerPackage;
+        callingPid = from.callingPid;
+        callingUid = from.callingUid;
+        callerInstantApp = from.callerInstantApp;
+        ordered = from.ordered;
+        sticky = from.sticky;
+        initialSticky = from.initialSticky;
+        userId = from.userId;
+        resolvedType = from.resolvedType;
+        requiredPermissions = from.requiredPermissions;
+        appOp = from.appOp;
+        options = from.options;
+        receivers = _receivers;
+        delivery = new int[_receivers.size()];
+        resultTo = from.resultTo;
+        resultCode = from.resultCode;
+        resultData = from.resultData;
+        resultExtras = from.resultExtras;
+        nextReceiver = 0;
+        state = IDLE;
+        queue = _queue;
+        enqueueClockTime = from.enqueueClockTime;
+        sequence = from.sequence;
+        splitFrom = from;
+    }
+
     /**
      * Copy constructor which takes a different intent.
      * Only used by {@link #maybeStripForHistory}.
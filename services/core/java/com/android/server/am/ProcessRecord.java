@@ -63,6 +63,9 @@ final class ProcessRecord {
     final String processName;   // name of the process
     // List of packages running in the process
     final ArrayMap<String, ProcessStats.ProcessStateHolder> pkgList = new ArrayMap<>();
+    // Copy of the keys of pkgList for readers that don't hold the activity manager lock;
+    // republished whenever pkgList changes.
+    private volatile String[] mPackageListSnapshot;
     UidRecord uidRecord;        // overall state of process's uid.
     ArraySet<String> pkgDeps;   // additional packages we have a dependency on
     IApplicationThread thread;  // the actual proc...  may be null only if
@@ -440,6 +443,7 @@ final class ProcessRecord {
         userId = UserHandle.getUserId(_uid);
         processName = _processName;
         pkgList.put(_info.packageName, new ProcessStats.ProcessStateHolder(_info.versionCode));
+        updatePackageListSnapshot();
         maxAdj = ProcessList.UNKNOWN_ADJ;
         curRawAdj = setRawAdj = ProcessList.INVALID_ADJ;
         curAdj = setAdj = verifiedAdj = ProcessList.INVALID_ADJ;
@@ -702,6 +706,7 @@ final class ProcessRecord {
             } else {
                 pkgList.put(pkg, holder);
             }
+            updatePackageListSnapshot();
             return true;
         }
         return false;
@@ -754,6 +759,7 @@ final class ProcessRecord {
             pkgList.clear();
             pkgList.put(info.packageName, new ProcessStats.ProcessStateHolder(info.versionCode));
         }
+        updatePackageListSnapshot();
     }
 
     public String[] getPackageList() {
@@ -767,4 +773,16 @@ final class ProcessRecord {
         }
         return list;
     }
+
+    /**
+     * Like {@link #getPackageList}, but safe to call without the activity manager lock.
+     * The returned array must not be modified.
+     */
+    public String[] getPackageListSnapshot() {
+        return mPackageListSnapshot;
+    }
+
+    private void updatePackageListSnapshot() {
+        mPackageListSnapshot = getPackageList();
+    }
 }
@@ -53,6 +53,10 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        public long bytesWritten = 0;
+        public int countJournalOpsReplayed = -1;
+        public long journalReplayTimeMillis = -1;
+
         public JobStorePersistStats() {
         }
 
@@ -64,6 +68,10 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            bytesWritten = source.bytesWritten;
+            countJournalOpsReplayed = source.countJournalOpsReplayed;
+            journalReplayTimeMillis = source.journalReplayTimeMillis;
         }
 
         @Override
@@ -75,7 +83,11 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " BytesWritten: " + bytesWritten
+                    + " JournalReplay: "
+                    + countJournalOpsReplayed + "/"
+                    + journalReplayTimeMillis + "ms";
         }
     }
 }
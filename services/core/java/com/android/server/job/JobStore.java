@@ -22,12 +22,14 @@ import android.content.ComponentName;
 import android.app.job.JobInfo;
 import android.content.Context;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
+import android.util.ArrayMap;
 import android.util.AtomicFile;
 import android.util.ArraySet;
 import android.util.Pair;
@@ -42,16 +44,23 @@ import com.android.server.IoThread;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -62,6 +71,10 @@ import org.xmlpull.v1.XmlSerializer;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs live in a snapshot, jobs.xml, plus a journal, jobs.journal, of the adds and
+ * removes made since the snapshot was written. Mutations are appended to the journal; once it
+ * outgrows the snapshot, the snapshot is rewritten and the journal started over.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
  *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
@@ -87,6 +100,19 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final File mJournalFile;
+    /** Mutations of persisted jobs not yet written out, in order. Guarded by mLock. */
+    private final ArrayList<JournalOp> mPendingOps = new ArrayList<>();
+    /** Whether the next write has to be a full snapshot. Guarded by mLock. */
+    private boolean mNeedSnapshot;
+    /**
+     * Generation of the snapshot on disk. The journal records the generation it was started
+     * against, and is only replayed on top of that snapshot. This and the sizes below are
+     * only touched by the reader at boot and by the writer on the IoThread afterwards.
+     */
+    private long mGeneration;
+    private long mSnapshotBytes;
+    private long mJournalBytes;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -126,6 +152,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournalFile = new File(jobDir, "jobs.journal");
 
         mJobSet = new JobSet();
 
@@ -140,7 +167,7 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = Math.max(mJobsFile.getLastModifiedTime(), mJournalFile.lastModified());
         mRtcGood = (System.currentTimeMillis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -187,6 +214,12 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            // Copy the job so it can be written out without holding the lock.
+            mPendingOps.add(JournalOp.add(new JobStatus(jobStatus)));
+            maybeWriteStatusToDiskAsync();
+        } else if (replaced) {
+            // The job it replaced may have been persisted.
+            mPendingOps.add(JournalOp.remove(jobStatus));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -224,8 +257,12 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Without writeBack the removal still goes out, but with the next write.
+            mPendingOps.add(JournalOp.remove(jobStatus));
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -236,11 +273,15 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        // Rare enough that the next write can simply be a full snapshot.
+        mNeedSnapshot = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mPendingOps.clear();
+        mNeedSnapshot = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -289,6 +330,12 @@ public final class JobStore {
 
     /** Version of the db schema. */
     private static final int JOBS_FILE_VERSION = 0;
+    /** Version of the journal format. */
+    private static final int JOURNAL_VERSION = 1;
+    private static final int JOURNAL_OP_ADD = 1;
+    private static final int JOURNAL_OP_REMOVE = 2;
+    /** The journal is never compacted before it reaches this size. */
+    private static final long MIN_JOURNAL_BYTES_TO_COMPACT = 64 * 1024;
     /** Tag corresponds to constraints this job needs. */
     private static final String XML_TAG_PARAMS_CONSTRAINTS = "constraints";
     /** Tag corresponds to execution parameters. */
@@ -296,9 +343,37 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** A mutation of a persisted job, waiting to be appended to the journal. */
+    private static final class JournalOp {
+        final int op;
+        final int uid;
+        final int jobId;
+        /** Copy of the job for {@link #JOURNAL_OP_ADD}. */
+        final JobStatus job;
+
+        private JournalOp(int op, int uid, int jobId, JobStatus job) {
+            this.op = op;
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = job;
+        }
+
+        static JournalOp add(JobStatus job) {
+            return new JournalOp(JOURNAL_OP_ADD, job.getUid(), job.getJobId(), job);
+        }
+
+        static JournalOp remove(JobStatus job) {
+            return new JournalOp(JOURNAL_OP_REMOVE, job.getUid(), job.getJobId(), null);
+        }
+    }
+
+    private static long journalKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xffffffffL);
+    }
+
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we append the changes to the journal, or rewrite all the
+     * jobs in one swath once the journal has grown too large.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -317,7 +392,8 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes {@link #mJobSet} out, either by appending the pending mutations to
+     * the journal or by writing a full snapshot to xml.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
@@ -325,21 +401,37 @@ public final class JobStore {
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final ArrayList<JournalOp> ops = new ArrayList<>();
+            final boolean snapshot;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(new JobStatusFunctor() {
-                    @Override
-                    public void process(JobStatus job) {
-                        if (job.isPersisted()) {
-                            storeCopy.add(new JobStatus(job));
+                snapshot = mNeedSnapshot
+                        || mJournalBytes >= Math.max(mSnapshotBytes, MIN_JOURNAL_BYTES_TO_COMPACT);
+                if (snapshot) {
+                    // Clone the jobs so we can release the lock before writing.
+                    mJobSet.forEachJob(new JobStatusFunctor() {
+                        @Override
+                        public void process(JobStatus job) {
+                            if (job.isPersisted()) {
+                                storeCopy.add(new JobStatus(job));
+                            }
                         }
-                    }
-                });
+                    });
+                    // The snapshot covers everything that was pending.
+                    mNeedSnapshot = false;
+                } else {
+                    ops.addAll(mPendingOps);
+                    countPersistedJobsLocked();
+                }
+                mPendingOps.clear();
+            }
+            if (snapshot) {
+                writeJobsMapImpl(storeCopy);
+            } else {
+                appendToJournal(ops);
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished writing " + (snapshot ? "snapshot" : ops.size() + " ops")
+                        + ", took " + (SystemClock.elapsedRealtime() - startElapsed) + "ms");
             }
         }
 
@@ -347,6 +439,7 @@ public final class JobStore {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
+            final long generation = mGeneration + 1;
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 XmlSerializer out = new FastXmlSerializer();
@@ -356,17 +449,13 @@ public final class JobStore {
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "generation", Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -380,18 +469,28 @@ public final class JobStore {
                 out.endDocument();
 
                 // Write out to disk in one fell swoop.
+                final byte[] data = baos.toByteArray();
                 FileOutputStream fos = mJobsFile.startWrite();
-                fos.write(baos.toByteArray());
+                fos.write(data);
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+                mPersistInfo.bytesWritten += data.length;
+
+                // The journal belongs to the previous generation; start it over.
+                mGeneration = generation;
+                mSnapshotBytes = data.length;
+                mJournalFile.delete();
+                mJournalBytes = 0;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
                 }
+                requestSnapshot();
             } catch (XmlPullParserException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
+                requestSnapshot();
             } finally {
                 mPersistInfo.countAllJobsSaved = numJobs;
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
@@ -399,6 +498,108 @@ public final class JobStore {
             }
         }
 
+        /**
+         * Appends the ops to the journal. Each record is its length, the CRC32 of its payload
+         * and the payload: the op, followed by the job as a single-job xml document for adds,
+         * or by the uid and job id for removes. A new journal starts with its version and the
+         * generation of the snapshot it applies to.
+         */
+        private void appendToJournal(List<JournalOp> ops) {
+            if (ops.isEmpty()) {
+                return;
+            }
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(baos);
+                if (mJournalBytes == 0) {
+                    out.writeInt(JOURNAL_VERSION);
+                    out.writeLong(mGeneration);
+                }
+                final CRC32 crc = new CRC32();
+                for (int i = 0; i < ops.size(); i++) {
+                    final byte[] payload = encodeJournalOp(ops.get(i));
+                    crc.reset();
+                    crc.update(payload);
+                    out.writeInt(payload.length);
+                    out.writeLong(crc.getValue());
+                    out.write(payload);
+                }
+                out.flush();
+
+                final byte[] data = baos.toByteArray();
+                try (FileOutputStream fos = new FileOutputStream(mJournalFile, true)) {
+                    fos.write(data);
+                    FileUtils.sync(fos);
+                }
+                mDirtyOperations = 0;
+                mJournalBytes += data.length;
+                mPersistInfo.bytesWritten += data.length;
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(TAG, "Error appending to job journal, writing a snapshot instead.", e);
+                // A partial record may be left at the end of the journal; don't append to it.
+                requestSnapshot();
+            }
+        }
+
+        private byte[] encodeJournalOp(JournalOp op) throws IOException, XmlPullParserException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeByte(op.op);
+            if (op.op == JOURNAL_OP_ADD) {
+                out.flush();
+                XmlSerializer xml = new FastXmlSerializer();
+                xml.setOutput(baos, StandardCharsets.UTF_8.name());
+                xml.startDocument(null, true);
+                xml.startTag(null, "job-info");
+                xml.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                writeJobToXml(xml, op.job);
+                xml.endTag(null, "job-info");
+                xml.endDocument();
+            } else {
+                out.writeInt(op.uid);
+                out.writeInt(op.jobId);
+                out.flush();
+            }
+            return baos.toByteArray();
+        }
+
+        private void requestSnapshot() {
+            synchronized (mLock) {
+                mNeedSnapshot = true;
+            }
+        }
+
+        private void countPersistedJobsLocked() {
+            final int[] counts = new int[3];
+            mJobSet.forEachJob(new JobStatusFunctor() {
+                @Override
+                public void process(JobStatus job) {
+                    if (job.isPersisted()) {
+                        counts[0]++;
+                        if (job.getUid() == Process.SYSTEM_UID) {
+                            counts[1]++;
+                            if (isSyncJob(job)) {
+                                counts[2]++;
+                            }
+                        }
+                    }
+                }
+            });
+            mPersistInfo.countAllJobsSaved = counts[0];
+            mPersistInfo.countSystemServerJobsSaved = counts[1];
+            mPersistInfo.countSystemSyncManagerJobsSaved = counts[2];
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
+        }
+
         /** Write out a tag with data comprising the required fields and priority of this job and
          * its client.
          */
@@ -554,8 +755,9 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that reads list of persisted job from xml. This is run once at start up, so doesn't
-     * need to go through {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
+     * Runnable that reads list of persisted job from xml and replays the journal on top of it.
+     * This is run once at start up, so doesn't need to go through
+     * {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
      */
     private final class ReadJobMapFromDiskRunnable implements Runnable {
         private final JobSet jobSet;
@@ -570,39 +772,52 @@ public final class JobStore {
             this.rtcGood = rtcIsGood;
         }
 
+        /** Generation of the snapshot read, 0 if there is none. */
+        private long generation;
+
         @Override
         public void run() {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
-                    if (jobs != null) {
-                        long now = SystemClock.elapsedRealtime();
-                        IActivityManager am = ActivityManager.getService();
-                        for (int i=0; i<jobs.size(); i++) {
-                            JobStatus js = jobs.get(i);
-                            js.prepareLocked(am);
-                            js.enqueueTime = now;
-                            this.jobSet.add(js);
-
-                            numJobs++;
-                            if (js.getUid() == Process.SYSTEM_UID) {
-                                numSystemJobs++;
-                                if (isSyncJob(js)) {
-                                    numSyncJobs++;
-                                }
+                    final ArrayMap<Long, JobStatus> jobs = new ArrayMap<>();
+                    mSnapshotBytes = 0;
+                    try (FileInputStream fis = mJobsFile.openRead()) {
+                        final List<JobStatus> snapshot = readJobMapImpl(fis, rtcGood);
+                        if (snapshot != null) {
+                            for (int i = 0; i < snapshot.size(); i++) {
+                                final JobStatus js = snapshot.get(i);
+                                jobs.put(journalKey(js.getUid(), js.getJobId()), js);
+                            }
+                        }
+                        mSnapshotBytes = mJobsFile.getBaseFile().length();
+                    } catch (FileNotFoundException e) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Could not find jobs file, probably there was nothing"
+                                    + " to load.");
+                        }
+                    }
+                    mGeneration = generation;
+                    replayJournalLocked(jobs);
+
+                    long now = SystemClock.elapsedRealtime();
+                    IActivityManager am = ActivityManager.getService();
+                    for (int i=0; i<jobs.size(); i++) {
+                        JobStatus js = jobs.valueAt(i);
+                        js.prepareLocked(am);
+                        js.enqueueTime = now;
+                        this.jobSet.add(js);
+
+                        numJobs++;
+                        if (js.getUid() == Process.SYSTEM_UID) {
+                            numSystemJobs++;
+                            if (isSyncJob(js)) {
+                                numSyncJobs++;
                             }
                         }
                     }
-                }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
                 }
             } catch (XmlPullParserException | IOException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
@@ -616,7 +831,96 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
+        /**
+         * Applies the journal records to the jobs read from the snapshot. Replay stops at the
+         * first incomplete or corrupt record, which is what a crash mid-append leaves behind;
+         * the next write is then a snapshot, which starts a new journal.
+         */
+        private void replayJournalLocked(ArrayMap<Long, JobStatus> jobs) {
+            final long startElapsed = SystemClock.elapsedRealtime();
+            int numOps = 0;
+            mJournalBytes = mJournalFile.length();
+            if (mJournalBytes == 0) {
+                recordReplay(numOps, startElapsed);
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mJournalFile)))) {
+                final int version = in.readInt();
+                final long generation = in.readLong();
+                if (version != JOURNAL_VERSION || generation != mGeneration) {
+                    // Left over from before the snapshot was last written.
+                    Slog.i(TAG, "Ignoring job journal version " + version + " generation "
+                            + generation + ", snapshot is generation " + mGeneration);
+                    mNeedSnapshot = true;
+                    recordReplay(numOps, startElapsed);
+                    return;
+                }
+                final CRC32 crc = new CRC32();
+                while (true) {
+                    final int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    final long checksum = in.readLong();
+                    if (length <= 0 || length > mJournalBytes) {
+                        throw new IOException("Bad journal record length " + length);
+                    }
+                    final byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (crc.getValue() != checksum) {
+                        throw new IOException("Bad journal record checksum");
+                    }
+                    applyJournalRecord(jobs, payload);
+                    numOps++;
+                }
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(TAG, "Job journal truncated after " + numOps + " records.", e);
+                mNeedSnapshot = true;
+            }
+            recordReplay(numOps, startElapsed);
+        }
+
+        private void applyJournalRecord(ArrayMap<Long, JobStatus> jobs, byte[] payload)
+                throws XmlPullParserException, IOException {
+            switch (payload[0]) {
+                case JOURNAL_OP_ADD: {
+                    final List<JobStatus> added = readJobMapImpl(
+                            new ByteArrayInputStream(payload, 1, payload.length - 1), rtcGood);
+                    if (added != null) {
+                        for (int i = 0; i < added.size(); i++) {
+                            final JobStatus js = added.get(i);
+                            jobs.put(journalKey(js.getUid(), js.getJobId()), js);
+                        }
+                    }
+                    break;
+                }
+                case JOURNAL_OP_REMOVE: {
+                    final DataInputStream in = new DataInputStream(
+                            new ByteArrayInputStream(payload, 1, payload.length - 1));
+                    final int uid = in.readInt();
+                    final int jobId = in.readInt();
+                    jobs.remove(journalKey(uid, jobId));
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal op " + payload[0]);
+            }
+        }
+
+        private void recordReplay(int numOps, long startElapsed) {
+            if (mPersistInfo.countJournalOpsReplayed < 0) { // Only set them once.
+                mPersistInfo.countJournalOpsReplayed = numOps;
+                mPersistInfo.journalReplayTimeMillis =
+                        SystemClock.elapsedRealtime() - startElapsed;
+            }
+        }
+
+        private List<JobStatus> readJobMapImpl(InputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, StandardCharsets.UTF_8.name());
@@ -625,7 +929,9 @@ public final class JobStore {
             while (eventType != XmlPullParser.START_TAG &&
                     eventType != XmlPullParser.END_DOCUMENT) {
                 eventType = parser.next();
-                Slog.d(TAG, "Start tag: " + parser.getName());
+                if (DEBUG) {
+                    Slog.d(TAG, "Start tag: " + parser.getName());
+                }
             }
             if (eventType == XmlPullParser.END_DOCUMENT) {
                 if (DEBUG) {
@@ -648,6 +954,15 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                // Only snapshots carry a generation.
+                final String gen = parser.getAttributeValue(null, "generation");
+                if (gen != null) {
+                    try {
+                        generation = Long.parseLong(gen);
+                    } catch (NumberFormatException e) {
+                        Slog.e(TAG, "Invalid generation, ignoring the job journal.");
+                    }
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
@@ -46,6 +46,15 @@ public final class BatteryController extends StateController {
     private static volatile BatteryController sController;
 
     private final ArraySet<JobStatus> mTrackedTasks = new ArraySet<>();
+    /**
+     * The tracked jobs that require charging, and those that require the battery not to be low.
+     * When one of the two conditions changes, only the jobs in its set are updated.
+     */
+    private final ArraySet<JobStatus> mChargingTasks = new ArraySet<>();
+    private final ArraySet<JobStatus> mBatteryNotLowTasks = new ArraySet<>();
+    /** The conditions as last applied to the tracked jobs. */
+    private boolean mLastStablePower;
+    private boolean mLastBatteryNotLow;
     private ChargingTracker mChargeTracker;
 
     public static BatteryController get(JobSchedulerService taskManagerService) {
@@ -74,15 +83,23 @@ public final class BatteryController extends StateController {
         super(stateChangedListener, context, lock);
         mChargeTracker = new ChargingTracker();
         mChargeTracker.startTracking();
+        mLastStablePower = mChargeTracker.isOnStablePower();
+        mLastBatteryNotLow = mChargeTracker.isBatteryNotLow();
     }
 
     @Override
     public void maybeStartTrackingJobLocked(JobStatus taskStatus, JobStatus lastJob) {
         if (taskStatus.hasPowerConstraint()) {
             mTrackedTasks.add(taskStatus);
+            if (taskStatus.hasChargingConstraint()) {
+                mChargingTasks.add(taskStatus);
+                taskStatus.setChargingConstraintSatisfied(mLastStablePower);
+            }
+            if (taskStatus.hasBatteryNotLowConstraint()) {
+                mBatteryNotLowTasks.add(taskStatus);
+                taskStatus.setBatteryNotLowConstraintSatisfied(mLastBatteryNotLow);
+            }
             taskStatus.setTrackingController(JobStatus.TRACKING_BATTERY);
-            taskStatus.setChargingConstraintSatisfied(mChargeTracker.isOnStablePower());
-            taskStatus.setBatteryNotLowConstraintSatisfied(mChargeTracker.isBatteryNotLow());
         }
     }
 
@@ -90,6 +107,8 @@ public final class BatteryController extends StateController {
     public void maybeStopTrackingJobLocked(JobStatus taskStatus, JobStatus incomingJob, boolean forUpdate) {
         if (taskStatus.clearTrackingController(JobStatus.TRACKING_BATTERY)) {
             mTrackedTasks.remove(taskStatus);
+            mChargingTasks.remove(taskStatus);
+            mBatteryNotLowTasks.remove(taskStatus);
         }
     }
 
@@ -100,15 +119,22 @@ public final class BatteryController extends StateController {
             Slog.d(TAG, "maybeReportNewChargingStateLocked: " + stablePower);
         }
         boolean reportChange = false;
-        for (int i = mTrackedTasks.size() - 1; i >= 0; i--) {
-            final JobStatus ts = mTrackedTasks.valueAt(i);
-            boolean previous = ts.setChargingConstraintSatisfied(stablePower);
-            if (previous != stablePower) {
-                reportChange = true;
+        if (stablePower != mLastStablePower) {
+            mLastStablePower = stablePower;
+            for (int i = mChargingTasks.size() - 1; i >= 0; i--) {
+                final JobStatus ts = mChargingTasks.valueAt(i);
+                if (ts.setChargingConstraintSatisfied(stablePower) != stablePower) {
+                    reportChange = true;
+                }
             }
-            previous = ts.setBatteryNotLowConstraintSatisfied(batteryNotLow);
-            if (previous != batteryNotLow) {
-                reportChange = true;
+        }
+        if (batteryNotLow != mLastBatteryNotLow) {
+            mLastBatteryNotLow = batteryNotLow;
+            for (int i = mBatteryNotLowTasks.size() - 1; i >= 0; i--) {
+                final JobStatus ts = mBatteryNotLowTasks.valueAt(i);
+                if (ts.setBatteryNotLowConstraintSatisfied(batteryNotLow) != batteryNotLow) {
+                    reportChange = true;
+                }
             }
         }
         if (stablePower || batteryNotLow) {
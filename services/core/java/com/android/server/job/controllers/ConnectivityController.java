@@ -29,6 +29,7 @@ import android.os.Process;
 import android.os.UserHandle;
 import android.util.ArraySet;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.server.job.JobSchedulerService;
@@ -53,8 +54,12 @@ public final class ConnectivityController extends StateController implements
     private boolean mConnected;
     private boolean mValidated;
 
+    /**
+     * Tracked jobs by source uid. Network state is per uid, so it is looked up once for all
+     * of a uid's jobs, and a change for one uid only touches that uid's jobs.
+     */
     @GuardedBy("mLock")
-    private final ArraySet<JobStatus> mTrackedJobs = new ArraySet<>();
+    private final SparseArray<ArraySet<JobStatus>> mTrackedJobs = new SparseArray<>();
 
     /** Singleton. */
     private static ConnectivityController mSingleton;
@@ -85,8 +90,14 @@ public final class ConnectivityController extends StateController implements
     @Override
     public void maybeStartTrackingJobLocked(JobStatus jobStatus, JobStatus lastJob) {
         if (jobStatus.hasConnectivityConstraint()) {
-            updateConstraintsSatisfied(jobStatus);
-            mTrackedJobs.add(jobStatus);
+            final int uid = jobStatus.getSourceUid();
+            updateConstraintsSatisfied(jobStatus, getNetworkState(uid, ignoreBlocked(jobStatus)));
+            ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+            if (jobs == null) {
+                jobs = new ArraySet<>();
+                mTrackedJobs.put(uid, jobs);
+            }
+            jobs.add(jobStatus);
             jobStatus.setTrackingController(JobStatus.TRACKING_CONNECTIVITY);
         }
     }
@@ -95,17 +106,41 @@ public final class ConnectivityController extends StateController implements
     public void maybeStopTrackingJobLocked(JobStatus jobStatus, JobStatus incomingJob,
             boolean forUpdate) {
         if (jobStatus.clearTrackingController(JobStatus.TRACKING_CONNECTIVITY)) {
-            mTrackedJobs.remove(jobStatus);
+            final int uid = jobStatus.getSourceUid();
+            final ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+            if (jobs != null && jobs.remove(jobStatus) && jobs.isEmpty()) {
+                mTrackedJobs.remove(uid);
+            }
         }
     }
 
-    private boolean updateConstraintsSatisfied(JobStatus jobStatus) {
-        final int jobUid = jobStatus.getSourceUid();
-        final boolean ignoreBlocked = (jobStatus.getFlags() & JobInfo.FLAG_WILL_BE_FOREGROUND) != 0;
-        final NetworkInfo info = mConnManager.getActiveNetworkInfoForUid(jobUid, ignoreBlocked);
-        final Network network = mConnManager.getActiveNetworkForUid(jobUid, ignoreBlocked);
+    /** The active network of a uid, as seen by its jobs. */
+    private static final class NetworkState {
+        final NetworkInfo info;
+        final NetworkCapabilities capabilities;
+
+        NetworkState(NetworkInfo info, NetworkCapabilities capabilities) {
+            this.info = info;
+            this.capabilities = capabilities;
+        }
+    }
+
+    private static boolean ignoreBlocked(JobStatus jobStatus) {
+        return (jobStatus.getFlags() & JobInfo.FLAG_WILL_BE_FOREGROUND) != 0;
+    }
+
+    private NetworkState getNetworkState(int uid, boolean ignoreBlocked) {
+        final NetworkInfo info = mConnManager.getActiveNetworkInfoForUid(uid, ignoreBlocked);
+        final Network network = mConnManager.getActiveNetworkForUid(uid, ignoreBlocked);
         final NetworkCapabilities capabilities = (network != null)
                 ? mConnManager.getNetworkCapabilities(network) : null;
+        return new NetworkState(info, capabilities);
+    }
+
+    private boolean updateConstraintsSatisfied(JobStatus jobStatus, NetworkState state) {
+        final int jobUid = jobStatus.getSourceUid();
+        final NetworkInfo info = state.info;
+        final NetworkCapabilities capabilities = state.capabilities;
 
         final boolean validated = (capabilities != null)
                 && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
@@ -153,10 +188,15 @@ public final class ConnectivityController extends StateController implements
     private void updateTrackedJobs(int uid) {
         synchronized (mLock) {
             boolean changed = false;
-            for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (uid == -1 || uid == js.getSourceUid()) {
-                    changed |= updateConstraintsSatisfied(js);
+            if (uid == -1) {
+                for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
+                    changed |= updateTrackedJobsForUidLocked(mTrackedJobs.keyAt(i),
+                            mTrackedJobs.valueAt(i));
+                }
+            } else {
+                final ArraySet<JobStatus> jobs = mTrackedJobs.get(uid);
+                if (jobs != null) {
+                    changed = updateTrackedJobsForUidLocked(uid, jobs);
                 }
             }
             if (changed) {
@@ -165,6 +205,29 @@ public final class ConnectivityController extends StateController implements
         }
     }
 
+    private boolean updateTrackedJobsForUidLocked(int uid, ArraySet<JobStatus> jobs) {
+        // Jobs that will be foreground see the network even when it's blocked for the uid,
+        // so there are at most two views of the network to look up.
+        NetworkState state = null;
+        NetworkState ignoreBlockedState = null;
+        boolean changed = false;
+        for (int i = jobs.size()-1; i >= 0; i--) {
+            final JobStatus js = jobs.valueAt(i);
+            if (ignoreBlocked(js)) {
+                if (ignoreBlockedState == null) {
+                    ignoreBlockedState = getNetworkState(uid, true);
+                }
+                changed |= updateConstraintsSatisfied(js, ignoreBlockedState);
+            } else {
+                if (state == null) {
+                    state = getNetworkState(uid, false);
+                }
+                changed |= updateConstraintsSatisfied(js, state);
+            }
+        }
+        return changed;
+    }
+
     /**
      * We know the network has just come up. We want to run any jobs that are ready.
      */
@@ -172,12 +235,15 @@ public final class ConnectivityController extends StateController implements
     public void onNetworkActive() {
         synchronized (mLock) {
             for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (js.isReady()) {
-                    if (DEBUG) {
-                        Slog.d(TAG, "Running " + js + " due to network activity.");
+                final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+                for (int j = jobs.size()-1; j >= 0; j--) {
+                    final JobStatus js = jobs.valueAt(j);
+                    if (js.isReady()) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Running " + js + " due to network activity.");
+                        }
+                        mStateChangedListener.onRunJobNow(js);
                     }
-                    mStateChangedListener.onRunJobNow(js);
                 }
             }
         }
@@ -238,20 +304,29 @@ public final class ConnectivityController extends StateController implements
         pw.print(mConnected);
         pw.print(" validated=");
         pw.println(mValidated);
+        int numTracked = 0;
+        for (int i = 0; i < mTrackedJobs.size(); i++) {
+            numTracked += mTrackedJobs.valueAt(i).size();
+        }
         pw.print("Tracking ");
+        pw.print(numTracked);
+        pw.print(" from ");
         pw.print(mTrackedJobs.size());
-        pw.println(":");
+        pw.println(" uids:");
         for (int i = 0; i < mTrackedJobs.size(); i++) {
-            final JobStatus js = mTrackedJobs.valueAt(i);
-            if (js.shouldDump(filterUid)) {
-                pw.print("  #");
-                js.printUniqueId(pw);
-                pw.print(" from ");
-                UserHandle.formatUid(pw, js.getSourceUid());
-                pw.print(": C="); pw.print(js.needsAnyConnectivity());
-                pw.print(": M="); pw.print(js.needsMeteredConnectivity());
-                pw.print(": UM="); pw.print(js.needsUnmeteredConnectivity());
-                pw.print(": NR="); pw.println(js.needsNonRoamingConnectivity());
+            final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+            for (int j = 0; j < jobs.size(); j++) {
+                final JobStatus js = jobs.valueAt(j);
+                if (js.shouldDump(filterUid)) {
+                    pw.print("  #");
+                    js.printUniqueId(pw);
+                    pw.print(" from ");
+                    UserHandle.formatUid(pw, js.getSourceUid());
+                    pw.print(": C="); pw.print(js.needsAnyConnectivity());
+                    pw.print(": M="); pw.print(js.needsMeteredConnectivity());
+                    pw.print(": UM="); pw.print(js.needsUnmeteredConnectivity());
+                    pw.print(": NR="); pw.println(js.needsNonRoamingConnectivity());
+                }
             }
         }
     }
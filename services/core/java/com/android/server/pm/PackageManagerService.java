@@ -113,6 +113,7 @@ import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.ActivityManager;
+import android.app.ActivityManagerInternal;
 import android.app.AppOpsManager;
 import android.app.IActivityManager;
 import android.app.ResourcesManager;
@@ -390,6 +391,7 @@ import java.util.zip.GZIPInputStream;
 public class PackageManagerService extends IPackageManager.Stub
         implements PackageSender {
     static final String TAG = "PackageManager";
+    private static final String TAG_TIMING = "PackageManagerTiming";
     static final boolean DEBUG_SETTINGS = false;
     static final boolean DEBUG_PREFERRED = false;
     static final boolean DEBUG_UPGRADE = false;
@@ -622,7 +624,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "2";
 
     /**
      * Whether the package parser cache is enabled.
@@ -721,6 +723,13 @@ public class PackageManagerService extends IPackageManager.Stub
     @GuardedBy("mPackages")
     final ArrayMap<String, Set<String>> mPackageToPermissionsPlugins = new ArrayMap<String, Set<String>>();
 
+    /**
+     * Immutable snapshot of the active plugins of each app and API, rebuilt
+     * from the maps above whenever they change. Read without any lock.
+     */
+    private volatile PermissionsPluginIndex mPermissionsPluginIndex =
+            PermissionsPluginIndex.EMPTY;
+
     private final PermissionsPluginParser mPermissionsPluginParser;
     private final PermissionsPluginDb mPermissionsPluginDb;
 
@@ -947,6 +956,13 @@ public class PackageManagerService extends IPackageManager.Stub
     final ParallelPackageParserCallback mParallelPackageParserCallback =
             new ParallelPackageParserCallback();
 
+    /**
+     * Packages of the directory being scanned whose certificates were already collected
+     * by {@link ParallelPackageParser}, so {@link #collectCertificatesLI} can skip them.
+     */
+    @GuardedBy("mInstallLock")
+    private final ArraySet<PackageParser.Package> mPrecollectedCertificates = new ArraySet<>();
+
     public static final class SharedLibraryEntry {
         public final @Nullable String path;
         public final @Nullable String apk;
@@ -974,6 +990,9 @@ public class PackageManagerService extends IPackageManager.Stub
     final ActivityIntentResolver mReceivers =
             new ActivityIntentResolver();
 
+    // Results of resolving implicit intents against mActivities and mReceivers.
+    final ResolveCache mResolveCache = new ResolveCache();
+
     // All available services, for your resolving pleasure.
     final ServiceIntentResolver mServices = new ServiceIntentResolver();
 
@@ -2329,6 +2348,7 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     void scheduleWriteSettingsLocked() {
+        mResolveCache.invalidate(UserHandle.USER_ALL);
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2348,6 +2368,8 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     void scheduleWritePackageRestrictionsLocked(int userId) {
+        // Package restrictions are written whenever the package state of a user changes.
+        mResolveCache.invalidate(userId);
         final int[] userIds = (userId == UserHandle.USER_ALL)
                 ? sUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
@@ -3229,6 +3251,8 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
 
+        updatePermissionsPluginIndexLP();
+
         if(PermissionsPluginOptions.DEBUG){
             Slog.d(PermissionsPluginOptions.TAG,"Number of Permissions plugins loaded: "+ mPermissionsPlugins.size());
         }
@@ -3249,6 +3273,9 @@ public class PackageManagerService extends IPackageManager.Stub
             // Update permissions plugin maps
             addToPermissionsPluginMapLP(plugin);
 
+            // A plugin may be preselected for the packages it supports
+            notifyPermissionsPluginsChangedLP(null);
+
             // Add new plugin to the plugin db
             plugin.id = mPermissionsPluginDb.insertPlugin(plugin);
             if(-1 == plugin.id){
@@ -3284,6 +3311,8 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
 
+        notifyPermissionsPluginsChangedLP(null);
+
         // Remove the plugin from the plugin db
         int deletedRows = mPermissionsPluginDb.deletePlugin(plugin);
         if(1!=deletedRows){
@@ -3311,6 +3340,45 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
+    /**
+     * Rebuild and publish the index of active plugins from the plugin maps.
+     */
+    private void updatePermissionsPluginIndexLP(){
+        mPermissionsPluginIndex = PermissionsPluginIndex.build(mPermissionsPlugins,
+                mPackageToPermissionsPlugins, sPermissionsPluginPriorityComparator,
+                mPermissionsPluginIndex.getGeneration() + 1);
+    }
+
+    /**
+     * Publish the new plugin selection, then tell every process to drop its
+     * cached plugin selection for the given package, or for all packages if
+     * packageName is null.
+     * Before the activity manager is up there is nothing cached to drop.
+     */
+    private void notifyPermissionsPluginsChangedLP(String packageName){
+        updatePermissionsPluginIndexLP();
+
+        ActivityManagerInternal ami = LocalServices.getService(ActivityManagerInternal.class);
+        if (ami != null) {
+            ami.notifyPermissionsPluginsChanged(packageName);
+        }
+    }
+
+    /**
+     * Orders plugins by decreasing priority, and then by package name so that
+     * the order is stable.
+     */
+    private static final Comparator<PermissionsPlugin> sPermissionsPluginPriorityComparator =
+            new Comparator<PermissionsPlugin>() {
+        @Override
+        public int compare(PermissionsPlugin lhs, PermissionsPlugin rhs) {
+            if (lhs.priority != rhs.priority) {
+                return Integer.compare(rhs.priority, lhs.priority);
+            }
+            return lhs.packageName.compareTo(rhs.packageName);
+        }
+    };
+
     /**
      * Return list of pemrissions plugins that are activated by 
      * user for given target app and target API.
@@ -3319,47 +3387,14 @@ public class PackageManagerService extends IPackageManager.Stub
      */
     @Override
     public ParceledListSlice<PermissionsPlugin> getActivePermissionsPluginsForApp(String appPackage, String targetAPI) {
-        synchronized (mPackages) {
-            List<PermissionsPlugin> list = new ArrayList<>();
-
-            // Return an empty list if the appPackage is trusted
-            if (isPackageTrusted(appPackage)) {
-                return new ParceledListSlice<>(list);
-            }
-
-            // Return an empty list if the appPackage is a plugin
-            if (mPermissionsPlugins.containsKey(appPackage)) {
-                return new ParceledListSlice<>(list);
-            }
-
-            // Search all the plugins that supports given app
-            if (mPackageToPermissionsPlugins.containsKey(appPackage)) {	
-                for (String pluginPackage : mPackageToPermissionsPlugins.get(appPackage)) {
-                    PermissionsPlugin plugin = mPermissionsPlugins.get(pluginPackage);
-
-                    // Add plugin if it is selected by users for given app and API
-                    if (plugin.targetPackageToAPIs.containsKey(appPackage) && 
-                        plugin.targetPackageToAPIs.get(appPackage).contains(targetAPI)) {
-                        list.add(plugin);
-                    }
-                }				
-            }
-
-            // Add plugins that supports all packages (*)        	
-            if(mPackageToPermissionsPlugins.containsKey(PermissionsPlugin.ALL_PACKAGES)){	        	
-                for(String pluginPackage : mPackageToPermissionsPlugins.get(PermissionsPlugin.ALL_PACKAGES)){
-                    PermissionsPlugin plugin = mPermissionsPlugins.get(pluginPackage);
-                
-                    // Add plugin if it is selected by users for this app and API
-                    if (plugin.targetPackageToAPIs.containsKey(PermissionsPlugin.ALL_PACKAGES) && 
-                        plugin.targetPackageToAPIs.get(PermissionsPlugin.ALL_PACKAGES).contains(targetAPI)) {
-                        list.add(plugin);
-                    }
-                }
-            }		
-
-            return new ParceledListSlice<>(list);        	
+        // Return an empty list if the appPackage is trusted
+        if (isPackageTrusted(appPackage)) {
+            return new ParceledListSlice<>(Collections.emptyList());
         }
+
+        // The index is immutable; no need to hold mPackages
+        return new ParceledListSlice<>(
+                mPermissionsPluginIndex.getActivePlugins(appPackage, targetAPI));
     }
 
 
@@ -3374,14 +3409,8 @@ public class PackageManagerService extends IPackageManager.Stub
      */
     @Override
     public boolean hasStoragePlugin(String packageName) {
-        synchronized (mPackages) {
-            List<PermissionsPlugin> plugins = getActivePermissionsPluginsForApp(packageName,PluginProxy.INTERPOSER_STORAGE).getList();
-            if (!plugins.isEmpty()) {
-                return true;
-            } else {
-                return false;
-            }
-        }
+        return !isPackageTrusted(packageName) && !mPermissionsPluginIndex.getActivePlugins(
+                packageName, PluginProxy.INTERPOSER_STORAGE).isEmpty();
     }
 
     /**
@@ -3460,6 +3489,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 plugin.targetPackageToAPIs.get(targetPackage).remove(targetAPI);
             }
 
+            notifyPermissionsPluginsChangedLP(targetPackage);
+
             // Update plugin in db
             int updatedRows = mPermissionsPluginDb.updatePlugin(plugin);
 
@@ -7606,6 +7637,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 false /* requireFullPermission */, false /* checkShell */,
                 "query intent activities");
         final String pkgName = intent.getPackage();
+        final boolean cacheable = isResolveCacheable(intent);
         ComponentName comp = intent.getComponent();
         if (comp == null) {
             if (intent.getSelector() != null) {
@@ -7660,15 +7692,35 @@ public class PackageManagerService extends IPackageManager.Stub
                     list, instantAppPkgName, allowDynamicSplits, filterCallingUid, userId);
         }
 
+        final long startTime = System.nanoTime();
+        final ResolveCache.Key cacheKey = cacheable
+                ? new ResolveCache.Key(ResolveCache.KIND_ACTIVITIES, intent, resolvedType, flags,
+                        filterCallingUid, userId, resolveForStart, allowDynamicSplits)
+                : null;
+        if (cacheKey != null) {
+            final List<ResolveInfo> cached = mResolveCache.get(cacheKey, startTime);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         // reader
         boolean sortResult = false;
         boolean addEphemeral = false;
+        boolean cacheResult = false;
+        int cacheGeneration = 0;
         List<ResolveInfo> result;
         final boolean ephemeralDisabled = isEphemeralDisabled();
         synchronized (mPackages) {
             if (pkgName == null) {
+                cacheGeneration = mResolveCache.getGeneration();
                 List<CrossProfileIntentFilter> matchingFilters =
                         getMatchingCrossProfileIntentFilters(intent, resolvedType, userId);
+                // Results that depend on cross profile filters, domain verification or
+                // instant apps aren't cached.
+                cacheResult = cacheKey != null
+                        && (matchingFilters == null || matchingFilters.isEmpty())
+                        && !hasWebURI(intent);
                 // Check for results that need to skip the current profile.
                 ResolveInfo xpResolveInfo  = querySkipCurrentProfileIntents(matchingFilters, intent,
                         resolvedType, flags, userId);
@@ -7760,8 +7812,25 @@ public class PackageManagerService extends IPackageManager.Stub
         if (sortResult) {
             Collections.sort(result, mResolvePrioritySorter);
         }
-        return applyPostResolutionFilter(
+        result = applyPostResolutionFilter(
                 result, instantAppPkgName, allowDynamicSplits, filterCallingUid, userId);
+        if (cacheResult && !addEphemeral) {
+            mResolveCache.put(cacheKey, result, cacheGeneration, startTime);
+        } else if (cacheKey != null) {
+            mResolveCache.recordUncacheable(cacheKey);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the result of resolving the given implicit intent may be cached in
+     * {@link #mResolveCache}. Intents with a selector or a target package are rarely resolved
+     * twice, and resolutions that are logged have to run every time.
+     */
+    private static boolean isResolveCacheable(Intent intent) {
+        return intent.getPackage() == null
+                && intent.getSelector() == null
+                && (intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) == 0;
     }
 
     private List<ResolveInfo> maybeAddInstantAppInstaller(List<ResolveInfo> result, Intent intent,
@@ -8559,6 +8628,7 @@ public class PackageManagerService extends IPackageManager.Stub
         final String instantAppPkgName = getInstantAppPackageName(callingUid);
         flags = updateFlagsForResolve(flags, userId, intent, callingUid,
                 false /*includeInstantApps*/);
+        final boolean cacheable = isResolveCacheable(intent);
         ComponentName comp = intent.getComponent();
         if (comp == null) {
             if (intent.getSelector() != null) {
@@ -8610,14 +8680,30 @@ public class PackageManagerService extends IPackageManager.Stub
                     list, instantAppPkgName, allowDynamicSplits, callingUid, userId);
         }
 
+        final long startTime = System.nanoTime();
+        final ResolveCache.Key cacheKey = cacheable
+                ? new ResolveCache.Key(ResolveCache.KIND_RECEIVERS, intent, resolvedType, flags,
+                        callingUid, userId, false /*resolveForStart*/, allowDynamicSplits)
+                : null;
+        if (cacheKey != null) {
+            final List<ResolveInfo> cached = mResolveCache.get(cacheKey, startTime);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         // reader
         synchronized (mPackages) {
             String pkgName = intent.getPackage();
             if (pkgName == null) {
-                final List<ResolveInfo> result =
-                        mReceivers.queryIntent(intent, resolvedType, flags, userId);
-                return applyPostResolutionFilter(
-                        result, instantAppPkgName, allowDynamicSplits, callingUid, userId);
+                final int cacheGeneration = mResolveCache.getGeneration();
+                final List<ResolveInfo> result = applyPostResolutionFilter(
+                        mReceivers.queryIntent(intent, resolvedType, flags, userId),
+                        instantAppPkgName, allowDynamicSplits, callingUid, userId);
+                if (cacheKey != null) {
+                    mResolveCache.put(cacheKey, result, cacheGeneration, startTime);
+                }
+                return result;
             }
             final PackageParser.Package pkg = mPackages.get(pkgName);
             if (pkg != null) {
@@ -9438,9 +9524,15 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + dir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
+        final ParallelPackageParser.CertificatePolicy certificatePolicy;
+        synchronized (mPackages) {
+            certificatePolicy = createCertificatePolicyLPr();
+        }
         ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback);
+                mParallelPackageParserCallback, certificatePolicy);
+        final TimingsTraceLog traceLog = new TimingsTraceLog(TAG_TIMING,
+                TRACE_TAG_PACKAGE_MANAGER);
 
         // Submit files for parsing in parallel
         int fileCount = 0;
@@ -9455,13 +9547,17 @@ public class PackageManagerService extends IPackageManager.Stub
             fileCount++;
         }
 
-        // Process results one by one
+        // Commit results one by one
+        traceLog.traceBegin("scanDir commit [" + dir + "]");
         for (; fileCount > 0; fileCount--) {
             ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
             Throwable throwable = parseResult.throwable;
             int errorCode = PackageManager.INSTALL_SUCCEEDED;
 
             if (throwable == null) {
+                if (parseResult.certificatesCollected) {
+                    addPrecollectedCertificates(parseResult.pkg);
+                }
                 // Static shared libraries have synthetic package names
                 if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
                     renameStaticSharedLibraryPackage(parseResult.pkg);
@@ -9493,7 +9589,63 @@ public class PackageManagerService extends IPackageManager.Stub
                 removeCodePathLI(parseResult.scanFile);
             }
         }
+        mPrecollectedCertificates.clear();
+        traceLog.traceEnd();
         parallelPackageParser.close();
+
+        // The parallel stages overlap with the commit, so report the time summed over the
+        // parsing threads rather than wall time.
+        traceLog.logDuration("scanDir parse [" + dir + "] on "
+                + parallelPackageParser.getThreadCount() + " threads",
+                parallelPackageParser.getParseTimeMillis());
+        traceLog.logDuration("scanDir collectCertificates [" + dir + "]",
+                parallelPackageParser.getCertificateTimeMillis());
+    }
+
+    private void addPrecollectedCertificates(PackageParser.Package pkg) {
+        mPrecollectedCertificates.add(pkg);
+        final int childCount = (pkg.childPackages != null) ? pkg.childPackages.size() : 0;
+        for (int i = 0; i < childCount; i++) {
+            mPrecollectedCertificates.add(pkg.childPackages.get(i));
+        }
+    }
+
+    /**
+     * Returns the policy deciding which packages get their certificates collected while they
+     * are parsed. It mirrors the checks of {@link #collectCertificatesLI} against a snapshot
+     * of the current settings, so the parsing threads skip packages whose cached
+     * certificates will be reused.
+     */
+    private ParallelPackageParser.CertificatePolicy createCertificatePolicyLPr() {
+        final VersionInfo ver = mSettings.getInternalVersion();
+        final boolean signatureUpdateNeeded =
+                ver.databaseVersion < DatabaseVersion.SIGNATURE_END_ENTITY
+                || ver.databaseVersion < DatabaseVersion.SIGNATURE_MALFORMED_RECOVER;
+        final ArrayMap<String, Long> timeStamps = new ArrayMap<>();
+        final ArraySet<String> disabledSystemPackages = new ArraySet<>();
+        for (int i = mSettings.mPackages.size() - 1; i >= 0; i--) {
+            final PackageSetting ps = mSettings.mPackages.valueAt(i);
+            if (mSettings.isDisabledSystemPackageLPr(ps.name)) {
+                // Scanning the system copy may end up ignoring it, leave it to the commit
+                disabledSystemPackages.add(ps.name);
+            } else if (ps.codePath != null && !ArrayUtils.isEmpty(ps.signatures.mSignatures)) {
+                timeStamps.put(ps.codePath.getPath(), ps.timeStamp);
+            }
+        }
+        final boolean isPreNMR1Upgrade = mIsPreNMR1Upgrade;
+        return (pkg, scanFile) -> {
+            if (disabledSystemPackages.contains(pkg.packageName)) {
+                return false;
+            }
+            if (signatureUpdateNeeded) {
+                return true;
+            }
+            final Long timeStamp = timeStamps.get(scanFile.getPath());
+            final long lastModifiedTime = isPreNMR1Upgrade
+                    ? new File(pkg.codePath).lastModified()
+                    : getLastModifiedTime(pkg, scanFile);
+            return timeStamp == null || timeStamp != lastModifiedTime;
+        };
     }
 
     private static File getSettingsProblemFile() {
@@ -9526,7 +9678,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
-    private long getLastModifiedTime(PackageParser.Package pkg, File srcFile) {
+    private static long getLastModifiedTime(PackageParser.Package pkg, File srcFile) {
         if (srcFile.isDirectory()) {
             final File baseFile = new File(pkg.baseCodePath);
             long maxModifiedTime = baseFile.lastModified();
@@ -9574,6 +9726,11 @@ public class PackageManagerService extends IPackageManager.Stub
             Slog.i(TAG, srcFile.toString() + " changed; collecting certs");
         }
 
+        if (mPrecollectedCertificates.contains(pkg)) {
+            // Already collected while the package was parsed
+            return;
+        }
+
         try {
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "collectCertificates");
             PackageParser.collectCertificates(pkg, policyFlags);
@@ -14171,6 +14328,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         public final void addActivity(PackageParser.Activity a, String type) {
+            mResolveCache.invalidate(UserHandle.USER_ALL);
             mActivities.put(a.getComponentName(), a);
             if (DEBUG_SHOW_INFO)
                 Log.v(
@@ -14200,6 +14358,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         public final void removeActivity(PackageParser.Activity a, String type) {
+            mResolveCache.invalidate(UserHandle.USER_ALL);
             mActivities.remove(a.getComponentName());
             if (DEBUG_SHOW_INFO) {
                 Log.v(TAG, "  " + type + " "
@@ -15373,6 +15532,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 if (pkgSetting.getHidden(userId) != hidden) {
                     pkgSetting.setHidden(hidden, userId);
                     mSettings.writePackageRestrictionsLPr(userId);
+                    mResolveCache.invalidate(userId);
                     if (hidden) {
                         sendRemoved = true;
                     } else {
@@ -15500,6 +15660,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     pkgSetting.setHidden(false, userId);
                     pkgSetting.setInstallReason(installReason, userId);
                     mSettings.writePackageRestrictionsLPr(userId);
+                    mResolveCache.invalidate(userId);
                     mSettings.writeKernelMappingLPr(pkgSetting);
                     installed = true;
                 } else if (fullApp && pkgSetting.getInstantApp(userId)) {
@@ -15601,6 +15762,7 @@ public class PackageManagerService extends IPackageManager.Stub
                         }
                         pkgSetting.setSuspended(suspended, userId);
                         mSettings.writePackageRestrictionsLPr(userId);
+                        mResolveCache.invalidate(userId);
                         changed = true;
                         changedPackages.add(packageName);
                     }
@@ -22855,6 +23017,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         public static final int DUMP_COMPILER_STATS = 1 << 21;
         public static final int DUMP_CHANGES = 1 << 22;
         public static final int DUMP_VOLUMES = 1 << 23;
+        public static final int DUMP_PERMISSIONS_PLUGINS = 1 << 24;
+        public static final int DUMP_RESOLVE_CACHE = 1 << 25;
 
         public static final int OPTION_SHOW_FILTERS = 1 << 0;
 
@@ -22966,6 +23130,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
+                pw.println("    resolve-cache: dump intent resolution cache statistics");
                 pw.println("    enabled-overlays: dump list of enabled overlay packages");
                 pw.println("    <package.name>: info about given package");
                 return;
@@ -23096,12 +23261,16 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_FROZEN);
             } else if ("volumes".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_VOLUMES);
+            } else if ("permissions-plugins".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_PERMISSIONS_PLUGINS);
             } else if ("dexopt".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_DEXOPT);
             } else if ("compiler-stats".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_COMPILER_STATS);
             } else if ("changes".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_CHANGES);
+            } else if ("resolve-cache".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_RESOLVE_CACHE);
             } else if ("write".equals(cmd)) {
                 synchronized (mPackages) {
                     mSettings.writeLPr();
@@ -23497,6 +23666,21 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 ipw.decreaseIndent();
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_PERMISSIONS_PLUGINS)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                pw.println();
+                pw.println("Permissions plugin index:");
+                mPermissionsPluginIndex.dump(pw, "  ");
+            }
+
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_RESOLVE_CACHE)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                pw.println("Resolve cache:");
+                mResolveCache.dump(pw, "  ");
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_DEXOPT)) {
                 if (dumpState.onTitlePrinted()) pw.println();
                 dumpDexoptStateLPr(pw, packageName);
@@ -25133,6 +25317,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             mDirtyUsers.remove(userHandle);
             mUserNeedsBadging.delete(userHandle);
             mSettings.removeUserLPw(userHandle);
+            mResolveCache.invalidate(userHandle);
             mPendingBroadcasts.remove(userHandle);
             mInstantAppRegistry.onUserRemovedLPw(userHandle);
             removeUnusedPackagesLPw(userManager, userHandle);
@@ -25955,6 +26140,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
 
                 final PackageSetting ps = mSettings.mPackages.get(targetPackageName);
                 ps.setOverlayPaths(overlayPaths, userId);
+                mResolveCache.invalidate(userId);
                 return true;
             }
         }
@@ -29,38 +29,72 @@ import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
- * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>Parsing requests are processed by a thread-pool sized from the number of available
+ * cores, between {@link #MIN_THREADS} and {@link #MAX_THREADS}. At any time, at most
+ * {@link #QUEUE_CAPACITY_PER_THREAD} results per thread are kept in RAM</p>
+ * <p>If a {@link CertificatePolicy} is given, the certificates of packages that need them
+ * are also collected on the parsing threads, so that the caller only has to commit the
+ * results.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
-    private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_CAPACITY_PER_THREAD = 3;
+    private static final int MIN_THREADS = 4;
+    private static final int MAX_THREADS = 8;
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    private final CertificatePolicy mCertificatePolicy;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final int mThreadCount = computeThreadCount();
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
+    private final BlockingQueue<ParseResult> mQueue =
+            new ArrayBlockingQueue<>(mThreadCount * QUEUE_CAPACITY_PER_THREAD);
+
+    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(mThreadCount,
             "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
 
+    // Time spent in each parallel stage, summed over all parsing threads
+    private final AtomicLong mParseTimeNanos = new AtomicLong();
+    private final AtomicLong mCertificateTimeNanos = new AtomicLong();
+
+    /**
+     * Decides which parsed packages should have their certificates collected on the
+     * parsing threads. Called concurrently from several threads.
+     */
+    interface CertificatePolicy {
+        boolean shouldCollectCertificates(PackageParser.Package pkg, File scanFile);
+    }
+
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, null);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            CertificatePolicy certificatePolicy) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mCertificatePolicy = certificatePolicy;
+    }
+
+    private static int computeThreadCount() {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(MIN_THREADS, Math.min(cores, MAX_THREADS));
     }
 
     static class ParseResult {
@@ -68,6 +102,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        boolean certificatesCollected; // Set if pkg certificates were collected while parsing
 
         @Override
         public String toString() {
@@ -75,6 +110,7 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", certificatesCollected=" + certificatesCollected +
                     '}';
         }
     }
@@ -105,6 +141,7 @@ class ParallelPackageParser implements AutoCloseable {
     public void submit(File scanFile, int parseFlags) {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
+            long start = System.nanoTime();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
             try {
                 PackageParser pp = new PackageParser();
@@ -119,6 +156,23 @@ class ParallelPackageParser implements AutoCloseable {
                 pr.throwable = e;
             } finally {
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                mParseTimeNanos.addAndGet(System.nanoTime() - start);
+            }
+            if (pr.pkg != null && mCertificatePolicy != null
+                    && mCertificatePolicy.shouldCollectCertificates(pr.pkg, scanFile)) {
+                start = System.nanoTime();
+                Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER,
+                        "parallel collectCertificates [" + scanFile + "]");
+                try {
+                    collectCertificates(pr.pkg, parseFlags);
+                    pr.certificatesCollected = true;
+                } catch (PackageParser.PackageParserException e) {
+                    // Leave it to the caller, which collects them again and reports the
+                    // failure in the right order relative to its other checks.
+                } finally {
+                    Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                    mCertificateTimeNanos.addAndGet(System.nanoTime() - start);
+                }
             }
             try {
                 mQueue.put(pr);
@@ -138,6 +192,26 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    @VisibleForTesting
+    protected void collectCertificates(PackageParser.Package pkg, int parseFlags)
+            throws PackageParser.PackageParserException {
+        PackageParser.collectCertificates(pkg, parseFlags);
+    }
+
+    int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /** Returns the time spent parsing, summed over all parsing threads. */
+    long getParseTimeMillis() {
+        return mParseTimeNanos.get() / 1000000;
+    }
+
+    /** Returns the time spent collecting certificates, summed over all parsing threads. */
+    long getCertificateTimeMillis() {
+        return mCertificateTimeNanos.get() / 1000000;
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
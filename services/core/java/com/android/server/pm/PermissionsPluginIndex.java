@@ -0,0 +1,196 @@
+package com.android.server.pm;
+
+import android.os.Parcel;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.permissionsplugin.PermissionsPlugin;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable index from target package and API to the plugins that are
+ * active for them, in the order in which they must run.
+ *
+ * PackageManagerService builds a new index under its package lock whenever
+ * plugins are installed, removed or reselected, and publishes it with a
+ * single reference store. Lookups only read the published index, so the
+ * interposition path never waits for the package lock.
+ */
+final class PermissionsPluginIndex {
+
+    static final PermissionsPluginIndex EMPTY = new PermissionsPluginIndex(
+            Collections.emptySet(), Collections.emptyMap(), Collections.emptyMap(), 0);
+
+    /** Packages of the installed plugins; plugins are never interposed on. */
+    private final Set<String> mPluginPackages;
+
+    /**
+     * Active plugins of the apps that some plugin supports explicitly, keyed
+     * by app and then by API. Includes the plugins that apply to all apps.
+     */
+    private final Map<String, Map<String, List<PermissionsPlugin>>> mAppToApiToPlugins;
+
+    /** Active plugins of every other app, keyed by API. */
+    private final Map<String, List<PermissionsPlugin>> mAllAppsApiToPlugins;
+
+    private final int mGeneration;
+
+    private PermissionsPluginIndex(Set<String> pluginPackages,
+            Map<String, Map<String, List<PermissionsPlugin>>> appToApiToPlugins,
+            Map<String, List<PermissionsPlugin>> allAppsApiToPlugins, int generation) {
+        mPluginPackages = pluginPackages;
+        mAppToApiToPlugins = appToApiToPlugins;
+        mAllAppsApiToPlugins = allAppsApiToPlugins;
+        mGeneration = generation;
+    }
+
+    /**
+     * Returns the plugins that are active for an app and API, ordered by
+     * decreasing priority. The returned list must not be modified.
+     */
+    List<PermissionsPlugin> getActivePlugins(String appPackage, String targetAPI) {
+        if (mPluginPackages.contains(appPackage)) {
+            return Collections.emptyList();
+        }
+
+        final Map<String, List<PermissionsPlugin>> apiToPlugins =
+                mAppToApiToPlugins.get(appPackage);
+        final List<PermissionsPlugin> plugins = (apiToPlugins != null)
+                ? apiToPlugins.get(targetAPI)
+                : mAllAppsApiToPlugins.get(targetAPI);
+        return plugins != null ? plugins : Collections.emptyList();
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Builds the index of the given plugins. Must be called with the lock that
+     * guards the plugin maps held. The plugins are copied, so that later
+     * changes to them don't race with callers marshalling the index' lists.
+     *
+     * @param plugins Installed plugins keyed by package.
+     * @param packageToPlugins Plugin packages keyed by the apps they support,
+     * or by {@link PermissionsPlugin#ALL_PACKAGES}.
+     */
+    static PermissionsPluginIndex build(ArrayMap<String, PermissionsPlugin> plugins,
+            ArrayMap<String, Set<String>> packageToPlugins,
+            Comparator<PermissionsPlugin> order, int generation) {
+        final ArrayMap<String, PermissionsPlugin> copies = new ArrayMap<>(plugins.size());
+        for (int i = 0; i < plugins.size(); i++) {
+            copies.put(plugins.keyAt(i), copyOf(plugins.valueAt(i)));
+        }
+
+        final Map<String, List<PermissionsPlugin>> allAppsApiToPlugins =
+                collect(copies, packageToPlugins, PermissionsPlugin.ALL_PACKAGES, null, order);
+
+        final ArrayMap<String, Map<String, List<PermissionsPlugin>>> appToApiToPlugins =
+                new ArrayMap<>();
+        for (int i = 0; i < packageToPlugins.size(); i++) {
+            final String appPackage = packageToPlugins.keyAt(i);
+            if (PermissionsPlugin.ALL_PACKAGES.equals(appPackage)) {
+                continue;
+            }
+            appToApiToPlugins.put(appPackage, collect(copies, packageToPlugins, appPackage,
+                    allAppsApiToPlugins, order));
+        }
+
+        return new PermissionsPluginIndex(
+                Collections.unmodifiableSet(new ArraySet<>(copies.keySet())),
+                Collections.unmodifiableMap(appToApiToPlugins),
+                allAppsApiToPlugins, generation);
+    }
+
+    /**
+     * Collects the plugins that are active for each API of an app, adding
+     * those that are active for all apps, if given.
+     */
+    private static Map<String, List<PermissionsPlugin>> collect(
+            ArrayMap<String, PermissionsPlugin> plugins,
+            ArrayMap<String, Set<String>> packageToPlugins, String appPackage,
+            Map<String, List<PermissionsPlugin>> allAppsApiToPlugins,
+            Comparator<PermissionsPlugin> order) {
+        final ArrayMap<String, List<PermissionsPlugin>> apiToPlugins = new ArrayMap<>();
+
+        final Set<String> pluginPackages = packageToPlugins.get(appPackage);
+        if (pluginPackages != null) {
+            for (String pluginPackage : pluginPackages) {
+                final PermissionsPlugin plugin = plugins.get(pluginPackage);
+                final List<String> apis = (plugin != null)
+                        ? plugin.targetPackageToAPIs.get(appPackage) : null;
+                if (apis == null) {
+                    continue;
+                }
+                for (String api : apis) {
+                    List<PermissionsPlugin> list = apiToPlugins.get(api);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        apiToPlugins.put(api, list);
+                    }
+                    list.add(plugin);
+                }
+            }
+        }
+
+        if (allAppsApiToPlugins != null) {
+            for (Map.Entry<String, List<PermissionsPlugin>> entry
+                    : allAppsApiToPlugins.entrySet()) {
+                List<PermissionsPlugin> list = apiToPlugins.get(entry.getKey());
+                if (list == null) {
+                    list = new ArrayList<>();
+                    apiToPlugins.put(entry.getKey(), list);
+                }
+                for (PermissionsPlugin plugin : entry.getValue()) {
+                    // A plugin selected both for the app and for all apps
+                    // runs only once.
+                    if (!list.contains(plugin)) {
+                        list.add(plugin);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < apiToPlugins.size(); i++) {
+            final List<PermissionsPlugin> list = apiToPlugins.valueAt(i);
+            Collections.sort(list, order);
+            apiToPlugins.setValueAt(i, Collections.unmodifiableList(list));
+        }
+        return Collections.unmodifiableMap(apiToPlugins);
+    }
+
+    private static PermissionsPlugin copyOf(PermissionsPlugin plugin) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            plugin.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return new PermissionsPlugin(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("generation="); pw.print(mGeneration);
+        pw.print(" plugins="); pw.print(mPluginPackages.size());
+        pw.print(" apps="); pw.println(mAppToApiToPlugins.size());
+        for (Map.Entry<String, List<PermissionsPlugin>> entry : mAllAppsApiToPlugins.entrySet()) {
+            pw.print(prefix); pw.print("  "); pw.print(PermissionsPlugin.ALL_PACKAGES);
+            pw.print("/"); pw.print(entry.getKey()); pw.print(": "); pw.println(entry.getValue());
+        }
+        for (Map.Entry<String, Map<String, List<PermissionsPlugin>>> app
+                : mAppToApiToPlugins.entrySet()) {
+            for (Map.Entry<String, List<PermissionsPlugin>> entry : app.getValue().entrySet()) {
+                pw.print(prefix); pw.print("  "); pw.print(app.getKey());
+                pw.print("/"); pw.print(entry.getKey()); pw.print(": "); pw.println(entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.Nullable;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.util.ArraySet;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Caches the results of resolving implicit intents, so that the intents that are resolved
+ * over and over again, like launcher queries and common broadcasts, don't walk the intent
+ * resolvers on every call.
+ *
+ * <p>Results are keyed by the parts of the intent that take part in resolution, the
+ * resolved query flags, the calling uid and the user. PackageManagerService drops the
+ * results of a user whenever the package state of that user changes, and all results
+ * whenever components are added or removed. Every invalidation advances a generation, and
+ * a result resolved against an older generation is not cached.</p>
+ *
+ * <p>The cache holds its own copies of the results and hands out new copies, so callers are
+ * free to modify what they get. The component infos are shared, as they already are
+ * between the results of the intent resolvers.</p>
+ */
+final class ResolveCache {
+    static final int KIND_ACTIVITIES = 0;
+    static final int KIND_RECEIVERS = 1;
+    private static final int NUM_KINDS = 2;
+
+    private static final int MAX_ENTRIES_PER_USER = 256;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final SparseArray<LruCache<Key, ResolveInfo[]>> mUserCaches = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private int mGeneration;
+
+    // Statistics, by kind
+    @GuardedBy("mLock")
+    private final long[] mHits = new long[NUM_KINDS];
+    @GuardedBy("mLock")
+    private final long[] mHitTimeNs = new long[NUM_KINDS];
+    @GuardedBy("mLock")
+    private final long[] mMisses = new long[NUM_KINDS];
+    @GuardedBy("mLock")
+    private final long[] mMissTimeNs = new long[NUM_KINDS];
+    @GuardedBy("mLock")
+    private final long[] mUncacheable = new long[NUM_KINDS];
+    @GuardedBy("mLock")
+    private long mInvalidations;
+
+    /** Identifies one resolution. */
+    static final class Key {
+        final int kind;
+        final String action;
+        final String resolvedType;
+        final Uri data;
+        final ArraySet<String> categories;
+        final int intentFlags;
+        final int flags;
+        final int callingUid;
+        final int userId;
+        final boolean resolveForStart;
+        final boolean allowDynamicSplits;
+        private final int mHashCode;
+
+        Key(int kind, Intent intent, String resolvedType, int flags, int callingUid,
+                int userId, boolean resolveForStart, boolean allowDynamicSplits) {
+            this.kind = kind;
+            this.action = intent.getAction();
+            this.resolvedType = resolvedType;
+            this.data = intent.getData();
+            final Set<String> categories = intent.getCategories();
+            this.categories = (categories != null && !categories.isEmpty())
+                    ? new ArraySet<>(categories) : null;
+            this.intentFlags = intent.getFlags();
+            this.flags = flags;
+            this.callingUid = callingUid;
+            this.userId = userId;
+            this.resolveForStart = resolveForStart;
+            this.allowDynamicSplits = allowDynamicSplits;
+
+            int hashCode = kind;
+            hashCode = 31 * hashCode + Objects.hashCode(action);
+            hashCode = 31 * hashCode + Objects.hashCode(resolvedType);
+            hashCode = 31 * hashCode + Objects.hashCode(data);
+            hashCode = 31 * hashCode + Objects.hashCode(this.categories);
+            hashCode = 31 * hashCode + intentFlags;
+            hashCode = 31 * hashCode + flags;
+            hashCode = 31 * hashCode + callingUid;
+            hashCode = 31 * hashCode + userId;
+            hashCode = 31 * hashCode + (resolveForStart ? 1 : 0);
+            hashCode = 31 * hashCode + (allowDynamicSplits ? 1 : 0);
+            mHashCode = hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && kind == other.kind
+                    && intentFlags == other.intentFlags
+                    && flags == other.flags
+                    && callingUid == other.callingUid
+                    && userId == other.userId
+                    && resolveForStart == other.resolveForStart
+                    && allowDynamicSplits == other.allowDynamicSplits
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && Objects.equals(data, other.data)
+                    && Objects.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /**
+     * Returns the generation that a result resolved from now on has to be put with.
+     * Must be read before the state the result is resolved against.
+     */
+    int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Returns a copy of the cached result for the key, or {@code null} if there is none.
+     *
+     * @param startTime {@link System#nanoTime()} at which the caller started resolving.
+     */
+    @Nullable List<ResolveInfo> get(Key key, long startTime) {
+        final ResolveInfo[] cached;
+        synchronized (mLock) {
+            final LruCache<Key, ResolveInfo[]> cache = mUserCaches.get(key.userId);
+            cached = (cache != null) ? cache.get(key) : null;
+        }
+        if (cached == null) {
+            return null;
+        }
+        final List<ResolveInfo> result = copyOf(cached);
+        final long elapsed = System.nanoTime() - startTime;
+        synchronized (mLock) {
+            mHits[key.kind]++;
+            mHitTimeNs[key.kind] += elapsed;
+        }
+        return result;
+    }
+
+    /**
+     * Caches a copy of a result that was resolved after a miss, unless the cache was
+     * invalidated since {@code generation} was read.
+     *
+     * @param startTime {@link System#nanoTime()} at which the caller started resolving.
+     */
+    void put(Key key, List<ResolveInfo> result, int generation, long startTime) {
+        final ResolveInfo[] copy = new ResolveInfo[result.size()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = copyOf(result.get(i));
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        synchronized (mLock) {
+            mMisses[key.kind]++;
+            mMissTimeNs[key.kind] += elapsed;
+            if (generation != mGeneration) {
+                return;
+            }
+            LruCache<Key, ResolveInfo[]> cache = mUserCaches.get(key.userId);
+            if (cache == null) {
+                cache = new LruCache<>(MAX_ENTRIES_PER_USER);
+                mUserCaches.put(key.userId, cache);
+            }
+            cache.put(key, copy);
+        }
+    }
+
+    /** Records a miss whose result depended on more than the key, and wasn't cached. */
+    void recordUncacheable(Key key) {
+        synchronized (mLock) {
+            mUncacheable[key.kind]++;
+        }
+    }
+
+    /**
+     * Drops the cached results of a user, or of all users for {@link UserHandle#USER_ALL}.
+     */
+    void invalidate(int userId) {
+        synchronized (mLock) {
+            mGeneration++;
+            mInvalidations++;
+            if (userId == UserHandle.USER_ALL) {
+                mUserCaches.clear();
+            } else {
+                mUserCaches.remove(userId);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int size(int userId) {
+        synchronized (mLock) {
+            final LruCache<Key, ResolveInfo[]> cache = mUserCaches.get(userId);
+            return (cache != null) ? cache.size() : 0;
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("Generation: "); pw.print(mGeneration);
+            pw.print(" invalidations="); pw.println(mInvalidations);
+            for (int kind = 0; kind < NUM_KINDS; kind++) {
+                final long lookups = mHits[kind] + mMisses[kind];
+                pw.print(prefix);
+                pw.print(kind == KIND_ACTIVITIES ? "Activities:" : "Receivers:");
+                pw.print(" hits="); pw.print(mHits[kind]);
+                pw.print(" misses="); pw.print(mMisses[kind]);
+                pw.print(" uncacheable="); pw.print(mUncacheable[kind]);
+                pw.print(" hitRate=");
+                pw.print(lookups > 0 ? (100 * mHits[kind] / lookups) : 0); pw.print('%');
+                pw.print(" meanHitTime=");
+                pw.print(mHits[kind] > 0 ? (mHitTimeNs[kind] / mHits[kind] / 1000) : 0);
+                pw.print("us meanMissTime=");
+                pw.print(mMisses[kind] > 0 ? (mMissTimeNs[kind] / mMisses[kind] / 1000) : 0);
+                pw.println("us");
+            }
+            for (int i = 0; i < mUserCaches.size(); i++) {
+                final LruCache<Key, ResolveInfo[]> cache = mUserCaches.valueAt(i);
+                pw.print(prefix); pw.print("User "); pw.print(mUserCaches.keyAt(i));
+                pw.print(": "); pw.print(cache.size()); pw.print('/');
+                pw.print(cache.maxSize()); pw.print(" entries, ");
+                pw.print(cache.evictionCount()); pw.println(" evicted");
+            }
+        }
+    }
+
+    private static List<ResolveInfo> copyOf(ResolveInfo[] infos) {
+        final ArrayList<ResolveInfo> result = new ArrayList<>(infos.length);
+        for (ResolveInfo info : infos) {
+            result.add(copyOf(info));
+        }
+        return result;
+    }
+
+    private static ResolveInfo copyOf(ResolveInfo info) {
+        final ResolveInfo copy = new ResolveInfo(info);
+        // Not copied by the copy constructor
+        copy.isDefault = info.isDefault;
+        copy.auxiliaryInfo = info.auxiliaryInfo;
+        return copy;
+    }
+}
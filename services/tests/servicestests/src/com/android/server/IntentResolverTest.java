@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}, resolving intents against a synthetic package set.
+ * The timings are in CorePerfTests.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class IntentResolverTest {
+    private static final int NUM_PACKAGES = 2000;
+
+    private static final class TestFilter extends IntentFilter {
+        final String packageName;
+
+        TestFilter(String packageName) {
+            this.packageName = packageName;
+        }
+
+        @Override
+        public String toString() {
+            return "TestFilter{" + packageName + "}";
+        }
+    }
+
+    private static final class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return packageName.equals(filter.packageName);
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+    }
+
+    private TestResolver mResolver;
+    private final ArrayList<TestFilter> mFilters = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mResolver = new TestResolver();
+        for (int i = 0; i < NUM_PACKAGES; i++) {
+            addPackage("com.example.app" + i, i);
+        }
+    }
+
+    /**
+     * Adds filters typical of an app: a launcher entry, a browsable link handler for its
+     * own host, a share target, a package broadcast receiver and a private action.
+     */
+    private void addPackage(String packageName, int index) {
+        TestFilter f = new TestFilter(packageName);
+        f.addAction(Intent.ACTION_MAIN);
+        f.addCategory(Intent.CATEGORY_LAUNCHER);
+        addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction(Intent.ACTION_VIEW);
+        f.addCategory(Intent.CATEGORY_DEFAULT);
+        f.addCategory(Intent.CATEGORY_BROWSABLE);
+        f.addDataScheme("http");
+        f.addDataScheme("https");
+        f.addDataAuthority("app" + index + ".example.com", null);
+        addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction(Intent.ACTION_SEND);
+        f.addCategory(Intent.CATEGORY_DEFAULT);
+        try {
+            f.addDataType((index % 2 == 0) ? "image/*" : "text/plain");
+        } catch (IntentFilter.MalformedMimeTypeException e) {
+            throw new IllegalStateException(e);
+        }
+        addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction((index % 3 == 0) ? Intent.ACTION_PACKAGE_ADDED
+                : Intent.ACTION_PACKAGE_REMOVED);
+        f.addDataScheme("package");
+        addFilter(f);
+
+        f = new TestFilter(packageName);
+        f.addAction(packageName + ".ACTION_SYNC");
+        addFilter(f);
+    }
+
+    private void addFilter(TestFilter filter) {
+        mResolver.addFilter(filter);
+        mFilters.add(filter);
+    }
+
+    private static Intent browsableViewIntent() {
+        return new Intent(Intent.ACTION_VIEW, Uri.parse("https://app42.example.com/path"))
+                .addCategory(Intent.CATEGORY_BROWSABLE);
+    }
+
+    private static Intent packageAddedIntent() {
+        return new Intent(Intent.ACTION_PACKAGE_ADDED, Uri.parse("package:com.example.new"));
+    }
+
+    private static Intent privateActionIntent() {
+        return new Intent("com.example.app7.ACTION_SYNC");
+    }
+
+    @Test
+    public void testAddFilterTwice() {
+        final Intent intent = privateActionIntent();
+        final TestFilter filter = mResolver.queryIntent(intent, null, false, 0).get(0);
+        mResolver.addFilter(filter);
+        assertEquals(1, mResolver.queryIntent(intent, null, false, 0).size());
+
+        mResolver.removeFilter(filter);
+        assertTrue(mResolver.queryIntent(intent, null, false, 0).isEmpty());
+    }
+
+    @Test
+    public void testSameResultsWithoutIndex() {
+        // Remove most packages to have the slots renumbered, then add some back.
+        for (int i = 0; i < mFilters.size(); i++) {
+            if (i % 10 != 0) {
+                mResolver.removeFilter(mFilters.get(i));
+            }
+        }
+        for (int i = 0; i < NUM_PACKAGES / 4; i++) {
+            addPackage("com.example.late" + i, i);
+        }
+
+        final Intent[] intents = {
+                browsableViewIntent(),
+                packageAddedIntent(),
+                privateActionIntent(),
+                new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER),
+                new Intent(Intent.ACTION_VIEW, Uri.parse("https://APP3.Example.com/")),
+                new Intent(Intent.ACTION_VIEW, Uri.parse("http://unknown.example.com/")),
+                new Intent(Intent.ACTION_SEND).setType("image/png"),
+                new Intent("no.such.ACTION"),
+        };
+        for (Intent intent : intents) {
+            final String type = intent.getType();
+            mResolver.setUseMatchIndex(false);
+            final List<TestFilter> expected = mResolver.queryIntent(intent, type, false, 0);
+            mResolver.setUseMatchIndex(true);
+            final List<TestFilter> actual = mResolver.queryIntent(intent, type, false, 0);
+            assertEquals(intent.toString(), expected, actual);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.AppOpsManager;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Process;
+import android.os.UserHandle;
+import android.os.test.TestLooper;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for the sharding of {@link BroadcastQueue}: the order broadcasts are delivered in to
+ * a process across the primary queue and its shards, and the accounting of split broadcasts.
+ *
+ * Messages posted by the queues are never dispatched, so nothing is actually delivered.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BroadcastQueueTest {
+    private static final int NUM_SHARDS = 4;
+
+    private static final String PROCESS_A = "com.example.a";
+    private static final int UID_A = Process.FIRST_APPLICATION_UID + 1;
+
+    private static final String ACTION_1 = "com.example.action.ONE";
+    private static final String ACTION_2 = "com.example.action.TWO";
+    private static final String ACTION_3 = "com.example.action.THREE";
+
+    @Mock private ActivityManagerService.Injector mMockInjector;
+
+    private BroadcastQueue mQueue;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        final ActivityManagerService ams = new ActivityManagerService(mMockInjector);
+        final TestLooper looper = new TestLooper();
+        mQueue = new BroadcastQueue(ams, new Handler(looper.getLooper()), "foreground",
+                10 * 1000, false, NUM_SHARDS);
+    }
+
+    @Test
+    public void testOrderBetweenPrimaryAndShard() {
+        final ResolveInfo receiver = makeReceiver(PROCESS_A, UID_A);
+        final BroadcastRecord serial = makeBroadcast(ACTION_1, true, 0, receiver);
+        mQueue.enqueueOrderedBroadcastLocked(serial);
+        final BroadcastRecord unordered = makeBroadcast(ACTION_2, false, 0, receiver);
+        mQueue.enqueueOrderedBroadcastLocked(unordered);
+
+        assertSame(serial, mQueue.mOrderedBroadcasts.get(0));
+        final BroadcastQueue shard = shardOf(receiver);
+        assertEquals(1, shard.mOrderedBroadcasts.size());
+        final BroadcastRecord part = shard.mOrderedBroadcasts.get(0);
+        assertSame(unordered, part.splitFrom);
+
+        // The older broadcast goes first, the newer one waits for it.
+        assertFalse(mQueue.waitForOrderLocked(serial));
+        assertTrue(shard.waitForOrderLocked(part));
+        assertTrue(shard.mWaitingForOrder);
+
+        // It keeps waiting while the older one is being received...
+        serial.nextReceiver = 1;
+        serial.state = BroadcastRecord.APP_RECEIVE;
+        assertTrue(shard.waitForOrderLocked(part));
+
+        // ... and goes once it has been.
+        serial.state = BroadcastRecord.IDLE;
+        assertFalse(shard.waitForOrderLocked(part));
+        assertFalse(shard.mWaitingForOrder);
+    }
+
+    @Test
+    public void testOrderDoesNotDeadlock() {
+        final ResolveInfo receiver = makeReceiver(PROCESS_A, UID_A);
+        final BroadcastRecord first = makeBroadcast(ACTION_1, true, 0, receiver);
+        mQueue.enqueueOrderedBroadcastLocked(first);
+        final BroadcastRecord second = makeBroadcast(ACTION_2, false, 0, receiver);
+        mQueue.enqueueOrderedBroadcastLocked(second);
+        final BroadcastRecord third = makeBroadcast(ACTION_3, true, 0, receiver);
+        mQueue.enqueueOrderedBroadcastLocked(third);
+
+        final BroadcastQueue shard = shardOf(receiver);
+        final BroadcastRecord part = shard.mOrderedBroadcasts.get(0);
+
+        // The queues take turns, and one of them can always go on.
+        assertFalse(mQueue.waitForOrderLocked(first));
+        assertTrue(shard.waitForOrderLocked(part));
+
+        mQueue.mOrderedBroadcasts.remove(first);
+        assertTrue(mQueue.waitForOrderLocked(third));
+        assertFalse(shard.waitForOrderLocked(part));
+
+        shard.mOrderedBroadcasts.remove(part);
+        assertFalse(mQueue.waitForOrderLocked(third));
+    }
+
+    @Test
+    public void testOtherProcessesDoNotWait() {
+        final ResolveInfo receiverA = makeReceiver(PROCESS_A, UID_A);
+        final ResolveInfo receiverB = makeReceiver(PROCESS_A, UID_A + 1);
+        mQueue.enqueueOrderedBroadcastLocked(makeBroadcast(ACTION_1, true, 0, receiverA));
+        mQueue.enqueueOrderedBroadcastLocked(makeBroadcast(ACTION_2, false, 0, receiverB));
+
+        // Same process name, but another uid.
+        assertTrue(mQueue.hasOlderBroadcastForProcessLocked(Long.MAX_VALUE, PROCESS_A, UID_A));
+        assertFalse(mQueue.hasOlderBroadcastForProcessLocked(Long.MAX_VALUE, PROCESS_A,
+                UID_A + 1));
+        final BroadcastQueue shard = shardOf(receiverB);
+        assertFalse(shard.waitForOrderLocked(shard.mOrderedBroadcasts.get(0)));
+    }
+
+    @Test
+    public void testSplitAcrossShards() {
+        final ResolveInfo receiverA = makeReceiver(PROCESS_A, UID_A);
+        final ResolveInfo receiverB = makeReceiverOnOtherShard(receiverA);
+        final BroadcastRecord r = makeBroadcast(ACTION_1, false, 0,
+                receiverA, receiverB, makeReceiver(PROCESS_A, UID_A));
+        mQueue.enqueueOrderedBroadcastLocked(r);
+
+        assertEquals(2, r.splitPending);
+        final BroadcastRecord partA = shardOf(receiverA).mOrderedBroadcasts.get(0);
+        final BroadcastRecord partB = shardOf(receiverB).mOrderedBroadcasts.get(0);
+        assertEquals(2, partA.receivers.size());
+        assertEquals(1, partB.receivers.size());
+        assertEquals(r.sequence, partA.sequence);
+        assertNotEquals(0, r.enqueueClockTime);
+        assertNotEquals(0, partB.enqueueClockTime);
+
+        partA.manifestCount = 2;
+        partA.dispatchTime = 200;
+        partA.finishTime = 300;
+        partB.manifestCount = 1;
+        partB.manifestSkipCount = 1;
+        partB.dispatchTime = 100;
+        partB.finishTime = 250;
+
+        assertNull(mQueue.finishSplitPartLocked(partA));
+        assertEquals(1, r.splitPending);
+        assertSame(r, mQueue.finishSplitPartLocked(partB));
+        assertEquals(0, r.splitPending);
+        assertEquals(3, r.manifestCount);
+        assertEquals(1, r.manifestSkipCount);
+        assertEquals(100, r.dispatchTime);
+        assertEquals(300, r.finishTime);
+    }
+
+    @Test
+    public void testReplacePendingOnShard() {
+        final ResolveInfo receiver = makeReceiver(PROCESS_A, UID_A);
+        // The broadcast at the head of a queue may be in flight, so it is never replaced.
+        mQueue.enqueueOrderedBroadcastLocked(makeBroadcast(ACTION_1, false, 0, receiver));
+        final BroadcastRecord old = makeBroadcast(ACTION_2, false,
+                Intent.FLAG_RECEIVER_REPLACE_PENDING, receiver);
+        mQueue.enqueueOrderedBroadcastLocked(old);
+        final BroadcastRecord replacement = makeBroadcast(ACTION_2, false,
+                Intent.FLAG_RECEIVER_REPLACE_PENDING, receiver);
+        mQueue.enqueueOrderedBroadcastLocked(replacement);
+
+        final BroadcastQueue shard = shardOf(receiver);
+        assertEquals(2, shard.mOrderedBroadcasts.size());
+        final BroadcastRecord part = shard.mOrderedBroadcasts.get(1);
+        assertSame(replacement, part.splitFrom);
+        // The part takes over the place of the one it replaced.
+        assertEquals(old.sequence, part.sequence);
+        assertNotEquals(0, part.enqueueClockTime);
+
+        assertEquals(0, old.splitPending);
+        assertEquals(1, replacement.splitPending);
+    }
+
+    private BroadcastQueue shardOf(ResolveInfo receiver) {
+        return mQueue.mShards[mQueue.shardIndexLocked(receiver.activityInfo)];
+    }
+
+    private ResolveInfo makeReceiverOnOtherShard(ResolveInfo receiver) {
+        final int index = mQueue.shardIndexLocked(receiver.activityInfo);
+        for (int i = 0; ; i++) {
+            final ResolveInfo other = makeReceiver(PROCESS_A + i, UID_A + 1);
+            if (mQueue.shardIndexLocked(other.activityInfo) != index) {
+                return other;
+            }
+        }
+    }
+
+    private static ResolveInfo makeReceiver(String processName, int uid) {
+        final ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.packageName = processName;
+        info.activityInfo.name = processName + ".Receiver";
+        info.activityInfo.processName = processName;
+        info.activityInfo.applicationInfo = new ApplicationInfo();
+        info.activityInfo.applicationInfo.packageName = processName;
+        info.activityInfo.applicationInfo.uid = uid;
+        return info;
+    }
+
+    private BroadcastRecord makeBroadcast(String action, boolean ordered, int flags,
+            ResolveInfo... receivers) {
+        final Intent intent = new Intent(action);
+        intent.addFlags(flags);
+        return new BroadcastRecord(mQueue, intent, null /*callerApp*/, "android",
+                0 /*callingPid*/, Process.SYSTEM_UID, false /*callerInstantApp*/,
+                null /*resolvedType*/, null /*requiredPermissions*/, AppOpsManager.OP_NONE,
+                null /*options*/, new ArrayList<>(Arrays.asList(receivers)),
+                null /*resultTo*/, 0 /*resultCode*/, null /*resultData*/,
+                null /*resultExtras*/, ordered, false /*sticky*/, false /*initialSticky*/,
+                UserHandle.USER_SYSTEM);
+    }
+}
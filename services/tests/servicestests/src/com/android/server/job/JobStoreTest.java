@@ -267,6 +267,42 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that removals and replacements written to the journal are replayed on top of the
+     * snapshot.
+     */
+    public void testJournalReplaysRemoveAndReplace() throws Exception {
+        JobInfo.Builder b = new Builder(51, mComponent)
+                .setOverrideDeadline(10000)
+                .setPersisted(true);
+        final JobStatus removed = JobStatus.createFromJobInfo(b.build(), SOME_UID, null, -1, null);
+        b = new Builder(52, mComponent)
+                .setOverrideDeadline(10000)
+                .setPriority(1)
+                .setPersisted(true);
+        final JobStatus replaced = JobStatus.createFromJobInfo(b.build(), SOME_UID, null, -1,
+                null);
+        mTaskStoreUnderTest.add(removed);
+        mTaskStoreUnderTest.add(replaced);
+        Thread.sleep(IO_WAIT);
+
+        mTaskStoreUnderTest.remove(removed, true);
+        b = new Builder(52, mComponent)
+                .setOverrideDeadline(10000)
+                .setPriority(2)
+                .setPersisted(true);
+        mTaskStoreUnderTest.add(
+                JobStatus.createFromJobInfo(b.build(), SOME_UID, null, -1, null));
+        Thread.sleep(IO_WAIT);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Job count is incorrect.", 1, jobStatusSet.size());
+        JobStatus loaded = jobStatusSet.getAllJobs().iterator().next();
+        assertEquals("Wrong job persisted.", 52, loaded.getJobId());
+        assertEquals("Replacement not replayed.", 2, loaded.getPriority());
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
@@ -66,6 +66,24 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testCollectCertificates() {
+        // Only files with an even index get their certificates collected
+        mParser = new CertificateTestParallelPackageParser((pkg, scanFile) ->
+                Integer.parseInt(scanFile.getName().substring(1)) % 2 == 0);
+        int fileCount = 15;
+        for (int i = 0; i < fileCount; i++) {
+            mParser.submit(new File("f" + i), 0);
+        }
+        for (int i = 0; i < fileCount; i++) {
+            ParallelPackageParser.ParseResult result = mParser.take();
+            Assert.assertNotNull(result.pkg);
+            int index = Integer.parseInt(result.scanFile.getName().substring(1));
+            Assert.assertEquals("Unexpected result " + result, index % 2 == 0,
+                    result.certificatesCollected);
+        }
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
@@ -79,4 +97,23 @@ public class ParallelPackageParserTest {
             return null;
         }
     }
+
+    /** Returns an empty package for every file, so certificates get collected. */
+    class CertificateTestParallelPackageParser extends ParallelPackageParser {
+
+        CertificateTestParallelPackageParser(CertificatePolicy certificatePolicy) {
+            super(null, false, null, null, null, certificatePolicy);
+        }
+
+        @Override
+        protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
+                int parseFlags) throws PackageParser.PackageParserException {
+            return new PackageParser.Package(scanFile.getName());
+        }
+
+        @Override
+        protected void collectCertificates(PackageParser.Package pkg, int parseFlags) {
+            // Do not actually collect certificates for testing
+        }
+    }
 }
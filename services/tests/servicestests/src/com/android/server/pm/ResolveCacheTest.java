@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ResolveCache}
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ResolveCacheTest {
+    private static final int CALLING_UID = 1000;
+
+    private ResolveCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new ResolveCache();
+    }
+
+    private static ResolveCache.Key key(Intent intent, int userId) {
+        return new ResolveCache.Key(ResolveCache.KIND_ACTIVITIES, intent, null /*resolvedType*/,
+                0 /*flags*/, CALLING_UID, userId, false /*resolveForStart*/,
+                true /*allowDynamicSplits*/);
+    }
+
+    private static List<ResolveInfo> result(String packageName) {
+        final ResolveInfo ri = new ResolveInfo();
+        ri.activityInfo = new ActivityInfo();
+        ri.activityInfo.packageName = packageName;
+        ri.activityInfo.name = packageName + ".Main";
+        ri.isDefault = true;
+        final List<ResolveInfo> result = new ArrayList<>();
+        result.add(ri);
+        return result;
+    }
+
+    @Test
+    public void testKeyEquality() {
+        final Intent launcher = new Intent(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER);
+        assertEquals(key(launcher, 0), key(new Intent(launcher), 0));
+        assertEquals(key(launcher, 0).hashCode(), key(new Intent(launcher), 0).hashCode());
+        assertTrue(!key(launcher, 0).equals(key(launcher, 10)));
+        assertTrue(!key(launcher, 0).equals(key(new Intent(Intent.ACTION_MAIN), 0)));
+        assertTrue(!key(launcher, 0).equals(
+                key(new Intent(launcher).addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES), 0)));
+        final Intent view = new Intent(Intent.ACTION_VIEW, Uri.parse("content://a/1"));
+        assertTrue(!key(view, 0).equals(
+                key(new Intent(Intent.ACTION_VIEW, Uri.parse("content://a/2")), 0)));
+    }
+
+    @Test
+    public void testReturnsCopies() {
+        final Intent intent = new Intent(Intent.ACTION_BOOT_COMPLETED);
+        final List<ResolveInfo> resolved = result("com.example.a");
+        mCache.put(key(intent, 0), resolved, mCache.getGeneration(), System.nanoTime());
+
+        final List<ResolveInfo> first = mCache.get(key(intent, 0), System.nanoTime());
+        assertNotNull(first);
+        assertEquals(1, first.size());
+        assertNotSame(resolved.get(0), first.get(0));
+        assertSame(resolved.get(0).activityInfo, first.get(0).activityInfo);
+        assertTrue(first.get(0).isDefault);
+
+        // Changing what was returned doesn't change what's cached.
+        first.clear();
+        final List<ResolveInfo> second = mCache.get(key(intent, 0), System.nanoTime());
+        assertEquals(1, second.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        final Intent intent = new Intent(Intent.ACTION_BOOT_COMPLETED);
+        mCache.put(key(intent, 0), result("com.example.a"), mCache.getGeneration(),
+                System.nanoTime());
+        mCache.put(key(intent, 10), result("com.example.a"), mCache.getGeneration(),
+                System.nanoTime());
+
+        mCache.invalidate(10);
+        assertNotNull(mCache.get(key(intent, 0), System.nanoTime()));
+        assertNull(mCache.get(key(intent, 10), System.nanoTime()));
+
+        mCache.invalidate(UserHandle.USER_ALL);
+        assertNull(mCache.get(key(intent, 0), System.nanoTime()));
+    }
+
+    @Test
+    public void testStaleGenerationNotCached() {
+        final Intent intent = new Intent(Intent.ACTION_BOOT_COMPLETED);
+        final int generation = mCache.getGeneration();
+        // The package state changes while the result is being resolved.
+        mCache.invalidate(0);
+        mCache.put(key(intent, 0), result("com.example.a"), generation, System.nanoTime());
+        assertNull(mCache.get(key(intent, 0), System.nanoTime()));
+        assertEquals(0, mCache.size(0));
+    }
+}